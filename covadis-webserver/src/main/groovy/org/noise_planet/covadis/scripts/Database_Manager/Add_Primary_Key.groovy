@@ -55,6 +55,9 @@ outputs = [
         ]
 ]
 
+// Altering a table in place is not recorded as a new output, the job is always run
+memoization = false
+
 def exec(Connection connection, input) {
 
     // output string, the information given back to the user
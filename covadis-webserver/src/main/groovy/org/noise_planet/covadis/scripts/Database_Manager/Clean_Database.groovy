@@ -47,6 +47,9 @@ outputs = [
 ]
 
 
+// Removing tables is not recorded in the output tables, the job is always run
+memoization = false
+
 def exec(Connection connection, input) {
 
     // output string, the information given back to the user
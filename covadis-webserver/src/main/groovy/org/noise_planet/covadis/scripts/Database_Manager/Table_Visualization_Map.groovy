@@ -22,20 +22,18 @@ import org.h2gis.utilities.GeometryTableUtilities
 import org.h2gis.utilities.JDBCUtilities
 import org.h2gis.utilities.TableLocation
 import org.h2gis.utilities.dbtypes.DBUtils
-import org.locationtech.jts.geom.Geometry
-import org.locationtech.jts.io.WKTWriter
+import org.noise_planet.covadis.webserver.script.GeoJsonTableWriter
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
 import java.sql.Connection
-import java.sql.ResultSet
-import java.sql.Statement
 
 title = 'Diplay a table on a map.'
 description = '&#10145;&#65039; Display a table containing a geometric column on a map &#128506;</br> '+
               '<hr>' +
-              'Technically, it groups all the geometries of a table and returns them in WKT OGC format. </br> </br> '+
-              '&#x1F6A8; Be careful, this treatment can be blocked if the table is too large.'
+              'Technically, it returns a link to the features of the table in GeoJSON format. The features are sent while ' +
+              'they are read from the database, so the map starts drawing right away even on a large table.</br> </br> '+
+              '&#128161; Use the bounding box and the zoom level to send only the visible, simplified features.'
 
 inputs = [
         inputSRID: [
@@ -53,26 +51,39 @@ inputs = [
                 title      : 'Name of the table',
                 description: 'Name of the table you want to display.',
                 type       : String.class
+        ],
+        bbox: [
+                name       : 'Bounding box',
+                title      : 'Bounding box',
+                description: 'Only the features intersecting this envelope are displayed, as minX,minY,maxX,maxY in ' +
+                             '<a href="https://epsg.io/4326" target="_blank">WGS84</a> coordinates. (STRING) </br> </br>' +
+                             '&#128736; Default value: <b>the whole table</b> ',
+                type       : String.class,
+                min        : 0, max: 1
+        ],
+        zoom: [
+                name       : 'Zoom level',
+                title      : 'Zoom level',
+                description: 'Web map zoom level, the geometries are simplified to the size of a pixel at this ' +
+                             'level. (INTEGER) </br> </br>' +
+                             '&#128736; Default value: <b>no simplification</b> ',
+                type       : Integer.class,
+                min        : 0, max: 1
         ]
 ]
 
 outputs = [
         result: [
-                name: 'Result output geometry',
-                title: 'Result output geometry',
-                description: 'This is the output geometry in WKT OGC format',
-                type: Geometry.class
+                name: 'Result output GeoJSON',
+                title: 'Result output GeoJSON',
+                description: 'Link to the features of the table in GeoJSON format, projected in WGS84. The WPS Builder ' +
+                             'loads them on its result map',
+                type: String.class
         ]
 ]
 
 def exec(Connection connection, input) {
 
-    // output geometry, the information given back to the user
-    Geometry geom = null
-
-    // Create a connection statement to interact with the database in SQL
-    Statement stmt = connection.createStatement()
-
     // Create a logger to display messages in the geoserver logs and in the command prompt.
     Logger logger = LoggerFactory.getLogger("org.noise_planet.noisemodelling")
 
@@ -118,38 +129,22 @@ def exec(Connection connection, input) {
                 TableLocation.parse(tableName, DBUtils.getDBType(connection)), spatialFieldNames.get(0), metaData.getSQL(), spatialFieldNames.get(0),spatialFieldNames.get(0) ,srid))
     }
 
-    // Project geometry in WGS84 (EPSG:4326) and groups all the geometries of the table
-    String geomField = "ST_ACCUM(ST_TRANSFORM(" + spatialFieldNames.get(0) + " ,4326))"
-    ResultSet rs = stmt.executeQuery(String.format("select %s " + spatialFieldNames.get(0) + " from %s", geomField, tableName))
-
-    // Get the geometry field from the table
-    while (rs.next()) {
-        geom = (Geometry) rs.getObject(1)
+    // The features are not read here, the web server streams them as GeoJSON (projected in WGS84) from a cursor
+    List<String> parameters = []
+    if (input['bbox']) {
+        // Check the envelope now rather than when the link is opened
+        double[] bbox = GeoJsonTableWriter.parseBoundingBox(input['bbox'] as String)
+        parameters.add("bbox=" + bbox.join(","))
     }
-
-    // print to command window
-    if (asWKT(geom).size() > 100) {
-        logger.info('Result (100 first characters) : ' + asWKT(geom).substring(0, 100) + '...')
-    } else {
-        logger.info('Result : ' + asWKT(geom))
+    if (input['zoom'] != null) {
+        parameters.add("zoom=" + (input['zoom'] as Integer))
     }
+    String url = "ows/geojson/" + URLEncoder.encode(tableName, "UTF-8") +
+            (parameters.isEmpty() ? "" : "?" + parameters.join("&"))
+    logger.info('Result : ' + url)
 
     logger.info('End : Display a table on a map')
 
     // print to WPS Builder
-    return geom
-}
-
-
-/**
- * Convert a Geometry value into a Well Known Text value.
- * @param geometry Geometry instance
- * @return The String representation
- */
-static String asWKT(Geometry geometry) {
-    if (geometry == null) {
-        return null
-    }
-    WKTWriter wktWriter = new WKTWriter()
-    return wktWriter.write(geometry)
+    return String.format("<a href=\"%s\" target=\"_blank\">%s as GeoJSON</a>", url, tableName)
 }
\ No newline at end of file
@@ -67,6 +67,9 @@ outputs = [
         ]
 ]
 
+// The exported file is outside of the database, the job is always run
+memoization = false
+
 def exec(Connection connection, Map input) {
 
     ProgressVisitor progressLogger
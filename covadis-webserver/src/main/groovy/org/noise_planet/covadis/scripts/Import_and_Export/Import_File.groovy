@@ -51,7 +51,8 @@ inputs = [
                 title      : 'Path of the input File',
                 description: '&#128194; Path of the file you want to import, including its extension. </br></br>' +
                              'For example: c:/home/buildings.geojson',
-                type       : String.class
+                type       : String.class,
+                file       : true
         ],
         inputSRID: [
                 name       : 'Projection identifier',
@@ -19,6 +19,7 @@
 package org.noise_planet.covadis.scripts.NoiseModelling
 
 import groovy.sql.Sql
+import groovy.transform.Field
 import org.h2gis.api.ProgressVisitor
 import org.h2gis.utilities.GeometryTableUtilities
 import org.h2gis.utilities.JDBCUtilities
@@ -26,6 +27,8 @@ import org.h2gis.utilities.TableLocation
 import org.h2gis.utilities.dbtypes.DBTypes
 import org.h2gis.utilities.dbtypes.DBUtils
 import org.h2gis.utilities.wrapper.ConnectionWrapper
+import org.noise_planet.covadis.webserver.hpc.KdTilePartition
+import org.noise_planet.covadis.webserver.script.CellCheckpoints
 import org.noise_planet.noisemodelling.jdbc.NoiseMapByReceiverMaker
 import org.noise_planet.noisemodelling.jdbc.NoiseMapDatabaseParameters
 import org.noise_planet.noisemodelling.jdbc.input.DefaultTableLoader
@@ -187,6 +190,14 @@ inputs = [
                         '&#128736; Default value: <b>0 </b>',
                 min        : 0, max: 1, type: String.class
         ],
+        confJobHeap             : [
+                name       : 'Job memory',
+                title      : 'Job memory (MB)',
+                description: 'Maximum memory of the computation in MB (INTEGER). </br> </br>' +
+                        'Only used when the server runs each job in a separate process. </br> </br>' +
+                        '&#128736; Default value: <b>2048 </b>',
+                min        : 0, max: 1, type: String.class
+        ],
         confDiffVertical        : [
                 name       : 'Diffraction on vertical edges',
                 title      : 'Diffraction on vertical edges',
@@ -271,6 +282,57 @@ outputs = [
         ]
 ]
 
+// Resources used by the job, the server starts this job only if the cores and heap memory are available
+// threads: 0 use all the cores, overridden by the confThreadNumber input
+// heap: estimated memory in MB, overridden by the confJobHeap input
+resources = [threads: 0, threadsInput: 'confThreadNumber', heap: 2048, heapInput: 'confJobHeap']
+
+// Inputs driving the computation time, the server predicts the duration and memory of the job from the past runs
+cost = [tables: ['tableReceivers', 'tableSources', 'tableBuilding'],
+        values: [confReflOrder: 0, confMaxSrcDist: 150, confMaxReflDist: 50, confDiffVertical: false,
+                 confDiffHorizontal: false]]
+
+/** Above this number of receivers the computation is split in cells, each completed cell is checkpointed */
+@Field static final int CHECKPOINT_CELL_RECEIVERS = 20000
+/** Cell of each receiver */
+@Field static final String CELL_INDEX_TABLE = "RECEIVERS_CELL_INDEX"
+/** Receivers of the computed cell */
+@Field static final String CELL_RECEIVERS_TABLE = "RECEIVERS_CELL"
+@Field static final String BATCH_SUFFIX = "_CELL"
+
+/**
+ * Split the receivers into cells having about the same number of receivers
+ * @return Identifiers of the cells
+ */
+List<Integer> prepareCells(Connection connection, String receiversTable, String receiversPk, String receiversGeom,
+                           int receiverCount) {
+    Sql sql = new Sql(connection)
+    int[] pk = new int[receiverCount]
+    double[] x = new double[receiverCount]
+    double[] y = new double[receiverCount]
+    int index = 0
+    // Same order on each run, so a resumed job gets the same cells
+    sql.eachRow("SELECT " + receiversPk + " PK, ST_X(" + receiversGeom + ") X, ST_Y(" + receiversGeom + ") Y FROM " +
+            receiversTable + " ORDER BY " + receiversPk) { row ->
+        if (index < receiverCount) {
+            pk[index] = row.PK as Integer
+            x[index] = row.X as Double
+            y[index] = row.Y as Double
+            index++
+        }
+    }
+    int cellCount = (int) Math.ceil(receiverCount / (double) CHECKPOINT_CELL_RECEIVERS)
+    KdTilePartition partition = KdTilePartition.partition(x, y, cellCount)
+    sql.execute("DROP TABLE IF EXISTS " + CELL_INDEX_TABLE)
+    sql.execute("CREATE TABLE " + CELL_INDEX_TABLE + "(PK INTEGER PRIMARY KEY, CELL INTEGER)")
+    sql.withBatch(1000, "INSERT INTO " + CELL_INDEX_TABLE + " VALUES (?, ?)") { ps ->
+        for (int i = 0; i < receiverCount; i++) {
+            ps.addBatch(pk[i], partition.getTile(i))
+        }
+    }
+    return (0..<partition.getTileCount()).toList()
+}
+
 // main function of the script
 def exec(Connection connection, Map input) {
     long startCompute = System.currentTimeMillis()
@@ -283,7 +345,6 @@ def exec(Connection connection, Map input) {
     // Create a sql connection to interact with the database in SQL
     Sql sql = new Sql(connection)
 
-    sql.execute("DROP TABLE RECEIVERS_LEVEL IF EXISTS;")
     // Create a logger to display messages in the geoserver logs and in the command prompt.
     Logger logger = LoggerFactory.getLogger("org.noise_planet.noisemodelling")
 
@@ -434,11 +495,18 @@ def exec(Connection connection, Map input) {
         frequencyFieldPrepend = input['frequencyFieldPrepend'] as String
     }
 
+    // Large computations are run by cells of receivers, a job run again with the same inputs skips the
+    // cells completed by the previous run. The rays can not be appended, they are always computed at once.
+    boolean exportRays = input['confRaysName'] && !((input['confRaysName'] as String).isEmpty())
+    long receiverCount = JDBCUtilities.getRowCount(connection, receivers_table_name)
+    boolean useCheckpoints = !exportRays && receiverCount > CHECKPOINT_CELL_RECEIVERS
+
     // --------------------------------------------
     // Initialize NoiseModelling propagation part
     // --------------------------------------------
 
-    NoiseMapByReceiverMaker pointNoiseMap = new NoiseMapByReceiverMaker(building_table_name, sources_table_name, receivers_table_name)
+    NoiseMapByReceiverMaker pointNoiseMap = new NoiseMapByReceiverMaker(building_table_name, sources_table_name,
+            useCheckpoints ? CELL_RECEIVERS_TABLE : receivers_table_name)
 
     def parameters = pointNoiseMap.getNoiseMapDatabaseParameters()
 
@@ -467,9 +535,28 @@ def exec(Connection connection, Map input) {
         pointNoiseMap.setSourcesEmissionTableName(tableSourceEmission)
     }
 
-    sql.execute("drop table if exists " + TableLocation.parse(pointNoiseMap.noiseMapDatabaseParameters.receiversLevelTable))
+    String resultTable = pointNoiseMap.noiseMapDatabaseParameters.receiversLevelTable
+    String computationKey = ""
+    Set<Integer> completedCells = new HashSet<>()
+    if (useCheckpoints) {
+        computationKey = CellCheckpoints.computeKey(connection, "Noise_level_from_source", input,
+                [sources_table_name, receivers_table_name, building_table_name, dem_table_name, ground_table_name,
+                 tableSourceDirectivity, input['tableSourcesEmission'] as String ?: "",
+                 input['tablePeriodAtmosphericSettings'] as String ?: ""].findAll { !it.isEmpty() })
+        CellCheckpoints.prepare(connection, resultTable, computationKey)
+        CellCheckpoints.getCompletedCells(connection, resultTable, new HashSet<Long>()).each { cell ->
+            completedCells.add(Integer.valueOf(cell))
+        }
+    }
+    if (completedCells.isEmpty()) {
+        sql.execute("DROP TABLE RECEIVERS_LEVEL IF EXISTS;")
+        sql.execute("drop table if exists " + TableLocation.parse(resultTable))
+    } else {
+        logger.info(String.format(Locale.ROOT, "Resume the computation, %d cells already computed",
+                completedCells.size()))
+    }
 
-    if (input['confRaysName'] && !((input['confRaysName'] as String).isEmpty())) {
+    if (exportRays) {
         parameters.setRaysTable(input['confRaysName'] as String)
         parameters.setExportRaysMethod(NoiseMapDatabaseParameters.ExportRaysMethods.TO_RAYS_TABLE)
         parameters.exportAttenuationMatrix = true
@@ -548,7 +635,53 @@ def exec(Connection connection, Map input) {
 
     logger.info("Start calculation... ")
 
-    pointNoiseMap.run(connection, progressLogger)
+    if (useCheckpoints) {
+        String receiversPk = JDBCUtilities.getColumnName(connection, receivers_table_name, pkIndexRecv)
+        String receiversGeom = geomFieldsRcv.get(0)
+        List<Integer> pendingCells = prepareCells(connection, receivers_table_name, receiversPk, receiversGeom,
+                (int) receiverCount).findAll { !completedCells.contains(it) }
+        String batchTable = resultTable + BATCH_SUFFIX
+        pointNoiseMap.noiseMapDatabaseParameters.receiversLevelTable = batchTable
+        logger.info(String.format(Locale.ROOT, "%d receivers split in %d cells to compute", receiverCount,
+                pendingCells.size()))
+        ProgressVisitor cellsProgress = progressLogger.subProcess(pendingCells.size())
+        for (int cell in pendingCells) {
+            if (progressLogger.isCanceled()) {
+                break
+            }
+            sql.execute("DROP TABLE IF EXISTS " + CELL_RECEIVERS_TABLE)
+            sql.execute("CREATE TABLE " + CELL_RECEIVERS_TABLE + " AS SELECT R.* FROM " + receivers_table_name +
+                    " R, " + CELL_INDEX_TABLE + " C WHERE R." + receiversPk + " = C.PK AND C.CELL = " + cell)
+            sql.execute("ALTER TABLE " + CELL_RECEIVERS_TABLE + " ADD PRIMARY KEY (" + receiversPk + ")")
+            if (dbType == DBTypes.POSTGIS) {
+                sql.execute("CREATE INDEX ON " + CELL_RECEIVERS_TABLE + " USING GIST(" + receiversGeom + ")")
+            } else {
+                sql.execute("CREATE SPATIAL INDEX ON " + CELL_RECEIVERS_TABLE + "(" + receiversGeom + ")")
+            }
+            sql.execute("DROP TABLE IF EXISTS " + batchTable)
+            pointNoiseMap.run(connection, cellsProgress)
+            if (progressLogger.isCanceled()) {
+                // The cell may be incomplete
+                break
+            }
+            List<Long> cellReceivers = sql.rows("SELECT PK FROM " + CELL_INDEX_TABLE + " WHERE CELL = " + cell)
+                    .collect { it.PK as Long }
+            CellCheckpoints.commitBatch(connection, resultTable, computationKey,
+                    [(String.valueOf(cell)): cellReceivers], [(batchTable): resultTable])
+        }
+        sql.execute("DROP TABLE IF EXISTS " + CELL_RECEIVERS_TABLE)
+        sql.execute("DROP TABLE IF EXISTS " + batchTable)
+        pointNoiseMap.noiseMapDatabaseParameters.receiversLevelTable = resultTable
+        if (progressLogger.isCanceled()) {
+            throw new IllegalStateException("The computation has been canceled, the completed cells will be" +
+                    " skipped by the next run")
+        }
+        // All the cells are in the result table
+        CellCheckpoints.clear(connection, resultTable)
+        sql.execute("DROP TABLE IF EXISTS " + CELL_INDEX_TABLE)
+    } else {
+        pointNoiseMap.run(connection, progressLogger)
+    }
 
     long elapsed = System.currentTimeMillis() - startCompute;
     long hours = TimeUnit.MILLISECONDS.toHours(elapsed)
@@ -0,0 +1,139 @@
+/**
+ * NoiseModelling is an open-source tool designed to produce environmental noise maps on very large urban areas. It can be used as a Java library or be controlled through a user friendly web interface.
+ *
+ * This version is developed by the DECIDE team from the Lab-STICC (CNRS) and by the Mixt Research Unit in Environmental Acoustics (Université Gustave Eiffel).
+ * <http://noise-planet.org/noisemodelling.html>
+ *
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ *
+ * Contact: contact@noise-planet.org
+ *
+ */
+
+/**
+ * @Author Pierre Aumond, Université Gustave Eiffel
+ * @Author Nicolas Fortin, Université Gustave Eiffel
+ */
+
+
+package org.noise_planet.covadis.scripts.Pipeline
+
+import groovy.json.JsonSlurper
+import org.h2gis.api.ProgressVisitor
+import org.noise_planet.covadis.webserver.Configuration
+import org.noise_planet.covadis.webserver.pipeline.Pipeline
+import org.noise_planet.covadis.webserver.pipeline.PipelineCheckpoints
+import org.noise_planet.covadis.webserver.pipeline.PipelineExecutor
+import org.noise_planet.noisemodelling.pathfinder.utils.profiler.RootProgressVisitor
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+import javax.sql.DataSource
+import java.nio.file.Files
+import java.nio.file.Path
+import java.sql.Connection
+import java.time.LocalDateTime
+import java.time.format.DateTimeFormatter
+
+title = 'Run a pipeline'
+description = '&#10145;&#65039; Runs a chain of scripts (ex. the PlaMADE department chain s1 to s7) defined in a pipeline file.</br>' +
+        '<hr>' +
+        'Each step starts as soon as the steps it depends on are completed, so independent branches (ex. road and ' +
+        'rail noise levels, isosurfaces and indicators) run at the same time.</br></br>' +
+        'The completed steps are recorded in the <b>PIPELINE_CHECKPOINTS</b> table: running the pipeline again ' +
+        'after a failure only computes the failed step and the following ones.'
+
+inputs = [
+        pipelineFile: [
+                name       : 'Pipeline file',
+                title      : 'Pipeline file',
+                description: 'Pipeline definition file, relative to the pipelines directory of the server (ex. plamade_pipeline.groovy)',
+                type       : String.class
+        ],
+        parameters  : [
+                name       : 'Parameters',
+                title      : 'Parameters',
+                description: 'Pipeline parameters in JSON (ex. {"inseeDepartment": "44", "confId": 1})',
+                min        : 0, max: 1,
+                type       : String.class
+        ],
+        parallelism : [
+                name       : 'Parallel steps',
+                title      : 'Parallel steps',
+                description: 'Maximum number of steps running at the same time</br></br>' +
+                        '&#128736; Default value: <b>2 </b>',
+                min        : 0, max: 1,
+                type       : Integer.class
+        ],
+        restart     : [
+                name       : 'Restart',
+                title      : 'Restart',
+                description: 'Forget the completed steps and compute the whole pipeline</br></br>' +
+                        '&#128736; Default value: <b>false </b>',
+                min        : 0, max: 1,
+                type       : Boolean.class
+        ]
+]
+
+outputs = [
+        result: [
+                name       : 'Result output string',
+                title      : 'Result output string',
+                description: 'This type of result does not allow the blocks to be linked together.',
+                type       : String.class
+        ]
+]
+
+// The steps run in this job, the noise level steps use all the processors
+resources = [threads: 0, heap: 4096]
+// The steps are checkpointed in the user database, they are skipped when already completed
+memoization = false
+
+def exec(Connection connection, Map input) {
+
+    ProgressVisitor progressLogger
+
+    if("_progression" in input) {
+        progressLogger = input["_progression"] as ProgressVisitor
+    } else {
+        progressLogger = new RootProgressVisitor(1, true, 1)
+    }
+
+    Logger logger = LoggerFactory.getLogger("org.noise_planet.noisemodelling")
+    logger.info('Start : Run pipeline')
+    logger.info("inputs {}", input)
+
+    DataSource dataSource = input["_dataSource"] as DataSource
+    if (dataSource == null) {
+        throw new IllegalArgumentException("The pipeline steps need a data source to open their connections")
+    }
+    Configuration configuration = input["_configuration"] as Configuration
+    if (configuration == null) {
+        throw new IllegalArgumentException("The pipelines directory is given by the server configuration")
+    }
+    // Only the pipelines installed on the server can be run
+    Pipeline pipeline = Pipeline.load(configuration.getPipelinesDirectory(), input["pipelineFile"] as String)
+    Map parameters = input["parameters"] ? new JsonSlurper().parseText(input["parameters"] as String) as Map : [:]
+    int parallelism = input["parallelism"] ? input["parallelism"] as Integer : 2
+
+    if (input["restart"] as Boolean) {
+        PipelineCheckpoints.createTable(connection)
+        logger.info("{} checkpoint(s) removed", PipelineCheckpoints.clear(connection, pipeline.title))
+    }
+
+    // Files written by the steps (ex. Road_Noise_level.sql.gz, profiles)
+    Path workingDirectory = Path.of(configuration.getWorkingDirectory(), "pipeline",
+            "job_" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss")))
+    Files.createDirectories(workingDirectory)
+
+    PipelineExecutor executor = new PipelineExecutor(pipeline, dataSource, parallelism)
+    executor.setSystemInput("workingDirectory", workingDirectory.toString())
+    executor.setSystemInput("_configuration", configuration)
+    executor.setSystemInput("_dataSource", dataSource)
+    Map<String, String> results = executor.run(parameters, progressLogger)
+
+    StringBuilder resultString = new StringBuilder("Pipeline " + pipeline.title + " completed")
+    results.each { step, result -> resultString.append("</br><b>").append(step).append("</b> : ").append(result) }
+    logger.info('Result : ' + resultString)
+    return resultString.toString()
+}
@@ -148,6 +148,9 @@ outputs = [
         ]
 ]
 
+// Resources used by the job, the triangulation is computed by a single thread; heap: estimated memory in MB
+resources = [threads: 1, heap: 1024]
+
 def exec(Connection connection, Map input) {
 
     ProgressVisitor progressLogger
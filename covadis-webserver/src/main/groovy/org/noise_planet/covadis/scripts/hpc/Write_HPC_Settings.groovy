@@ -18,108 +18,155 @@
 
 package org.noise_planet.covadis.scripts.hpc
 
-
+import groovy.sql.Sql
+import groovy.transform.Field
 import org.h2gis.api.ProgressVisitor
-import org.locationtech.jts.geom.Geometry
+import org.h2gis.utilities.GeometryTableUtilities
+import org.h2gis.utilities.JDBCUtilities
+import org.h2gis.utilities.TableLocation
+import org.locationtech.jts.geom.Envelope
+import org.noise_planet.covadis.webserver.Configuration
+import org.noise_planet.covadis.webserver.database.DatabaseManagement
+import org.noise_planet.covadis.webserver.hpc.JobArray
+import org.noise_planet.covadis.webserver.hpc.KdTilePartition
+import org.noise_planet.covadis.webserver.script.JobWorkerProcess
 import org.noise_planet.noisemodelling.pathfinder.utils.profiler.RootProgressVisitor
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
 
+import java.nio.file.Files
+import java.nio.file.Path
 import java.sql.Connection
+import java.time.LocalDateTime
+import java.time.format.DateTimeFormatter
 
-title = 'Delaunay Grid'
-description = '&#10145;&#65039; Computes a <a href="https://en.wikipedia.org/wiki/Delaunay_triangulation" target="_blank">Delaunay</a> grid of receivers.</br>' +
+title = 'HPC Noise level'
+description = '&#10145;&#65039; Computes the noise level of a large area (ex. a department) on several processes or computing nodes.</br>' +
         '<hr>' +
-        'The grid will be based on: <ul>' +
-        '<li> the BUILDINGS table extent (option by default)</li>' +
-        '<li> <b>OR</b> a single Geometry "fence" (Extent filter).</li></ul>' +
-        '&#x2705; Two tables are returned:<ul>' +
-        '<li> <b>RECEIVERS</b></li>' +
-        '<li> <b>TRIANGLES</b></li>' +
-        '<img src="/wps_images/delaunay_grid_output.png" alt="Delaunay grid output" width="95%" align="center">'
+        'The receivers are split into tiles having the same number of receivers. Each tile is computed by ' +
+        '<b>Noise_level_from_source</b> in its own database, with the buildings, sources and ground data found in the ' +
+        'tile extent expanded by the maximum source-receiver distance.</br></br>' +
+        'Runners: <ul>' +
+        '<li> <b>LOCAL</b> : the tiles are run by a pool of java processes on the server, then merged (default)</li>' +
+        '<li> <b>SLURM</b> : a Slurm job array and a merge job are written in the HPC directory, submit them with <b>submit.sh</b></li>' +
+        '<li> <b>MERGE</b> : merge the results of the tiles of an HPC directory</li></ul>' +
+        '&#x2705; The output table is called: <b> RECEIVERS_LEVEL </b>'
 
 inputs = [
-        tableBuilding      : [
+        tableBuilding        : [
                 name       : 'Buildings table name',
                 title      : 'Buildings table name',
-                description: 'Name of the Buildings table. </br><br>' +
-                        'The table must contain: <ul>' +
-                        '<li> <b> THE_GEOM </b> : the 2D geometry of the building (POLYGON or MULTIPOLYGON)</li></ul>',
-                type       : String.class
-        ],
-        fence              : [
-                name       : 'Extent filter',
-                title      : 'Extent filter',
-                description: 'Create receivers only in the provided polygon (fence)',
+                description: 'Name of the Buildings table, see Noise_level_from_source',
                 min        : 0, max: 1,
-                type       : Geometry.class
+                type       : String.class
         ],
-        sourcesTableName   : [
+        tableSources         : [
                 name       : 'Sources table name',
                 title      : 'Sources table name',
-                description: 'Name of the Road table.</br><br>' +
-                        'Receivers will not be created on the specified road width',
+                description: 'Name of the Sources table, see Noise_level_from_source',
+                min        : 0, max: 1,
                 type       : String.class
         ],
-        maxCellDist        : [
-                name       : 'Maximum cell size',
-                title      : 'Maximum cell size',
-                description: 'Maximum distance used to split the domain into sub-domains (in meters) (FLOAT).</br><br>' +
-                        'In a logic of optimization of processing times, it allows to limit the number of objects (buildings, roads, …) stored in memory during the Delaunay triangulation.</br></br>' +
-                        '&#128736; Default value: <b>600 </b>',
+        tableSourcesEmission : [
+                name       : 'Sources emission table name',
+                title      : 'Sources emission table name',
+                description: 'Name of the Sources emission table, the rows are linked to the sources with the <b>IDSOURCE</b> column',
                 min        : 0, max: 1,
-                type       : Double.class
+                type       : String.class
         ],
-        roadWidth          : [
-                name       : 'Road width',
-                title      : 'Road width',
-                description: 'Set Road Width (in meters) (FLOAT).</br> </br>' +
-                        'No receivers closer than road width distance will be created.</br> </br>' +
-                        '&#128736; Default value: <b>2 </b>',
+        tableReceivers       : [
+                name       : 'Receivers table name',
+                title      : 'Receivers table name',
+                description: 'Name of the Receivers table, with the <b>PK</b> primary key and the <b>THE_GEOM</b> point geometry',
                 min        : 0, max: 1,
-                type       : Double.class
+                type       : String.class
         ],
-        maxArea            : [
-                name       : 'Maximum Area',
-                title      : 'Maximum Area',
-                description: 'Set Maximum Area (in m2) (FLOAT).</br> </br>' +
-                        'No triangles larger than provided area will be created.</br>' +
-                        'Smaller area will create more receivers.</br> </br> ' +
-                        '&#128736; Default value: <b>2500 </b>',
+        tableDEM             : [
+                name       : 'DEM table name',
+                title      : 'DEM table name',
+                description: 'Name of the Digital Elevation Model table',
                 min        : 0, max: 1,
-                type       : Double.class
+                type       : String.class
         ],
-        height             : [
-                name       : 'Height',
-                title      : 'Height',
-                description: 'Receiver height relative to the ground (in meters) (FLOAT).</br> </br>' +
+        tableGroundAbs       : [
+                name       : 'Ground absorption table name',
+                title      : 'Ground absorption table name',
+                description: 'Name of the surface/ground acoustic absorption table',
+                min        : 0, max: 1,
+                type       : String.class
+        ],
+        tileCount            : [
+                name       : 'Number of tiles',
+                title      : 'Number of tiles',
+                description: 'Number of tiles, each tile is computed by a separate process (INTEGER). </br> </br>' +
                         '&#128736; Default value: <b>4 </b>',
                 min        : 0, max: 1,
+                type       : Integer.class
+        ],
+        confMaxSrcDist       : [
+                name       : 'Maximum source-receiver distance',
+                title      : 'Maximum source-receiver distance',
+                description: 'Maximum distance between source and receiver (FLOAT, in meters), also used as tile buffer. </br> </br>' +
+                        '&#128736; Default value: <b>150 </b>',
+                min        : 0, max: 1,
                 type       : Double.class
         ],
-        outputTableName    : [
-                name       : 'outputTableName',
-                title      : 'Name of output table',
-                description: 'Name of the output table.</br> </br>' +
-                        'Do not write the name of a table that contains a space.</br> </br>' +
-                        '&#128736; Default value: <b>RECEIVERS </b>',
+        confReflOrder        : [
+                name       : 'Order of reflexion',
+                title      : 'Order of reflexion',
+                description: 'Maximum number of reflections to be taken into account (INTEGER). </br> </br>' +
+                        '&#128736; Default value: <b>1 </b>',
+                min        : 0, max: 1,
+                type       : Integer.class
+        ],
+        confThreadNumber     : [
+                name       : 'Threads by tile',
+                title      : 'Threads by tile',
+                description: 'Number of threads of each tile process (INTEGER). </br> </br>' +
+                        '&#128736; Default value: <b>1 </b>',
+                min        : 0, max: 1,
+                type       : Integer.class
+        ],
+        confJobHeap          : [
+                name       : 'Memory by tile',
+                title      : 'Memory by tile (MB)',
+                description: 'Maximum memory of each tile process in MB (INTEGER). </br> </br>' +
+                        '&#128736; Default value: <b>2048 </b>',
+                min        : 0, max: 1,
+                type       : Integer.class
+        ],
+        runner               : [
+                name       : 'Runner',
+                title      : 'Runner',
+                description: 'LOCAL, SLURM or MERGE. </br> </br>' +
+                        '&#128736; Default value: <b>LOCAL </b>',
                 min        : 0, max: 1,
                 type       : String.class
         ],
-        isoSurfaceInBuildings: [
-                name        : 'Create IsoSurfaces over buildings',
-                title       : 'Create IsoSurfaces over buildings',
-                description : 'If enabled, isosurfaces will be visible at the location of buildings </br></br>' +
-                        '&#128736; Default value: <b>false </b>',
-                min         : 0, max: 1,
-                type        : Boolean.class
+        parallelTiles        : [
+                name       : 'Parallel tiles',
+                title      : 'Parallel tiles',
+                description: 'Maximum number of tiles computed at the same time by the LOCAL runner (INTEGER). </br> </br>' +
+                        '&#128736; Default value: <b>number of cores / threads by tile </b>',
+                min        : 0, max: 1,
+                type       : Integer.class
         ],
-        fenceNegativeBuffer             : [
-                name       : 'Negative buffer',
-                title      : 'Negative buffer',
-                description: 'Reduce the fence(parameter, or sound sources and buildings extent)' +
-                        ' used to generate receivers positions. You should set here the maximum propagation distance (in meters) (FLOAT).</br> </br>' +
-                        '&#128736; Default value: <b>0 </b>',
+        hpcDirectory         : [
+                name       : 'HPC directory',
+                title      : 'HPC directory',
+                description: 'Directory of the tile databases and task files, it must be shared by the computing nodes. ' +
+                        'Required by the MERGE runner. </br> </br>' +
+                        '&#128736; Default value: <b>hpc/job_[date] in the server working directory </b>',
                 min        : 0, max: 1,
-                type       : Double.class
+                type       : String.class
+        ],
+        outputTableName      : [
+                name       : 'outputTableName',
+                title      : 'Name of output table',
+                description: 'Name of the merged output table. </br> </br>' +
+                        '&#128736; Default value: <b>RECEIVERS_LEVEL </b>',
+                min        : 0, max: 1,
+                type       : String.class
         ]
 ]
 
@@ -132,6 +179,14 @@ outputs = [
         ]
 ]
 
+// The tiles are computed by separate processes, this job only splits and merges the tables
+resources = [threads: 1, heap: 1024]
+// The tiles and Slurm scripts are written outside of the user database, the job is always run
+memoization = false
+
+/** Table created by Noise_level_from_source in each tile database */
+@Field static final String TILE_RESULT_TABLE = "RECEIVERS_LEVEL"
+
 def exec(Connection connection, Map input) {
 
     ProgressVisitor progressLogger
@@ -142,8 +197,264 @@ def exec(Connection connection, Map input) {
         progressLogger = new RootProgressVisitor(1, true, 1)
     }
 
-    // print to WPS Builder
-    return ["result" : ""]
+    Logger logger = LoggerFactory.getLogger("org.noise_planet.noisemodelling")
+    logger.info('Start : HPC Noise level')
+    logger.info("inputs {}", input)
+
+    Configuration configuration = input["_configuration"] as Configuration
+    String runner = input["runner"] ? (input["runner"] as String).toUpperCase() : "LOCAL"
+    int tileCount = input["tileCount"] ? input["tileCount"] as Integer : 4
+    int threads = input["confThreadNumber"] ? input["confThreadNumber"] as Integer : 1
+    long heap = input["confJobHeap"] ? input["confJobHeap"] as Long : 2048
+    String outputTableName = input["outputTableName"] ? (input["outputTableName"] as String).toUpperCase() :
+            "RECEIVERS_LEVEL"
 
+    Path hpcDirectory
+    if (input["hpcDirectory"]) {
+        hpcDirectory = Path.of(input["hpcDirectory"] as String)
+    } else if (runner != "MERGE" && configuration != null) {
+        hpcDirectory = Path.of(configuration.getWorkingDirectory(), "hpc",
+                "job_" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss")))
+    } else {
+        throw new IllegalArgumentException("The HPC directory is required")
+    }
+
+    if (runner == "MERGE") {
+        JobArray jobArray = new JobArray(hpcDirectory, tileCount, threads, heap)
+        for (int tile = 0; tile < tileCount; tile++) {
+            jobArray.readTaskResult(tile)
+        }
+        long rows = mergeTiles(connection, hpcDirectory, tileCount, outputTableName, progressLogger)
+        return ["result": "Merged " + tileCount + " tiles into " + outputTableName + " (" + rows + " rows)"]
+    }
+    if (configuration == null) {
+        throw new IllegalArgumentException("The server configuration is required to locate the scripts")
+    }
+    if (runner != "LOCAL" && runner != "SLURM") {
+        throw new IllegalArgumentException("Unknown runner " + runner)
+    }
+
+    if (runner == "SLURM") {
+        checkSharedDatabase(connection)
+    }
+
+    ProgressVisitor steps = progressLogger.subProcess(runner == "LOCAL" ? 3 : 1)
+
+    KdTilePartition partition = prepareTiles(connection, input, hpcDirectory, tileCount, logger)
+    tileCount = partition.getTileCount()
+    steps.endStep()
+
+    // Same request for both runners, each task computes the noise level of one tile database
+    Path noiseScript = Path.of(configuration.getScriptPath(), "NoiseModelling", "Noise_level_from_source.groovy")
+    JobArray jobArray = new JobArray(hpcDirectory, tileCount, threads, heap)
+    for (int tile = 0; tile < tileCount; tile++) {
+        Map tileInputs = [tableBuilding : "HPC_TILE_BUILDINGS",
+                          tableSources  : "HPC_TILE_SOURCES",
+                          tableReceivers: "HPC_TILE_RECEIVERS",
+                          confThreadNumber: String.valueOf(threads)]
+        if (input["tableSourcesEmission"]) {
+            tileInputs["tableSourcesEmission"] = "HPC_TILE_SOURCES_EMISSION"
+        }
+        if (input["tableDEM"]) {
+            tileInputs["tableDEM"] = "HPC_TILE_DEM"
+        }
+        if (input["tableGroundAbs"]) {
+            tileInputs["tableGroundAbs"] = "HPC_TILE_GROUND"
+        }
+        if (input["confMaxSrcDist"]) {
+            tileInputs["confMaxSrcDist"] = String.valueOf(input["confMaxSrcDist"])
+        }
+        if (input["confReflOrder"]) {
+            tileInputs["confReflOrder"] = String.valueOf(input["confReflOrder"])
+        }
+        jobArray.writeRequest(tile, JobWorkerProcess.buildRequest(noiseScript, hpcDirectory.toString(),
+                getTileDatabaseName(tile), tileInputs))
+    }
+
+    if (runner == "SLURM") {
+        // The merge job runs this script on the user database once all the tiles are computed
+        Path databasePath = Path.of(new Sql(connection).firstRow("SELECT DATABASE_PATH() PATH")["PATH"] as String)
+        Path hpcScript = Path.of(configuration.getScriptPath(), "hpc", "Write_HPC_Settings.groovy")
+        // Same database location and credentials as this job (local file or H2 TCP server of the web server)
+        String mergeRequest = JobWorkerProcess.buildRequest(hpcScript, configuration,
+                databasePath.getFileName().toString(), [runner         : "MERGE",
+                                                        tileCount      : tileCount,
+                                                        hpcDirectory   : hpcDirectory.toString(),
+                                                        outputTableName: outputTableName])
+        Path submitScript = jobArray.writeSlurmScripts("noise_level", mergeRequest)
+        steps.endStep()
+        return ["result": "Slurm job array of " + tileCount + " tiles written in " + hpcDirectory +
+                ", submit it with: sh " + submitScript]
+    }
+
+    int parallelTiles = input["parallelTiles"] ? input["parallelTiles"] as Integer :
+            Math.max(1, (int) (Runtime.getRuntime().availableProcessors() / Math.max(1, threads)))
+    logger.info("Computing {} tiles with {} processes", tileCount, parallelTiles)
+    jobArray.runLocal(parallelTiles, steps)
+    long rows = mergeTiles(connection, hpcDirectory, tileCount, outputTableName, steps)
+    return ["result": "Computed " + tileCount + " tiles and merged them into " + outputTableName + " (" + rows +
+            " rows)"]
 }
 
+/**
+ * The Slurm merge job opens the user database while the web server keeps it opened. H2 only allows it when the
+ * database is opened with AUTO_SERVER (web server started with the job-process option) or through the H2 TCP server
+ * (worker nodes)
+ */
+static void checkSharedDatabase(Connection connection) {
+    String url = connection.getMetaData().getURL().toUpperCase(Locale.ROOT)
+    if (!url.contains("AUTO_SERVER=TRUE") && !url.startsWith("JDBC:H2:TCP:") && !url.startsWith("JDBC:H2:SSL:")) {
+        throw new IllegalArgumentException("The Slurm merge job can not open the user database while the web " +
+                "server is using it, start the web server with the job-process option or use the LOCAL runner")
+    }
+}
+
+static String getTileDatabaseName(int tile) {
+    return "tile_" + tile
+}
+
+/**
+ * Split the receivers into tiles and create a database by tile with the input data of the tile
+ */
+KdTilePartition prepareTiles(Connection connection, Map input, Path hpcDirectory, int tileCount, Logger logger) {
+    Sql sql = new Sql(connection)
+    String receiversTable = (input["tableReceivers"] ? input["tableReceivers"] as String : "RECEIVERS").toUpperCase()
+    String buildingsTable = (input["tableBuilding"] ? input["tableBuilding"] as String : "BUILDINGS").toUpperCase()
+    String sourcesTable = (input["tableSources"] ? input["tableSources"] as String : "SOURCES").toUpperCase()
+    double buffer = input["confMaxSrcDist"] ? input["confMaxSrcDist"] as Double : 150.0
+    int srid = GeometryTableUtilities.getSRID(connection, TableLocation.parse(receiversTable))
+
+    int receiverCount = sql.firstRow("SELECT COUNT(*) CPT FROM " + receiversTable)["CPT"] as Integer
+    int[] pk = new int[receiverCount]
+    double[] x = new double[receiverCount]
+    double[] y = new double[receiverCount]
+    int index = 0
+    sql.eachRow("SELECT PK, ST_X(THE_GEOM) X, ST_Y(THE_GEOM) Y FROM " + receiversTable) { row ->
+        if (index < receiverCount) {
+            pk[index] = row.PK as Integer
+            x[index] = row.X as Double
+            y[index] = row.Y as Double
+            index++
+        }
+    }
+    KdTilePartition partition = KdTilePartition.partition(x, y, tileCount)
+    logger.info("{} receivers split into {} tiles", receiverCount, partition.getTileCount())
+
+    sql.execute("DROP TABLE IF EXISTS HPC_RECEIVER_TILE")
+    sql.execute("CREATE TABLE HPC_RECEIVER_TILE(PK INTEGER PRIMARY KEY, TILE INTEGER)")
+    sql.withBatch(1000, "INSERT INTO HPC_RECEIVER_TILE VALUES (?, ?)") { ps ->
+        for (int i = 0; i < receiverCount; i++) {
+            ps.addBatch(pk[i], partition.getTile(i))
+        }
+    }
+
+    String sourcesPk = getPrimaryKeyName(connection, sourcesTable)
+    if (input["tableSourcesEmission"] && sourcesPk.isEmpty()) {
+        throw new IllegalArgumentException("The sources table " + sourcesTable + " must have an integer primary " +
+                "key, referenced by the IDSOURCE column of the emission table")
+    }
+    Files.createDirectories(hpcDirectory)
+    for (int tile = 0; tile < partition.getTileCount(); tile++) {
+        Envelope envelope = partition.getBufferedEnvelope(tile, buffer)
+        String extent = String.format(Locale.ROOT, "ST_MakeEnvelope(%f, %f, %f, %f, %d)", envelope.getMinX(),
+                envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY(), srid)
+        List<String> tileTables = []
+        sql.execute("DROP TABLE IF EXISTS HPC_TILE_RECEIVERS")
+        sql.execute("CREATE TABLE HPC_TILE_RECEIVERS AS SELECT R.* FROM " + receiversTable +
+                " R, HPC_RECEIVER_TILE T WHERE R.PK = T.PK AND T.TILE = " + tile)
+        sql.execute("ALTER TABLE HPC_TILE_RECEIVERS ADD PRIMARY KEY (PK)")
+        tileTables.add("HPC_TILE_RECEIVERS")
+        copySpatialSubset(connection, buildingsTable, "HPC_TILE_BUILDINGS", extent)
+        tileTables.add("HPC_TILE_BUILDINGS")
+        copySpatialSubset(connection, sourcesTable, "HPC_TILE_SOURCES", extent)
+        tileTables.add("HPC_TILE_SOURCES")
+        if (input["tableSourcesEmission"]) {
+            String emissionTable = (input["tableSourcesEmission"] as String).toUpperCase()
+            sql.execute("DROP TABLE IF EXISTS HPC_TILE_SOURCES_EMISSION")
+            sql.execute("CREATE TABLE HPC_TILE_SOURCES_EMISSION AS SELECT E.* FROM " + emissionTable +
+                    " E WHERE E.IDSOURCE IN (SELECT " + sourcesPk + " FROM HPC_TILE_SOURCES)")
+            tileTables.add("HPC_TILE_SOURCES_EMISSION")
+        }
+        if (input["tableDEM"]) {
+            copySpatialSubset(connection, (input["tableDEM"] as String).toUpperCase(), "HPC_TILE_DEM", extent)
+            tileTables.add("HPC_TILE_DEM")
+        }
+        if (input["tableGroundAbs"]) {
+            copySpatialSubset(connection, (input["tableGroundAbs"] as String).toUpperCase(), "HPC_TILE_GROUND",
+                    extent)
+            tileTables.add("HPC_TILE_GROUND")
+        }
+        // Move the tile tables into the tile database
+        Path dumpFile = hpcDirectory.resolve(getTileDatabaseName(tile) + "_input.sql.gz")
+        sql.execute("SCRIPT NOSETTINGS DROP TO '" + dumpFile.toString().replace("'", "''") +
+                "' COMPRESSION GZIP TABLE " + tileTables.join(", "))
+        tileTables.each { sql.execute("DROP TABLE " + it) }
+        DatabaseManagement.createH2DataSource(hpcDirectory.toString(), getTileDatabaseName(tile), "sa", "sa", "",
+                true).withCloseable { tileDataSource ->
+            tileDataSource.getConnection().withCloseable { tileConnection ->
+                new Sql(tileConnection).execute("RUNSCRIPT FROM '" + dumpFile.toString().replace("'", "''") +
+                        "' COMPRESSION GZIP")
+            }
+        }
+        Files.delete(dumpFile)
+        logger.info("Tile {} : {} receivers", tile, partition.getTileSize(tile))
+    }
+    sql.execute("DROP TABLE HPC_RECEIVER_TILE")
+    return partition
+}
+
+static String getPrimaryKeyName(Connection connection, String tableName) {
+    int pkIndex = JDBCUtilities.getIntegerPrimaryKey(connection, TableLocation.parse(tableName))
+    return pkIndex > 0 ? JDBCUtilities.getColumnName(connection, tableName, pkIndex) : ""
+}
+
+/**
+ * Copy the rows of a table intersecting the extent, with the primary key and a spatial index
+ */
+static void copySpatialSubset(Connection connection, String sourceTable, String targetTable, String extent) {
+    Sql sql = new Sql(connection)
+    sql.execute("DROP TABLE IF EXISTS " + targetTable)
+    sql.execute("CREATE TABLE " + targetTable + " AS SELECT * FROM " + sourceTable + " WHERE THE_GEOM && " + extent)
+    String pkName = getPrimaryKeyName(connection, sourceTable)
+    if (!pkName.isEmpty()) {
+        sql.execute("ALTER TABLE " + targetTable + " ADD PRIMARY KEY (" + pkName + ")")
+    }
+    sql.execute("CREATE SPATIAL INDEX ON " + targetTable + "(THE_GEOM)")
+}
+
+/**
+ * Copy the result table of each tile database into the user database and merge them
+ * @return Number of rows of the merged table
+ */
+long mergeTiles(Connection connection, Path hpcDirectory, int tileCount, String outputTableName,
+                ProgressVisitor progressLogger) {
+    Sql sql = new Sql(connection)
+    ProgressVisitor tilesProgress = progressLogger.subProcess(tileCount)
+    List<String> tileTables = []
+    for (int tile = 0; tile < tileCount; tile++) {
+        String tileTable = "HPC_RESULT_TILE_" + tile
+        Path dumpFile = hpcDirectory.resolve(getTileDatabaseName(tile) + "_result.sql.gz")
+        DatabaseManagement.createH2DataSource(hpcDirectory.toString(), getTileDatabaseName(tile), "sa", "sa", "",
+                false).withCloseable { tileDataSource ->
+            tileDataSource.getConnection().withCloseable { tileConnection ->
+                Sql tileSql = new Sql(tileConnection)
+                // The table is renamed in the tile database, so the merge can be run again
+                if (JDBCUtilities.tableExists(tileConnection, TableLocation.parse(TILE_RESULT_TABLE))) {
+                    tileSql.execute("DROP TABLE IF EXISTS " + tileTable)
+                    tileSql.execute("ALTER TABLE " + TILE_RESULT_TABLE + " RENAME TO " + tileTable)
+                }
+                tileSql.execute("SCRIPT NOSETTINGS DROP TO '" + dumpFile.toString().replace("'", "''") +
+                        "' COMPRESSION GZIP TABLE " + tileTable)
+            }
+        }
+        sql.execute("RUNSCRIPT FROM '" + dumpFile.toString().replace("'", "''") + "' COMPRESSION GZIP")
+        Files.delete(dumpFile)
+        tileTables.add(tileTable)
+        tilesProgress.endStep()
+    }
+    sql.execute("DROP TABLE IF EXISTS " + outputTableName)
+    sql.execute("CREATE TABLE " + outputTableName + " AS " +
+            tileTables.collect { "SELECT * FROM " + it }.join(" UNION ALL "))
+    tileTables.each { sql.execute("DROP TABLE " + it) }
+    return sql.firstRow("SELECT COUNT(*) CPT FROM " + outputTableName)["CPT"] as Long
+}
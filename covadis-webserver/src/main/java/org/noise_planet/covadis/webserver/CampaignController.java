@@ -0,0 +1,269 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import groovy.json.JsonException;
+import groovy.json.JsonSlurper;
+import io.javalin.http.Context;
+import io.javalin.http.InternalServerErrorResponse;
+import org.jetbrains.annotations.NotNull;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+import org.noise_planet.covadis.webserver.pipeline.Campaign;
+import org.noise_planet.covadis.webserver.pipeline.CampaignRunner;
+import org.noise_planet.covadis.webserver.pipeline.Pipeline;
+import org.noise_planet.covadis.webserver.script.JobExecutorService;
+import org.noise_planet.covadis.webserver.script.JobStates;
+import org.noise_planet.covadis.webserver.secure.User;
+import org.noise_planet.covadis.webserver.utilities.StringUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Handle the national campaigns: a pipeline run on a list of departments, see {@link CampaignRunner}.
+ * The campaigns do not go through the job queue, each campaign runs its departments with its own concurrency. The
+ * departments reserve their resources in the job queue so the jobs and the departments share the server.
+ */
+public class CampaignController {
+    private final Logger logger = LoggerFactory.getLogger(CampaignController.class);
+    private final DataSource serverDataSource;
+    private final Configuration configuration;
+    private final JobExecutorService jobExecutorService;
+    private final Map<Integer, CampaignRunner> runners = new ConcurrentHashMap<>();
+    private final ExecutorService campaignExecutor = Executors.newCachedThreadPool();
+
+    /**
+     * @param serverDataSource Server database
+     * @param configuration Server configuration
+     * @param jobExecutorService Job queue sharing the server resources with the campaign departments
+     */
+    public CampaignController(DataSource serverDataSource, Configuration configuration,
+                              JobExecutorService jobExecutorService) {
+        this.serverDataSource = serverDataSource;
+        this.configuration = configuration;
+        this.jobExecutorService = jobExecutorService;
+    }
+
+    /**
+     * Resume the campaigns that were running when the server stopped
+     * @throws SQLException If the campaigns can not be read
+     */
+    public void restoreCampaigns() throws SQLException {
+        try (Connection connection = serverDataSource.getConnection()) {
+            for (int campaignId : DatabaseManagement.getUnfinishedCampaigns(connection)) {
+                logger.info("Resume campaign {}", campaignId);
+                startCampaign(campaignId);
+            }
+        }
+    }
+
+    private void startCampaign(int campaignId) {
+        CampaignRunner runner = new CampaignRunner(campaignId, serverDataSource, configuration, true);
+        runner.setJobExecutorService(jobExecutorService);
+        runners.put(campaignId, runner);
+        campaignExecutor.submit(() -> {
+            try {
+                runner.run();
+            } finally {
+                runners.remove(campaignId);
+            }
+        });
+    }
+
+    public void campaignList(Context ctx) {
+        try (Connection connection = serverDataSource.getConnection()) {
+            int userIdFilter = -1;
+            User user = ctx.attribute("user");
+            if (user != null && !user.isAdministrator()) {
+                userIdFilter = user.getIdentifier();
+            }
+            List<Map<String, Object>> campaigns = DatabaseManagement.getCampaigns(connection, userIdFilter);
+            long now = System.currentTimeMillis();
+            for (Map<String, Object> campaign : campaigns) {
+                int campaignId = (Integer) campaign.get("id");
+                List<Map<String, Object>> departments = DatabaseManagement.getCampaignDepartments(connection,
+                        campaignId);
+                CampaignRunner runner = runners.get(campaignId);
+                Map<String, Double> running = runner != null ? runner.getRunningDepartments() : Map.of();
+                for (Map<String, Object> department : departments) {
+                    Double progression = running.get((String) department.get("department"));
+                    department.put("progression", progression != null ?
+                            String.format("%.0f %%", progression * 100) : "-");
+                    department.put("estimatedDuration", formatDuration((Long) department.get("estimatedDuration")));
+                    Timestamp beginDate = (Timestamp) department.get("beginDate");
+                    Timestamp endDate = (Timestamp) department.get("endDate");
+                    department.put("duration", beginDate == null ? "-" : StringUtilities.durationToString(
+                            Duration.ofMillis((endDate != null ? endDate.getTime() : now) - beginDate.getTime())));
+                }
+                Map<String, Object> statistics = Campaign.getStatistics((Timestamp) campaign.get("beginDate"),
+                        departments, now);
+                double throughput = (Double) statistics.get("throughput");
+                campaign.put("departments", departments);
+                campaign.put("completed", statistics.get("completed"));
+                campaign.put("failed", statistics.get("failed"));
+                campaign.put("remaining", statistics.get("remaining"));
+                campaign.put("throughput", throughput < 0 ? "-" : String.format("%.2f departments/hour", throughput));
+                campaign.put("remainingTime", formatDuration((Long) statistics.get("remainingMillis")));
+                campaign.put("cancelable", runner != null);
+                campaign.put("deletable", runner == null &&
+                        !JobStates.QUEUED.name().equals(campaign.get("status")));
+            }
+            ctx.render("campaigns", Map.of("campaigns", campaigns));
+        } catch (SQLException e) {
+            logger.error(e.getLocalizedMessage(), e);
+            throw new InternalServerErrorResponse();
+        }
+    }
+
+    private static String formatDuration(Long millis) {
+        return millis == null || millis < 0 ? "-" : StringUtilities.durationToString(Duration.ofMillis(millis));
+    }
+
+    /**
+     * Create a campaign from the submitted form and start it
+     * @param ctx Form with the campaign name, pipeline file, departments, parameters (JSON) and concurrency
+     */
+    public void campaignCreate(@NotNull Context ctx) {
+        User user = ctx.attribute("user");
+        if (user == null) {
+            return;
+        }
+        String name = Optional.ofNullable(ctx.formParam("NAME")).orElse("").trim();
+        String pipelineFile = Optional.ofNullable(ctx.formParam("PIPELINE_FILE")).orElse("").trim();
+        String parameters = Optional.ofNullable(ctx.formParam("PARAMETERS")).orElse("").trim();
+        List<String> departments;
+        int concurrency;
+        try {
+            departments = Arrays.stream(Optional.ofNullable(ctx.formParam("DEPARTMENTS")).orElse("")
+                    .split("[\\s,;]+")).filter(department -> !department.isEmpty()).map(Campaign::checkDepartment)
+                    .distinct().collect(Collectors.toList());
+            concurrency = Integer.parseInt(Optional.ofNullable(ctx.formParam("CONCURRENCY")).orElse("2").trim());
+            if (departments.isEmpty()) {
+                throw new IllegalArgumentException("No department");
+            }
+            Object parsedParameters = parameters.isEmpty() ? Map.of() : new JsonSlurper().parseText(parameters);
+            if (!(parsedParameters instanceof Map)) {
+                throw new IllegalArgumentException("The parameters must be a JSON object");
+            }
+            Campaign.parseDepartmentSizes(((Map<?, ?>) parsedParameters).get(Campaign.SIZES_PARAMETER));
+            for (String resource : List.of(CampaignRunner.PARALLELISM_PARAMETER, CampaignRunner.HEAP_PARAMETER)) {
+                Object value = ((Map<?, ?>) parsedParameters).get(resource);
+                if (value != null && Long.parseLong(value.toString()) < 0) {
+                    throw new IllegalArgumentException("The " + resource + " parameter must be positive");
+                }
+            }
+            // Only the pipelines installed on the server can be run
+            Pipeline.load(configuration.getPipelinesDirectory(), pipelineFile);
+        } catch (IllegalArgumentException | JsonException | IOException ex) {
+            logger.info("Invalid campaign {}: {}", name, ex.getLocalizedMessage());
+            ctx.render("blank", Map.of(
+                    "redirectUrl", ctx.contextPath() + "/campaigns",
+                    "message", "Invalid campaign: " + ex.getLocalizedMessage()));
+            return;
+        }
+        try (Connection connection = serverDataSource.getConnection()) {
+            int campaignId = DatabaseManagement.createCampaign(connection, user.getIdentifier(),
+                    name.isEmpty() ? pipelineFile : name, pipelineFile, parameters.isEmpty() ? "{}" : parameters,
+                    Math.max(1, concurrency), departments);
+            logger.info("User {} created the campaign {} on {} department(s)", user.getEmail(), campaignId,
+                    departments.size());
+            startCampaign(campaignId);
+            ctx.redirect(ctx.contextPath() + "/campaigns");
+        } catch (SQLException e) {
+            logger.error(e.getLocalizedMessage(), e);
+            throw new InternalServerErrorResponse();
+        }
+    }
+
+    /**
+     * Cancel the running departments of a campaign, the other departments are not started
+     * @param ctx Request with the campaign_id path parameter
+     */
+    public void campaignCancel(@NotNull Context ctx) {
+        Map<String, Object> campaign = getAuthorizedCampaign(ctx);
+        if (campaign != null) {
+            CampaignRunner runner = runners.get((Integer) campaign.get("id"));
+            if (runner != null) {
+                runner.cancel();
+            }
+            ctx.redirect(ctx.contextPath() + "/campaigns");
+        }
+    }
+
+    /**
+     * Delete a finished campaign, the department databases are kept
+     * @param ctx Request with the campaign_id path parameter
+     */
+    public void campaignDelete(@NotNull Context ctx) {
+        Map<String, Object> campaign = getAuthorizedCampaign(ctx);
+        if (campaign != null) {
+            int campaignId = (Integer) campaign.get("id");
+            if (!runners.containsKey(campaignId)) {
+                try (Connection connection = serverDataSource.getConnection()) {
+                    DatabaseManagement.deleteCampaign(connection, campaignId);
+                } catch (SQLException e) {
+                    logger.error(e.getLocalizedMessage(), e);
+                    throw new InternalServerErrorResponse();
+                }
+            }
+            ctx.redirect(ctx.contextPath() + "/campaigns");
+        }
+    }
+
+    /**
+     * @return The campaign or null if the user can not access it, the response is rendered in this case
+     */
+    private Map<String, Object> getAuthorizedCampaign(Context ctx) {
+        User user = ctx.attribute("user");
+        try (Connection connection = serverDataSource.getConnection()) {
+            Map<String, Object> campaign = DatabaseManagement.getCampaign(connection,
+                    Integer.parseInt(ctx.pathParam("campaign_id")));
+            if (user == null || campaign.isEmpty() ||
+                    (!user.isAdministrator() && user.getIdentifier() != (Integer) campaign.get("userId"))) {
+                ctx.render("blank", Map.of(
+                        "redirectUrl", ctx.contextPath() + "/campaigns",
+                        "message", "Campaign not found"));
+                return null;
+            }
+            return campaign;
+        } catch (NumberFormatException ex) {
+            ctx.render("blank", Map.of(
+                    "redirectUrl", ctx.contextPath() + "/campaigns",
+                    "message", "Wrong campaign id parameter"));
+            return null;
+        } catch (SQLException e) {
+            logger.error(e.getLocalizedMessage(), e);
+            throw new InternalServerErrorResponse();
+        }
+    }
+
+    /**
+     * Interrupt the running campaigns, they are resumed on the next start
+     */
+    public void shutdown() {
+        new ArrayList<>(runners.values()).forEach(CampaignRunner::stop);
+        campaignExecutor.shutdown();
+    }
+}
@@ -16,7 +16,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
@@ -27,6 +30,13 @@ public class Configuration {
     public static final int DEFAULT_PORT = 8000;
     public static final String DEFAULT_APPLICATION_URL = "nmcovadis";
     public static final String DEFAULT_APPLICATION_PROXY_URL = "http://localhost";
+    public static final int DEFAULT_JOB_WORKERS = 5;
+    public static final int DEFAULT_JOB_QUEUE_CAPACITY = 1000;
+    public static final int DEFAULT_WORKER_POLL_INTERVAL = 2000;
+    public static final String DEFAULT_DATABASE_USER = "sa";
+    public static final String DEFAULT_DATABASE_PASSWORD = "sa";
+    /** Environment variable read for the database password, so that it does not appear in the process list */
+    public static final String DATABASE_PASSWORD_ENVIRONMENT = "NMCOVADIS_DATABASE_PASSWORD";
     /** Application context url */
     String applicationRootUrl = DEFAULT_APPLICATION_URL;
     /** Proxy url of the application */
@@ -38,9 +48,39 @@ public class Configuration {
     // secureBase is the h2 database that store web application critical data
     // it is not associated with any noisemodelling data
     String secureBaseEncryptionSecret = "";
-    String secureBaseAdminUser = "sa";
-    String secureBaseAdminPassword = "sa";
+    String secureBaseAdminUser = DEFAULT_DATABASE_USER;
+    String secureBaseAdminPassword = DEFAULT_DATABASE_PASSWORD;
+    /** Admin user of the user and campaign databases */
+    String databaseUser = DEFAULT_DATABASE_USER;
+    /** Admin password of the user and campaign databases */
+    String databasePassword = DEFAULT_DATABASE_PASSWORD;
     int port = DEFAULT_PORT;
+    /** Maximum number of jobs running at the same time */
+    int jobWorkers = DEFAULT_JOB_WORKERS;
+    /** Maximum number of jobs waiting for a free worker */
+    int jobQueueCapacity = DEFAULT_JOB_QUEUE_CAPACITY;
+    /** Run each job in a separate java process */
+    boolean jobProcess = false;
+    /** H2 TCP server port used to share the databases with the worker nodes, 0 to disable */
+    int databaseTcpPort = 0;
+    /** Encrypt the connections to the H2 TCP server */
+    boolean databaseTcpSsl = false;
+    /** The jobs are run by the worker nodes, the web server only register them in the database */
+    boolean remoteJobs = false;
+    /** Run as a worker node, pulling the jobs from the database of the web server */
+    boolean worker = false;
+    /** Directory of the pipeline definitions that can be run, empty for the pipelines folder of the working directory */
+    String pipelinesDirectory = "";
+    /** Hosts of the WPS input references that may be on a private network */
+    List<String> referenceHosts = Collections.emptyList();
+    /** Location of the H2 TCP server of the web server, used by the worker nodes (ex. tcp://localhost:9092) */
+    String databaseServer = "";
+    /** Delay between two queries of the job queue by a worker node, in milliseconds */
+    int workerPollInterval = DEFAULT_WORKER_POLL_INTERVAL;
+    /** Reuse the result of a previous job having the same script, inputs and input tables */
+    boolean jobMemoization = false;
+    /** Replace the default credentials of the existing databases by the configured ones at startup */
+    boolean migrateDatabaseCredentials = false;
     Map<String, Object> customConfiguration = new HashMap<String, Object>();
 
 
@@ -96,6 +136,58 @@ public class Configuration {
         Option applicationProxyBaseUrlOption = new Option("l", "proxy-base-url", true, "Custom root URL for the web application (ex: http://myservice.org)");
         options.addOption(applicationProxyBaseUrlOption);
 
+        Option jobWorkersOption = new Option("j", "job-workers", true, "Maximum number of jobs running at the same time (default " + DEFAULT_JOB_WORKERS + " )");
+        jobWorkersOption.setType(Integer.class);
+        options.addOption(jobWorkersOption);
+
+        Option jobQueueOption = new Option("q", "job-queue-size", true, "Maximum number of jobs waiting for a free worker (default " + DEFAULT_JOB_QUEUE_CAPACITY + " )");
+        jobQueueOption.setType(Integer.class);
+        options.addOption(jobQueueOption);
+
+        Option jobProcessOption = new Option("x", "job-process", false, "Run each job in a separate java process, with the heap and threads declared by the script");
+        options.addOption(jobProcessOption);
+
+        Option databaseTcpPortOption = new Option("t", "database-tcp-port", true, "Share the databases with the worker nodes on this H2 TCP server port," +
+                " requires the database-user and database-password options. Restrict the access to this port to the worker nodes (private network or firewall)");
+        databaseTcpPortOption.setType(Integer.class);
+        options.addOption(databaseTcpPortOption);
+
+        Option databaseTcpSslOption = new Option("z", "database-tcp-ssl", false, "Encrypt the connections to the H2 TCP server, the worker nodes use a ssl:// database-server location");
+        options.addOption(databaseTcpSslOption);
+
+        Option databaseUserOption = new Option("a", "database-user", true, "Admin user of the server, user and campaign databases (default " + DEFAULT_DATABASE_USER + " )");
+        options.addOption(databaseUserOption);
+
+        Option databasePasswordOption = new Option("y", "database-password", true, "Admin password of the server, user and campaign databases, also read from the " +
+                DATABASE_PASSWORD_ENVIRONMENT + " environment variable");
+        options.addOption(databasePasswordOption);
+
+        Option remoteJobsOption = new Option("m", "remote-jobs", false, "Do not run the jobs on the web server, the jobs are run by the worker nodes");
+        options.addOption(remoteJobsOption);
+
+        Option workerOption = new Option("k", "worker", false, "Start a worker node instead of the web server, the jobs are pulled from the web server database");
+        options.addOption(workerOption);
+
+        Option databaseServerOption = new Option("d", "database-server", true, "Location of the web server databases, used by the worker nodes (ex: tcp://myservice.org:9092)");
+        databaseServerOption.setArgName("url");
+        options.addOption(databaseServerOption);
+
+        Option pipelinesDirectoryOption = new Option("f", "pipelines", true, "Directory of the pipeline definitions that the users can run (default pipelines folder of the working directory)");
+        pipelinesDirectoryOption.setArgName("folder path");
+        options.addOption(pipelinesDirectoryOption);
+
+        Option referenceHostsOption = new Option("g", "reference-hosts", true, "Comma separated hosts of the WPS input references allowed on a private network (ex. an internal data server)," +
+                " the other references must be on a public address");
+        referenceHostsOption.setArgName("hosts");
+        options.addOption(referenceHostsOption);
+
+        Option jobMemoizationOption = new Option("c", "job-memoization", false, "Reuse the output tables of a previous job run with the same script, inputs and input tables");
+        options.addOption(jobMemoizationOption);
+
+        Option migrateCredentialsOption = new Option("i", "migrate-database-credentials", false, "Upgrade step: replace the default credentials of the databases of the working directory" +
+                " by the database-user and database-password options, the " + DEFAULT_DATABASE_USER + " user keeps the database-password. Run it once, with the server stopped");
+        options.addOption(migrateCredentialsOption);
+
         return options;
     }
 
@@ -139,6 +231,53 @@ public class Configuration {
             if(commandLine.hasOption("l")) {
                 config.applicationProxyBaseUrl = commandLine.getOptionValue("l");
             }
+            if (commandLine.hasOption("j")) {
+                config.jobWorkers = Integer.parseInt(commandLine.getOptionValue("j"));
+            }
+            if (commandLine.hasOption("q")) {
+                config.jobQueueCapacity = Integer.parseInt(commandLine.getOptionValue("q"));
+            }
+            if (commandLine.hasOption("x")) {
+                config.jobProcess = true;
+            }
+            if (commandLine.hasOption("t")) {
+                config.databaseTcpPort = Integer.parseInt(commandLine.getOptionValue("t"));
+            }
+            if (commandLine.hasOption("z")) {
+                config.databaseTcpSsl = true;
+            }
+            if (commandLine.hasOption("a")) {
+                config.setDatabaseUser(commandLine.getOptionValue("a"));
+            }
+            String databasePassword = commandLine.hasOption("y") ? commandLine.getOptionValue("y")
+                    : System.getenv(DATABASE_PASSWORD_ENVIRONMENT);
+            if (databasePassword != null && !databasePassword.isEmpty()) {
+                config.setDatabasePassword(databasePassword);
+            }
+            if (commandLine.hasOption("m")) {
+                config.remoteJobs = true;
+            }
+            if (commandLine.hasOption("k")) {
+                config.worker = true;
+                if (!commandLine.hasOption("d")) {
+                    throw new ParseException("The worker node requires the database-server option");
+                }
+            }
+            if (commandLine.hasOption("d")) {
+                config.databaseServer = commandLine.getOptionValue("d");
+            }
+            if (commandLine.hasOption("c")) {
+                config.jobMemoization = true;
+            }
+            if (commandLine.hasOption("i")) {
+                config.migrateDatabaseCredentials = true;
+            }
+            if (commandLine.hasOption("g")) {
+                config.referenceHosts = Arrays.asList(commandLine.getOptionValue("g").split("\\s*,\\s*"));
+            }
+            if (commandLine.hasOption("f")) {
+                config.pipelinesDirectory = commandLine.getOptionValue("f");
+            }
             return config;
         } catch (ParseException ex) {
             helpFormatter.printHelp("NoiseModelling Script Runner", options);
@@ -273,6 +412,44 @@ public class Configuration {
         this.workingDirectory = workingDirectory;
     }
 
+    /**
+     * Returns the directory of the script metadata cached by script content hash.
+     *
+     * @return the script metadata cache directory, in the working directory
+     */
+    public Path getScriptMetadataCacheDirectory() {
+        return Path.of(workingDirectory, "script_metadata");
+    }
+
+    /**
+     * Returns the directory of the pipeline definitions, the pipelines outside of this directory are not loaded.
+     *
+     * @return the pipelines directory, absolute and normalized
+     */
+    public Path getPipelinesDirectory() {
+        Path directory = pipelinesDirectory.isEmpty() ? Path.of(workingDirectory, "pipelines") :
+                Path.of(pipelinesDirectory);
+        return directory.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Sets the directory of the pipeline definitions.
+     *
+     * @param pipelinesDirectory the pipelines directory, empty for the pipelines folder of the working directory
+     */
+    public void setPipelinesDirectory(String pipelinesDirectory) {
+        this.pipelinesDirectory = pipelinesDirectory;
+    }
+
+    /**
+     * Returns the directory of the WPS Execute complex inputs, written there while the request is read.
+     *
+     * @return the complex inputs directory, in the working directory
+     */
+    public Path getExecuteInputDirectory() {
+        return Path.of(workingDirectory, "execute_inputs");
+    }
+
     /**
      * Returns the encryption secret for the secure base.
      *
@@ -367,4 +544,213 @@ public class Configuration {
     public void setPort(int port) {
         this.port = port;
     }
+
+    /**
+     * @return Maximum number of jobs running at the same time
+     */
+    public int getJobWorkers() {
+        return jobWorkers;
+    }
+
+    /**
+     * @param jobWorkers Maximum number of jobs running at the same time
+     */
+    public void setJobWorkers(int jobWorkers) {
+        this.jobWorkers = jobWorkers;
+    }
+
+    /**
+     * @return Maximum number of jobs waiting for a free worker
+     */
+    public int getJobQueueCapacity() {
+        return jobQueueCapacity;
+    }
+
+    /**
+     * @param jobQueueCapacity Maximum number of jobs waiting for a free worker
+     */
+    public void setJobQueueCapacity(int jobQueueCapacity) {
+        this.jobQueueCapacity = jobQueueCapacity;
+    }
+
+    /**
+     * @return True if each job runs in a separate java process
+     */
+    public boolean isJobProcess() {
+        return jobProcess;
+    }
+
+    /**
+     * @param jobProcess True to run each job in a separate java process
+     */
+    public void setJobProcess(boolean jobProcess) {
+        this.jobProcess = jobProcess;
+    }
+
+    /**
+     * @return H2 TCP server port used to share the databases with the worker nodes, 0 if disabled
+     */
+    public int getDatabaseTcpPort() {
+        return databaseTcpPort;
+    }
+
+    /**
+     * @param databaseTcpPort H2 TCP server port used to share the databases with the worker nodes, 0 to disable
+     */
+    public void setDatabaseTcpPort(int databaseTcpPort) {
+        this.databaseTcpPort = databaseTcpPort;
+    }
+
+    /**
+     * @return True if the connections to the H2 TCP server are encrypted
+     */
+    public boolean isDatabaseTcpSsl() {
+        return databaseTcpSsl;
+    }
+
+    /**
+     * @param databaseTcpSsl True to encrypt the connections to the H2 TCP server
+     */
+    public void setDatabaseTcpSsl(boolean databaseTcpSsl) {
+        this.databaseTcpSsl = databaseTcpSsl;
+    }
+
+    /**
+     * @return Admin user of the user and campaign databases
+     */
+    public String getDatabaseUser() {
+        return databaseUser;
+    }
+
+    /**
+     * Set the admin user of the user, campaign and server databases
+     * @param databaseUser Admin user
+     */
+    public void setDatabaseUser(String databaseUser) {
+        this.databaseUser = databaseUser;
+        this.secureBaseAdminUser = databaseUser;
+    }
+
+    /**
+     * @return Admin password of the user and campaign databases
+     */
+    public String getDatabasePassword() {
+        return databasePassword;
+    }
+
+    /**
+     * Set the admin password of the user, campaign and server databases
+     * @param databasePassword Admin password
+     */
+    public void setDatabasePassword(String databasePassword) {
+        this.databasePassword = databasePassword;
+        this.secureBaseAdminPassword = databasePassword;
+    }
+
+    /**
+     * @return True if the databases still use the default (or an empty) password, they must not be shared on the
+     * network
+     */
+    public boolean isDefaultDatabaseCredentials() {
+        return databasePassword.isEmpty() || DEFAULT_DATABASE_PASSWORD.equals(databasePassword);
+    }
+
+    /**
+     * @return True if the jobs are run by the worker nodes instead of the web server
+     */
+    public boolean isRemoteJobs() {
+        return remoteJobs;
+    }
+
+    /**
+     * @param remoteJobs True if the jobs are run by the worker nodes instead of the web server
+     */
+    public void setRemoteJobs(boolean remoteJobs) {
+        this.remoteJobs = remoteJobs;
+    }
+
+    /**
+     * @return True if this instance is a worker node
+     */
+    public boolean isWorker() {
+        return worker;
+    }
+
+    /**
+     * @param worker True if this instance is a worker node
+     */
+    public void setWorker(boolean worker) {
+        this.worker = worker;
+    }
+
+    /**
+     * @return Hosts of the WPS input references that may be on a private network
+     */
+    public List<String> getReferenceHosts() {
+        return referenceHosts;
+    }
+
+    /**
+     * @param referenceHosts Hosts of the WPS input references that may be on a private network
+     */
+    public void setReferenceHosts(List<String> referenceHosts) {
+        this.referenceHosts = referenceHosts;
+    }
+
+    /**
+     * @return Location of the H2 TCP server of the web server, empty if the databases are local
+     */
+    public String getDatabaseServer() {
+        return databaseServer;
+    }
+
+    /**
+     * @param databaseServer Location of the H2 TCP server of the web server (ex. tcp://localhost:9092)
+     */
+    public void setDatabaseServer(String databaseServer) {
+        this.databaseServer = databaseServer;
+    }
+
+    /**
+     * @return Delay between two queries of the job queue by a worker node, in milliseconds
+     */
+    public int getWorkerPollInterval() {
+        return workerPollInterval;
+    }
+
+    /**
+     * @param workerPollInterval Delay between two queries of the job queue by a worker node, in milliseconds
+     */
+    public void setWorkerPollInterval(int workerPollInterval) {
+        this.workerPollInterval = workerPollInterval;
+    }
+
+    /**
+     * @return True if the result of a previous identical job is reused
+     */
+    public boolean isJobMemoization() {
+        return jobMemoization;
+    }
+
+    /**
+     * @param jobMemoization True to reuse the result of a previous identical job
+     */
+    public void setJobMemoization(boolean jobMemoization) {
+        this.jobMemoization = jobMemoization;
+    }
+
+    /**
+     * @return True if the default credentials of the existing databases are replaced by the configured ones at startup
+     */
+    public boolean isMigrateDatabaseCredentials() {
+        return migrateDatabaseCredentials;
+    }
+
+    /**
+     * @param migrateDatabaseCredentials True to replace the default credentials of the existing databases by the
+     * configured ones at startup
+     */
+    public void setMigrateDatabaseCredentials(boolean migrateDatabaseCredentials) {
+        this.migrateDatabaseCredentials = migrateDatabaseCredentials;
+    }
 }
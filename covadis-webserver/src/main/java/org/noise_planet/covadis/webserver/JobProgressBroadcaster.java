@@ -0,0 +1,309 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import groovy.json.JsonOutput;
+import io.javalin.websocket.WsContext;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+import org.noise_planet.covadis.webserver.script.JobStateStore;
+import org.noise_planet.covadis.webserver.script.ProgressionTracker;
+import org.noise_planet.covadis.webserver.secure.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Push the progression of the running jobs to the job list pages through a WebSocket.
+ * <p>
+ * The live values are read from the {@link JobStateStore} at the progression sampling rate. Each client only receives
+ * the jobs it can see (all the jobs for an administrator) and only the values changed since its last message, as a
+ * JSON object {@code {"jobs": [{"id": 1, "status": "RUNNING", "progression": "42 %", "percentCompleted": 42,
+ * "eta": "0h 5m 0s (120.0 steps/s)"}]}}. When a job ends, its final state is read from the JOBS table.
+ * </p>
+ * <p>
+ * At each push the JOBS table is also read for the running jobs and the jobs ended since the previous push, so a job
+ * queued and ended between two pushes is still reported. The jobs run by the worker nodes are not in the store of
+ * the web node, their status and progression come from the table.
+ * </p>
+ * <p>
+ * The messages are written asynchronously. While the previous message of a client is not written, the interval
+ * between two messages to this client is doubled, the changes are merged into the next message.
+ * </p>
+ */
+public class JobProgressBroadcaster {
+    public static final long PUSH_INTERVAL = ProgressionTracker.SAMPLE_INTERVAL;
+    /** Maximum number of push intervals between two messages to a slow client */
+    public static final int MAXIMUM_BACK_OFF = 32;
+    /** The ended jobs are read from this long before the previous push, the nodes clocks may not be in sync */
+    public static final long ENDED_JOBS_MARGIN = 60_000;
+    private final Logger logger = LoggerFactory.getLogger(JobProgressBroadcaster.class);
+    private final DataSource serverDataSource;
+    private final JobStateStore jobStateStore;
+    private final Map<WsContext, Subscriber> subscribers = new ConcurrentHashMap<>();
+    /** Owner of the live jobs, the store does not keep it */
+    private final Map<Integer, Integer> jobOwners = new HashMap<>();
+    /** End date of the ended jobs already reported by job identifier */
+    private final Map<Integer, Long> reportedEndedJobs = new HashMap<>();
+    /** Time of the previous push, 0 if there was no subscriber */
+    private long lastPushTime = 0;
+    private final ScheduledExecutorService pushExecutor;
+
+    /**
+     * State of a connected job list page, only used by the push thread except the sending flag
+     */
+    private static class Subscriber {
+        final WsContext ctx;
+        /** If > 0 only the jobs of this user are sent */
+        final int userIdFilter;
+        /** Last values sent to the client */
+        final Map<Integer, Map<String, Object>> sentValues = new HashMap<>();
+        /** Final state of the ended jobs not sent yet */
+        final Map<Integer, Map<String, Object>> pendingEndedValues = new HashMap<>();
+        final AtomicBoolean sending = new AtomicBoolean(false);
+        int backOff = 1;
+        int waitedIntervals = 0;
+
+        Subscriber(WsContext ctx, int userIdFilter) {
+            this.ctx = ctx;
+            this.userIdFilter = userIdFilter;
+        }
+    }
+
+    /**
+     * @param serverDataSource Server database, used to read the owner and the final state of the jobs
+     * @param jobStateStore Live state of the jobs run by this server
+     */
+    public JobProgressBroadcaster(DataSource serverDataSource, JobStateStore jobStateStore) {
+        this(serverDataSource, jobStateStore, true);
+    }
+
+    /**
+     * @param serverDataSource Server database, used to read the owner and the final state of the jobs
+     * @param jobStateStore Live state of the jobs run by this server
+     * @param scheduled False to push only when {@link #push()} is called
+     */
+    JobProgressBroadcaster(DataSource serverDataSource, JobStateStore jobStateStore, boolean scheduled) {
+        this.serverDataSource = serverDataSource;
+        this.jobStateStore = jobStateStore;
+        if (!scheduled) {
+            pushExecutor = null;
+            return;
+        }
+        pushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "JOB_PROGRESS_PUSH");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pushExecutor.scheduleWithFixedDelay(this::pushQuietly, PUSH_INTERVAL, PUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start sending the job progressions to a client
+     * @param ctx WebSocket connection
+     * @param user Logged user, administrators receive the progression of all the jobs
+     */
+    public void subscribe(WsContext ctx, User user) {
+        int userIdFilter = -1;
+        if (user != null && !user.isAdministrator()) {
+            userIdFilter = user.getIdentifier();
+        }
+        subscribers.put(ctx, new Subscriber(ctx, userIdFilter));
+    }
+
+    /**
+     * Stop sending the job progressions to a client
+     * @param ctx WebSocket connection
+     */
+    public void unsubscribe(WsContext ctx) {
+        subscribers.remove(ctx);
+    }
+
+    /**
+     * @return Number of connected clients
+     */
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    private void pushQuietly() {
+        try {
+            push();
+        } catch (SQLException | RuntimeException ex) {
+            logger.error("Unable to push the job progressions", ex);
+        }
+    }
+
+    /**
+     * Send the changed job values to the clients
+     * @throws SQLException If the job owners or the final job states can not be read
+     */
+    void push() throws SQLException {
+        if (subscribers.isEmpty()) {
+            jobOwners.clear();
+            reportedEndedJobs.clear();
+            lastPushTime = 0;
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long endedSince = (lastPushTime > 0 ? lastPushTime : now) - ENDED_JOBS_MARGIN;
+        lastPushTime = now;
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int jobId : jobStateStore.getLiveJobIds()) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("id", jobId);
+            rows.add(row);
+        }
+        jobStateStore.applyLiveValues(rows);
+        Map<Integer, Map<String, Object>> liveValues = new HashMap<>();
+        for (Map<String, Object> row : rows) {
+            liveValues.put((Integer) row.get("id"), row);
+        }
+        Map<Integer, Map<String, Object>> endedValues = new HashMap<>();
+        Map<Integer, Integer> endedOwners = new HashMap<>();
+        reportedEndedJobs.values().removeIf(endDate -> endDate < endedSince);
+        try (Connection connection = serverDataSource.getConnection()) {
+            for (Map<String, Object> row : DatabaseManagement.getRunningOrEndedJobs(connection,
+                    new Timestamp(endedSince))) {
+                int jobId = (Integer) row.remove("id");
+                int owner = (Integer) row.remove("userId");
+                Timestamp endDate = (Timestamp) row.remove("endDate");
+                Map<String, Object> values = new LinkedHashMap<>();
+                values.put("id", jobId);
+                values.putAll(row);
+                if (liveValues.containsKey(jobId)) {
+                    continue;
+                }
+                if (endDate == null) {
+                    // Run by another node
+                    liveValues.put(jobId, values);
+                    jobOwners.put(jobId, owner);
+                } else if (reportedEndedJobs.putIfAbsent(jobId, endDate.getTime()) == null) {
+                    endedValues.put(jobId, values);
+                    endedOwners.put(jobId, owner);
+                }
+            }
+            Set<Integer> endedJobs = new HashSet<>();
+            for (Subscriber subscriber : subscribers.values()) {
+                for (int jobId : subscriber.sentValues.keySet()) {
+                    if (!liveValues.containsKey(jobId) && !endedValues.containsKey(jobId)) {
+                        endedJobs.add(jobId);
+                    }
+                }
+            }
+            jobOwners.keySet().retainAll(liveValues.keySet());
+            for (int jobId : liveValues.keySet()) {
+                if (!jobOwners.containsKey(jobId)) {
+                    Map<String, Object> job = DatabaseManagement.getJob(connection, jobId);
+                    jobOwners.put(jobId, job.isEmpty() ? -1 : (Integer) job.get("userId"));
+                }
+            }
+            // Ended before the previous push or deleted
+            for (int jobId : endedJobs) {
+                Map<String, Object> job = DatabaseManagement.getJob(connection, jobId);
+                Map<String, Object> row = new LinkedHashMap<>();
+                row.put("id", jobId);
+                if (!job.isEmpty()) {
+                    row.put("status", job.get("status"));
+                    row.put("progression", job.get("progression"));
+                    row.put("percentCompleted", job.get("percentCompleted"));
+                    endedOwners.put(jobId, (Integer) job.get("userId"));
+                } else {
+                    row.put("deleted", true);
+                }
+                endedValues.put(jobId, row);
+            }
+        }
+        for (Subscriber subscriber : subscribers.values()) {
+            for (Map.Entry<Integer, Map<String, Object>> entry : endedValues.entrySet()) {
+                int owner = endedOwners.getOrDefault(entry.getKey(), -1);
+                if (subscriber.sentValues.remove(entry.getKey()) != null ||
+                        subscriber.userIdFilter <= 0 || subscriber.userIdFilter == owner) {
+                    subscriber.pendingEndedValues.put(entry.getKey(), entry.getValue());
+                }
+            }
+            pushTo(subscriber, liveValues);
+        }
+    }
+
+    private void pushTo(Subscriber subscriber, Map<Integer, Map<String, Object>> liveValues) {
+        if (!subscriber.ctx.session.isOpen()) {
+            unsubscribe(subscriber.ctx);
+            return;
+        }
+        if (subscriber.sending.get()) {
+            // The client does not read as fast as we write, wait longer before the next message
+            subscriber.backOff = Math.min(subscriber.backOff * 2, MAXIMUM_BACK_OFF);
+            subscriber.waitedIntervals = 0;
+            return;
+        }
+        if (++subscriber.waitedIntervals < subscriber.backOff) {
+            return;
+        }
+        subscriber.waitedIntervals = 0;
+        subscriber.backOff = Math.max(1, subscriber.backOff / 2);
+        List<Map<String, Object>> changes = new ArrayList<>();
+        for (Map.Entry<Integer, Map<String, Object>> entry : liveValues.entrySet()) {
+            int owner = jobOwners.getOrDefault(entry.getKey(), -1);
+            if ((subscriber.userIdFilter <= 0 || subscriber.userIdFilter == owner) &&
+                    !entry.getValue().equals(subscriber.sentValues.get(entry.getKey()))) {
+                changes.add(entry.getValue());
+                subscriber.sentValues.put(entry.getKey(), entry.getValue());
+            }
+        }
+        changes.addAll(subscriber.pendingEndedValues.values());
+        subscriber.pendingEndedValues.clear();
+        if (changes.isEmpty()) {
+            return;
+        }
+        subscriber.sending.set(true);
+        subscriber.ctx.session.getRemote().sendString(JsonOutput.toJson(Map.of("jobs", changes)),
+                new WriteCallback() {
+            @Override
+            public void writeFailed(Throwable x) {
+                logger.info("Unable to send the job progressions, closing the connection: {}",
+                        x.getLocalizedMessage());
+                unsubscribe(subscriber.ctx);
+                subscriber.ctx.closeSession();
+            }
+
+            @Override
+            public void writeSuccess() {
+                subscriber.sending.set(false);
+            }
+        });
+    }
+
+    /**
+     * Stop pushing the job progressions
+     */
+    public void shutdown() {
+        if (pushExecutor != null) {
+            pushExecutor.shutdown();
+        }
+        subscribers.clear();
+    }
+}
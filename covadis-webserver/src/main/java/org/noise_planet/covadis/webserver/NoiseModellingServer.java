@@ -17,6 +17,7 @@ import io.javalin.http.staticfiles.Location;
 import io.javalin.rendering.template.JavalinThymeleaf;
 import io.javalin.websocket.WsConfig;
 import org.apache.log4j.PropertyConfigurator;
+import org.h2.tools.Server;
 import org.noise_planet.covadis.webserver.database.DatabaseManagement;
 import org.noise_planet.covadis.webserver.script.ScriptFileWatchedProcess;
 import org.noise_planet.covadis.webserver.secure.*;
@@ -30,6 +31,8 @@ import java.io.IOException;
 import java.net.URI;
 import java.nio.file.*;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -48,9 +51,17 @@ public class NoiseModellingServer {
     private final DataSource serverDataSource;
     private final JWTProvider<User> provider;
     private final UserController userController;
+    private final CampaignController campaignController;
+    /** H2 TCP server sharing the databases with the worker nodes */
+    private Server databaseServer;
 
     public NoiseModellingServer(Configuration configuration) throws IOException, SQLException {
         this.configuration = configuration;
+        if (configuration.isMigrateDatabaseCredentials()) {
+            DatabaseManagement.migrateDefaultCredentials(configuration.workingDirectory,
+                    configuration.getDatabaseUser(), configuration.getDatabasePassword(),
+                    configuration.getSecureBaseEncryptionSecret());
+        }
         serverDataSource = DatabaseManagement.createH2DataSource(configuration.workingDirectory, "server",
                 configuration.secureBaseAdminUser, configuration.secureBaseAdminPassword,
                 configuration.getSecureBaseEncryptionSecret(), false);
@@ -60,6 +71,8 @@ public class NoiseModellingServer {
         provider = JWTProviderFactory.createHMAC512(DatabaseManagement.getJWTSigningKey(serverDataSource));
         userController = new UserController(serverDataSource, provider, configuration);
         owsController  = new OwsController(serverDataSource, provider, configuration);
+        campaignController = new CampaignController(serverDataSource, configuration,
+                owsController.jobExecutorService);
     }
 
     public Configuration getConfiguration() {
@@ -83,6 +96,11 @@ public class NoiseModellingServer {
             Configuration configuration = Configuration.createConfigurationFromArguments(args);
             // Initialize additional loggers
             Logging.configureFileLogger(configuration.workingDirectory, LOGGING_FILE_NAME);
+            if (configuration.isWorker()) {
+                // Run the jobs of a remote web server
+                new NoiseModellingWorker(configuration).start();
+                return;
+            }
             // Create WebServer instance
             NoiseModellingServer noiseModellingServer = new NoiseModellingServer(configuration);
             noiseModellingServer.startServer(!configuration.skipOpenBrowser);
@@ -115,16 +133,26 @@ public class NoiseModellingServer {
 
         scriptWatch = startWatcher(Path.of(configuration.scriptPath), owsController);
 
+        if (configuration.getDatabaseTcpPort() > 0) {
+            startDatabaseServer();
+        }
+
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             try {
                 // Stop watching for script changes
                 scriptWatch.cancel(true);
                 app.stop();
+                // Stop the job workers
+                owsController.shutdown();
+                campaignController.shutdown();
                 // Close all datasource connections
                 owsController.closeDataBaseDataSources();
                 if (serverDataSource instanceof AutoCloseable) {
                     ((AutoCloseable) serverDataSource).close();
                 }
+                if (databaseServer != null) {
+                    databaseServer.stop();
+                }
             } catch (Exception e) {
                 logger.error(e.getMessage(), e);
             }
@@ -132,11 +160,51 @@ public class NoiseModellingServer {
 
         app.start(configuration.port);
 
+        try {
+            // Resume the campaigns interrupted by the last stop
+            campaignController.restoreCampaigns();
+        } catch (SQLException ex) {
+            logger.error("Unable to restore the campaigns", ex);
+        }
+
         if (openBrowser) {
             openBrowser(configuration.getWebSiteFullUrl());
         }
     }
 
+    /**
+     * Start the H2 TCP server giving the worker nodes access to the server and user databases. The databases stay
+     * opened in embedded mode by this process (H2 mixed mode).
+     * <p>
+     * Anyone connected to this port with the database credentials can run any SQL, including Java functions, so the
+     * server refuses the default credentials. The port should also only be reachable from the worker nodes (private
+     * network interface or firewall), and the connections encrypted with the database-tcp-ssl option.
+     * </p>
+     * @throws IOException If the TCP server can not be started
+     */
+    private void startDatabaseServer() throws IOException {
+        if (configuration.isDefaultDatabaseCredentials()) {
+            throw new IOException("The databases can not be shared with the default credentials, set the " +
+                    "database-user and database-password options (or the " +
+                    Configuration.DATABASE_PASSWORD_ENVIRONMENT + " environment variable)");
+        }
+        List<String> serverArguments = new ArrayList<>(List.of("-tcpPort",
+                String.valueOf(configuration.getDatabaseTcpPort()), "-tcpAllowOthers", "-baseDir",
+                configuration.workingDirectory, "-ifExists"));
+        if (configuration.isDatabaseTcpSsl()) {
+            serverArguments.add("-tcpSSL");
+        } else {
+            logger.warn("The database connections of the worker nodes are not encrypted, use the database-tcp-ssl " +
+                    "option or a private network");
+        }
+        try {
+            databaseServer = Server.createTcpServer(serverArguments.toArray(new String[0])).start();
+            logger.info("Databases shared with the worker nodes on {}", databaseServer.getURL());
+        } catch (SQLException ex) {
+            throw new IOException("Unable to start the database TCP server", ex);
+        }
+    }
+
     /**
      * Configure Javalin routes
      * @param rootPath Base url
@@ -172,12 +240,21 @@ public class NoiseModellingServer {
 
         app.get("/builder/ows", owsController::handleGet, Role.RUNNER);
         app.post("/builder/ows", owsController::handleWPSPost, Role.RUNNER);
+        app.get("/builder/ows/status/{job_id}", owsController::jobStatus, Role.RUNNER);
+        app.get("/builder/ows/result/{job_id}", owsController::jobResult, Role.RUNNER);
+        app.get("/builder/ows/estimate/{process_id}", owsController::jobEstimate, Role.RUNNER);
+        app.get("/builder/ows/geojson/{table_name}", owsController::tableGeoJson, Role.RUNNER);
         app.get("/job_logs/{job_id}", owsController::jobLogs, Role.RUNNER);
         app.ws("/job_logs_stream/{job_id}", this::manageLogsWebSocket, Role.RUNNER);
         app.post("/jobs/delete/{job_id}", owsController::jobDelete, Role.RUNNER);
         app.post("/jobs/delete_all", owsController::jobDeleteAll, Role.RUNNER);
         app.post("/jobs/cancel/{job_id}", owsController::jobCancel, Role.RUNNER);
         app.get("/jobs", owsController::jobList, Role.RUNNER);
+        app.ws("/jobs_stream", this::manageJobsWebSocket, Role.RUNNER);
+        app.get("/campaigns", campaignController::campaignList, Role.RUNNER);
+        app.post("/campaigns/create", campaignController::campaignCreate, Role.RUNNER);
+        app.post("/campaigns/cancel/{campaign_id}", campaignController::campaignCancel, Role.RUNNER);
+        app.post("/campaigns/delete/{campaign_id}", campaignController::campaignDelete, Role.RUNNER);
         
 
         app.get("/", userController::index, Role.ANYONE);
@@ -229,12 +306,12 @@ public class NoiseModellingServer {
      * and triggers a script reload using the provided OwsController.
      *
      * @param scriptsDir the root directory to monitor for changes. All subdirectories under this will also be monitored.
-     * @param owsController the instance responsible for reloading scripts when a `.groovy` file is changed.
+     * @param owsController the instance whose script registry is updated when a `.groovy` file is changed.
      * @return a Future representing the asynchronous script reload operation.
      */
     private Future<Boolean> startWatcher(Path scriptsDir, OwsController owsController) {
         ExecutorService executor = Executors.newSingleThreadExecutor();
-        Callable<Boolean> task = new ScriptFileWatchedProcess(scriptsDir, owsController);
+        Callable<Boolean> task = new ScriptFileWatchedProcess(scriptsDir, owsController.getScriptRegistry());
         return executor.submit(task);
     }
 
@@ -242,4 +319,10 @@ public class NoiseModellingServer {
         ws.onConnect(owsController::jobLogsStreamOnConnect);
         ws.onClose(owsController::jobLogsStreamOnClose);
     }
+
+    private void manageJobsWebSocket(WsConfig ws) {
+        ws.onConnect(owsController::jobsStreamOnConnect);
+        ws.onClose(owsController::jobsStreamOnClose);
+        ws.onError(owsController::jobsStreamOnClose);
+    }
 }
@@ -0,0 +1,243 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import com.zaxxer.hikari.HikariDataSource;
+import groovy.json.JsonSlurper;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+import org.noise_planet.covadis.webserver.script.Job;
+import org.noise_planet.covadis.webserver.script.JobExecutorService;
+import org.noise_planet.covadis.webserver.script.JobStateStore;
+import org.noise_planet.covadis.webserver.script.JobStates;
+import org.noise_planet.covadis.webserver.script.ScriptMetadata;
+import org.noise_planet.covadis.webserver.script.WpsScriptWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Worker node running the jobs registered by a web server started with the remote-jobs option.
+ * <p>
+ * The worker connects to the server database through the H2 TCP server of the web server, claims the queued jobs
+ * (see {@link DatabaseManagement#claimJob(Connection, int, String)}) while it has free job slots, and runs them on
+ * the user databases of the web server. The claimed jobs stay queued until they are really started by the job
+ * executor of the worker. The claimed and running jobs are flagged with a heartbeat, the running jobs of a worker
+ * node that stopped sending heartbeats are set as failed by the other worker nodes, its claimed jobs are queued again.
+ * </p>
+ */
+public class NoiseModellingWorker {
+    /** Delay without heartbeat after which the running jobs of a worker node are considered lost */
+    public static final long STALE_JOB_DELAY = TimeUnit.MINUTES.toMillis(2);
+    private static final int DEFAULT_ABORT_JOB_DELAY = 5;
+    private final Logger logger = LoggerFactory.getLogger(NoiseModellingWorker.class);
+    private final Configuration configuration;
+    private final String workerId;
+    private final HikariDataSource serverDataSource;
+    private final Map<Integer, HikariDataSource> userDataSources = new ConcurrentHashMap<>();
+    /** Jobs claimed by this worker and not yet ended */
+    private final Map<Integer, Job<Object>> activeJobs = new ConcurrentHashMap<>();
+    private final JobExecutorService jobExecutorService;
+    private final JobStateStore jobStateStore;
+    private final WpsScriptWrapper wpsScriptWrapper;
+    private List<ScriptMetadata> scripts;
+    private volatile boolean running = true;
+
+    public NoiseModellingWorker(Configuration configuration) throws IOException, SQLException {
+        this.configuration = configuration;
+        this.workerId = buildWorkerId();
+        serverDataSource = DatabaseManagement.createRemoteH2DataSource(configuration.getDatabaseServer(), "server",
+                configuration.getSecureBaseAdminUser(), configuration.getSecureBaseAdminPassword(),
+                configuration.getSecureBaseEncryptionSecret(), false);
+        wpsScriptWrapper = new WpsScriptWrapper(Path.of(configuration.getScriptPath()));
+        scripts = WpsScriptWrapper.buildScriptWrappers(wpsScriptWrapper.loadScripts(),
+                configuration.getScriptMetadataCacheDirectory());
+        jobExecutorService = new JobExecutorService(configuration.getJobWorkers(), configuration.getJobWorkers(),
+                Runtime.getRuntime().availableProcessors(),
+                JobExecutorService.getHeapCapacity(configuration.isJobProcess()));
+        jobStateStore = new JobStateStore(serverDataSource, JobStateStore.DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * @return Identifier of this worker node, host name and process id
+     */
+    private static String buildWorkerId() {
+        String hostName;
+        try {
+            hostName = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException ex) {
+            hostName = "localhost";
+        }
+        return hostName + ":" + ProcessHandle.current().pid();
+    }
+
+    /**
+     * @return Identifier of this worker node stored in the claimed jobs
+     */
+    public String getWorkerId() {
+        return workerId;
+    }
+
+    /**
+     * Pull and run the jobs until the process is stopped
+     */
+    public void start() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+        logger.info("Worker {} connected to {} with {} job slots", workerId, configuration.getDatabaseServer(),
+                configuration.getJobWorkers());
+        while (running) {
+            try {
+                pollJobs();
+            } catch (SQLException ex) {
+                logger.error("Unable to query the job queue", ex);
+            }
+            try {
+                Thread.sleep(configuration.getWorkerPollInterval());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Stop claiming jobs and cancel the running jobs
+     */
+    public void stop() {
+        running = false;
+        for (Job<Object> job : activeJobs.values()) {
+            jobExecutorService.cancelJob(job.getId(), DEFAULT_ABORT_JOB_DELAY);
+        }
+        jobExecutorService.shutdown();
+        jobStateStore.shutdown();
+        userDataSources.values().forEach(HikariDataSource::close);
+        serverDataSource.close();
+    }
+
+    /**
+     * Claim the queued jobs while there are free job slots, then update the heartbeat of the running jobs, cancel the
+     * jobs canceled from the web server and fail the jobs of the lost worker nodes.
+     * @throws SQLException If the server database can not be queried
+     */
+    void pollJobs() throws SQLException {
+        try (Connection connection = serverDataSource.getConnection()) {
+            while (running && jobExecutorService.getQueueSize() == 0 &&
+                    activeJobs.size() < configuration.getJobWorkers()) {
+                Map<String, Object> claimedJob = DatabaseManagement.claimNextJob(connection, workerId,
+                        configuration.getJobWorkers(), this::fitsResources);
+                if (claimedJob == null) {
+                    break;
+                }
+                startJob(connection, claimedJob);
+            }
+            DatabaseManagement.updateJobsHeartbeat(connection, workerId);
+            for (int jobId : DatabaseManagement.getCanceledJobs(connection, workerId)) {
+                if (activeJobs.remove(jobId) == null ||
+                        !jobExecutorService.cancelJob(jobId, DEFAULT_ABORT_JOB_DELAY)) {
+                    // The job is not run by this process anymore
+                    DatabaseManagement.setJobEndTime(connection, jobId);
+                }
+            }
+            int staleJobs = DatabaseManagement.failStaleJobs(connection, STALE_JOB_DELAY);
+            if (staleJobs > 0) {
+                logger.warn("{} job(s) of a lost worker node have been set as failed or queued again", staleJobs);
+            }
+        }
+    }
+
+    /**
+     * @param queuedJob Queued job with the keys id, userId, script and inputs (JSON)
+     * @return True if the threads and heap declared by the job fit in the resources left by the jobs of this worker
+     */
+    private boolean fitsResources(Map<String, Object> queuedJob) {
+        Optional<ScriptMetadata> scriptMetadata = findScript((String) queuedJob.get("script"));
+        if (scriptMetadata.isEmpty()) {
+            // Claimed in order to be set as failed
+            return true;
+        }
+        Job<Object> job = new Job<>((Integer) queuedJob.get("id"), (Integer) queuedJob.get("userId"),
+                scriptMetadata.get(), serverDataSource, jobStateStore, null, parseInputs(queuedJob), configuration);
+        return jobExecutorService.fitsResources(job.getRequiredThreads(jobExecutorService.getAvailableProcessors()),
+                job.getRequiredHeap());
+    }
+
+    private static Map<String, Object> parseInputs(Map<String, Object> queuedJob) {
+        Map<String, Object> inputs = new HashMap<>();
+        Object jsonInputs = queuedJob.get("inputs");
+        if (jsonInputs != null) {
+            inputs.putAll((Map<String, Object>) new JsonSlurper().parseText(jsonInputs.toString()));
+        }
+        return inputs;
+    }
+
+    private void startJob(Connection connection, Map<String, Object> claimedJob) throws SQLException {
+        int jobId = (Integer) claimedJob.get("id");
+        int jobUserId = (Integer) claimedJob.get("userId");
+        String scriptId = (String) claimedJob.get("script");
+        Optional<ScriptMetadata> scriptMetadata = findScript(scriptId);
+        if (scriptMetadata.isEmpty()) {
+            logger.error("Can not run job {}, the script {} does not exists on this worker", jobId, scriptId);
+            DatabaseManagement.setJobState(connection, jobId, JobStates.FAILED.name());
+            DatabaseManagement.setJobEndTime(connection, jobId);
+            return;
+        }
+        Job<Object> job = new Job<>(jobId, jobUserId, scriptMetadata.get(), serverDataSource, jobStateStore,
+                fetchUserDataSource(jobUserId), parseInputs(claimedJob), configuration);
+        activeJobs.put(jobId, job);
+        job.getCompletion().whenComplete((result, throwable) -> activeJobs.remove(jobId));
+        logger.info("Job {} claimed by worker {}", jobId, workerId);
+        jobExecutorService.submitJob(job);
+    }
+
+    /**
+     * Find the script of a job, the scripts are loaded again if the script is unknown (added after the worker start)
+     * @param scriptId Script identifier
+     * @return Script metadata
+     */
+    private Optional<ScriptMetadata> findScript(String scriptId) {
+        Optional<ScriptMetadata> scriptMetadata = scripts.stream()
+                .filter(sw -> sw.id.equals(scriptId))
+                .findFirst();
+        if (scriptMetadata.isEmpty()) {
+            try {
+                scripts = WpsScriptWrapper.buildScriptWrappers(wpsScriptWrapper.loadScripts(),
+                        configuration.getScriptMetadataCacheDirectory());
+                scriptMetadata = scripts.stream()
+                        .filter(sw -> sw.id.equals(scriptId))
+                        .findFirst();
+            } catch (IOException ex) {
+                logger.error("Unable to reload the scripts", ex);
+            }
+        }
+        return scriptMetadata;
+    }
+
+    private HikariDataSource fetchUserDataSource(int userId) throws SQLException {
+        HikariDataSource dataSource = userDataSources.get(userId);
+        if (dataSource == null) {
+            dataSource = DatabaseManagement.createRemoteH2DataSource(configuration.getDatabaseServer(),
+                    OwsController.getUserDatabaseName(userId), configuration.getDatabaseUser(),
+                    configuration.getDatabasePassword(), "", true);
+            userDataSources.put(userId, dataSource);
+        }
+        return dataSource;
+    }
+}
@@ -10,9 +10,12 @@
 
 package org.noise_planet.covadis.webserver;
 
-import groovy.lang.GroovyShell;
+import groovy.json.JsonOutput;
+import groovy.json.JsonSlurper;
 import groovy.lang.Script;
 import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
 import io.javalin.http.InternalServerErrorResponse;
 import io.javalin.http.UnauthorizedResponse;
 import io.javalin.websocket.WsCloseContext;
@@ -21,7 +24,6 @@ import io.javalin.websocket.WsContext;
 import net.opengis.ows11.ExceptionReportType;
 import net.opengis.ows11.ExceptionType;
 import net.opengis.ows11.Ows11Factory;
-import net.opengis.wps10.ExecuteType;
 import net.opengis.wps10.ProcessFailedType;
 import net.opengis.wps10.Wps10Factory;
 import org.apache.log4j.*;
@@ -29,9 +31,7 @@ import org.apache.log4j.spi.Filter;
 import org.apache.log4j.spi.LoggingEvent;
 import org.geotools.ows.v1_1.OWS;
 import org.geotools.ows.v1_1.OWSConfiguration;
-import org.geotools.wps.WPSConfiguration;
 import org.geotools.xsd.Encoder;
-import org.geotools.xsd.Parser;
 import org.jetbrains.annotations.NotNull;
 import org.noise_planet.covadis.webserver.database.DatabaseManagement;
 import org.noise_planet.covadis.webserver.script.*;
@@ -39,17 +39,28 @@ import org.noise_planet.covadis.webserver.secure.JWTProvider;
 import org.noise_planet.covadis.webserver.secure.JavalinJWT;
 import org.noise_planet.covadis.webserver.secure.User;
 import org.noise_planet.covadis.webserver.utilities.Logging;
+import org.noise_planet.covadis.webserver.utilities.StringUtilities;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
+import javax.xml.stream.XMLStreamException;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.text.MessageFormat;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -64,10 +75,10 @@ import static org.h2.server.web.PageParser.escapeHtml;
  */
 public class OwsController {
     public static final int JOB_EXECUTION_TIMEOUT_MS = 5000;
-    public static final int CORE_POOL_SIZE = 5;
-    public static final int MAXIMUM_POOL_SIZE = 5;
-    public static final long KEEP_ALIVE_TIME = 0L;
     public static final int MAXIMUM_LINES_TO_FETCH = 1_000;
+    /** Maximum number of Execute requests downloading their Reference inputs at the same time */
+    public static final int REFERENCE_DOWNLOAD_THREADS = 4;
+    private static final int REMOTE_JOB_POLL_INTERVAL_MS = 500;
     private static final int DEFAULT_ABORT_JOB_DELAY = 5;
     private final Logger logger = LoggerFactory.getLogger(OwsController.class);
     private final JWTProvider<User> provider;
@@ -79,59 +90,240 @@ public class OwsController {
     /**
      * Handle threads
      */
-    final JobExecutorService jobExecutorService = new JobExecutorService(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE,
-            KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS);
+    final JobExecutorService jobExecutorService;
+    /** Live state of the jobs run by this server, written to the JOBS table in batches */
+    final JobStateStore jobStateStore;
+    final JobProgressBroadcaster jobProgressBroadcaster;
+    /** Poll the state of the jobs run by the worker nodes, when a client waits for the job result */
+    private final ScheduledExecutorService remoteJobWatcher;
+    /** Download the Reference inputs of the Execute requests */
+    private final ExecutorService referenceDownloads = Executors.newFixedThreadPool(REFERENCE_DOWNLOAD_THREADS);
 
     /**
-     * A static collection of {@link ScriptMetadata} objects representing the
-     * scripts available for the Web Processing Service (WPS). Each script is wrapped
-     * in a {@link ScriptMetadata}, which encapsulates its metadata, inputs, outputs,
-     * and logic to facilitate execution.
-     * <p>
-     * This list serves as a central repository of scripts that can be dynamically
-     * reloaded and used to process WPS requests. It plays a crucial role in
-     * handling WPS operations by mapping process identifiers to their corresponding
-     * Groovy script implementations.
+     * Registry of the scripts available for the Web Processing Service (WPS). The scripts are read from an
+     * immutable snapshot, replaced as a whole when the script files change.
      */
-    static List<ScriptMetadata> wpsScripts;
-    /**
-     * An instance of WpsScriptWrapper used to manage the execution of WPS (Web Processing Service) scripts.
-     * This wrapper facilitates the interaction between the application and the underlying scripting engine
-     * to execute processes defined in scripts. It is responsible for script execution and handling inputs
-     * and outputs for WPS processes.
-     */
-    WpsScriptWrapper wpsScriptWrapper;
-
-
+    final ScriptRegistry scriptRegistry;
+    /** GetCapabilities and DescribeProcess documents of the current scripts */
+    final WpsDocuments wpsDocuments;
     /**
      * Constructs an instance of the OwsController class. This constructor initializes the
-     * WPS scripts by loading and grouping them using the WpsScriptWrapper utility. The scripts
-     * are classified based on their directory structure and wrapped into appropriate script
-     * wrappers for further processing.
+     * registry of the WPS scripts. The scripts are classified based on their directory structure
+     * and wrapped into appropriate script wrappers for further processing.
      *
      * @throws IOException if an error occurs while loading or processing the script files.
      */
     public OwsController(DataSource serverDataSource, JWTProvider<User> provider, Configuration configuration) throws IOException {
-        wpsScriptWrapper = new WpsScriptWrapper(Path.of(configuration.scriptPath));
-        Map<String, List<File>> groupedScripts = wpsScriptWrapper.loadScripts();
-        wpsScripts = WpsScriptWrapper.buildScriptWrappers(groupedScripts);
+        scriptRegistry = new ScriptRegistry(Path.of(configuration.scriptPath),
+                configuration.getScriptMetadataCacheDirectory(), ScriptRegistry.DEFAULT_DEBOUNCE_MILLIS);
+        wpsDocuments = new WpsDocuments(scriptRegistry);
         this.provider = provider;
         this.configuration = configuration;
         this.serverDataSource = serverDataSource;
+        // The job processes use the physical memory, not the heap of the web server
+        jobExecutorService = new JobExecutorService(configuration.getJobWorkers(),
+                configuration.getJobQueueCapacity(), Runtime.getRuntime().availableProcessors(),
+                JobExecutorService.getHeapCapacity(configuration.isJobProcess()));
+        jobStateStore = new JobStateStore(serverDataSource, JobStateStore.DEFAULT_FLUSH_INTERVAL);
+        jobProgressBroadcaster = new JobProgressBroadcaster(serverDataSource, jobStateStore);
+        remoteJobWatcher = configuration.isRemoteJobs() ? Executors.newSingleThreadScheduledExecutor() : null;
+        if (!configuration.isRemoteJobs()) {
+            // The jobs queued in the database are pulled by the worker nodes otherwise
+            try {
+                restoreQueuedJobs();
+            } catch (SQLException ex) {
+                logger.error("Unable to restore the job queue", ex);
+            }
+        } else {
+            try {
+                watchUnfinishedRemoteJobs();
+            } catch (SQLException ex) {
+                logger.error("Unable to watch the remote jobs", ex);
+            }
+        }
     }
+
     /**
-     * Reloads the WPS (Web Processing Service) scripts by reloading them from the file system
-     * and rebuilding the corresponding script wrappers.
-     *
-     * This method uses {@link WpsScriptWrapper#loadScripts()} to scan and organize script files into
-     * groups. The results are then processed by {@link WpsScriptWrapper#buildScriptWrappers(Map)} to
-     * create a new set of script wrappers, which replace the existing ones.
+     * The worker nodes keep running their jobs while the server restarts, the input tables of these jobs are
+     * removed once they end. The input tables of the ended jobs are removed.
+     * @throws SQLException If the jobs can not be read
+     */
+    private void watchUnfinishedRemoteJobs() throws SQLException {
+        dropEndedJobInputTables();
+        List<Map<String, Object>> unfinishedJobs;
+        try (Connection connection = serverDataSource.getConnection()) {
+            unfinishedJobs = DatabaseManagement.getUnfinishedJobInputTables(connection);
+        }
+        for (Map<String, Object> unfinishedJob : unfinishedJobs) {
+            int jobId = (Integer) unfinishedJob.get("id");
+            int jobUserId = (Integer) unfinishedJob.get("userId");
+            List<String> inputTables = (List<String>) unfinishedJob.get("inputTables");
+            CompletableFuture<Object> completion = new CompletableFuture<>();
+            completion.whenComplete((jobResult, throwable) -> dropJobInputTables(jobId, jobUserId, inputTables));
+            watchRemoteJob(jobId, completion);
+        }
+    }
+
+    /**
+     * Jobs that were waiting in the queue when the server stopped are submitted again, in submission order.
+     * Jobs that were running are set as failed. The input tables of the ended jobs are removed.
+     * @throws SQLException If something wrong happened
+     */
+    private void restoreQueuedJobs() throws SQLException {
+        List<Map<String, Object>> queuedJobs;
+        try (Connection connection = serverDataSource.getConnection()) {
+            int interruptedJobs = DatabaseManagement.failInterruptedJobs(connection);
+            if (interruptedJobs > 0) {
+                logger.warn("{} job(s) were interrupted by the last server shutdown", interruptedJobs);
+            }
+            queuedJobs = DatabaseManagement.getQueuedJobs(connection);
+        }
+        dropEndedJobInputTables();
+        int restoredJobs = 0;
+        for (Map<String, Object> queuedJob : queuedJobs) {
+            int jobId = (Integer) queuedJob.get("id");
+            int jobUserId = (Integer) queuedJob.get("userId");
+            String scriptId = (String) queuedJob.get("script");
+            List<String> inputTables = (List<String>) queuedJob.get("inputTables");
+            Optional<ScriptMetadata> scriptMetadata = scriptRegistry.getSnapshot().find(scriptId);
+            if (scriptMetadata.isEmpty()) {
+                logger.error("Can not restore job {}, the script {} does not exists anymore", jobId, scriptId);
+                try (Connection connection = serverDataSource.getConnection()) {
+                    DatabaseManagement.setJobState(connection, jobId, JobStates.FAILED.name());
+                    DatabaseManagement.setJobEndTime(connection, jobId);
+                }
+                dropJobInputTables(jobId, jobUserId, inputTables);
+                continue;
+            }
+            Map<String, Object> inputs = new HashMap<>();
+            Object jsonInputs = queuedJob.get("inputs");
+            if (jsonInputs != null) {
+                inputs.putAll((Map<String, Object>) new JsonSlurper().parseText(jsonInputs.toString()));
+            }
+            Job<Object> job = new Job<>(jobId, jobUserId, scriptMetadata.get(), serverDataSource, jobStateStore,
+                    fetchUserDataSource(jobUserId), inputs, configuration);
+            job.getCompletion().whenComplete((jobResult, throwable) ->
+                    dropJobInputTables(jobId, jobUserId, inputTables));
+            try {
+                submitJob(job);
+                restoredJobs++;
+            } catch (RejectedExecutionException ex) {
+                // The executor has set the job as failed, the next jobs may still be restored
+                logger.error("Can not restore job {}: {}", jobId, ex.getLocalizedMessage());
+            }
+        }
+        if (!queuedJobs.isEmpty()) {
+            logger.info("{}/{} queued job(s) restored", restoredJobs, queuedJobs.size());
+        }
+    }
+
+    /**
+     * Remove the input tables of the jobs that ended without removing them, for example the jobs interrupted by the
+     * last server shutdown
+     * @throws SQLException If the jobs can not be read
+     */
+    private void dropEndedJobInputTables() throws SQLException {
+        List<Map<String, Object>> endedJobs;
+        try (Connection connection = serverDataSource.getConnection()) {
+            endedJobs = DatabaseManagement.getEndedJobInputTables(connection);
+        }
+        for (Map<String, Object> endedJob : endedJobs) {
+            dropJobInputTables((Integer) endedJob.get("id"), (Integer) endedJob.get("userId"),
+                    (List<String>) endedJob.get("inputTables"));
+        }
+    }
+
+    /**
+     * Remove the tables of the WPS complex inputs of a job, called when the job ends
+     * @param jobId Job identifier
+     * @param userId Owner of the job
+     * @param inputTables Tables in the user database
+     */
+    private void dropJobInputTables(int jobId, int userId, List<String> inputTables) {
+        if (inputTables.isEmpty()) {
+            return;
+        }
+        try {
+            WpsExecuteReader.dropTables(fetchUserDataSource(userId), inputTables);
+            try (Connection connection = serverDataSource.getConnection()) {
+                DatabaseManagement.setJobInputTables(connection, jobId, Collections.emptyList());
+            }
+        } catch (SQLException ex) {
+            logger.error("Unable to remove the input tables of the job " + jobId, ex);
+        }
+    }
+    /**
+     * Add the job to the queue, using the up-to-date scheduling settings of the job user
+     * @param job Job to submit
+     * @return Future result of the job
+     * @throws SQLException If the user settings can not be read
+     */
+    private <T> Future<T> submitJob(Job<T> job) throws SQLException {
+        JobCostEstimator.Estimate estimate = job.estimateCost();
+        if (estimate != null) {
+            logger.info("Job {} estimated duration {} from {} previous run(s)", job.getId(),
+                    StringUtilities.durationToString(Duration.ofMillis(estimate.duration)), estimate.samples);
+        }
+        if (configuration.isRemoteJobs()) {
+            // The job stays queued in the database until a worker node claims it
+            watchRemoteJob(job.getId(), job.getCompletion());
+            return job.getCompletion();
+        }
+        try (Connection connection = serverDataSource.getConnection()) {
+            jobExecutorService.setUserShare(job.getUserId(),
+                    DatabaseManagement.getUserShare(connection, job.getUserId()));
+        }
+        return jobExecutorService.submitJob(job);
+    }
+
+    /**
+     * Complete the job when a worker node ends it, in order to answer the synchronous WPS Execute requests and to
+     * remove the job input tables. The job is watched until it is completed, failed or canceled, the requests
+     * waiting for the result apply their own timeout on a copy of the completion.
+     * @param jobId Job run by a worker node
+     * @param completion Completed with the job result
+     */
+    private <T> void watchRemoteJob(int jobId, CompletableFuture<T> completion) {
+        ScheduledFuture<?> watch = remoteJobWatcher.scheduleWithFixedDelay(() -> {
+            try (Connection connection = serverDataSource.getConnection()) {
+                Map<String, Object> jobData = DatabaseManagement.getJob(connection, jobId);
+                if (jobData.isEmpty()) {
+                    // The job has been removed
+                    completion.cancel(false);
+                    return;
+                }
+                JobStates jobState = JobStates.valueOf((String) jobData.get("status"));
+                if (jobState == JobStates.COMPLETED) {
+                    completion.complete((T) DatabaseManagement.getJobResult(connection, jobId));
+                } else if (jobState == JobStates.FAILED) {
+                    completion.completeExceptionally(new IllegalStateException(
+                            DatabaseManagement.getJobResult(connection, jobId)));
+                } else if (jobState == JobStates.CANCELED) {
+                    completion.cancel(false);
+                }
+            } catch (SQLException | RuntimeException ex) {
+                // The worker node may still be running the job, read its state again on the next poll
+                logger.warn("Unable to read the state of the remote job " + jobId, ex);
+            }
+        }, REMOTE_JOB_POLL_INTERVAL_MS, REMOTE_JOB_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        completion.whenComplete((result, throwable) -> watch.cancel(false));
+    }
+
+    /**
+     * Reloads all the WPS (Web Processing Service) scripts from the file system. The readers keep using the
+     * previous scripts until the new snapshot is published.
      *
      * @throws IOException if an error occurs while loading or rebuilding the scripts.
      */
     public void reloadScripts() throws IOException {
-        Map<String, List<File>> groupedScripts = wpsScriptWrapper.loadScripts();
-        wpsScripts = WpsScriptWrapper.buildScriptWrappers(groupedScripts);
+        scriptRegistry.reload();
+    }
+
+    /**
+     * @return the registry of the WPS scripts, notified of the script file changes
+     */
+    public ScriptRegistry getScriptRegistry() {
+        return scriptRegistry;
     }
 
     /**
@@ -200,7 +392,8 @@ public class OwsController {
      * the "GetCapabilities" and "DescribeProcess" operations. Based on the "request"
      * query parameter, this method retrieves WPS capabilities or details of a specific
      * process. Responds with appropriate XML content or error messages in case of invalid
-     * requests or missing parameters.
+     * requests or missing parameters. The XML documents are rendered once for each version
+     * of the script registry.
      *
      * @param ctx the context of the current HTTP request, providing access to
      *            query parameters, response handling, and the ability to set
@@ -211,8 +404,7 @@ public class OwsController {
         ctx.contentType("text/xml; charset=UTF-8");
 
         if ("GetCapabilities".equalsIgnoreCase(request)) {
-            String xml = WpsScriptWrapper.generateCapabilitiesXML(wpsScripts);
-            ctx.result(xml);
+            sendDocument(ctx, wpsDocuments.getCapabilities());
 
         } else if ("DescribeProcess".equalsIgnoreCase(request)) {
             String identifier = ctx.queryParam("identifier");
@@ -221,12 +413,10 @@ public class OwsController {
                 return;
             }
 
-            Optional<ScriptMetadata> target = wpsScripts.stream()
-                    .filter(w -> w.id.equals(identifier))
-                    .findFirst();
+            WpsDocuments.Document processDescription = wpsDocuments.getProcessDescription(identifier);
 
-            if (target.isPresent()) {
-                ctx.result(WpsScriptWrapper.generateDescribeProcessXML(target.get()));
+            if (processDescription != null) {
+                sendDocument(ctx, processDescription);
             } else {
                 ctx.status(404).result("<ows:Exception>Process not found: " + identifier + "</ows:Exception>");
             }
@@ -236,6 +426,28 @@ public class OwsController {
         }
     }
 
+    /**
+     * Send a precomputed document, compressed if the client accepts it. The client revalidates its copy with the
+     * entity tag, an unchanged document is answered with 304 Not Modified and no content.
+     *
+     * @param ctx the context of the current HTTP request
+     * @param document the rendered document
+     */
+    private static void sendDocument(Context ctx, WpsDocuments.Document document) {
+        ctx.header(Header.ETAG, document.etag);
+        ctx.header(Header.VARY, Header.ACCEPT_ENCODING);
+        ctx.header(Header.CACHE_CONTROL, "no-cache");
+        if (document.matches(ctx.header(Header.IF_NONE_MATCH))) {
+            ctx.status(HttpStatus.NOT_MODIFIED);
+        } else if (WpsDocuments.acceptsGzip(ctx.header(Header.ACCEPT_ENCODING))) {
+            // Javalin does not compress again a response with a content encoding
+            ctx.header(Header.CONTENT_ENCODING, "gzip");
+            ctx.result(document.gzipContent);
+        } else {
+            ctx.result(document.content);
+        }
+    }
+
     /**
      * Handles WFS (Web Feature Service) GET requests for the OWS (Web Services) endpoint.
      * Depending on the value of the "request" query parameter, this method determines the desired operation.
@@ -294,13 +506,65 @@ public class OwsController {
      * @throws IOException if there is an issue reading or processing the script file.
      */
     public static Object execute(Connection connection, ScriptMetadata scriptMetadata, Map<String, Object> inputs) throws IOException {
-        File scriptFile = scriptMetadata.path.toFile();
-        GroovyShell shell = new GroovyShell();
-        Script script = shell.parse(scriptFile);
+        Script script = ScriptClassCache.getInstance().createScript(scriptMetadata.path);
 
         return script.invokeMethod("exec", new Object[]{connection, inputs});
     }
 
+    /**
+     * Predict the duration and peak memory of a process before submitting it. The process inputs are given as query
+     * parameters, the input tables are read from the user database.
+     * Responds a JSON document with the number of past runs used (samples), the duration in milliseconds with its
+     * range (durationLow, durationHigh, -1 if unknown) and the peak heap memory in MB (-1 if unknown).
+     * @param ctx web context
+     */
+    public void jobEstimate(Context ctx) {
+        String processId = ctx.pathParam("process_id");
+        Optional<ScriptMetadata> scriptMetadata = scriptRegistry.getSnapshot().find(processId);
+        if (scriptMetadata.isEmpty()) {
+            ctx.status(404).result("Unknown process " + processId);
+            return;
+        }
+        if (!scriptMetadata.get().cost.declared) {
+            ctx.status(400).result("The process " + processId + " does not declare its cost inputs");
+            return;
+        }
+        Map<String, Object> inputs = new HashMap<>();
+        ctx.queryParamMap().forEach((name, values) -> {
+            if (!values.isEmpty()) {
+                inputs.put(name, values.get(0));
+            }
+        });
+        try {
+            int userId = JavalinJWT.getUserIdentifierFromContext(ctx, provider);
+            int jobUserId = userId > 0 ? userId : 1; // user may not be logged in
+            Map<String, Double> features;
+            try (Connection userConnection = fetchUserDataSource(jobUserId).getConnection()) {
+                features = JobCostEstimator.extractFeatures(userConnection, scriptMetadata.get(), inputs);
+            }
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("process", processId);
+            response.put("features", features);
+            try (Connection connection = serverDataSource.getConnection()) {
+                JobCostEstimator.Estimate estimate = JobCostEstimator.estimate(connection, processId, features);
+                response.put("samples", estimate != null ? estimate.samples : 0);
+                if (estimate != null) {
+                    response.put("duration", estimate.duration);
+                    response.put("durationText", StringUtilities.durationToString(
+                            Duration.ofMillis(estimate.duration)));
+                    response.put("durationLow", estimate.durationLow);
+                    response.put("durationHigh", estimate.durationHigh);
+                    response.put("peakHeap", estimate.peakHeap);
+                    response.put("peakHeapHigh", estimate.peakHeapHigh);
+                }
+            }
+            ctx.contentType("application/json").result(JsonOutput.toJson(response));
+        } catch (SQLException e) {
+            logger.error(e.getLocalizedMessage(), e);
+            throw new InternalServerErrorResponse();
+        }
+    }
+
     /**
      * Render job list HTML page
      * @param ctx web context
@@ -312,18 +576,60 @@ public class OwsController {
             if(user != null && !user.isAdministrator()) {
                 userIdFilter = user.getIdentifier();
             }
-            ctx.render("job_list", Map.of("jobs", DatabaseManagement.getJobs(connection, userIdFilter)));
+            List<Map<String, Object>> jobs = DatabaseManagement.getJobs(connection, userIdFilter);
+            // The running jobs progression may not be written yet
+            jobStateStore.applyLiveValues(jobs);
+            ctx.render("job_list", Map.of("jobs", jobs,
+                    "queues", getQueueStatistics(connection, userIdFilter),
+                    "memoization", DatabaseManagement.getJobMemoStatistics(connection, userIdFilter)));
         } catch (SQLException e) {
             logger.error(e.getLocalizedMessage(), e);
             throw new InternalServerErrorResponse();
         }
     }
 
+    /**
+     * Fetch the job queue state of each user
+     * @param connection Server database connection
+     * @param userIdFilter If > 0, only return the statistics of this user
+     * @return Rows with the user email, the number of queued and running jobs, the user weight and the waiting times
+     * @throws SQLException If the users can not be read
+     */
+    private List<Map<String, Object>> getQueueStatistics(Connection connection, int userIdFilter) throws SQLException {
+        Map<Integer, String> emails = new HashMap<>();
+        for (User user : DatabaseManagement.getUsers(connection)) {
+            emails.put(user.getIdentifier(), user.getEmail());
+        }
+        List<Map<String, Object>> queues = new ArrayList<>();
+        for (Map<String, Object> row : jobExecutorService.getUserQueueStatistics()) {
+            int userId = (Integer) row.get("userId");
+            if (userIdFilter > 0 && userId != userIdFilter) {
+                continue;
+            }
+            row.put("email", emails.getOrDefault(userId, String.valueOf(userId)));
+            row.put("oldestWait", StringUtilities.durationToString(Duration.ofMillis((Long) row.get("oldestWait"))));
+            row.put("meanWait", StringUtilities.durationToString(Duration.ofMillis((Long) row.get("meanWait"))));
+            queues.add(row);
+        }
+        return queues;
+    }
+
     /**
      * Handles an HTTP POST request for a Web Processing Service (WPS) operation.
      * This method parses the request body, validates the WPS Execute Request, identifies
-     * the target script to execute based on its process identifier, and executes the script.
-     * The result of the script execution is returned as a JSON response.
+     * the target script to execute based on its process identifier, and queues the job.
+     * <p>
+     * The body is read as a stream, the ComplexData inputs are imported into tables of the user database while being
+     * read and the script receives the table names. The Reference inputs are then downloaded and imported in the same
+     * way by the {@link #REFERENCE_DOWNLOAD_THREADS} download threads, without holding a server thread. These tables
+     * are removed at the job end.
+     * </p>
+     * <p>
+     * If the request asks for a stored response document ({@code storeExecuteResponse="true"}) an ExecuteResponse
+     * with the statusLocation of the job is returned immediately. Otherwise, the request waits for the job end
+     * without holding a server thread, up to {@link #JOB_EXECUTION_TIMEOUT_MS}. Then a raw output request gets a link
+     * to the job logs and a response document request gets the ExecuteResponse with the statusLocation.
+     * </p>
      * Responds with appropriate HTTP status codes for invalid requests, missing scripts,
      * and internal server errors.
      *
@@ -331,72 +637,295 @@ public class OwsController {
      *            response handling, and the ability to set status codes and send JSON responses
      */
     public void handleWPSPost(Context ctx) {
+        String requestDescription = "";
         try {
             int userId = JavalinJWT.getUserIdentifierFromContext(ctx, provider);
-            Parser parser = new Parser(new WPSConfiguration());
-            Object parsed = parser.parse(new ByteArrayInputStream(ctx.bodyAsBytes()));
-
-            if (!(parsed instanceof ExecuteType)) {
-                ctx.status(400).result("WPS request not valid");
+            int jobUserId = userId > 0 ? userId : 1; // user may not be logged in
+            DataSource userDataSource = fetchUserDataSource(jobUserId);
+            WpsExecuteReader executeReader = new WpsExecuteReader(userDataSource,
+                    configuration.getExecuteInputDirectory(),
+                    new ReferenceDownloader(configuration.getReferenceHosts()));
+            WpsExecuteReader.ExecuteRequest execute;
+            try (InputStream body = ctx.bodyInputStream()) {
+                execute = executeReader.read(body);
+            } catch (IllegalArgumentException | XMLStreamException e) {
+                logger.warn("WPS request not valid", e);
+                ctx.status(400).result("WPS request not valid: " + e.getLocalizedMessage());
                 return;
             }
+            requestDescription = execute.toString();
+            if (execute.references.isEmpty()) {
+                ctx.future(() -> submitExecute(ctx, jobUserId, userDataSource, executeReader, execute));
+                return;
+            }
+            // The references may be long to download, they are imported without holding a server thread
+            String body = requestDescription;
+            ctx.future(() -> CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return executeReader.importReferences(execute);
+                        } catch (IOException | SQLException e) {
+                            throw new CompletionException(e);
+                        }
+                    }, referenceDownloads)
+                    .thenCompose(imported -> submitExecute(ctx, jobUserId, userDataSource, executeReader, imported))
+                    .exceptionally(throwable -> {
+                        Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                        if (cause instanceof IllegalArgumentException) {
+                            logger.warn("WPS request not valid", cause);
+                            ctx.status(400).result("WPS request not valid: " + cause.getLocalizedMessage());
+                        } else {
+                            returnExecuteError(ctx, cause, body);
+                        }
+                        return null;
+                    }));
+        } catch (Exception e) {
+            returnExecuteError(ctx, e, requestDescription);
+        }
+    }
 
-            ExecuteType execute = (ExecuteType) parsed;
-            String processId = execute.getIdentifier().getValue();
-
-            String[] parts = processId.split(":");
+    /**
+     * Queue the job of an Execute request whose inputs are all imported
+     * @return Completed once the response is set, when the job ends or immediately for a stored response document
+     */
+    private CompletableFuture<Object> submitExecute(Context ctx, int jobUserId, DataSource userDataSource,
+                                                    WpsExecuteReader executeReader,
+                                                    WpsExecuteReader.ExecuteRequest execute) {
+        String requestDescription = execute.toString();
+        try {
+            String[] parts = execute.processId.split(":");
             if (parts.length != 2) {
+                executeReader.dropTables(execute.inputTables);
                 ctx.status(400).result("Invalid process ID");
-                return;
+                return CompletableFuture.completedFuture(null);
             }
 
             String group = parts[0];
             String scriptName = parts[1];
 
             // Fetch expected script
-            Optional<ScriptMetadata> optionalScriptMetadata = wpsScripts.stream()
-                    .filter(sw -> sw.id.equals(group + ":" + scriptName))
-                    .findFirst();
+            Optional<ScriptMetadata> optionalScriptMetadata = scriptRegistry.getSnapshot()
+                    .find(group + ":" + scriptName);
 
             if (optionalScriptMetadata.isEmpty()) {
+                executeReader.dropTables(execute.inputTables);
                 returnExceptionDocument(ctx, new IllegalArgumentException("Invalid script name: " + scriptName));
-                return;
+                return CompletableFuture.completedFuture(null);
             }
             ScriptMetadata scriptMetadata = optionalScriptMetadata.get();
-            Map<String, Object> inputs = ScriptMetadata.extractInputs(execute);
-            int jobUserId = userId > 0 ? userId : 1; // user may not be logged in
-            Job<Object> job = new Job<>(jobUserId, scriptMetadata, serverDataSource,
-                    fetchUserDataSource(jobUserId), inputs, configuration);
-            Future<Object> result = jobExecutorService.submitJob(job);
-            try {
-                Object jobResult = result.get(JOB_EXECUTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-                if(jobResult instanceof Map<?, ?> && ((Map<?, ?>) jobResult).containsKey("result")) {
-                    ctx.result(((Map<?, ?>) jobResult).get("result").toString());
-                } else {
-                    ctx.result(jobResult.toString());
+            Job<Object> job = new Job<>(jobUserId, scriptMetadata, serverDataSource, jobStateStore,
+                    userDataSource, new HashMap<>(execute.inputs), configuration);
+            // The complex inputs tables are only needed by this job, they are kept in the job row in order to be
+            // removed even if the server restarts before the job end
+            if (!execute.inputTables.isEmpty()) {
+                try (Connection connection = serverDataSource.getConnection()) {
+                    DatabaseManagement.setJobInputTables(connection, job.getId(), execute.inputTables);
                 }
-            } catch (TimeoutException e) {
-                String url = ctx.contextPath() + "/job_logs/" + job.getId();
-                ctx.result(String.format(
-                        "Long running process, <a href=\"%s\" target=\"_blank\">please look at the job (id: %d)</a> output logs",
-                        url,
-                        job.getId()));
             }
+            job.getCompletion().whenComplete((jobResult, throwable) ->
+                    dropJobInputTables(job.getId(), jobUserId, execute.inputTables));
+            submitJob(job);
+            boolean responseDocument = execute.responseDocument;
+            if (responseDocument && execute.storeExecuteResponse) {
+                // Asynchronous execution, the client polls the statusLocation
+                ctx.contentType("text/xml; charset=UTF-8");
+                ctx.result(generateJobStatusDocument(job.getId()));
+                return CompletableFuture.completedFuture(null);
+            }
+            String body = requestDescription;
+            return job.getCompletion().copy()
+                    .orTimeout(JOB_EXECUTION_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .handle((jobResult, throwable) -> {
+                        Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                        try {
+                            if (responseDocument) {
+                                ctx.contentType("text/xml; charset=UTF-8");
+                                ctx.result(generateJobStatusDocument(job.getId()));
+                            } else if (cause instanceof TimeoutException) {
+                                String url = ctx.contextPath() + "/job_logs/" + job.getId();
+                                ctx.result(String.format(
+                                        "Long running process, <a href=\"%s\" target=\"_blank\">please look at the job (id: %d)</a> output logs",
+                                        url,
+                                        job.getId()));
+                            } else if (cause != null) {
+                                returnExecuteError(ctx, cause, body);
+                            } else {
+                                ctx.result(Job.getResultString(jobResult));
+                            }
+                        } catch (SQLException e) {
+                            logger.error(e.getLocalizedMessage(), e);
+                            returnExecuteError(ctx, e, body);
+                        }
+                        return null;
+                    });
         } catch (Exception e) {
-            logger.error("Error executing WPS {}", ctx.body(), e);
-            // If error occurred inside the future, unwrap the ExecutionException
-            String stackTrace = Logging.formatThrowableAsHtml(e);
-            String html = MessageFormat.format("<html><head>    <style>        body '{' font-family: Arial; margin: " +
-                    "20px; '}'        .section '{' margin-bottom: 20px; '}'        .title '{' font-size: 20px; " +
-                    "font-weight: bold; margin-bottom: 5px; color:#b30000; '}'        .box '{' border: 1px solid " +
-                    "#ccc; padding: 10px; background:#fafafa; '}'        .error '{' color: #b30000; font-weight: " +
-                    "bold; '}'    </style></head><body>    <div class=''section''>        <div class=''title''>Error:" +
-                    " </div>        <div class=''box''><span class=''error''>{0}</span></div>    </div>    <div " +
-                    "class=''section''>        <div class=''title''>Inputs Data</div>        <div " +
-                    "class=''box''>{1}</div>    </div></body></html>", stackTrace, escapeHtml(ctx.body()));
+            returnExecuteError(ctx, e, requestDescription);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Render the error of a WPS Execute request
+     * @param ctx the context of the HTTP request
+     * @param e Error
+     * @param body Summary of the Execute request, process identifier and inputs
+     */
+    private void returnExecuteError(Context ctx, Throwable e, String body) {
+        logger.error("Error executing WPS {}", body, e);
+        // If error occurred inside the future, unwrap the ExecutionException
+        String stackTrace = Logging.formatThrowableAsHtml(e);
+        String html = MessageFormat.format("<html><head>    <style>        body '{' font-family: Arial; margin: " +
+                "20px; '}'        .section '{' margin-bottom: 20px; '}'        .title '{' font-size: 20px; " +
+                "font-weight: bold; margin-bottom: 5px; color:#b30000; '}'        .box '{' border: 1px solid " +
+                "#ccc; padding: 10px; background:#fafafa; '}'        .error '{' color: #b30000; font-weight: " +
+                "bold; '}'    </style></head><body>    <div class=''section''>        <div class=''title''>Error:" +
+                " </div>        <div class=''box''><span class=''error''>{0}</span></div>    </div>    <div " +
+                "class=''section''>        <div class=''title''>Inputs Data</div>        <div " +
+                "class=''box''>{1}</div>    </div></body></html>", stackTrace, escapeHtml(body));
+
+        ctx.contentType("text/html; charset=UTF-8");
+        ctx.result(html);
+    }
+
+    /**
+     * @return Url of the WPS service, the job status documents are available at this url + /status/{job_id}
+     */
+    private String getServiceUrl() {
+        return configuration.getWebSiteFullUrl() + "/builder/ows";
+    }
+
+    /**
+     * Build the WPS ExecuteResponse of a job from its state stored in the database
+     * @param jobId Job identifier
+     * @return ExecuteResponse XML document
+     * @throws SQLException If the job can not be read
+     */
+    private String generateJobStatusDocument(int jobId) throws SQLException {
+        try (Connection connection = serverDataSource.getConnection()) {
+            return generateJobStatusDocument(connection, jobId, DatabaseManagement.getJob(connection, jobId));
+        }
+    }
+
+    private String generateJobStatusDocument(Connection connection, int jobId, Map<String, Object> jobData)
+            throws SQLException {
+        JobStates jobState = JobStates.valueOf((String) jobData.get("status"));
+        String scriptId = (String) jobData.get("script");
+        ScriptMetadata scriptMetadata = scriptRegistry.getSnapshot().find(scriptId)
+                .orElseThrow(() -> new IllegalArgumentException("Invalid script name: " + scriptId));
+        String result = jobState == JobStates.COMPLETED || jobState == JobStates.FAILED ?
+                DatabaseManagement.getJobResult(connection, jobId) : null;
+        return WpsScriptWrapper.generateExecuteResponseXML(scriptMetadata, jobId, jobState,
+                (Integer) jobData.get("percentCompleted"), result, getServiceUrl());
+    }
+
+    /**
+     * Fetch the job data of the job_id path parameter, checking that the user can read this job
+     * @param ctx the context of the HTTP request
+     * @param connection Server database connection
+     * @return Job data or null if the job does not exists or belongs to another user, the response status is set
+     * @throws SQLException If the job can not be read
+     */
+    private Map<String, Object> fetchWpsJob(Context ctx, Connection connection) throws SQLException {
+        int jobId;
+        try {
+            jobId = Integer.parseInt(ctx.pathParam("job_id"));
+        } catch (NumberFormatException ex) {
+            ctx.status(400).result("<ows:Exception>Wrong job id parameter</ows:Exception>");
+            return null;
+        }
+        Map<String, Object> jobData = DatabaseManagement.getJob(connection, jobId);
+        User user = ctx.attribute("user");
+        if (jobData.isEmpty()) {
+            ctx.status(404).result("<ows:Exception>Job not found: " + jobId + "</ows:Exception>");
+            return null;
+        }
+        if (user != null && !user.isAdministrator() && user.getIdentifier() != (Integer) jobData.get("userId")) {
+            ctx.status(403).result("<ows:Exception>This job does not belong to you</ows:Exception>");
+            return null;
+        }
+        return jobData;
+    }
+
+    /**
+     * WPS statusLocation of a job, return the ExecuteResponse document with the job state and progression, and the
+     * job output when the job is completed.
+     * @param ctx the context of the HTTP request, with the job_id path parameter
+     */
+    public void jobStatus(@NotNull Context ctx) {
+        ctx.contentType("text/xml; charset=UTF-8");
+        try (Connection connection = serverDataSource.getConnection()) {
+            Map<String, Object> jobData = fetchWpsJob(ctx, connection);
+            if (jobData != null) {
+                ctx.result(generateJobStatusDocument(connection, (Integer) jobData.get("id"), jobData));
+            }
+        } catch (SQLException | IllegalArgumentException e) {
+            logger.error(e.getLocalizedMessage(), e);
+            try {
+                returnExceptionDocument(ctx, e);
+            } catch (IOException ex) {
+                logger.error("Error generating error document", ex);
+            }
+        }
+    }
 
-            ctx.contentType("text/html; charset=UTF-8");
-            ctx.result(html);
+    /**
+     * Return the raw output of a completed job, as a synchronous Execute request with RawDataOutput would do.
+     * Respond with HTTP 409 (Conflict) if the job is not completed.
+     * @param ctx the context of the HTTP request, with the job_id path parameter
+     */
+    public void jobResult(@NotNull Context ctx) {
+        try (Connection connection = serverDataSource.getConnection()) {
+            Map<String, Object> jobData = fetchWpsJob(ctx, connection);
+            if (jobData == null) {
+                ctx.contentType("text/xml; charset=UTF-8");
+                return;
+            }
+            if (!JobStates.COMPLETED.name().equals(jobData.get("status"))) {
+                ctx.status(409).result("Job " + jobData.get("id") + " is " + jobData.get("status"));
+                return;
+            }
+            String result = DatabaseManagement.getJobResult(connection, (Integer) jobData.get("id"));
+            ctx.result(result != null ? result : "");
+        } catch (SQLException e) {
+            logger.error(e.getLocalizedMessage(), e);
+            throw new InternalServerErrorResponse();
+        }
+    }
+
+    /**
+     * Stream the features of a table of the user database as GeoJSON in WGS84, written while the rows are read.
+     * The optional bbox query parameter (minX,minY,maxX,maxY in WGS84) keeps only the intersecting features and the
+     * optional zoom query parameter simplifies the geometries to the size of a pixel at this web map zoom level.
+     * @param ctx the context of the HTTP request, with the table_name path parameter
+     */
+    public void tableGeoJson(@NotNull Context ctx) {
+        int userId = JavalinJWT.getUserIdentifierFromContext(ctx, provider);
+        int dataUserId = userId > 0 ? userId : 1; // user may not be logged in
+        try (Connection connection = fetchUserDataSource(dataUserId).getConnection()) {
+            GeoJsonTableWriter geoJsonTableWriter;
+            try {
+                geoJsonTableWriter = new GeoJsonTableWriter(connection, ctx.pathParam("table_name"));
+                geoJsonTableWriter.setBoundingBox(GeoJsonTableWriter.parseBoundingBox(ctx.queryParam("bbox")));
+                String zoom = ctx.queryParam("zoom");
+                if (zoom != null && !zoom.isBlank()) {
+                    geoJsonTableWriter.setTolerance(GeoJsonTableWriter.toleranceForZoom(Integer.parseInt(zoom.trim())));
+                }
+            } catch (SQLException e) {
+                ctx.status(HttpStatus.NOT_FOUND).result(e.getLocalizedMessage());
+                return;
+            } catch (IllegalArgumentException e) {
+                ctx.status(HttpStatus.BAD_REQUEST).result(e.getLocalizedMessage());
+                return;
+            }
+            ctx.contentType("application/geo+json; charset=UTF-8");
+            // No content length, the response is sent in chunks while the features are written
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(ctx.outputStream(),
+                    StandardCharsets.UTF_8), 64 * 1024)) {
+                long featureCount = geoJsonTableWriter.write(writer);
+                logger.info("{} features of the table {} sent as GeoJSON", featureCount, ctx.pathParam("table_name"));
+            }
+        } catch (SQLException | IOException e) {
+            logger.error(e.getLocalizedMessage(), e);
+            throw new InternalServerErrorResponse();
         }
     }
 
@@ -411,10 +940,11 @@ public class OwsController {
         if (dataSource == null) {
             dataSource = DatabaseManagement.createH2DataSource(
                 configuration.getWorkingDirectory(), getUserDatabaseName(userId),
-                "sa",
-                "sa",
+                configuration.getDatabaseUser(),
+                configuration.getDatabasePassword(),
                 "",
-                true);
+                true,
+                configuration.isJobProcess());
             userDataSources.put(userId, dataSource);
         }
         return dataSource;
@@ -560,7 +1090,10 @@ public class OwsController {
                 if(hasUnauthorizedJobAccess(ctx, user, jobData)) {
                     return;
                 }
-                if(!jobExecutorService.cancelJob(jobId, DEFAULT_ABORT_JOB_DELAY)) {
+                if(configuration.isRemoteJobs()) {
+                    // The worker node running the job will stop it
+                    DatabaseManagement.requestJobCancel(connection, jobId);
+                } else if(!jobExecutorService.cancelJob(jobId, DEFAULT_ABORT_JOB_DELAY)) {
                     // Can't find the job, set it in error to be able to remove it
                     DatabaseManagement.setJobState(connection, jobId, JobStates.FAILED.name());
                 }
@@ -678,6 +1211,39 @@ public class OwsController {
         }
     }
 
+    /**
+     * Push the progression of the jobs visible by the logged user to the job list page
+     *
+     * @param ctx the WebSocket connection context that contains the connection details and user session data.
+     */
+    public void jobsStreamOnConnect(WsConnectContext ctx) {
+        User user = ctx.attribute("user");
+        jobProgressBroadcaster.subscribe(ctx, user);
+    }
+
+    /**
+     * Stop pushing the job progressions to a closed job list page
+     *
+     * @param ctx the WebSocket context of the closed connection
+     */
+    public void jobsStreamOnClose(WsContext ctx) {
+        jobProgressBroadcaster.unsubscribe(ctx);
+    }
+
+    /**
+     * Stop the job workers, queued jobs will be restored on the next start
+     */
+    public void shutdown() {
+        if (remoteJobWatcher != null) {
+            remoteJobWatcher.shutdownNow();
+        }
+        referenceDownloads.shutdownNow();
+        jobExecutorService.shutdown();
+        jobProgressBroadcaster.shutdown();
+        jobStateStore.shutdown();
+        scriptRegistry.close();
+    }
+
     public void closeDataBaseDataSources() {
         userDataSources.forEach((userId, dataSource) -> {
             if(dataSource instanceof AutoCloseable) {
@@ -344,7 +344,28 @@ public class UserController {
                     }
                     User updatedUser = new User(user.getIdentifier(), email, roles, token);
                     DatabaseManagement.updateUserAttributes(connection, updatedUser);
-                    messages.add("User " + email + " successfully updated");
+                    // Job scheduling settings, empty fields use the default values
+                    boolean validShare;
+                    try {
+                        String weight = Optional.ofNullable(ctx.formParam("JOB_WEIGHT")).orElse("").trim();
+                        String maximumRunningJobs = Optional.ofNullable(ctx.formParam("MAX_RUNNING_JOBS"))
+                                .orElse("").trim();
+                        Double jobWeight = weight.isEmpty() ? null : Double.parseDouble(weight);
+                        Integer jobLimit = maximumRunningJobs.isEmpty() ? null : Integer.parseInt(maximumRunningJobs);
+                        validShare = (jobWeight == null || jobWeight > 0 && !jobWeight.isInfinite()) &&
+                                (jobLimit == null || jobLimit >= 0);
+                        if (validShare) {
+                            DatabaseManagement.updateUserShare(connection, user.getIdentifier(), jobWeight, jobLimit);
+                        }
+                    } catch (NumberFormatException ex) {
+                        validShare = false;
+                    }
+                    if (validShare) {
+                        messages.add("User " + email + " successfully updated");
+                    } else {
+                        messages.add("User " + email + " updated but the job scheduling settings are invalid, " +
+                                "they have not been changed");
+                    }
                     user = updatedUser;
                 }
             }
@@ -359,6 +380,7 @@ public class UserController {
                 }
             }
             userFields.put("groups", groups);
+            userFields.putAll(DatabaseManagement.getUserShareSettings(connection, user.getIdentifier()));
             userFields.put("messages", messages);
             userFields.put("deletable", user.getIdentifier() > 1);
             ctx.render("user_edit", userFields);
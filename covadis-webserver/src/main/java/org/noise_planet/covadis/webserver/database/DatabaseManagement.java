@@ -12,12 +12,16 @@ package org.noise_planet.covadis.webserver.database;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import org.h2.api.ErrorCode;
 import org.h2gis.functions.factory.H2GISDBFactory;
 import org.h2gis.functions.factory.H2GISFunctions;
 import org.h2gis.utilities.JDBCUtilities;
 import org.jetbrains.annotations.NotNull;
 import org.noise_planet.covadis.webserver.Configuration;
+import org.noise_planet.covadis.webserver.script.JobCostEstimator;
+import org.noise_planet.covadis.webserver.script.JobStateStore;
 import org.noise_planet.covadis.webserver.script.JobStates;
+import org.noise_planet.covadis.webserver.script.UserShare;
 import org.noise_planet.covadis.webserver.secure.JWTProviderFactory;
 import org.noise_planet.covadis.webserver.secure.Role;
 import org.noise_planet.covadis.webserver.secure.User;
@@ -33,14 +37,17 @@ import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.time.Duration;
 import java.util.*;
+import java.util.function.Predicate;
 
 /**
  * Handle the creation of datasource according to application configuration
  * The Model of the Web Server
  */
 public class DatabaseManagement {
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 9;
     public static final String ADMIN_EMAIL = "admin@localhost";
+    /** Number of queued jobs read at once by a worker node looking for a job to claim */
+    private static final int CLAIM_CANDIDATES = 20;
 
     /**
      * Create H2Database datasource
@@ -56,19 +63,170 @@ public class DatabaseManagement {
     public static HikariDataSource createH2DataSource(String databaseDirectory, String databaseName, String userName,
                                                       String userPassword, String secureBaseEncryptionSecret,
                                                       boolean initializeSpatial) throws SQLException {
-        HikariConfig config = new HikariConfig();
+        return createH2DataSource(databaseDirectory, databaseName, userName, userPassword, secureBaseEncryptionSecret,
+                initializeSpatial, false);
+    }
 
+    /**
+     * Create H2Database datasource
+     * @param databaseDirectory Where to store the database
+     * @param databaseName Name of the database
+     * @param userName Admin username
+     * @param userPassword Admin password
+     * @param secureBaseEncryptionSecret Encryption database password, optional (empty)
+     * @param initializeSpatial If true initialize H2GIS
+     * @param autoServer If true other processes (ex. job worker processes) can open the database at the same time
+     * @return DataSource instance
+     * @throws SQLException If something wrong happened
+     */
+    public static HikariDataSource createH2DataSource(String databaseDirectory, String databaseName, String userName,
+                                                      String userPassword, String secureBaseEncryptionSecret,
+                                                      boolean initializeSpatial, boolean autoServer) throws SQLException {
         StringBuilder connectionUrl = getConnectionUrl(databaseDirectory, databaseName,
                 !secureBaseEncryptionSecret.isEmpty());
+        if (autoServer) {
+            connectionUrl.append(";AUTO_SERVER=TRUE");
+        }
+        return createH2DataSource(connectionUrl.toString(), userName, userPassword, secureBaseEncryptionSecret,
+                initializeSpatial);
+    }
 
+    /**
+     * Replace the default credentials of the databases created before the credentials were configurable. This is
+     * an upgrade step run only when the migrate-database-credentials option is given, the databases must not be
+     * open. The configured user becomes an admin of each database and the password of the default user is set to
+     * the configured password, so it can still be used to open the databases.
+     * @param databaseDirectory Directory of the server, user and campaign databases
+     * @param userName Configured admin username
+     * @param userPassword Configured admin password
+     * @param serverEncryptionSecret Encryption password of the server database, optional (empty)
+     * @return Name of the migrated databases
+     * @throws SQLException If a database can not be opened with the configured nor the default credentials
+     */
+    public static List<String> migrateDefaultCredentials(String databaseDirectory, String userName,
+                                                         String userPassword, String serverEncryptionSecret)
+            throws SQLException {
+        Logger logger = LoggerFactory.getLogger(DatabaseManagement.class);
+        List<String> migrated = new ArrayList<>();
+        if (Configuration.DEFAULT_DATABASE_USER.equalsIgnoreCase(userName) &&
+                Configuration.DEFAULT_DATABASE_PASSWORD.equals(userPassword)) {
+            logger.warn("The database credentials are the default ones, set the database-user and " +
+                    "database-password options to migrate the databases");
+            return migrated;
+        }
+        File[] databaseFiles = new File(databaseDirectory).listFiles((dir, name) -> name.endsWith(".mv.db"));
+        if (databaseFiles == null) {
+            return migrated;
+        }
+        Arrays.sort(databaseFiles);
+        for (File databaseFile : databaseFiles) {
+            String databaseName = databaseFile.getName().substring(0,
+                    databaseFile.getName().length() - ".mv.db".length());
+            String encryptionSecret = "server".equals(databaseName) ? serverEncryptionSecret : "";
+            String connectionUrl = getConnectionUrl(databaseDirectory, databaseName,
+                    !encryptionSecret.isEmpty()).toString();
+            if (updateDefaultCredentials(connectionUrl, userName, userPassword, encryptionSecret)) {
+                logger.info("Default credentials of the {} database replaced by the {} user, the {} user password" +
+                        " is now the configured database password", databaseName, userName,
+                        Configuration.DEFAULT_DATABASE_USER);
+                migrated.add(databaseName);
+            }
+        }
+        logger.info("{}/{} database(s) migrated to the configured credentials", migrated.size(),
+                databaseFiles.length);
+        return migrated;
+    }
+
+    private static javax.sql.DataSource createRawDataSource(String connectionUrl, String userName,
+                                                            String userPassword, String secureBaseEncryptionSecret) {
         Properties properties = new Properties();
-        properties.setProperty(H2GISDBFactory.JDBC_URL, connectionUrl.toString());
+        properties.setProperty(H2GISDBFactory.JDBC_URL, connectionUrl);
         properties.setProperty(H2GISDBFactory.JDBC_USER, userName);
         properties.setProperty(H2GISDBFactory.JDBC_PASSWORD,
                 secureBaseEncryptionSecret.isEmpty() ? userPassword : secureBaseEncryptionSecret + " " + userPassword);
+        return H2GISDBFactory.createDataSource(properties);
+    }
+
+    /**
+     * The databases created before the credentials were configurable use the default ones. If the configured
+     * credentials are refused, the default credentials are replaced by the configured ones.
+     * @param connectionUrl Local database location
+     * @param userName Configured admin username
+     * @param userPassword Configured admin password
+     * @param secureBaseEncryptionSecret Encryption database password, optional (empty)
+     * @return True if the credentials have been replaced
+     * @throws SQLException If the database can not be opened with the configured nor the default credentials
+     */
+    private static boolean updateDefaultCredentials(String connectionUrl, String userName, String userPassword,
+                                                 String secureBaseEncryptionSecret) throws SQLException {
+        boolean sameUser = Configuration.DEFAULT_DATABASE_USER.equalsIgnoreCase(userName);
+        if (sameUser && Configuration.DEFAULT_DATABASE_PASSWORD.equals(userPassword)) {
+            return false;
+        }
+        try (Connection ignored = createRawDataSource(connectionUrl, userName, userPassword,
+                secureBaseEncryptionSecret).getConnection()) {
+            return false;
+        } catch (SQLException ex) {
+            if (ex.getErrorCode() != ErrorCode.WRONG_USER_OR_PASSWORD) {
+                throw ex;
+            }
+        }
+        String user = "\"" + userName.toUpperCase(Locale.ROOT).replace("\"", "\"\"") + "\"";
+        String password = "'" + userPassword.replace("'", "''") + "'";
+        try (Connection connection = createRawDataSource(connectionUrl, Configuration.DEFAULT_DATABASE_USER,
+                Configuration.DEFAULT_DATABASE_PASSWORD, secureBaseEncryptionSecret).getConnection();
+             Statement st = connection.createStatement()) {
+            if (sameUser) {
+                st.execute("ALTER USER " + user + " SET PASSWORD " + password);
+            } else {
+                st.execute("CREATE USER IF NOT EXISTS " + user + " PASSWORD " + password + " ADMIN");
+            }
+        }
+        if (!sameUser) {
+            try (Connection connection = createRawDataSource(connectionUrl, userName, userPassword,
+                    secureBaseEncryptionSecret).getConnection();
+                 Statement st = connection.createStatement()) {
+                // The default user may own the schemas, it is kept with the configured password
+                st.execute("ALTER USER \"" + Configuration.DEFAULT_DATABASE_USER.toUpperCase(Locale.ROOT) +
+                        "\" SET PASSWORD " + password);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Create H2Database datasource connected to a database served by a H2 TCP server (ex. worker nodes)
+     * @param databaseServer H2 TCP server location, ex. tcp://localhost:9092
+     * @param databaseName Name of the database, relative to the base directory of the TCP server
+     * @param userName Admin username
+     * @param userPassword Admin password
+     * @param secureBaseEncryptionSecret Encryption database password, optional (empty)
+     * @param initializeSpatial If true initialize H2GIS
+     * @return DataSource instance
+     * @throws SQLException If something wrong happened
+     */
+    public static HikariDataSource createRemoteH2DataSource(String databaseServer, String databaseName,
+                                                            String userName, String userPassword,
+                                                            String secureBaseEncryptionSecret,
+                                                            boolean initializeSpatial) throws SQLException {
+        StringBuilder connectionUrl = new StringBuilder(H2GISDBFactory.START_URL);
+        connectionUrl.append(databaseServer);
+        if (!databaseServer.endsWith("/")) {
+            connectionUrl.append("/");
+        }
+        connectionUrl.append(databaseName);
+        if (!secureBaseEncryptionSecret.isEmpty()) {
+            connectionUrl.append(";CIPHER=AES");
+        }
+        return createH2DataSource(connectionUrl.toString(), userName, userPassword, secureBaseEncryptionSecret,
+                initializeSpatial);
+    }
 
-        javax.sql.DataSource h2DataSource = H2GISDBFactory.createDataSource(properties);
-        config.setDataSource(h2DataSource);
+    private static HikariDataSource createH2DataSource(String connectionUrl, String userName, String userPassword,
+                                                       String secureBaseEncryptionSecret,
+                                                       boolean initializeSpatial) throws SQLException {
+        HikariConfig config = new HikariConfig();
+        config.setDataSource(createRawDataSource(connectionUrl, userName, userPassword, secureBaseEncryptionSecret));
         HikariDataSource dataSource = new HikariDataSource(config);
         if (initializeSpatial) {
             // Init spatial ext
@@ -116,10 +274,9 @@ public class DatabaseManagement {
                 if (rs.next()) {
                     databaseVersion = rs.getInt("DATABASE_VERSION");
                 }
-                // In the future check databaseVersion for database upgrades
                 if (databaseVersion < DATABASE_VERSION) {
-                    // do upgrade
-                    st.executeUpdate("UPDATE ATTRIBUTES SET DATABASE_VERSION = " + databaseVersion);
+                    upgradeServerDataBaseStructure(connection, databaseVersion);
+                    st.executeUpdate("UPDATE ATTRIBUTES SET DATABASE_VERSION = " + DATABASE_VERSION);
                 } else if (databaseVersion > DATABASE_VERSION) {
                     throw new IllegalStateException(
                             String.format("Database more recent than application version %d > %d",
@@ -171,7 +328,9 @@ public class DatabaseManagement {
                         "  PK_USER SERIAL PRIMARY KEY," +
                         "  EMAIL VARCHAR UNIQUE," +
                         "  TOTP_TOKEN VARCHAR," +
-                        "  REGISTER_TOKEN VARCHAR" +
+                        "  REGISTER_TOKEN VARCHAR," +
+                        "  JOB_WEIGHT DOUBLE PRECISION," +
+                        "  MAX_RUNNING_JOBS INTEGER" +
                         ")"
         );
         st.executeUpdate(
@@ -190,14 +349,133 @@ public class DatabaseManagement {
                         "  SCRIPT_ID VARCHAR," +
                         "  PROGRESSION REAL," +
                         "  STATUS VARCHAR DEFAULT '"+ JobStates.QUEUED.name() +"'," +
-                        "  BEGIN_DATE TIMESTAMP WITHOUT TIME ZONE DEFAULT CURRENT_TIMESTAMP," +
+                        "  SUBMIT_DATE TIMESTAMP WITHOUT TIME ZONE DEFAULT CURRENT_TIMESTAMP," +
+                        "  BEGIN_DATE TIMESTAMP WITHOUT TIME ZONE," +
                         "  END_DATE TIMESTAMP WITHOUT TIME ZONE," +
+                        "  INPUTS VARCHAR," +
+                        "  RESULT VARCHAR," +
+                        "  WORKER_ID VARCHAR," +
+                        "  HEARTBEAT TIMESTAMP WITHOUT TIME ZONE," +
+                        "  MEMO_JOB INTEGER," +
+                        "  TIME_SAVED BIGINT," +
+                        "  COST_FEATURES VARCHAR," +
+                        "  PEAK_HEAP BIGINT," +
+                        "  ESTIMATED_DURATION BIGINT," +
+                        "  ESTIMATED_HEAP BIGINT," +
+                        "  INPUT_TABLES VARCHAR," +
                         "  FOREIGN KEY (PK_USER) " +
                         "    REFERENCES USERS(PK_USER) " +
                         "    ON DELETE CASCADE" +
                         ")"
         );
+        createJobMemosTable(st);
+        createCampaignTables(st);
+    }
 
+    /**
+     * Upgrade an existing server database to the structure expected by this version of the application
+     * @param connection SQL connection
+     * @param databaseVersion Version of the database found in the ATTRIBUTES table
+     * @throws SQLException If something wrong happened
+     */
+    private static void upgradeServerDataBaseStructure(Connection connection, int databaseVersion) throws SQLException {
+        try (Statement st = connection.createStatement()) {
+            if (databaseVersion < 2) {
+                // Jobs are now queued, the begin date is set when the job is really started
+                st.executeUpdate("ALTER TABLE JOBS ADD COLUMN IF NOT EXISTS SUBMIT_DATE TIMESTAMP WITHOUT TIME ZONE" +
+                        " DEFAULT CURRENT_TIMESTAMP");
+                st.executeUpdate("UPDATE JOBS SET SUBMIT_DATE = BEGIN_DATE");
+                st.executeUpdate("ALTER TABLE JOBS ALTER COLUMN BEGIN_DATE DROP DEFAULT");
+                st.executeUpdate("ALTER TABLE JOBS ADD COLUMN IF NOT EXISTS INPUTS VARCHAR");
+            }
+            if (databaseVersion < 3) {
+                // Fair-share scheduling settings, null values use the role defaults
+                st.executeUpdate("ALTER TABLE USERS ADD COLUMN IF NOT EXISTS JOB_WEIGHT DOUBLE PRECISION");
+                st.executeUpdate("ALTER TABLE USERS ADD COLUMN IF NOT EXISTS MAX_RUNNING_JOBS INTEGER");
+            }
+            if (databaseVersion < 4) {
+                // Result of the job kept for the WPS asynchronous execution
+                st.executeUpdate("ALTER TABLE JOBS ADD COLUMN IF NOT EXISTS RESULT VARCHAR");
+            }
+            if (databaseVersion < 5) {
+                // Jobs claimed by the worker nodes
+                st.executeUpdate("ALTER TABLE JOBS ADD COLUMN IF NOT EXISTS WORKER_ID VARCHAR");
+                st.executeUpdate("ALTER TABLE JOBS ADD COLUMN IF NOT EXISTS HEARTBEAT TIMESTAMP WITHOUT TIME ZONE");
+            }
+            if (databaseVersion < 6) {
+                // Memoization of the job results
+                st.executeUpdate("ALTER TABLE JOBS ADD COLUMN IF NOT EXISTS MEMO_JOB INTEGER");
+                st.executeUpdate("ALTER TABLE JOBS ADD COLUMN IF NOT EXISTS TIME_SAVED BIGINT");
+                createJobMemosTable(st);
+            }
+            if (databaseVersion < 7) {
+                // Cost features and measures of the jobs, used to predict the cost of the next jobs
+                st.executeUpdate("ALTER TABLE JOBS ADD COLUMN IF NOT EXISTS COST_FEATURES VARCHAR");
+                st.executeUpdate("ALTER TABLE JOBS ADD COLUMN IF NOT EXISTS PEAK_HEAP BIGINT");
+                st.executeUpdate("ALTER TABLE JOBS ADD COLUMN IF NOT EXISTS ESTIMATED_DURATION BIGINT");
+                st.executeUpdate("ALTER TABLE JOBS ADD COLUMN IF NOT EXISTS ESTIMATED_HEAP BIGINT");
+            }
+            if (databaseVersion < 8) {
+                // Campaigns of pipelines run on a list of departments
+                createCampaignTables(st);
+            }
+            if (databaseVersion < 9) {
+                // Tables of the WPS complex inputs, removed when the job ends
+                st.executeUpdate("ALTER TABLE JOBS ADD COLUMN IF NOT EXISTS INPUT_TABLES VARCHAR");
+            }
+        }
+    }
+
+    private static void createCampaignTables(Statement st) throws SQLException {
+        st.executeUpdate(
+                "CREATE TABLE IF NOT EXISTS CAMPAIGNS(" +
+                        "  PK_CAMPAIGN INTEGER AUTO_INCREMENT PRIMARY KEY," +
+                        "  PK_USER INTEGER," +
+                        "  NAME VARCHAR," +
+                        "  PIPELINE_FILE VARCHAR," +
+                        "  PARAMETERS VARCHAR," +
+                        "  CONCURRENCY INTEGER," +
+                        "  STATUS VARCHAR DEFAULT '" + JobStates.QUEUED.name() + "'," +
+                        "  SUBMIT_DATE TIMESTAMP WITHOUT TIME ZONE DEFAULT CURRENT_TIMESTAMP," +
+                        "  BEGIN_DATE TIMESTAMP WITHOUT TIME ZONE," +
+                        "  END_DATE TIMESTAMP WITHOUT TIME ZONE," +
+                        "  FOREIGN KEY (PK_USER) " +
+                        "    REFERENCES USERS(PK_USER) " +
+                        "    ON DELETE CASCADE" +
+                        ")");
+        st.executeUpdate(
+                "CREATE TABLE IF NOT EXISTS CAMPAIGN_DEPARTMENTS(" +
+                        "  PK_CAMPAIGN INTEGER," +
+                        "  INSEE_DEPARTMENT VARCHAR," +
+                        "  RANK INTEGER," +
+                        "  ESTIMATED_DURATION BIGINT," +
+                        "  STATUS VARCHAR DEFAULT '" + JobStates.QUEUED.name() + "'," +
+                        "  BEGIN_DATE TIMESTAMP WITHOUT TIME ZONE," +
+                        "  END_DATE TIMESTAMP WITHOUT TIME ZONE," +
+                        "  RESULT VARCHAR," +
+                        "  PRIMARY KEY (PK_CAMPAIGN, INSEE_DEPARTMENT)," +
+                        "  FOREIGN KEY (PK_CAMPAIGN) " +
+                        "    REFERENCES CAMPAIGNS(PK_CAMPAIGN) " +
+                        "    ON DELETE CASCADE" +
+                        ")");
+    }
+
+    private static void createJobMemosTable(Statement st) throws SQLException {
+        st.executeUpdate(
+                "CREATE TABLE IF NOT EXISTS JOB_MEMOS(" +
+                        "  MEMO_KEY VARCHAR PRIMARY KEY," +
+                        "  PK_USER INTEGER," +
+                        "  PK_JOB INTEGER," +
+                        "  RESULT VARCHAR," +
+                        "  OUTPUT_TABLES VARCHAR," +
+                        "  DURATION BIGINT," +
+                        "  HIT_COUNT INTEGER DEFAULT 0," +
+                        "  CREATION_DATE TIMESTAMP WITHOUT TIME ZONE DEFAULT CURRENT_TIMESTAMP," +
+                        "  FOREIGN KEY (PK_USER) " +
+                        "    REFERENCES USERS(PK_USER) " +
+                        "    ON DELETE CASCADE" +
+                        ")"
+        );
     }
 
     /**
@@ -450,13 +728,16 @@ public class DatabaseManagement {
      * Create a new job with the specified user and return the job identifier
      * @param connection SQL Connection
      * @param userIdentifier User identifier
+     * @param jobScript Script identifier
+     * @param jobInputs Script inputs serialized in JSON, used to restart the job after a server restart
      * @return Job identifier
      * @throws SQLException Error
      */
-    public static int createJob(Connection connection, int userIdentifier, String jobScript) throws SQLException {
-        PreparedStatement st = connection.prepareStatement("INSERT INTO JOBS (PK_USER, SCRIPT_ID) VALUES (?, ?)", Statement.RETURN_GENERATED_KEYS);
+    public static int createJob(Connection connection, int userIdentifier, String jobScript, String jobInputs) throws SQLException {
+        PreparedStatement st = connection.prepareStatement("INSERT INTO JOBS (PK_USER, SCRIPT_ID, INPUTS) VALUES (?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
         st.setInt(1, userIdentifier);
         st.setString(2, jobScript);
+        st.setString(3, jobInputs);
         int affectedRows = st.executeUpdate();
         if (affectedRows == 0) {
             throw new SQLException("Failed to create job.");
@@ -506,6 +787,578 @@ public class DatabaseManagement {
         st.execute();
     }
 
+    public static void setJobBeginTime(Connection connection, int jobId) throws SQLException {
+        PreparedStatement st = connection.prepareStatement("UPDATE JOBS SET BEGIN_DATE = ? WHERE PK_JOB = ?");
+        st.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+        st.setInt(2, jobId);
+        st.execute();
+    }
+
+    /**
+     * Write the pending changes of several jobs in a single batch. The status of a job canceled from the web
+     * interface is kept, the job may still report its start or its completion before handling the cancel request.
+     * @param connection SQL connection
+     * @param jobStates Changes of each job, the null values are not changed
+     * @throws SQLException If something wrong happened
+     */
+    public static void updateJobStates(Connection connection, Collection<JobStateStore.JobState> jobStates)
+            throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement("UPDATE JOBS SET" +
+                " STATUS = CASE WHEN STATUS = ? THEN STATUS ELSE COALESCE(?, STATUS) END," +
+                " PROGRESSION = COALESCE(?, PROGRESSION), BEGIN_DATE = COALESCE(?, BEGIN_DATE)," +
+                " END_DATE = COALESCE(?, END_DATE), RESULT = COALESCE(?, RESULT) WHERE PK_JOB = ?")) {
+            for (JobStateStore.JobState jobState : jobStates) {
+                st.setString(1, JobStates.CANCELED.name());
+                st.setString(2, jobState.getStatus());
+                if (jobState.getProgression() != null) {
+                    st.setDouble(3, jobState.getProgression());
+                } else {
+                    st.setNull(3, Types.DOUBLE);
+                }
+                st.setTimestamp(4, jobState.getBeginDate());
+                st.setTimestamp(5, jobState.getEndDate());
+                st.setString(6, jobState.getResult());
+                st.setInt(7, jobState.getJobId());
+                st.addBatch();
+            }
+            st.executeBatch();
+        }
+    }
+
+    /**
+     * Store the output of a finished job
+     * @param connection SQL connection
+     * @param jobId Job identifier
+     * @param result Result returned by the script, or the error message if the job failed
+     * @throws SQLException If something wrong happened
+     */
+    public static void setJobResult(Connection connection, int jobId, String result) throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement("UPDATE JOBS SET RESULT = ? WHERE PK_JOB = ?")) {
+            st.setString(1, result);
+            st.setInt(2, jobId);
+            st.execute();
+        }
+    }
+
+    /**
+     * @param connection SQL connection
+     * @param jobId Job identifier
+     * @return Result returned by the script, the error message if the job failed or null if the job is not finished
+     * @throws SQLException If something wrong happened
+     */
+    public static String getJobResult(Connection connection, int jobId) throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement("SELECT RESULT FROM JOBS WHERE PK_JOB = ?")) {
+            st.setInt(1, jobId);
+            try (ResultSet rs = st.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getString("RESULT");
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keep the tables created for the WPS complex inputs of a job, in order to remove them when the job ends even
+     * if the server has been restarted in the meantime
+     * @param connection SQL connection
+     * @param jobId Job identifier
+     * @param inputTables Table names in the user database, empty when the tables have been removed
+     * @throws SQLException If something wrong happened
+     */
+    public static void setJobInputTables(Connection connection, int jobId, List<String> inputTables)
+            throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement("UPDATE JOBS SET INPUT_TABLES = ? WHERE PK_JOB = ?")) {
+            st.setString(1, inputTables.isEmpty() ? null : String.join(",", inputTables));
+            st.setInt(2, jobId);
+            st.execute();
+        }
+    }
+
+    /**
+     * Fetch the ended jobs whose input tables have not been removed, for example the jobs interrupted by the last
+     * server shutdown
+     * @param connection SQL connection
+     * @return Jobs with the keys id, userId and inputTables
+     * @throws SQLException If something wrong happened
+     */
+    public static List<Map<String, Object>> getEndedJobInputTables(Connection connection) throws SQLException {
+        return getJobInputTables(connection, true);
+    }
+
+    /**
+     * Fetch the jobs not ended yet that have input tables, for example the jobs run by the worker nodes while the
+     * server restarted
+     * @param connection SQL connection
+     * @return Jobs with the keys id, userId and inputTables
+     * @throws SQLException If something wrong happened
+     */
+    public static List<Map<String, Object>> getUnfinishedJobInputTables(Connection connection) throws SQLException {
+        return getJobInputTables(connection, false);
+    }
+
+    private static List<Map<String, Object>> getJobInputTables(Connection connection, boolean ended)
+            throws SQLException {
+        List<Map<String, Object>> table = new ArrayList<>();
+        try (PreparedStatement st = connection.prepareStatement("SELECT PK_JOB, PK_USER, INPUT_TABLES FROM JOBS" +
+                " WHERE INPUT_TABLES IS NOT NULL AND STATUS " + (ended ? "" : "NOT ") + "IN (?, ?, ?)" +
+                " ORDER BY PK_JOB")) {
+            st.setString(1, JobStates.COMPLETED.name());
+            st.setString(2, JobStates.FAILED.name());
+            st.setString(3, JobStates.CANCELED.name());
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    Map<String, Object> row = new HashMap<>();
+                    row.put("id", rs.getInt("PK_JOB"));
+                    row.put("userId", rs.getInt("PK_USER"));
+                    row.put("inputTables", parseInputTables(rs.getString("INPUT_TABLES")));
+                    table.add(row);
+                }
+            }
+        }
+        return table;
+    }
+
+    private static List<String> parseInputTables(String inputTables) {
+        if (inputTables == null || inputTables.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(inputTables.split(","));
+    }
+
+    /**
+     * @param connection SQL connection
+     * @param jobId Job identifier
+     * @param costFeatures Cost features of the job (JSON), see {@link JobCostEstimator}
+     * @throws SQLException If something wrong happened
+     */
+    public static void setJobCostFeatures(Connection connection, int jobId, String costFeatures)
+            throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement(
+                "UPDATE JOBS SET COST_FEATURES = ? WHERE PK_JOB = ?")) {
+            st.setString(1, costFeatures);
+            st.setInt(2, jobId);
+            st.execute();
+        }
+    }
+
+    /**
+     * @param connection SQL connection
+     * @param jobId Job identifier
+     * @param peakHeap Peak heap memory measured while the job was running, in MB
+     * @throws SQLException If something wrong happened
+     */
+    public static void setJobPeakHeap(Connection connection, int jobId, long peakHeap) throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement("UPDATE JOBS SET PEAK_HEAP = ? WHERE PK_JOB = ?")) {
+            st.setLong(1, peakHeap);
+            st.setInt(2, jobId);
+            st.execute();
+        }
+    }
+
+    /**
+     * @param connection SQL connection
+     * @param jobId Job identifier
+     * @param estimatedDuration Predicted duration in milliseconds
+     * @param estimatedHeap Predicted peak heap memory in MB, -1 if unknown
+     * @throws SQLException If something wrong happened
+     */
+    public static void setJobEstimate(Connection connection, int jobId, long estimatedDuration, long estimatedHeap)
+            throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement(
+                "UPDATE JOBS SET ESTIMATED_DURATION = ?, ESTIMATED_HEAP = ? WHERE PK_JOB = ?")) {
+            st.setLong(1, estimatedDuration);
+            if (estimatedHeap > 0) {
+                st.setLong(2, estimatedHeap);
+            } else {
+                st.setNull(2, Types.BIGINT);
+            }
+            st.setInt(3, jobId);
+            st.execute();
+        }
+    }
+
+    /**
+     * Fetch the completed runs of a script having cost features, the jobs that reused a previous result are ignored
+     * @param connection SQL connection
+     * @param scriptId Script identifier
+     * @param limit Maximum number of runs, the most recent first
+     * @return Rows with the keys features (JSON), duration (milliseconds) and peakHeap (MB, may be null)
+     * @throws SQLException If something wrong happened
+     */
+    public static List<Map<String, Object>> getJobCostHistory(Connection connection, String scriptId, int limit)
+            throws SQLException {
+        List<Map<String, Object>> table = new ArrayList<>();
+        try (PreparedStatement st = connection.prepareStatement(
+                "SELECT COST_FEATURES, BEGIN_DATE, END_DATE, PEAK_HEAP FROM JOBS WHERE SCRIPT_ID = ? AND STATUS = ?" +
+                        " AND COST_FEATURES IS NOT NULL AND MEMO_JOB IS NULL AND BEGIN_DATE IS NOT NULL" +
+                        " AND END_DATE IS NOT NULL ORDER BY PK_JOB DESC LIMIT ?")) {
+            st.setString(1, scriptId);
+            st.setString(2, JobStates.COMPLETED.name());
+            st.setInt(3, limit);
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    Map<String, Object> row = new HashMap<>();
+                    row.put("features", rs.getString("COST_FEATURES"));
+                    row.put("duration", rs.getTimestamp("END_DATE").getTime() -
+                            rs.getTimestamp("BEGIN_DATE").getTime());
+                    long peakHeap = rs.getLong("PEAK_HEAP");
+                    row.put("peakHeap", rs.wasNull() ? null : peakHeap);
+                    table.add(row);
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Fetch the jobs waiting in the queue, in submission order.
+     * Used to restore the queue of the job executor when the server starts.
+     * @param connection SQL connection
+     * @return Queued jobs with the keys id, userId, script, inputs (JSON) and inputTables (list of the tables of
+     * the complex inputs)
+     * @throws SQLException If something wrong happened
+     */
+    public static List<Map<String, Object>> getQueuedJobs(Connection connection) throws SQLException {
+        List<Map<String, Object>> table = new ArrayList<>();
+        try (PreparedStatement st = connection.prepareStatement(
+                "SELECT PK_JOB, PK_USER, SCRIPT_ID, INPUTS, INPUT_TABLES FROM JOBS WHERE STATUS = ?" +
+                        " AND WORKER_ID IS NULL ORDER BY PK_JOB")) {
+            st.setString(1, JobStates.QUEUED.name());
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    Map<String, Object> row = new HashMap<>();
+                    row.put("id", rs.getInt("PK_JOB"));
+                    row.put("userId", rs.getInt("PK_USER"));
+                    row.put("script", rs.getString("SCRIPT_ID"));
+                    row.put("inputs", rs.getString("INPUTS"));
+                    row.put("inputTables", parseInputTables(rs.getString("INPUT_TABLES")));
+                    table.add(row);
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Jobs still flagged as running when the server starts have been interrupted by the previous server
+     * shutdown. They are set as failed. The jobs run by the worker nodes are not affected.
+     * @param connection SQL connection
+     * @return Number of updated jobs
+     * @throws SQLException If something wrong happened
+     */
+    public static int failInterruptedJobs(Connection connection) throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement(
+                "UPDATE JOBS SET STATUS = ?, END_DATE = ? WHERE STATUS = ? AND WORKER_ID IS NULL")) {
+            st.setString(1, JobStates.FAILED.name());
+            st.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+            st.setString(3, JobStates.RUNNING.name());
+            return st.executeUpdate();
+        }
+    }
+
+    /**
+     * Claim a queued job for a worker node. The job is assigned only if it is still queued and not claimed, so a job
+     * can not be claimed by two workers. The job stays queued until the worker really starts it, the status and
+     * begin date are then set by the job itself.
+     * @param connection SQL connection
+     * @param jobId Job identifier
+     * @param workerId Worker node identifier
+     * @return True if the job is now assigned to this worker, false if another worker claimed it first
+     * @throws SQLException If something wrong happened
+     */
+    public static boolean claimJob(Connection connection, int jobId, String workerId) throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement("UPDATE JOBS SET WORKER_ID = ?, HEARTBEAT = ?" +
+                " WHERE PK_JOB = ? AND STATUS = ? AND WORKER_ID IS NULL")) {
+            st.setString(1, workerId);
+            st.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+            st.setInt(3, jobId);
+            st.setString(4, JobStates.QUEUED.name());
+            return st.executeUpdate() == 1;
+        }
+    }
+
+    /**
+     * Claim the next queued job for a worker node, without limit of job slots or resources
+     * @param connection SQL connection
+     * @param workerId Worker node identifier
+     * @return The claimed job with the keys id, userId, script and inputs (JSON), or null if there is no queued job
+     * @throws SQLException If something wrong happened
+     */
+    public static Map<String, Object> claimNextJob(Connection connection, String workerId) throws SQLException {
+        return claimNextJob(connection, workerId, Integer.MAX_VALUE, queuedJob -> true);
+    }
+
+    /**
+     * Claim the next queued job for a worker node, with the fair-share policy of the job executor (see
+     * {@link UserShare}) applied to all the worker nodes: the jobs of the user having the lowest number of running
+     * or claimed jobs relative to its weight are claimed first, then in submission order. The users that reached their maximum
+     * number of running jobs are skipped, without explicit maximum a user keeps a job slot of the worker free for the
+     * other users.
+     * @param connection SQL connection
+     * @param workerId Worker node identifier
+     * @param jobSlots Number of job slots of the worker node
+     * @param fitsResources Test the queued jobs (keys id, userId, script and inputs), only the jobs fitting the free
+     *                      threads and heap of the worker node are claimed
+     * @return The claimed job with the keys id, userId, script and inputs (JSON), or null if there is no queued job
+     * that can be run by this worker
+     * @throws SQLException If something wrong happened
+     */
+    public static Map<String, Object> claimNextJob(Connection connection, String workerId, int jobSlots,
+                                                   Predicate<Map<String, Object>> fitsResources) throws SQLException {
+        List<Map<String, Object>> candidates = new ArrayList<>();
+        try (PreparedStatement st = connection.prepareStatement(
+                "SELECT J.PK_JOB, J.PK_USER, J.SCRIPT_ID, J.INPUTS FROM JOBS J INNER JOIN (SELECT U.PK_USER," +
+                        " CASE WHEN U.JOB_WEIGHT > 0 THEN U.JOB_WEIGHT WHEN U.JOB_WEIGHT IS NULL AND EXISTS(" +
+                        "SELECT 1 FROM ROLES R WHERE R.PK_USER = U.PK_USER AND R.ROLE = ?) THEN ? ELSE ? END WEIGHT," +
+                        " COALESCE(U.MAX_RUNNING_JOBS, 0) MAX_RUNNING_JOBS," +
+                        " (SELECT COUNT(*) FROM JOBS A WHERE A.PK_USER = U.PK_USER AND (A.STATUS = ?" +
+                        " OR A.STATUS = ? AND A.WORKER_ID IS NOT NULL)) RUNNING_JOBS," +
+                        " (SELECT COUNT(*) FROM JOBS A WHERE A.PK_USER = U.PK_USER AND A.STATUS IN (?, ?)" +
+                        " AND A.WORKER_ID = ?) WORKER_JOBS FROM USERS U) S ON S.PK_USER = J.PK_USER" +
+                        " WHERE J.STATUS = ? AND J.WORKER_ID IS NULL AND CASE WHEN S.MAX_RUNNING_JOBS > 0" +
+                        " THEN S.RUNNING_JOBS < S.MAX_RUNNING_JOBS ELSE S.WORKER_JOBS < ? END" +
+                        " ORDER BY S.RUNNING_JOBS / S.WEIGHT, J.PK_JOB LIMIT ?")) {
+            st.setString(1, Role.ADMINISTRATOR.name());
+            st.setDouble(2, UserShare.ADMINISTRATOR_WEIGHT);
+            st.setDouble(3, UserShare.DEFAULT_WEIGHT);
+            st.setString(4, JobStates.RUNNING.name());
+            st.setString(5, JobStates.QUEUED.name());
+            st.setString(6, JobStates.QUEUED.name());
+            st.setString(7, JobStates.RUNNING.name());
+            st.setString(8, workerId);
+            st.setString(9, JobStates.QUEUED.name());
+            // keep a slot of the worker for the other users
+            st.setInt(10, Math.max(1, jobSlots - 1));
+            st.setInt(11, CLAIM_CANDIDATES);
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    Map<String, Object> row = new HashMap<>();
+                    row.put("id", rs.getInt("PK_JOB"));
+                    row.put("userId", rs.getInt("PK_USER"));
+                    row.put("script", rs.getString("SCRIPT_ID"));
+                    row.put("inputs", rs.getString("INPUTS"));
+                    candidates.add(row);
+                }
+            }
+        }
+        for (Map<String, Object> candidate : candidates) {
+            // A job that does not fit is left to the worker nodes having more free resources
+            if (fitsResources.test(candidate) && claimJob(connection, (Integer) candidate.get("id"), workerId)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Update the heartbeat of the jobs claimed or running on a worker node
+     * @param connection SQL connection
+     * @param workerId Worker node identifier
+     * @return Number of updated jobs
+     * @throws SQLException If something wrong happened
+     */
+    public static int updateJobsHeartbeat(Connection connection, String workerId) throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement(
+                "UPDATE JOBS SET HEARTBEAT = ? WHERE WORKER_ID = ? AND STATUS IN (?, ?)")) {
+            st.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+            st.setString(2, workerId);
+            st.setString(3, JobStates.QUEUED.name());
+            st.setString(4, JobStates.RUNNING.name());
+            return st.executeUpdate();
+        }
+    }
+
+    /**
+     * Jobs of a worker node canceled from the web interface while running
+     * @param connection SQL connection
+     * @param workerId Worker node identifier
+     * @return Identifier of the canceled jobs not yet ended
+     * @throws SQLException If something wrong happened
+     */
+    public static List<Integer> getCanceledJobs(Connection connection, String workerId) throws SQLException {
+        List<Integer> jobs = new ArrayList<>();
+        try (PreparedStatement st = connection.prepareStatement(
+                "SELECT PK_JOB FROM JOBS WHERE WORKER_ID = ? AND STATUS = ? AND END_DATE IS NULL")) {
+            st.setString(1, workerId);
+            st.setString(2, JobStates.CANCELED.name());
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    jobs.add(rs.getInt(1));
+                }
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Cancel a job run by the worker nodes. A queued job not yet claimed is ended immediately, a claimed or running
+     * job is stopped by its worker node on the next heartbeat.
+     * @param connection SQL connection
+     * @param jobId Job identifier
+     * @return True if the job was queued or running
+     * @throws SQLException If something wrong happened
+     */
+    public static boolean requestJobCancel(Connection connection, int jobId) throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement(
+                "UPDATE JOBS SET END_DATE = CASE WHEN STATUS = ? AND WORKER_ID IS NULL THEN ? ELSE END_DATE END," +
+                        " STATUS = ? WHERE PK_JOB = ? AND STATUS IN (?, ?)")) {
+            st.setString(1, JobStates.QUEUED.name());
+            st.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+            st.setString(3, JobStates.CANCELED.name());
+            st.setInt(4, jobId);
+            st.setString(5, JobStates.QUEUED.name());
+            st.setString(6, JobStates.RUNNING.name());
+            return st.executeUpdate() == 1;
+        }
+    }
+
+    /**
+     * Running jobs of worker nodes that did not send a heartbeat for a while are set as failed, the worker node
+     * has been stopped or lost its connection. The jobs claimed but not started by these worker nodes are queued
+     * again for the other worker nodes.
+     * @param connection SQL connection
+     * @param staleDelay Maximum delay since the last heartbeat in milliseconds
+     * @return Number of updated jobs
+     * @throws SQLException If something wrong happened
+     */
+    public static int failStaleJobs(Connection connection, long staleDelay) throws SQLException {
+        long now = System.currentTimeMillis();
+        int updatedJobs;
+        try (PreparedStatement st = connection.prepareStatement(
+                "UPDATE JOBS SET STATUS = ?, END_DATE = ? WHERE STATUS = ? AND WORKER_ID IS NOT NULL" +
+                        " AND HEARTBEAT < ?")) {
+            st.setString(1, JobStates.FAILED.name());
+            st.setTimestamp(2, new Timestamp(now));
+            st.setString(3, JobStates.RUNNING.name());
+            st.setTimestamp(4, new Timestamp(now - staleDelay));
+            updatedJobs = st.executeUpdate();
+        }
+        try (PreparedStatement st = connection.prepareStatement(
+                "UPDATE JOBS SET WORKER_ID = NULL, HEARTBEAT = NULL WHERE STATUS = ? AND WORKER_ID IS NOT NULL" +
+                        " AND HEARTBEAT < ?")) {
+            st.setString(1, JobStates.QUEUED.name());
+            st.setTimestamp(2, new Timestamp(now - staleDelay));
+            updatedJobs += st.executeUpdate();
+        }
+        return updatedJobs;
+    }
+
+    /**
+     * Fetch the memoized result of a job
+     * @param connection SQL connection
+     * @param memoKey Hash of the script, inputs and input tables, see JobMemoization
+     * @return Map with the keys jobId, result, outputTables (JSON) and duration (ms), or null if there is no memo
+     * @throws SQLException If something wrong happened
+     */
+    public static Map<String, Object> getJobMemo(Connection connection, String memoKey) throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement(
+                "SELECT PK_JOB, RESULT, OUTPUT_TABLES, DURATION FROM JOB_MEMOS WHERE MEMO_KEY = ?")) {
+            st.setString(1, memoKey);
+            try (ResultSet rs = st.executeQuery()) {
+                if (rs.next()) {
+                    Map<String, Object> memo = new HashMap<>();
+                    memo.put("jobId", rs.getInt("PK_JOB"));
+                    memo.put("result", rs.getString("RESULT"));
+                    memo.put("outputTables", rs.getString("OUTPUT_TABLES"));
+                    memo.put("duration", rs.getLong("DURATION"));
+                    return memo;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Store or replace the memoized result of a job
+     * @param connection SQL connection
+     * @param memoKey Hash of the script, inputs and input tables
+     * @param userId User identifier
+     * @param jobId Job that computed the result
+     * @param result Result of the job
+     * @param outputTables Fingerprint of the tables written by the job (JSON)
+     * @param duration Computation time in milliseconds
+     * @throws SQLException If something wrong happened
+     */
+    public static void saveJobMemo(Connection connection, String memoKey, int userId, int jobId, String result,
+                                   String outputTables, long duration) throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement(
+                "MERGE INTO JOB_MEMOS(MEMO_KEY, PK_USER, PK_JOB, RESULT, OUTPUT_TABLES, DURATION, HIT_COUNT," +
+                        " CREATION_DATE) KEY (MEMO_KEY) VALUES (?, ?, ?, ?, ?, ?, 0, ?)")) {
+            st.setString(1, memoKey);
+            st.setInt(2, userId);
+            st.setInt(3, jobId);
+            st.setString(4, result);
+            st.setString(5, outputTables);
+            st.setLong(6, duration);
+            st.setTimestamp(7, new Timestamp(System.currentTimeMillis()));
+            st.executeUpdate();
+        }
+    }
+
+    /**
+     * Remove a memoized result, ex. the output tables have been modified since
+     * @param connection SQL connection
+     * @param memoKey Hash of the script, inputs and input tables
+     * @throws SQLException If something wrong happened
+     */
+    public static void deleteJobMemo(Connection connection, String memoKey) throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement("DELETE FROM JOB_MEMOS WHERE MEMO_KEY = ?")) {
+            st.setString(1, memoKey);
+            st.executeUpdate();
+        }
+    }
+
+    /**
+     * Record that a job reused the memoized result of another job
+     * @param connection SQL connection
+     * @param memoKey Hash of the script, inputs and input tables
+     * @param jobId Job that reused the result
+     * @param memoJobId Job that computed the result
+     * @param timeSaved Computation time saved in milliseconds
+     * @throws SQLException If something wrong happened
+     */
+    public static void setJobMemoHit(Connection connection, String memoKey, int jobId, int memoJobId,
+                                     long timeSaved) throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement(
+                "UPDATE JOBS SET MEMO_JOB = ?, TIME_SAVED = ? WHERE PK_JOB = ?")) {
+            st.setInt(1, memoJobId);
+            st.setLong(2, timeSaved);
+            st.setInt(3, jobId);
+            st.executeUpdate();
+        }
+        try (PreparedStatement st = connection.prepareStatement(
+                "UPDATE JOB_MEMOS SET HIT_COUNT = HIT_COUNT + 1 WHERE MEMO_KEY = ?")) {
+            st.setString(1, memoKey);
+            st.executeUpdate();
+        }
+    }
+
+    /**
+     * Count the jobs that reused a memoized result
+     * @param connection SQL connection
+     * @param filterByUserIdentifier If > 0, only count the jobs of this user
+     * @return Map with the keys hits (number of jobs) and timeSaved (formatted duration)
+     * @throws SQLException If something wrong happened
+     */
+    public static Map<String, Object> getJobMemoStatistics(Connection connection, int filterByUserIdentifier)
+            throws SQLException {
+        String sql = "SELECT COUNT(*), COALESCE(SUM(TIME_SAVED), 0) FROM JOBS WHERE MEMO_JOB IS NOT NULL" +
+                (filterByUserIdentifier > 0 ? " AND PK_USER = ?" : "");
+        try (PreparedStatement st = connection.prepareStatement(sql)) {
+            if (filterByUserIdentifier > 0) {
+                st.setInt(1, filterByUserIdentifier);
+            }
+            try (ResultSet rs = st.executeQuery()) {
+                Map<String, Object> statistics = new HashMap<>();
+                rs.next();
+                statistics.put("hits", rs.getInt(1));
+                statistics.put("timeSaved", StringUtilities.durationToString(Duration.ofMillis(rs.getLong(2))));
+                return statistics;
+            }
+        }
+    }
+
     /**
      * Fetch the content of the JOB table
      * @param connection
@@ -517,9 +1370,9 @@ public class DatabaseManagement {
         List<Map<String, Object>> table = new ArrayList<>();
         StringBuilder sql = new StringBuilder("SELECT JOBS.*, USERS.EMAIL FROM JOBS INNER JOIN USERS ON JOBS.PK_USER = USERS.PK_USER ");
         if(filterByUserIdentifier > 0) {
-            sql.append("WHERE PK_USER = ? ");
+            sql.append("WHERE JOBS.PK_USER = ? ");
         }
-        sql.append("ORDER BY BEGIN_DATE DESC");
+        sql.append("ORDER BY PK_JOB DESC");
         PreparedStatement statement = connection.prepareStatement(sql.toString());
         if(filterByUserIdentifier > 0) {
             statement.setInt(1, filterByUserIdentifier);
@@ -537,6 +1390,39 @@ public class DatabaseManagement {
     }
 
 
+    /**
+     * Read the state of the running jobs and of the jobs ended since the given date, the job list pages are updated
+     * with these states
+     * @param connection SQL connection
+     * @param endedSince Jobs with an end date at or after this date are returned
+     * @return Rows with id, userId, status, progression, percentCompleted and endDate (null while running)
+     * @throws SQLException If something wrong happened
+     */
+    public static List<Map<String, Object>> getRunningOrEndedJobs(Connection connection, Timestamp endedSince)
+            throws SQLException {
+        List<Map<String, Object>> table = new ArrayList<>();
+        DecimalFormat f = (DecimalFormat) (DecimalFormat.getInstance(Locale.ROOT));
+        f.applyPattern("#.### '%'");
+        try (PreparedStatement st = connection.prepareStatement("SELECT PK_JOB, PK_USER, STATUS, PROGRESSION," +
+                " END_DATE FROM JOBS WHERE STATUS = ? OR END_DATE >= ?")) {
+            st.setString(1, JobStates.RUNNING.name());
+            st.setTimestamp(2, endedSince);
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    Map<String, Object> row = new HashMap<>();
+                    row.put("id", rs.getInt("PK_JOB"));
+                    row.put("userId", rs.getInt("PK_USER"));
+                    row.put("status", rs.getString("STATUS"));
+                    row.put("progression", f.format(rs.getDouble("PROGRESSION")));
+                    row.put("percentCompleted", (int) rs.getDouble("PROGRESSION"));
+                    row.put("endDate", rs.getTimestamp("END_DATE"));
+                    table.add(row);
+                }
+            }
+        }
+        return table;
+    }
+
     /**
      * Fetch the content of the JOB table
      * @param connection
@@ -566,10 +1452,13 @@ public class DatabaseManagement {
         row.put("id", pkJob);
         row.put("script", rs.getString("SCRIPT_ID"));
         row.put("deletable", Objects.equals(rs.getString("STATUS"), JobStates.COMPLETED.name()) ||
-                Objects.equals(rs.getString("STATUS"), JobStates.FAILED.name()));
+                Objects.equals(rs.getString("STATUS"), JobStates.FAILED.name()) ||
+                Objects.equals(rs.getString("STATUS"), JobStates.CANCELED.name()));
         row.put("cancelable", Objects.equals(rs.getString("STATUS"), JobStates.QUEUED.name()) ||
                 Objects.equals(rs.getString("STATUS"), JobStates.RUNNING.name()));
         row.put("email", rs.getString("email"));
+        Timestamp sDate = rs.getTimestamp("SUBMIT_DATE");
+        row.put("submitDate", !rs.wasNull() ? mediumDateFormatEN.format(sDate) : "-");
         Timestamp bDate = rs.getTimestamp("BEGIN_DATE");
         row.put("startDate", !rs.wasNull() ? mediumDateFormatEN.format(bDate) : "-");
         Timestamp eDate = rs.getTimestamp("END_DATE");
@@ -578,8 +1467,10 @@ public class DatabaseManagement {
         Duration computationTime = null;
         if(!rs.wasNull()) {
             endDate = mediumDateFormatEN.format(eDate);
-            computationTime = Duration.ofMillis(
-                    eDate.getTime()  - bDate.getTime());
+            if(bDate != null) {
+                computationTime = Duration.ofMillis(
+                        eDate.getTime() - bDate.getTime());
+            }
         } else if(bDate != null){
             computationTime = Duration.ofMillis(
                     System.currentTimeMillis() - bDate.getTime());
@@ -591,10 +1482,288 @@ public class DatabaseManagement {
         row.put("duration", duration);
         row.put("userId", rs.getInt("PK_USER"));
         row.put("status", rs.getString("STATUS"));
+        String workerId = rs.getString("WORKER_ID");
+        row.put("worker", workerId != null ? workerId : "-");
+        int memoJob = rs.getInt("MEMO_JOB");
+        row.put("memo", !rs.wasNull() ? String.format(Locale.ROOT, "Result of job %d reused, %s saved", memoJob,
+                StringUtilities.durationToString(Duration.ofMillis(rs.getLong("TIME_SAVED")))) : "-");
         row.put("progression", f.format(rs.getDouble("PROGRESSION")));
+        row.put("percentCompleted", (int) rs.getDouble("PROGRESSION"));
+        long estimatedDuration = rs.getLong("ESTIMATED_DURATION");
+        row.put("estimate", !rs.wasNull() ? StringUtilities.durationToString(Duration.ofMillis(estimatedDuration)) :
+                "-");
         return row;
     }
 
+    /**
+     * Register a new campaign, its departments are queued in the given order
+     * @param connection SQL connection
+     * @param userIdentifier User running the campaign
+     * @param name Campaign name
+     * @param pipelineFile Path of the pipeline definition run for each department
+     * @param parameters Pipeline parameters (JSON) shared by all the departments
+     * @param concurrency Maximum number of departments computed at the same time
+     * @param departments INSEE codes of the departments
+     * @return Campaign identifier
+     * @throws SQLException If something wrong happened
+     */
+    public static int createCampaign(Connection connection, int userIdentifier, String name, String pipelineFile,
+                                     String parameters, int concurrency, List<String> departments)
+            throws SQLException {
+        int campaignId;
+        try (PreparedStatement st = connection.prepareStatement("INSERT INTO CAMPAIGNS (PK_USER, NAME," +
+                " PIPELINE_FILE, PARAMETERS, CONCURRENCY) VALUES (?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS)) {
+            st.setInt(1, userIdentifier);
+            st.setString(2, name);
+            st.setString(3, pipelineFile);
+            st.setString(4, parameters);
+            st.setInt(5, concurrency);
+            st.executeUpdate();
+            try (ResultSet rs = st.getGeneratedKeys()) {
+                if (!rs.next()) {
+                    throw new SQLException("Failed to create campaign.");
+                }
+                campaignId = rs.getInt(1);
+            }
+        }
+        try (PreparedStatement st = connection.prepareStatement("INSERT INTO CAMPAIGN_DEPARTMENTS (PK_CAMPAIGN," +
+                " INSEE_DEPARTMENT, RANK) VALUES (?, ?, ?)")) {
+            int rank = 0;
+            for (String department : departments) {
+                st.setInt(1, campaignId);
+                st.setString(2, department);
+                st.setInt(3, rank++);
+                st.addBatch();
+            }
+            st.executeBatch();
+        }
+        return campaignId;
+    }
+
+    /**
+     * Fetch the campaigns, most recent first
+     * @param connection SQL connection
+     * @param filterByUserIdentifier If > 0, only return the campaigns of this user
+     * @return Rows with the keys id, userId, email, name, pipelineFile, parameters (JSON), concurrency, status,
+     * submitDate, beginDate and endDate (Timestamp, may be null)
+     * @throws SQLException If something wrong happened
+     */
+    public static List<Map<String, Object>> getCampaigns(Connection connection, int filterByUserIdentifier)
+            throws SQLException {
+        List<Map<String, Object>> table = new ArrayList<>();
+        StringBuilder sql = new StringBuilder("SELECT CAMPAIGNS.*, USERS.EMAIL FROM CAMPAIGNS" +
+                " INNER JOIN USERS ON CAMPAIGNS.PK_USER = USERS.PK_USER ");
+        if (filterByUserIdentifier > 0) {
+            sql.append("WHERE CAMPAIGNS.PK_USER = ? ");
+        }
+        sql.append("ORDER BY PK_CAMPAIGN DESC");
+        try (PreparedStatement st = connection.prepareStatement(sql.toString())) {
+            if (filterByUserIdentifier > 0) {
+                st.setInt(1, filterByUserIdentifier);
+            }
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    table.add(parseCampaign(rs));
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * @param connection SQL connection
+     * @param campaignId Campaign identifier
+     * @return The campaign, see {@link #getCampaigns(Connection, int)}, or an empty map if it does not exist
+     * @throws SQLException If something wrong happened
+     */
+    public static Map<String, Object> getCampaign(Connection connection, int campaignId) throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement("SELECT CAMPAIGNS.*, USERS.EMAIL FROM CAMPAIGNS" +
+                " INNER JOIN USERS ON CAMPAIGNS.PK_USER = USERS.PK_USER WHERE PK_CAMPAIGN = ?")) {
+            st.setInt(1, campaignId);
+            try (ResultSet rs = st.executeQuery()) {
+                if (rs.next()) {
+                    return parseCampaign(rs);
+                }
+            }
+        }
+        return Collections.emptyMap();
+    }
+
+    private static Map<String, Object> parseCampaign(ResultSet rs) throws SQLException {
+        Map<String, Object> row = new HashMap<>();
+        row.put("id", rs.getInt("PK_CAMPAIGN"));
+        row.put("userId", rs.getInt("PK_USER"));
+        row.put("email", rs.getString("EMAIL"));
+        row.put("name", rs.getString("NAME"));
+        row.put("pipelineFile", rs.getString("PIPELINE_FILE"));
+        row.put("parameters", rs.getString("PARAMETERS"));
+        row.put("concurrency", rs.getInt("CONCURRENCY"));
+        row.put("status", rs.getString("STATUS"));
+        row.put("submitDate", rs.getTimestamp("SUBMIT_DATE"));
+        row.put("beginDate", rs.getTimestamp("BEGIN_DATE"));
+        row.put("endDate", rs.getTimestamp("END_DATE"));
+        return row;
+    }
+
+    /**
+     * Fetch the campaigns that were queued or running when the server stopped
+     * @param connection SQL connection
+     * @return Campaign identifiers
+     * @throws SQLException If something wrong happened
+     */
+    public static List<Integer> getUnfinishedCampaigns(Connection connection) throws SQLException {
+        List<Integer> campaigns = new ArrayList<>();
+        try (PreparedStatement st = connection.prepareStatement("SELECT PK_CAMPAIGN FROM CAMPAIGNS" +
+                " WHERE STATUS IN (?, ?) ORDER BY PK_CAMPAIGN")) {
+            st.setString(1, JobStates.QUEUED.name());
+            st.setString(2, JobStates.RUNNING.name());
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    campaigns.add(rs.getInt(1));
+                }
+            }
+        }
+        return campaigns;
+    }
+
+    /**
+     * Change the state of a campaign, the begin date is set when running and the end date when finished
+     * @param connection SQL connection
+     * @param campaignId Campaign identifier
+     * @param state New state
+     * @throws SQLException If something wrong happened
+     */
+    public static void setCampaignState(Connection connection, int campaignId, JobStates state) throws SQLException {
+        String dates = state == JobStates.RUNNING ? ", BEGIN_DATE = COALESCE(BEGIN_DATE, CURRENT_TIMESTAMP)," +
+                " END_DATE = NULL" : state == JobStates.QUEUED ? "" : ", END_DATE = CURRENT_TIMESTAMP";
+        try (PreparedStatement st = connection.prepareStatement("UPDATE CAMPAIGNS SET STATUS = ?" + dates +
+                " WHERE PK_CAMPAIGN = ?")) {
+            st.setString(1, state.name());
+            st.setInt(2, campaignId);
+            st.execute();
+        }
+    }
+
+    /**
+     * Fetch the departments of a campaign in their computation order
+     * @param connection SQL connection
+     * @param campaignId Campaign identifier
+     * @return Rows with the keys department, rank, estimatedDuration (milliseconds, may be null), status, beginDate,
+     * endDate (Timestamp, may be null) and result
+     * @throws SQLException If something wrong happened
+     */
+    public static List<Map<String, Object>> getCampaignDepartments(Connection connection, int campaignId)
+            throws SQLException {
+        List<Map<String, Object>> table = new ArrayList<>();
+        try (PreparedStatement st = connection.prepareStatement("SELECT * FROM CAMPAIGN_DEPARTMENTS" +
+                " WHERE PK_CAMPAIGN = ? ORDER BY RANK")) {
+            st.setInt(1, campaignId);
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    Map<String, Object> row = new HashMap<>();
+                    row.put("department", rs.getString("INSEE_DEPARTMENT"));
+                    row.put("rank", rs.getInt("RANK"));
+                    long estimatedDuration = rs.getLong("ESTIMATED_DURATION");
+                    row.put("estimatedDuration", rs.wasNull() ? null : estimatedDuration);
+                    row.put("status", rs.getString("STATUS"));
+                    row.put("beginDate", rs.getTimestamp("BEGIN_DATE"));
+                    row.put("endDate", rs.getTimestamp("END_DATE"));
+                    row.put("result", rs.getString("RESULT"));
+                    table.add(row);
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Set the computation order of a campaign department
+     * @param connection SQL connection
+     * @param campaignId Campaign identifier
+     * @param department INSEE code of the department
+     * @param rank Position in the computation order
+     * @param estimatedDuration Estimated duration in milliseconds, -1 if unknown
+     * @throws SQLException If something wrong happened
+     */
+    public static void setCampaignDepartmentRank(Connection connection, int campaignId, String department, int rank,
+                                                 long estimatedDuration) throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement("UPDATE CAMPAIGN_DEPARTMENTS SET RANK = ?," +
+                " ESTIMATED_DURATION = ? WHERE PK_CAMPAIGN = ? AND INSEE_DEPARTMENT = ?")) {
+            st.setInt(1, rank);
+            if (estimatedDuration >= 0) {
+                st.setLong(2, estimatedDuration);
+            } else {
+                st.setNull(2, Types.BIGINT);
+            }
+            st.setInt(3, campaignId);
+            st.setString(4, department);
+            st.execute();
+        }
+    }
+
+    /**
+     * Change the state of a campaign department, the begin date is set when running and the end date when finished
+     * @param connection SQL connection
+     * @param campaignId Campaign identifier
+     * @param department INSEE code of the department
+     * @param state New state
+     * @param result Pipeline result or error message, null to keep the current value
+     * @throws SQLException If something wrong happened
+     */
+    public static void setCampaignDepartmentState(Connection connection, int campaignId, String department,
+                                                  JobStates state, String result) throws SQLException {
+        String dates = state == JobStates.RUNNING ? ", BEGIN_DATE = CURRENT_TIMESTAMP, END_DATE = NULL" :
+                state == JobStates.QUEUED ? "" : ", END_DATE = CURRENT_TIMESTAMP";
+        try (PreparedStatement st = connection.prepareStatement("UPDATE CAMPAIGN_DEPARTMENTS SET STATUS = ?," +
+                " RESULT = COALESCE(?, RESULT)" + dates + " WHERE PK_CAMPAIGN = ? AND INSEE_DEPARTMENT = ?")) {
+            st.setString(1, state.name());
+            st.setString(2, result);
+            st.setInt(3, campaignId);
+            st.setString(4, department);
+            st.execute();
+        }
+    }
+
+    /**
+     * Fetch the duration of the last completed computation of each department with the same pipeline, in any
+     * campaign
+     * @param connection SQL connection
+     * @param pipelineFile Path of the pipeline definition
+     * @return Duration in milliseconds by INSEE department code
+     * @throws SQLException If something wrong happened
+     */
+    public static Map<String, Long> getDepartmentDurations(Connection connection, String pipelineFile)
+            throws SQLException {
+        Map<String, Long> durations = new HashMap<>();
+        try (PreparedStatement st = connection.prepareStatement("SELECT D.INSEE_DEPARTMENT, D.BEGIN_DATE," +
+                " D.END_DATE FROM CAMPAIGN_DEPARTMENTS D INNER JOIN CAMPAIGNS C ON D.PK_CAMPAIGN = C.PK_CAMPAIGN" +
+                " WHERE C.PIPELINE_FILE = ? AND D.STATUS = ? AND D.BEGIN_DATE IS NOT NULL" +
+                " AND D.END_DATE IS NOT NULL ORDER BY D.END_DATE")) {
+            st.setString(1, pipelineFile);
+            st.setString(2, JobStates.COMPLETED.name());
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    // The last computation is kept
+                    durations.put(rs.getString(1), rs.getTimestamp(3).getTime() - rs.getTimestamp(2).getTime());
+                }
+            }
+        }
+        return durations;
+    }
+
+    /**
+     * Delete a finished campaign
+     * @param connection SQL connection
+     * @param campaignId Campaign identifier
+     * @throws SQLException If something wrong happened
+     */
+    public static void deleteCampaign(Connection connection, int campaignId) throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement("DELETE FROM CAMPAIGNS WHERE PK_CAMPAIGN = ?")) {
+            st.setInt(1, campaignId);
+            st.execute();
+        }
+    }
+
     public static List<User> getUsers(Connection connection) throws SQLException {
         List<User> table = new ArrayList<>();
         try(ResultSet rs = connection.createStatement().executeQuery("SELECT * FROM USERS ORDER BY PK_USER")) {
@@ -652,6 +1821,92 @@ public class DatabaseManagement {
 
     }
 
+    /**
+     * Fetch the job scheduling settings of the user
+     * @param connection The database connection object.
+     * @param userIdentifier User identifier
+     * @return User share, the missing settings are taken from the user roles
+     * @throws SQLException If there's an error executing the SQL query
+     */
+    public static UserShare getUserShare(Connection connection, int userIdentifier) throws SQLException {
+        String sql = "SELECT JOB_WEIGHT, MAX_RUNNING_JOBS FROM USERS WHERE PK_USER = ?";
+        Double weight = null;
+        Integer maximumRunningJobs = null;
+        try (PreparedStatement pst = connection.prepareStatement(sql)) {
+            pst.setInt(1, userIdentifier);
+            try (ResultSet rs = pst.executeQuery()) {
+                if (rs.next()) {
+                    weight = rs.getDouble("JOB_WEIGHT");
+                    if (rs.wasNull()) {
+                        weight = null;
+                    }
+                    maximumRunningJobs = rs.getInt("MAX_RUNNING_JOBS");
+                    if (rs.wasNull()) {
+                        maximumRunningJobs = null;
+                    }
+                }
+            }
+        }
+        Set<Role> roles = new HashSet<>();
+        for (String roleName : getUserRoles(connection, userIdentifier)) {
+            try {
+                roles.add(Role.valueOf(roleName));
+            } catch (IllegalArgumentException ex) {
+                // ignore unknown roles
+            }
+        }
+        return UserShare.fromRoles(roles, weight, maximumRunningJobs);
+    }
+
+    /**
+     * Update the job scheduling settings of the user
+     * @param connection The database connection object.
+     * @param userIdentifier User identifier
+     * @param weight Job weight of the user, null to use the role default
+     * @param maximumRunningJobs Maximum number of jobs running at the same time, null to use the server default
+     * @throws SQLException If there's an error executing the SQL update
+     */
+    public static void updateUserShare(Connection connection, int userIdentifier, Double weight,
+                                       Integer maximumRunningJobs) throws SQLException {
+        String sql = "UPDATE USERS SET JOB_WEIGHT = ?, MAX_RUNNING_JOBS = ? WHERE PK_USER = ?";
+        try (PreparedStatement pst = connection.prepareStatement(sql)) {
+            pst.setObject(1, weight, Types.DOUBLE);
+            pst.setObject(2, maximumRunningJobs, Types.INTEGER);
+            pst.setInt(3, userIdentifier);
+            pst.executeUpdate();
+        }
+    }
+
+    /**
+     * Fetch the raw job scheduling settings of the user, as stored in the database
+     * @param connection The database connection object.
+     * @param userIdentifier User identifier
+     * @return Map with the keys weight and maximumRunningJobs, values are empty strings if not set
+     * @throws SQLException If there's an error executing the SQL query
+     */
+    public static Map<String, Object> getUserShareSettings(Connection connection, int userIdentifier) throws SQLException {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("weight", "");
+        settings.put("maximumRunningJobs", "");
+        String sql = "SELECT JOB_WEIGHT, MAX_RUNNING_JOBS FROM USERS WHERE PK_USER = ?";
+        try (PreparedStatement pst = connection.prepareStatement(sql)) {
+            pst.setInt(1, userIdentifier);
+            try (ResultSet rs = pst.executeQuery()) {
+                if (rs.next()) {
+                    double weight = rs.getDouble("JOB_WEIGHT");
+                    if (!rs.wasNull()) {
+                        settings.put("weight", weight);
+                    }
+                    int maximumRunningJobs = rs.getInt("MAX_RUNNING_JOBS");
+                    if (!rs.wasNull()) {
+                        settings.put("maximumRunningJobs", maximumRunningJobs);
+                    }
+                }
+            }
+        }
+        return settings;
+    }
+
     public static void deleteUser(Connection connection, int userIdentifier) throws SQLException{
         if(userIdentifier > 1) {
             // delete user by cascading to deletion
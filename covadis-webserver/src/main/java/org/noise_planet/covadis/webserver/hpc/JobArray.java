@@ -0,0 +1,272 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.hpc;
+
+import org.h2gis.api.ProgressVisitor;
+import org.noise_planet.covadis.webserver.script.JobWorkerProcess;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Array of independent tasks run by {@link JobWorkerProcess}, on a Slurm cluster or on a local pool of processes.
+ * <p>
+ * Both runners share the same contract: the task i reads its request from {@code task_i.json} on its standard input,
+ * writes the protocol lines (result or error) to {@code task_i.out} and its logs to {@code task_i.log}, all files
+ * being in the job array directory. The Slurm array index is given by the {@link #TASK_ID_VARIABLE} variable.
+ * </p>
+ */
+public class JobArray {
+    public static final String TASK_ID_VARIABLE = "SLURM_ARRAY_TASK_ID";
+    public static final String TASKS_SCRIPT = "tasks.sbatch";
+    public static final String MERGE_SCRIPT = "merge.sbatch";
+    public static final String SUBMIT_SCRIPT = "submit.sh";
+    public static final String MERGE_TASK = "merge";
+    /** Memory in MB requested to Slurm on top of the java heap */
+    public static final long SLURM_MEMORY_OVERHEAD = 512;
+    private static final long CANCEL_POLL_INTERVAL = 500;
+    private final Logger logger = LoggerFactory.getLogger(JobArray.class);
+    private final Path directory;
+    private final int taskCount;
+    private final int threads;
+    private final long heap;
+
+    /**
+     * @param directory Directory of the task files, shared by all the nodes
+     * @param taskCount Number of tasks
+     * @param threads Number of processors of each task, 0 for all
+     * @param heap Maximum heap memory of each task in MB, 0 for the JVM default
+     */
+    public JobArray(Path directory, int taskCount, int threads, long heap) {
+        this.directory = directory;
+        this.taskCount = taskCount;
+        this.threads = threads;
+        this.heap = heap;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public int getTaskCount() {
+        return taskCount;
+    }
+
+    /**
+     * @param task Task index or {@link #MERGE_TASK}
+     * @return File read by the task on its standard input
+     */
+    public Path getRequestFile(Object task) {
+        return directory.resolve("task_" + task + ".json");
+    }
+
+    /**
+     * @param task Task index or {@link #MERGE_TASK}
+     * @return File receiving the protocol lines written by the task
+     */
+    public Path getOutputFile(Object task) {
+        return directory.resolve("task_" + task + ".out");
+    }
+
+    /**
+     * @param task Task index or {@link #MERGE_TASK}
+     * @return File receiving the logs of the task
+     */
+    public Path getLogFile(Object task) {
+        return directory.resolve("task_" + task + ".log");
+    }
+
+    /**
+     * @param task Task index or {@link #MERGE_TASK}
+     * @param request Request built by {@link JobWorkerProcess#buildRequest}
+     * @throws IOException If the file can not be written
+     */
+    public void writeRequest(Object task, String request) throws IOException {
+        Files.createDirectories(directory);
+        Files.writeString(getRequestFile(task), request + "\n", StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write the Slurm job array running the tasks, the job merging the task results once all tasks succeeded and the
+     * shell script submitting both jobs.
+     * @param jobName Slurm job name
+     * @param mergeRequest Request of the merge task or null if there is nothing to merge
+     * @return Path of the submission script
+     * @throws IOException If the files can not be written
+     */
+    public Path writeSlurmScripts(String jobName, String mergeRequest) throws IOException {
+        Files.createDirectories(directory);
+        String command = toShellCommand(JobWorkerProcess.buildCommand(threads, heap));
+        String taskId = "${" + TASK_ID_VARIABLE + "}";
+        StringBuilder tasksScript = new StringBuilder();
+        tasksScript.append("#!/bin/bash\n");
+        tasksScript.append("#SBATCH --job-name=").append(jobName).append("\n");
+        tasksScript.append(String.format(Locale.ROOT, "#SBATCH --array=0-%d%n", taskCount - 1));
+        if (threads > 0) {
+            tasksScript.append(String.format(Locale.ROOT, "#SBATCH --cpus-per-task=%d%n", threads));
+        }
+        if (heap > 0) {
+            tasksScript.append(String.format(Locale.ROOT, "#SBATCH --mem=%dM%n", heap + SLURM_MEMORY_OVERHEAD));
+        }
+        tasksScript.append("#SBATCH --output=").append(directory.resolve("slurm_%a.txt")).append("\n");
+        tasksScript.append("cd ").append(quote(directory.toString())).append("\n");
+        tasksScript.append(command).append(" < task_").append(taskId).append(".json > task_").append(taskId)
+                .append(".out 2> task_").append(taskId).append(".log\n");
+        Files.writeString(directory.resolve(TASKS_SCRIPT), tasksScript.toString(), StandardCharsets.UTF_8);
+
+        StringBuilder submitScript = new StringBuilder();
+        submitScript.append("#!/bin/bash\n");
+        submitScript.append("set -e\n");
+        submitScript.append("cd ").append(quote(directory.toString())).append("\n");
+        if (mergeRequest != null) {
+            writeRequest(MERGE_TASK, mergeRequest);
+            StringBuilder mergeScript = new StringBuilder();
+            mergeScript.append("#!/bin/bash\n");
+            mergeScript.append("#SBATCH --job-name=").append(jobName).append("_merge\n");
+            mergeScript.append("#SBATCH --output=").append(directory.resolve("slurm_merge.txt")).append("\n");
+            mergeScript.append("cd ").append(quote(directory.toString())).append("\n");
+            mergeScript.append(toShellCommand(JobWorkerProcess.buildCommand(1, heap))).append(" < task_")
+                    .append(MERGE_TASK).append(".json > task_").append(MERGE_TASK).append(".out 2> task_")
+                    .append(MERGE_TASK).append(".log\n");
+            Files.writeString(directory.resolve(MERGE_SCRIPT), mergeScript.toString(), StandardCharsets.UTF_8);
+            submitScript.append("ARRAY_ID=$(sbatch --parsable ").append(TASKS_SCRIPT).append(")\n");
+            submitScript.append("sbatch --dependency=afterok:${ARRAY_ID} ").append(MERGE_SCRIPT).append("\n");
+        } else {
+            submitScript.append("sbatch ").append(TASKS_SCRIPT).append("\n");
+        }
+        Path submitPath = directory.resolve(SUBMIT_SCRIPT);
+        Files.writeString(submitPath, submitScript.toString(), StandardCharsets.UTF_8);
+        return submitPath;
+    }
+
+    private static String quote(String argument) {
+        return "'" + argument.replace("'", "'\\''") + "'";
+    }
+
+    private static String toShellCommand(List<String> command) {
+        StringBuilder shellCommand = new StringBuilder();
+        for (String argument : command) {
+            if (shellCommand.length() > 0) {
+                shellCommand.append(' ');
+            }
+            shellCommand.append(quote(argument));
+        }
+        return shellCommand.toString();
+    }
+
+    /**
+     * Run the tasks on this computer, with at most the given number of processes at the same time. This emulates
+     * the Slurm job array, with the same task files.
+     * @param parallelism Maximum number of tasks running at the same time
+     * @param progressVisitor Progression, one step per task. The running tasks are stopped if it is canceled
+     * @return Result of each task
+     * @throws IOException If a task can not be started
+     * @throws InterruptedException If the calling thread has been interrupted
+     * @throws IllegalStateException If a task failed or the job array has been canceled
+     */
+    public List<String> runLocal(int parallelism, ProgressVisitor progressVisitor)
+            throws IOException, InterruptedException {
+        ProgressVisitor tasksProgress = progressVisitor.subProcess(taskCount);
+        Set<Process> processes = ConcurrentHashMap.newKeySet();
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        try {
+            List<Future<Integer>> tasks = new ArrayList<>(taskCount);
+            for (int task = 0; task < taskCount; task++) {
+                final int taskIndex = task;
+                tasks.add(executorService.submit(() -> {
+                    if (progressVisitor.isCanceled()) {
+                        return -1;
+                    }
+                    ProcessBuilder processBuilder = new ProcessBuilder(JobWorkerProcess.buildCommand(threads, heap))
+                            .directory(directory.toFile())
+                            .redirectInput(getRequestFile(taskIndex).toFile())
+                            .redirectOutput(getOutputFile(taskIndex).toFile())
+                            .redirectError(getLogFile(taskIndex).toFile());
+                    processBuilder.environment().put(TASK_ID_VARIABLE, String.valueOf(taskIndex));
+                    Process process = processBuilder.start();
+                    processes.add(process);
+                    try {
+                        logger.info("Task {}/{} started (process {})", taskIndex + 1, taskCount, process.pid());
+                        return process.waitFor();
+                    } finally {
+                        processes.remove(process);
+                        tasksProgress.endStep();
+                    }
+                }));
+            }
+            for (Future<Integer> task : tasks) {
+                while (true) {
+                    try {
+                        task.get(CANCEL_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException ex) {
+                        if (progressVisitor.isCanceled()) {
+                            processes.forEach(Process::destroyForcibly);
+                            throw new IllegalStateException("The job array has been canceled");
+                        }
+                    } catch (ExecutionException ex) {
+                        throw new IOException("Unable to run the task", ex.getCause());
+                    }
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+            processes.forEach(Process::destroyForcibly);
+        }
+        List<String> results = new ArrayList<>(taskCount);
+        for (int task = 0; task < taskCount; task++) {
+            results.add(readTaskResult(task));
+        }
+        return results;
+    }
+
+    /**
+     * Read the result written by a finished task
+     * @param task Task index or {@link #MERGE_TASK}
+     * @return Result of the task
+     * @throws IOException If the output file can not be read
+     * @throws IllegalStateException If the task failed or has not been run
+     */
+    public String readTaskResult(Object task) throws IOException {
+        Path outputFile = getOutputFile(task);
+        if (!Files.exists(outputFile)) {
+            throw new IllegalStateException(String.format("The task %s has not been run", task));
+        }
+        String error = null;
+        try (BufferedReader reader = Files.newBufferedReader(outputFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(JobWorkerProcess.RESULT + " ")) {
+                    return JobWorkerProcess.decodeValue(line.substring(JobWorkerProcess.RESULT.length() + 1));
+                } else if (line.startsWith(JobWorkerProcess.ERROR + " ")) {
+                    error = JobWorkerProcess.decodeValue(line.substring(JobWorkerProcess.ERROR.length() + 1));
+                }
+            }
+        }
+        throw new IllegalStateException(String.format("The task %s failed: %s (see %s)", task,
+                error != null ? error : "no result", getLogFile(task)));
+    }
+}
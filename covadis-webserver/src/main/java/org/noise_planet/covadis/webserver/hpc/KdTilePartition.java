@@ -0,0 +1,140 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.hpc;
+
+import org.locationtech.jts.geom.Envelope;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Split a set of points (ex. receivers of a department) into spatial tiles having the same number of points.
+ * The domain is cut recursively at the median of its longest side (k-d split), so the tiles stay compact and the
+ * number of tiles does not need to be a power of two.
+ */
+public class KdTilePartition {
+    private final int[] pointTiles;
+    private final Envelope[] tileEnvelopes;
+    private final int[] tileSizes;
+
+    private KdTilePartition(int[] pointTiles, Envelope[] tileEnvelopes, int[] tileSizes) {
+        this.pointTiles = pointTiles;
+        this.tileEnvelopes = tileEnvelopes;
+        this.tileSizes = tileSizes;
+    }
+
+    /**
+     * Split the points into tiles
+     * @param x X coordinate of the points
+     * @param y Y coordinate of the points
+     * @param tileCount Expected number of tiles, reduced to the number of points if there are fewer points
+     * @return Tile of each point and envelope of each tile
+     */
+    public static KdTilePartition partition(double[] x, double[] y, int tileCount) {
+        if (x.length != y.length) {
+            throw new IllegalArgumentException("The coordinate arrays must have the same length");
+        }
+        if (x.length == 0) {
+            throw new IllegalArgumentException("There is no point to split");
+        }
+        int tiles = Math.max(1, Math.min(tileCount, x.length));
+        Integer[] order = new Integer[x.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        int[] pointTiles = new int[x.length];
+        Envelope[] tileEnvelopes = new Envelope[tiles];
+        int[] tileSizes = new int[tiles];
+        split(x, y, order, 0, order.length, 0, tiles, pointTiles, tileEnvelopes, tileSizes);
+        return new KdTilePartition(pointTiles, tileEnvelopes, tileSizes);
+    }
+
+    /**
+     * Assign the points order[from, to) to the tiles [firstTile, firstTile + tileCount)
+     */
+    private static void split(double[] x, double[] y, Integer[] order, int from, int to, int firstTile,
+                              int tileCount, int[] pointTiles, Envelope[] tileEnvelopes, int[] tileSizes) {
+        Envelope envelope = new Envelope();
+        for (int i = from; i < to; i++) {
+            envelope.expandToInclude(x[order[i]], y[order[i]]);
+        }
+        if (tileCount == 1) {
+            for (int i = from; i < to; i++) {
+                pointTiles[order[i]] = firstTile;
+            }
+            tileEnvelopes[firstTile] = envelope;
+            tileSizes[firstTile] = to - from;
+            return;
+        }
+        double[] axis = envelope.getWidth() >= envelope.getHeight() ? x : y;
+        Arrays.sort(order, from, to, Comparator.comparingDouble(point -> axis[point]));
+        int lowTiles = tileCount / 2;
+        // Points are shared proportionally to the number of tiles on each side
+        int middle = from + (int) ((long) (to - from) * lowTiles / tileCount);
+        split(x, y, order, from, middle, firstTile, lowTiles, pointTiles, tileEnvelopes, tileSizes);
+        split(x, y, order, middle, to, firstTile + lowTiles, tileCount - lowTiles, pointTiles, tileEnvelopes,
+                tileSizes);
+    }
+
+    /**
+     * @return Number of tiles
+     */
+    public int getTileCount() {
+        return tileEnvelopes.length;
+    }
+
+    /**
+     * @param point Point index
+     * @return Tile of this point
+     */
+    public int getTile(int point) {
+        return pointTiles[point];
+    }
+
+    /**
+     * @param tile Tile index
+     * @return Envelope of the points of this tile
+     */
+    public Envelope getEnvelope(int tile) {
+        return new Envelope(tileEnvelopes[tile]);
+    }
+
+    /**
+     * @param tile Tile index
+     * @param buffer Distance added around the tile (ex. maximum propagation distance)
+     * @return Envelope of the points of this tile expanded by the buffer distance
+     */
+    public Envelope getBufferedEnvelope(int tile, double buffer) {
+        Envelope envelope = getEnvelope(tile);
+        envelope.expandBy(buffer);
+        return envelope;
+    }
+
+    /**
+     * @param tile Tile index
+     * @return Number of points of this tile
+     */
+    public int getTileSize(int tile) {
+        return tileSizes[tile];
+    }
+
+    /**
+     * @return Envelopes of all tiles
+     */
+    public List<Envelope> getEnvelopes() {
+        List<Envelope> envelopes = new ArrayList<>(tileEnvelopes.length);
+        for (Envelope envelope : tileEnvelopes) {
+            envelopes.add(new Envelope(envelope));
+        }
+        return envelopes;
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.pipeline;
+
+import groovy.json.JsonSlurper;
+import org.noise_planet.covadis.webserver.script.JobStates;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * National campaign: the same pipeline (ex. the PlaMADE department chain) run on a list of departments.
+ * <p>
+ * The departments are computed in the Longest Processing Time first order, using the duration of the previous
+ * computation of each department with the same pipeline. Starting with the longest departments keeps the short ones
+ * to fill the end of the campaign, so the last running departments end at about the same time.
+ * </p>
+ * <p>
+ * The duration of the departments never computed is estimated from their size given in the campaign parameters
+ * ({@link #SIZES_PARAMETER}, ex. the number of road and rail sections or buildings), scaled by the duration per size
+ * unit of the computed departments.
+ * </p>
+ */
+public class Campaign {
+    /** Pipeline parameter receiving the department code */
+    public static final String DEPARTMENT_PARAMETER = "inseeDepartment";
+    /** Campaign parameter giving the size of each department (ex. {"75": 180000, "48": 9000}) */
+    public static final String SIZES_PARAMETER = "departmentSizes";
+    /** INSEE department code: metropolitan, overseas (3 digits) or Corsica */
+    private static final Pattern DEPARTMENT_CODE = Pattern.compile("^(\\d{2,3}|2A|2B)$");
+
+    final public int id;
+    final public int userId;
+    final public String name;
+    final public String pipelineFile;
+    final public Map<String, Object> parameters;
+    /** Maximum number of departments computed at the same time */
+    final public int concurrency;
+
+    public Campaign(int id, int userId, String name, String pipelineFile, Map<String, Object> parameters,
+                    int concurrency) {
+        this.id = id;
+        this.userId = userId;
+        this.name = name;
+        this.pipelineFile = pipelineFile;
+        this.parameters = Collections.unmodifiableMap(parameters);
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * @param row Campaign read with {@link org.noise_planet.covadis.webserver.database.DatabaseManagement#getCampaign}
+     * @return Campaign
+     */
+    public static Campaign fromRow(Map<String, Object> row) {
+        Map<String, Object> parameters = new HashMap<>();
+        String encodedParameters = (String) row.get("parameters");
+        if (encodedParameters != null && !encodedParameters.isBlank()) {
+            Object parsed = new JsonSlurper().parseText(encodedParameters);
+            if (parsed instanceof Map) {
+                ((Map<?, ?>) parsed).forEach((key, value) -> parameters.put(key.toString(), value));
+            }
+        }
+        return new Campaign((Integer) row.get("id"), (Integer) row.get("userId"), (String) row.get("name"),
+                (String) row.get("pipelineFile"), parameters, (Integer) row.get("concurrency"));
+    }
+
+    /**
+     * @param department Department code given by the user
+     * @return Department code in upper case (ex. 2A)
+     * @throws IllegalArgumentException If this is not an INSEE department code, the code is used in the department
+     * database file name
+     */
+    public static String checkDepartment(String department) {
+        String code = department.trim().toUpperCase(Locale.ROOT);
+        if (!DEPARTMENT_CODE.matcher(code).matches()) {
+            throw new IllegalArgumentException("Invalid department code " + department);
+        }
+        return code;
+    }
+
+    /**
+     * @param sizes Value of the {@link #SIZES_PARAMETER} campaign parameter, null if not given
+     * @return Size of the departments by department code
+     * @throws IllegalArgumentException If the sizes are not a JSON object of department codes and positive numbers
+     */
+    public static Map<String, Double> parseDepartmentSizes(Object sizes) {
+        Map<String, Double> departmentSizes = new HashMap<>();
+        if (sizes == null) {
+            return departmentSizes;
+        }
+        if (!(sizes instanceof Map)) {
+            throw new IllegalArgumentException("The " + SIZES_PARAMETER + " parameter must be a JSON object");
+        }
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) sizes).entrySet()) {
+            double size;
+            try {
+                size = Double.parseDouble(String.valueOf(entry.getValue()));
+            } catch (NumberFormatException ex) {
+                size = -1;
+            }
+            if (!(size >= 0) || Double.isInfinite(size)) {
+                throw new IllegalArgumentException("Invalid size " + entry.getValue() + " of the department " +
+                        entry.getKey());
+            }
+            departmentSizes.put(checkDepartment(entry.getKey().toString()), size);
+        }
+        return departmentSizes;
+    }
+
+    /**
+     * @return Size of the departments given in the campaign parameters
+     */
+    public Map<String, Double> getDepartmentSizes() {
+        return parseDepartmentSizes(parameters.get(SIZES_PARAMETER));
+    }
+
+    /**
+     * Estimate the duration of the departments. The duration of a department never computed is its size multiplied
+     * by the duration per size unit of the computed departments having a size.
+     * @param departments INSEE department codes
+     * @param durations Duration of the previous computation by department
+     * @param sizes Size of the departments
+     * @return Estimated duration by department, the departments without any estimation are missing
+     */
+    public static Map<String, Long> estimateDurations(Collection<String> departments, Map<String, Long> durations,
+                                                      Map<String, Double> sizes) {
+        double totalDuration = 0;
+        double totalSize = 0;
+        for (Map.Entry<String, Long> entry : durations.entrySet()) {
+            Double size = sizes.get(entry.getKey());
+            if (size != null && size > 0 && entry.getValue() >= 0) {
+                totalDuration += entry.getValue();
+                totalSize += size;
+            }
+        }
+        Map<String, Long> estimations = new HashMap<>();
+        for (String department : departments) {
+            long duration = durations.getOrDefault(department, -1L);
+            Double size = sizes.get(department);
+            if (duration >= 0) {
+                estimations.put(department, duration);
+            } else if (size != null && totalSize > 0) {
+                estimations.put(department, Math.round(size * totalDuration / totalSize));
+            }
+        }
+        return estimations;
+    }
+
+    /**
+     * Order the departments for the Longest Processing Time first schedule. The departments never computed are
+     * placed first, as their duration is unknown they must not be the last ones to start.
+     * @param departments INSEE department codes
+     * @param durations Duration of the previous computation by department
+     * @return Departments in the computation order
+     */
+    public static List<String> orderByCost(Collection<String> departments, Map<String, Long> durations) {
+        return orderByCost(departments, durations, Collections.emptyMap());
+    }
+
+    /**
+     * Order the departments for the Longest Processing Time first schedule, using the estimated durations (see
+     * {@link #estimateDurations}). The departments without estimation are placed first, the largest ones first.
+     * @param departments INSEE department codes
+     * @param durations Duration of the previous computation by department
+     * @param sizes Size of the departments
+     * @return Departments in the computation order
+     */
+    public static List<String> orderByCost(Collection<String> departments, Map<String, Long> durations,
+                                           Map<String, Double> sizes) {
+        Map<String, Long> estimations = estimateDurations(departments, durations, sizes);
+        List<String> ordered = new ArrayList<>(departments);
+        ordered.sort(Comparator.comparingLong((String department) ->
+                        estimations.getOrDefault(department, Long.MAX_VALUE))
+                .thenComparingDouble(department -> sizes.getOrDefault(department, 0.0)).reversed());
+        return ordered;
+    }
+
+    /**
+     * Compute the campaign throughput from its departments
+     * @param beginDate Campaign begin date, null if not started
+     * @param departments Rows read with
+     *                    {@link org.noise_planet.covadis.webserver.database.DatabaseManagement#getCampaignDepartments}
+     * @param now Current time in milliseconds
+     * @return completed, failed and remaining department counts, throughput (departments per hour, -1 if unknown) and
+     * remaining time (milliseconds, -1 if unknown)
+     */
+    public static Map<String, Object> getStatistics(Timestamp beginDate, List<Map<String, Object>> departments,
+                                                    long now) {
+        int completed = 0;
+        int failed = 0;
+        int remaining = 0;
+        for (Map<String, Object> department : departments) {
+            String status = (String) department.get("status");
+            if (JobStates.COMPLETED.name().equals(status)) {
+                completed++;
+            } else if (JobStates.FAILED.name().equals(status) || JobStates.CANCELED.name().equals(status)) {
+                failed++;
+            } else {
+                remaining++;
+            }
+        }
+        double throughput = -1;
+        long remainingMillis = -1;
+        if (beginDate != null && completed > 0) {
+            double elapsedHours = Math.max(1, now - beginDate.getTime()) / 3_600_000.0;
+            throughput = completed / elapsedHours;
+            remainingMillis = Math.round(remaining / throughput * 3_600_000.0);
+        }
+        Map<String, Object> statistics = new HashMap<>();
+        statistics.put("completed", completed);
+        statistics.put("failed", failed);
+        statistics.put("remaining", remaining);
+        statistics.put("throughput", throughput);
+        statistics.put("remainingMillis", remainingMillis);
+        return statistics;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d:%s", id, name);
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.pipeline;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.h2gis.api.ProgressVisitor;
+import org.noise_planet.covadis.webserver.Configuration;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+import org.noise_planet.covadis.webserver.script.JobExecutorService;
+import org.noise_planet.covadis.webserver.script.JobStates;
+import org.noise_planet.noisemodelling.pathfinder.utils.profiler.RootProgressVisitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Run the departments of a {@link Campaign}.
+ * <p>
+ * The departments are started in the Longest Processing Time first order, up to the campaign concurrency. A
+ * department is only started when no running department is in its I/O step (the extraction of the department data
+ * from the remote database), so the extraction of the next department overlaps the noise propagation of the
+ * current one instead of competing with another extraction for the network.
+ * </p>
+ * <p>
+ * When the runner shares the server with the job queue ({@link #setJobExecutorService}), each department reserves its
+ * threads (the pipeline parallelism) and heap before starting, so the departments and the jobs do not oversubscribe
+ * the server. The departments of a campaign wait for the resources released by the jobs.
+ * </p>
+ * <p>
+ * The PlaMADE scripts use fixed table names, so each department is computed in its own database. The pipeline
+ * checkpoints are kept in this database: a campaign restored after a server restart resumes the interrupted
+ * departments from their last completed step. A failed department does not stop the other ones.
+ * </p>
+ */
+public class CampaignRunner implements Runnable {
+    /** Pipeline step reading the department data, the other steps are limited by the processors */
+    public static final String IO_STEP = "extract";
+    /** Pipeline parameter giving the number of parallel steps of each department */
+    public static final String PARALLELISM_PARAMETER = "parallelism";
+    /** Pipeline parameter giving the heap memory in MB reserved for each department */
+    public static final String HEAP_PARAMETER = "departmentHeap";
+    private static final long POLL_INTERVAL = 500;
+    private final Logger logger = LoggerFactory.getLogger(CampaignRunner.class);
+    private final int campaignId;
+    private final DataSource serverDataSource;
+    private final Configuration configuration;
+    private final boolean initializeSpatial;
+    private final Map<String, ProgressVisitor> runningDepartments = new ConcurrentHashMap<>();
+    private final AtomicBoolean canceled = new AtomicBoolean(false);
+    /** Stopped by the server shutdown, the campaign will be restored on the next start */
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
+    private JobExecutorService jobExecutorService = null;
+
+    /**
+     * @param campaignId Campaign identifier
+     * @param serverDataSource Server database, holding the campaign state
+     * @param configuration Server configuration, the department databases are created in the working directory
+     * @param initializeSpatial True to add the spatial functions to the department databases
+     */
+    public CampaignRunner(int campaignId, DataSource serverDataSource, Configuration configuration,
+                          boolean initializeSpatial) {
+        this.campaignId = campaignId;
+        this.serverDataSource = serverDataSource;
+        this.configuration = configuration;
+        this.initializeSpatial = initializeSpatial;
+    }
+
+    /**
+     * @param jobExecutorService Job queue sharing the server resources with the departments, null to not reserve
+     *                           any resources
+     */
+    public void setJobExecutorService(JobExecutorService jobExecutorService) {
+        this.jobExecutorService = jobExecutorService;
+    }
+
+    public int getCampaignId() {
+        return campaignId;
+    }
+
+    /**
+     * @param campaignId Campaign identifier
+     * @param department INSEE department code
+     * @return Name of the database of the department
+     * @throws IllegalArgumentException If this is not an INSEE department code
+     */
+    public static String getDepartmentDatabaseName(int campaignId, String department) {
+        return String.format("campaign_%03d_%s", campaignId, Campaign.checkDepartment(department));
+    }
+
+    /**
+     * @return Progression [0-1] of the running departments
+     */
+    public Map<String, Double> getRunningDepartments() {
+        Map<String, Double> progression = new HashMap<>();
+        runningDepartments.forEach((department, progressVisitor) ->
+                progression.put(department, progressVisitor.getProgression()));
+        return progression;
+    }
+
+    /**
+     * Cancel the running departments and do not start the other ones
+     */
+    public void cancel() {
+        canceled.set(true);
+        runningDepartments.values().forEach(ProgressVisitor::cancel);
+    }
+
+    /**
+     * Interrupt the campaign without changing its state, it will be resumed by the next server start
+     */
+    public void stop() {
+        stopped.set(true);
+        cancel();
+    }
+
+    @Override
+    public void run() {
+        Thread.currentThread().setName("CAMPAIGN_" + campaignId);
+        try {
+            runCampaign();
+        } catch (Exception ex) {
+            logger.error("Campaign {} failed", campaignId, ex);
+            try (Connection connection = serverDataSource.getConnection()) {
+                DatabaseManagement.setCampaignState(connection, campaignId, JobStates.FAILED);
+            } catch (SQLException sqlException) {
+                logger.error("Unable to write the campaign {} state", campaignId, sqlException);
+            }
+        }
+    }
+
+    private void runCampaign() throws SQLException, InterruptedException, IOException {
+        Campaign campaign;
+        Deque<String> queue = new ArrayDeque<>();
+        try (Connection connection = serverDataSource.getConnection()) {
+            Map<String, Object> row = DatabaseManagement.getCampaign(connection, campaignId);
+            if (row.isEmpty()) {
+                return;
+            }
+            campaign = Campaign.fromRow(row);
+            DatabaseManagement.setCampaignState(connection, campaignId, JobStates.RUNNING);
+            List<String> pending = new ArrayList<>();
+            List<Map<String, Object>> departments = DatabaseManagement.getCampaignDepartments(connection,
+                    campaignId);
+            for (Map<String, Object> department : departments) {
+                if (!JobStates.COMPLETED.name().equals(department.get("status"))) {
+                    pending.add((String) department.get("department"));
+                }
+            }
+            Map<String, Long> durations = DatabaseManagement.getDepartmentDurations(connection,
+                    campaign.pipelineFile);
+            // The completed departments of a restored campaign keep the first ranks
+            int rank = departments.size() - pending.size();
+            Map<String, Double> sizes = campaign.getDepartmentSizes();
+            Map<String, Long> estimations = Campaign.estimateDurations(pending, durations, sizes);
+            for (String department : Campaign.orderByCost(pending, durations, sizes)) {
+                DatabaseManagement.setCampaignDepartmentRank(connection, campaignId, department, rank++,
+                        estimations.getOrDefault(department, -1L));
+                DatabaseManagement.setCampaignDepartmentState(connection, campaignId, department, JobStates.QUEUED,
+                        null);
+                queue.add(department);
+            }
+        }
+        Pipeline pipeline = Pipeline.load(configuration.getPipelinesDirectory(), campaign.pipelineFile);
+        boolean hasIoStep = pipeline.getStep(IO_STEP) != null;
+        int requiredThreads = getParallelism(campaign);
+        long requiredHeap = Long.parseLong(campaign.parameters.getOrDefault(HEAP_PARAMETER, 0).toString());
+        logger.info("Campaign {} started, {} department(s) in the order {}", campaign, queue.size(), queue);
+        Map<String, AtomicBoolean> readingDepartments = new ConcurrentHashMap<>();
+        Map<Future<String>, String> running = new HashMap<>();
+        ExecutorService executorService = Executors.newFixedThreadPool(campaign.concurrency);
+        CompletionService<String> completionService = new ExecutorCompletionService<>(executorService);
+        boolean failed = false;
+        long begin = System.currentTimeMillis();
+        int completed = 0;
+        try {
+            while (true) {
+                while (!canceled.get() && !queue.isEmpty() && running.size() < campaign.concurrency &&
+                        readingDepartments.values().stream().noneMatch(AtomicBoolean::get) &&
+                        (jobExecutorService == null ||
+                                jobExecutorService.reserveResources(requiredThreads, requiredHeap))) {
+                    String department = queue.poll();
+                    AtomicBoolean reading = new AtomicBoolean(hasIoStep);
+                    readingDepartments.put(department, reading);
+                    ProgressVisitor progressVisitor = new RootProgressVisitor(1, false, 5);
+                    runningDepartments.put(department, progressVisitor);
+                    try (Connection connection = serverDataSource.getConnection()) {
+                        DatabaseManagement.setCampaignDepartmentState(connection, campaignId, department,
+                                JobStates.RUNNING, null);
+                    }
+                    logger.info("Campaign {} department {} started", campaign, department);
+                    running.put(completionService.submit(() -> runDepartment(campaign, pipeline, department,
+                            progressVisitor, reading)), department);
+                }
+                if (running.isEmpty() && (queue.isEmpty() || canceled.get())) {
+                    break;
+                }
+                Future<String> done = completionService.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    continue;
+                }
+                String department = running.remove(done);
+                releaseResources(requiredThreads, requiredHeap);
+                readingDepartments.remove(department);
+                runningDepartments.remove(department);
+                JobStates state;
+                String result;
+                try {
+                    result = done.get();
+                    state = JobStates.COMPLETED;
+                    completed++;
+                    double hours = Math.max(1, System.currentTimeMillis() - begin) / 3_600_000.0;
+                    logger.info("Campaign {} department {} completed, {} department(s) per hour, {} remaining",
+                            campaign, department, String.format("%.2f", completed / hours),
+                            queue.size() + running.size());
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    result = cause.getLocalizedMessage();
+                    state = stopped.get() ? JobStates.QUEUED : canceled.get() ? JobStates.CANCELED :
+                            JobStates.FAILED;
+                    if (state == JobStates.FAILED) {
+                        failed = true;
+                        logger.error("Campaign {} department {} failed", campaign, department, cause);
+                    }
+                }
+                try (Connection connection = serverDataSource.getConnection()) {
+                    DatabaseManagement.setCampaignDepartmentState(connection, campaignId, department, state, result);
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+            // Departments interrupted by an error of the runner
+            running.values().forEach(department -> releaseResources(requiredThreads, requiredHeap));
+        }
+        if (stopped.get()) {
+            logger.info("Campaign {} interrupted, it will be resumed on the next start", campaign);
+            return;
+        }
+        try (Connection connection = serverDataSource.getConnection()) {
+            for (String department : queue) {
+                DatabaseManagement.setCampaignDepartmentState(connection, campaignId, department, JobStates.CANCELED,
+                        null);
+            }
+            JobStates state = canceled.get() ? JobStates.CANCELED : failed ? JobStates.FAILED : JobStates.COMPLETED;
+            DatabaseManagement.setCampaignState(connection, campaignId, state);
+            logger.info("Campaign {} ended with the state {}", campaign, state);
+        }
+    }
+
+    private void releaseResources(int requiredThreads, long requiredHeap) {
+        if (jobExecutorService != null) {
+            jobExecutorService.releaseResources(requiredThreads, requiredHeap);
+        }
+    }
+
+    private static int getParallelism(Campaign campaign) {
+        return Integer.parseInt(campaign.parameters.getOrDefault(PARALLELISM_PARAMETER, 2).toString());
+    }
+
+    private String runDepartment(Campaign campaign, Pipeline pipeline, String department,
+                                 ProgressVisitor progressVisitor, AtomicBoolean reading) throws Exception {
+        Path workingDirectory = Path.of(configuration.getWorkingDirectory(), "campaign",
+                String.format("campaign_%03d", campaignId), department);
+        Files.createDirectories(workingDirectory);
+        try (HikariDataSource dataSource = DatabaseManagement.createH2DataSource(configuration.getWorkingDirectory(),
+                getDepartmentDatabaseName(campaignId, department), configuration.getDatabaseUser(),
+                configuration.getDatabasePassword(), "", initializeSpatial)) {
+            Map<String, Object> parameters = new HashMap<>(campaign.parameters);
+            parameters.remove(Campaign.SIZES_PARAMETER);
+            parameters.put(Campaign.DEPARTMENT_PARAMETER, department);
+            PipelineExecutor executor = new PipelineExecutor(pipeline, dataSource, getParallelism(campaign));
+            executor.setSystemInput("workingDirectory", workingDirectory.toString());
+            executor.setSystemInput("_configuration", configuration);
+            executor.setSystemInput("_dataSource", dataSource);
+            executor.setStepListener(step -> {
+                if (IO_STEP.equals(step.id)) {
+                    // Let the next department start its extraction
+                    reading.set(false);
+                }
+            });
+            try {
+                Map<String, String> results = executor.run(parameters, progressVisitor);
+                StringBuilder resultString = new StringBuilder();
+                results.forEach((step, result) -> resultString.append("<b>").append(step).append("</b> : ")
+                        .append(result).append("</br>"));
+                return resultString.toString();
+            } finally {
+                reading.set(false);
+            }
+        }
+    }
+}
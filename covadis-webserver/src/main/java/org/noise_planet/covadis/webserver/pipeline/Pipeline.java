@@ -0,0 +1,257 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.pipeline;
+
+import org.noise_planet.covadis.webserver.script.ScriptMetadataExtractor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Directed acyclic graph of script executions.
+ * <p>
+ * A pipeline is defined in a Groovy file, in the same way as the script metadata:
+ * </p>
+ * <pre>
+ * title = 'PlaMADE department'
+ * steps = [
+ *     road: [script: 's4_Road_Noise_level.groovy', inputs: [confId: '${confId}'],
+ *            dependsOn: ['receivers', 'emission'], outputs: [lden: 'LDEN_ROADS']],
+ *     road_isosurface: [script: 's5_Isosurface.groovy', inputs: [rail_or_road: 2, table: '${road.lden}'],
+ *            dependsOn: ['road'], lock: 'isosurface']
+ * ]
+ * </pre>
+ * <p>
+ * The definition is read from the syntax tree of the file, without running it, so the title and steps must be
+ * literals. The script paths are relative to the definition file. In the inputs (single quoted strings), {@code ${name}} is
+ * replaced by a pipeline parameter and {@code ${step.output}} by an output table of a previous step, or by its
+ * result with {@code ${step.result}}.
+ * </p>
+ */
+public class Pipeline {
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\$\\{([^}]+)}");
+    private static final Set<String> DEFINITION_VARIABLES = Set.of("title", "steps");
+    public static final String RESULT_OUTPUT = "result";
+
+    final public String title;
+    private final Map<String, PipelineStep> steps;
+
+    public Pipeline(String title, Collection<PipelineStep> steps) {
+        this.title = title;
+        Map<String, PipelineStep> stepMap = new LinkedHashMap<>();
+        for (PipelineStep step : steps) {
+            if (stepMap.put(step.id, step) != null) {
+                throw new IllegalArgumentException("Duplicate pipeline step " + step.id);
+            }
+        }
+        this.steps = Collections.unmodifiableMap(stepMap);
+        checkGraph();
+    }
+
+    /**
+     * Locate a pipeline definition file given by a user
+     * @param pipelinesDirectory Directory of the pipeline definitions that can be run
+     * @param pipelineFile Definition file, relative to the pipelines directory
+     * @return Definition file location
+     * @throws IllegalArgumentException If the file is outside the pipelines directory or does not exist
+     */
+    public static Path resolveDefinitionFile(Path pipelinesDirectory, String pipelineFile) {
+        Path directory = pipelinesDirectory.toAbsolutePath().normalize();
+        Path definitionFile = directory.resolve(pipelineFile).normalize();
+        if (!definitionFile.startsWith(directory) || definitionFile.equals(directory)) {
+            throw new IllegalArgumentException("The pipeline file " + pipelineFile + " is not in the pipelines" +
+                    " directory " + directory);
+        }
+        if (!Files.isRegularFile(definitionFile)) {
+            throw new IllegalArgumentException("The pipeline file " + pipelineFile + " does not exist");
+        }
+        return definitionFile;
+    }
+
+    /**
+     * Load a pipeline definition file of the pipelines directory
+     * @param pipelinesDirectory Directory of the pipeline definitions that can be run
+     * @param pipelineFile Definition file, relative to the pipelines directory
+     * @return Pipeline
+     * @throws IOException If the definition can not be read
+     * @throws IllegalArgumentException If the file is outside the pipelines directory or the definition is not valid
+     */
+    public static Pipeline load(Path pipelinesDirectory, String pipelineFile) throws IOException {
+        return load(resolveDefinitionFile(pipelinesDirectory, pipelineFile));
+    }
+
+    /**
+     * Load a pipeline definition file
+     * @param definitionFile Groovy file defining the title and steps variables
+     * @return Pipeline
+     * @throws IOException If the definition can not be read
+     * @throws IllegalArgumentException If the definition is not valid (not literals, unknown dependency, cycle...)
+     */
+    public static Pipeline load(Path definitionFile) throws IOException {
+        Map<String, Object> variables = ScriptMetadataExtractor.extractVariables(
+                Files.readString(definitionFile, StandardCharsets.UTF_8), definitionFile.getFileName().toString(),
+                DEFINITION_VARIABLES);
+        if (variables == null) {
+            throw new IllegalArgumentException("The pipeline " + definitionFile + " can not be parsed or its" +
+                    " title and steps are not literals");
+        }
+        Object stepsValue = variables.get("steps");
+        if (!(stepsValue instanceof Map)) {
+            throw new IllegalArgumentException("The pipeline " + definitionFile + " does not define steps");
+        }
+        Path baseDirectory = definitionFile.toAbsolutePath().getParent();
+        List<PipelineStep> steps = new ArrayList<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) stepsValue).entrySet()) {
+            String id = entry.getKey().toString();
+            if (!(entry.getValue() instanceof Map) || !((Map<?, ?>) entry.getValue()).containsKey("script")) {
+                throw new IllegalArgumentException("The pipeline step " + id + " does not define a script");
+            }
+            Map<?, ?> attributes = (Map<?, ?>) entry.getValue();
+            Map<String, Object> inputs = new LinkedHashMap<>();
+            if (attributes.get("inputs") instanceof Map) {
+                ((Map<?, ?>) attributes.get("inputs")).forEach((k, v) -> inputs.put(k.toString(), v));
+            }
+            List<String> dependsOn = new ArrayList<>();
+            if (attributes.get("dependsOn") instanceof Collection) {
+                ((Collection<?>) attributes.get("dependsOn")).forEach(d -> dependsOn.add(d.toString()));
+            }
+            Map<String, String> outputs = new LinkedHashMap<>();
+            if (attributes.get("outputs") instanceof Map) {
+                ((Map<?, ?>) attributes.get("outputs")).forEach((k, v) -> outputs.put(k.toString(), v.toString()));
+            }
+            Object lock = attributes.get("lock");
+            steps.add(new PipelineStep(id, baseDirectory.resolve(attributes.get("script").toString()), inputs,
+                    dependsOn, outputs, lock != null ? lock.toString() : null));
+        }
+        return new Pipeline(variables.containsKey("title") ? variables.get("title").toString() :
+                definitionFile.getFileName().toString(), steps);
+    }
+
+    /**
+     * @throws IllegalArgumentException If a step depends on an unknown step or if there is a cycle
+     */
+    private void checkGraph() {
+        for (PipelineStep step : steps.values()) {
+            for (String dependency : step.dependsOn) {
+                if (!steps.containsKey(dependency)) {
+                    throw new IllegalArgumentException(String.format("The step %s depends on the unknown step %s",
+                            step.id, dependency));
+                }
+            }
+        }
+        Set<String> done = new HashSet<>();
+        Set<String> visiting = new HashSet<>();
+        for (String stepId : steps.keySet()) {
+            visit(stepId, done, visiting);
+        }
+    }
+
+    private void visit(String stepId, Set<String> done, Set<String> visiting) {
+        if (done.contains(stepId)) {
+            return;
+        }
+        if (!visiting.add(stepId)) {
+            throw new IllegalArgumentException("The pipeline steps have a cyclic dependency on " + stepId);
+        }
+        for (String dependency : steps.get(stepId).dependsOn) {
+            visit(dependency, done, visiting);
+        }
+        visiting.remove(stepId);
+        done.add(stepId);
+    }
+
+    /**
+     * @return Steps in the definition order
+     */
+    public Collection<PipelineStep> getSteps() {
+        return steps.values();
+    }
+
+    /**
+     * @param stepId Step identifier
+     * @return The step or null if unknown
+     */
+    public PipelineStep getStep(String stepId) {
+        return steps.get(stepId);
+    }
+
+    /**
+     * Replace the placeholders of the step inputs
+     * @param step Pipeline step
+     * @param parameters Pipeline parameters
+     * @param results Result of the completed steps
+     * @return Inputs given to the step script
+     * @throws IllegalArgumentException If a placeholder can not be resolved
+     */
+    public Map<String, Object> resolveInputs(PipelineStep step, Map<String, Object> parameters,
+                                             Map<String, Object> results) {
+        Map<String, Object> inputs = new HashMap<>();
+        for (Map.Entry<String, Object> input : step.inputs.entrySet()) {
+            inputs.put(input.getKey(), resolveValue(input.getValue(), parameters, results));
+        }
+        return inputs;
+    }
+
+    private Object resolveValue(Object value, Map<String, Object> parameters, Map<String, Object> results) {
+        if (!(value instanceof CharSequence)) {
+            return value;
+        }
+        String text = value.toString();
+        Matcher matcher = PLACEHOLDER.matcher(text);
+        if (matcher.matches()) {
+            // Keep the type of the parameter (ex. Integer)
+            return resolvePlaceholder(matcher.group(1), parameters, results);
+        }
+        StringBuilder resolved = new StringBuilder();
+        while (matcher.find()) {
+            matcher.appendReplacement(resolved, Matcher.quoteReplacement(
+                    String.valueOf(resolvePlaceholder(matcher.group(1), parameters, results))));
+        }
+        matcher.appendTail(resolved);
+        return resolved.toString();
+    }
+
+    private Object resolvePlaceholder(String name, Map<String, Object> parameters, Map<String, Object> results) {
+        int separator = name.indexOf('.');
+        if (separator > 0 && steps.containsKey(name.substring(0, separator))) {
+            String stepId = name.substring(0, separator);
+            String output = name.substring(separator + 1);
+            if (RESULT_OUTPUT.equals(output)) {
+                if (!results.containsKey(stepId)) {
+                    throw new IllegalArgumentException("The step " + stepId + " is not completed");
+                }
+                return results.get(stepId);
+            }
+            String table = steps.get(stepId).outputs.get(output);
+            if (table == null) {
+                throw new IllegalArgumentException("The step " + stepId + " does not declare the output " + output);
+            }
+            // The table name may depend on the pipeline parameters
+            return resolveValue(table, parameters, results);
+        }
+        if (!parameters.containsKey(name)) {
+            throw new IllegalArgumentException("Missing pipeline parameter " + name);
+        }
+        return parameters.get(name);
+    }
+}
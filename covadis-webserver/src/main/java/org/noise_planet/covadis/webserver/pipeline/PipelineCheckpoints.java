@@ -0,0 +1,102 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.pipeline;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Completed pipeline steps, stored in the user database next to the tables they produced. Removing the tables with
+ * the database manager scripts also removes the checkpoints.
+ */
+public class PipelineCheckpoints {
+    public static final String TABLE_NAME = "PIPELINE_CHECKPOINTS";
+
+    private PipelineCheckpoints() {
+    }
+
+    /**
+     * Create the checkpoint table if it does not exist
+     * @param connection User database connection
+     * @throws SQLException If the table can not be created
+     */
+    public static void createTable(Connection connection) throws SQLException {
+        try (Statement st = connection.createStatement()) {
+            st.execute("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (PIPELINE VARCHAR NOT NULL," +
+                    " STEP VARCHAR NOT NULL, STEP_KEY VARCHAR NOT NULL, RESULT VARCHAR," +
+                    " END_DATE TIMESTAMP WITH TIME ZONE DEFAULT CURRENT_TIMESTAMP, PRIMARY KEY (PIPELINE, STEP))");
+        }
+    }
+
+    /**
+     * @param connection User database connection
+     * @param pipeline Pipeline title
+     * @param step Step identifier
+     * @param stepKey Hash of the step script and inputs
+     * @return Result of the step if it has been completed with the same key, null otherwise
+     * @throws SQLException If the table can not be read
+     */
+    public static String getCompletedStep(Connection connection, String pipeline, String step, String stepKey)
+            throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement("SELECT RESULT FROM " + TABLE_NAME +
+                " WHERE PIPELINE = ? AND STEP = ? AND STEP_KEY = ?")) {
+            st.setString(1, pipeline);
+            st.setString(2, step);
+            st.setString(3, stepKey);
+            try (ResultSet rs = st.executeQuery()) {
+                if (rs.next()) {
+                    String result = rs.getString(1);
+                    return result != null ? result : "";
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Record a completed step
+     * @param connection User database connection
+     * @param pipeline Pipeline title
+     * @param step Step identifier
+     * @param stepKey Hash of the step script and inputs
+     * @param result Result of the step script
+     * @throws SQLException If the checkpoint can not be written
+     */
+    public static void saveCompletedStep(Connection connection, String pipeline, String step, String stepKey,
+                                         String result) throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement("MERGE INTO " + TABLE_NAME +
+                " (PIPELINE, STEP, STEP_KEY, RESULT, END_DATE) KEY (PIPELINE, STEP)" +
+                " VALUES (?, ?, ?, ?, CURRENT_TIMESTAMP)")) {
+            st.setString(1, pipeline);
+            st.setString(2, step);
+            st.setString(3, stepKey);
+            st.setString(4, result);
+            st.executeUpdate();
+        }
+    }
+
+    /**
+     * Forget the completed steps, so the next run computes all the steps
+     * @param connection User database connection
+     * @param pipeline Pipeline title
+     * @return Number of removed checkpoints
+     * @throws SQLException If the checkpoints can not be removed
+     */
+    public static int clear(Connection connection, String pipeline) throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement("DELETE FROM " + TABLE_NAME +
+                " WHERE PIPELINE = ?")) {
+            st.setString(1, pipeline);
+            return st.executeUpdate();
+        }
+    }
+}
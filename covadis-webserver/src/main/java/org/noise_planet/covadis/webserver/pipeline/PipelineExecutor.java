@@ -0,0 +1,223 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.pipeline;
+
+import groovy.lang.Script;
+import org.h2gis.api.ProgressVisitor;
+import org.noise_planet.covadis.webserver.script.Job;
+import org.noise_planet.covadis.webserver.script.ScriptClassCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Run the steps of a {@link Pipeline} as soon as the steps they depend on are completed, the independent branches
+ * (ex. road and rail) running at the same time on their own connection.
+ * <p>
+ * Each completed step is recorded in the user database (see {@link PipelineCheckpoints}) with a key made of its
+ * script content, its inputs and the keys of its dependencies. Running the pipeline again skips the steps already
+ * completed with the same key, as long as none of their dependencies had to be computed again.
+ * </p>
+ */
+public class PipelineExecutor {
+    /** Progression input name read by the PlaMADE scripts */
+    public static final String LEGACY_PROGRESSION_INPUT = "progressVisitor";
+    private static final long CANCEL_POLL_INTERVAL = 500;
+    private final Logger logger = LoggerFactory.getLogger(PipelineExecutor.class);
+    private final Pipeline pipeline;
+    private final DataSource dataSource;
+    private final int parallelism;
+    private final Map<String, Object> systemInputs = new HashMap<>();
+    private Consumer<PipelineStep> stepListener = step -> {};
+
+    /**
+     * @param pipeline Pipeline to run
+     * @param dataSource User database, each running step uses its own connection
+     * @param parallelism Maximum number of steps running at the same time
+     */
+    public PipelineExecutor(Pipeline pipeline, DataSource dataSource, int parallelism) {
+        this.pipeline = pipeline;
+        this.dataSource = dataSource;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Add an input given to all the step scripts (ex. workingDirectory)
+     * @param name Input name
+     * @param value Input value
+     */
+    public void setSystemInput(String name, Object value) {
+        systemInputs.put(name, value);
+    }
+
+    /**
+     * @param stepListener Called, from the thread running the pipeline, when a step is completed or skipped
+     */
+    public void setStepListener(Consumer<PipelineStep> stepListener) {
+        this.stepListener = stepListener;
+    }
+
+    /**
+     * Run the pipeline
+     * @param parameters Pipeline parameters, referenced by the step inputs
+     * @param progressVisitor Progression, one step per pipeline step. The running steps share this cancel state
+     * @return Result of each step, in the definition order
+     * @throws SQLException If the checkpoints can not be read
+     * @throws IOException If a step script can not be read
+     * @throws InterruptedException If the calling thread has been interrupted
+     * @throws IllegalStateException If a step failed or if the pipeline has been canceled
+     */
+    public Map<String, String> run(Map<String, Object> parameters, ProgressVisitor progressVisitor)
+            throws SQLException, IOException, InterruptedException {
+        try (Connection connection = dataSource.getConnection()) {
+            PipelineCheckpoints.createTable(connection);
+        }
+        ProgressVisitor stepsProgress = progressVisitor.subProcess(pipeline.getSteps().size());
+        Map<String, Object> results = new HashMap<>();
+        Map<String, String> stepKeys = new HashMap<>();
+        Set<String> computedSteps = new HashSet<>();
+        Set<String> startedSteps = new HashSet<>();
+        Set<String> heldLocks = new HashSet<>();
+        Map<Future<String>, PipelineStep> runningSteps = new HashMap<>();
+        ExecutorService executorService = Executors.newFixedThreadPool(parallelism);
+        CompletionService<String> completionService = new ExecutorCompletionService<>(executorService);
+        Throwable failure = null;
+        PipelineStep failedStep = null;
+        try {
+            while (true) {
+                boolean started = true;
+                while (started && failure == null && !progressVisitor.isCanceled()) {
+                    started = false;
+                    for (PipelineStep step : pipeline.getSteps()) {
+                        if (startedSteps.contains(step.id) || !results.keySet().containsAll(step.dependsOn) ||
+                                (step.lock != null && heldLocks.contains(step.lock))) {
+                            continue;
+                        }
+                        started = true;
+                        startedSteps.add(step.id);
+                        Map<String, Object> inputs = pipeline.resolveInputs(step, parameters, results);
+                        String stepKey = computeStepKey(step, inputs, stepKeys);
+                        stepKeys.put(step.id, stepKey);
+                        if (Collections.disjoint(step.dependsOn, computedSteps)) {
+                            String checkpoint;
+                            try (Connection connection = dataSource.getConnection()) {
+                                checkpoint = PipelineCheckpoints.getCompletedStep(connection, pipeline.title,
+                                        step.id, stepKey);
+                            }
+                            if (checkpoint != null) {
+                                logger.info("Pipeline step {} already completed, skipped", step);
+                                results.put(step.id, checkpoint);
+                                stepsProgress.endStep();
+                                stepListener.accept(step);
+                                continue;
+                            }
+                        }
+                        if (step.lock != null) {
+                            heldLocks.add(step.lock);
+                        }
+                        logger.info("Pipeline step {} started", step);
+                        ProgressVisitor stepProgress = stepsProgress.subProcess(1);
+                        runningSteps.put(completionService.submit(
+                                () -> runStep(step, inputs, stepKey, stepProgress)), step);
+                    }
+                }
+                if (runningSteps.isEmpty()) {
+                    break;
+                }
+                Future<String> completed = completionService.poll(CANCEL_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (completed == null) {
+                    continue;
+                }
+                PipelineStep step = runningSteps.remove(completed);
+                if (step.lock != null) {
+                    heldLocks.remove(step.lock);
+                }
+                try {
+                    results.put(step.id, completed.get());
+                    computedSteps.add(step.id);
+                    logger.info("Pipeline step {} completed", step);
+                    stepListener.accept(step);
+                } catch (ExecutionException ex) {
+                    // Let the other running steps end, their checkpoint will be kept for the next run
+                    logger.error("Pipeline step {} failed", step, ex.getCause());
+                    if (failure == null) {
+                        failure = ex.getCause();
+                        failedStep = step;
+                    }
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+        if (failure != null) {
+            throw new IllegalStateException(String.format("The pipeline step %s failed: %s", failedStep,
+                    failure.getLocalizedMessage()), failure);
+        }
+        if (progressVisitor.isCanceled()) {
+            throw new IllegalStateException("The pipeline has been canceled");
+        }
+        Map<String, String> orderedResults = new LinkedHashMap<>();
+        for (PipelineStep step : pipeline.getSteps()) {
+            orderedResults.put(step.id, String.valueOf(results.get(step.id)));
+        }
+        return orderedResults;
+    }
+
+    private String runStep(PipelineStep step, Map<String, Object> inputs, String stepKey,
+                           ProgressVisitor stepProgress) throws SQLException, IOException {
+        Thread.currentThread().setName(pipeline.title + ":" + step.id);
+        try (Connection connection = dataSource.getConnection()) {
+            Script script = ScriptClassCache.getInstance().createScript(step.script);
+            Map<String, Object> scriptInputs = new HashMap<>(inputs);
+            scriptInputs.putAll(systemInputs);
+            scriptInputs.put("_progression", stepProgress);
+            scriptInputs.put(LEGACY_PROGRESSION_INPUT, stepProgress);
+            String result = Job.getResultString(script.invokeMethod("exec", new Object[]{connection, scriptInputs}));
+            PipelineCheckpoints.saveCompletedStep(connection, pipeline.title, step.id, stepKey, result);
+            return result;
+        }
+    }
+
+    /**
+     * @return Hash of the step script, of its inputs and of the keys of the steps it depends on
+     */
+    static String computeStepKey(PipelineStep step, Map<String, Object> inputs, Map<String, String> stepKeys)
+            throws IOException {
+        StringBuilder key = new StringBuilder();
+        key.append("script:").append(ScriptClassCache.hash(Files.readAllBytes(step.script))).append('\n');
+        for (Map.Entry<String, Object> input : new TreeMap<>(inputs).entrySet()) {
+            key.append("input:").append(input.getKey()).append('=').append(input.getValue()).append('\n');
+        }
+        step.dependsOn.stream().sorted().forEach(dependency ->
+                key.append("after:").append(stepKeys.get(dependency)).append('\n'));
+        return ScriptClassCache.hash(key.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.pipeline;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One script execution of a {@link Pipeline}
+ */
+public class PipelineStep {
+    final public String id;
+    /** Groovy script executed by this step */
+    final public Path script;
+    /** Script inputs, the values may reference the pipeline parameters and the outputs of the previous steps */
+    final public Map<String, Object> inputs;
+    /** Steps that must be completed before this one */
+    final public List<String> dependsOn;
+    /** Tables written by this step, can be referenced by the next steps */
+    final public Map<String, String> outputs;
+    /** Steps sharing the same lock (ex. using the same working tables) never run at the same time, may be null */
+    final public String lock;
+
+    public PipelineStep(String id, Path script, Map<String, Object> inputs, List<String> dependsOn,
+                        Map<String, String> outputs, String lock) {
+        this.id = id;
+        this.script = script;
+        this.inputs = Collections.unmodifiableMap(new LinkedHashMap<>(inputs));
+        this.dependsOn = Collections.unmodifiableList(new ArrayList<>(dependsOn));
+        this.outputs = Collections.unmodifiableMap(new LinkedHashMap<>(outputs));
+        this.lock = lock;
+    }
+
+    @Override
+    public String toString() {
+        return id + " (" + script.getFileName() + ")";
+    }
+}
@@ -0,0 +1,355 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.script;
+
+import org.h2gis.utilities.JDBCUtilities;
+import org.h2gis.utilities.TableLocation;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Computation cells completed by a long propagation script, stored in the user database next to the result tables.
+ * <p>
+ * The script records each cell once its results are written in the result tables, with the identifiers of the
+ * receivers computed in this cell. When the script is run again with the same inputs (see
+ * {@link #computeKey(Connection, String, Map, Collection)}) after a crash or a cancel, it keeps the result tables,
+ * skips the completed cells and does not compute again their receivers. With other inputs the checkpoints are
+ * removed and the computation starts from scratch.
+ * </p>
+ */
+public class CellCheckpoints {
+    public static final String TABLE_NAME = "CELL_CHECKPOINTS";
+
+    private CellCheckpoints() {
+    }
+
+    /**
+     * Receivers already computed, shared by the cells evaluated at the same time
+     */
+    public static class ReceiverSet extends AbstractSet<Long> {
+        private final Set<Long> receivers = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public boolean add(Long receiver) {
+            return receivers.add(receiver);
+        }
+
+        @Override
+        public boolean contains(Object receiver) {
+            return receivers.contains(receiver);
+        }
+
+        @Override
+        public Iterator<Long> iterator() {
+            return receivers.iterator();
+        }
+
+        @Override
+        public int size() {
+            return receivers.size();
+        }
+
+        /**
+         * @return View given to the evaluation of one cell, it keeps the receivers added by this cell
+         */
+        public CellReceivers forCell() {
+            return new CellReceivers(this);
+        }
+    }
+
+    /**
+     * Receivers seen by the evaluation of one cell
+     */
+    public static class CellReceivers extends AbstractSet<Long> {
+        private final ReceiverSet receivers;
+        private final List<Long> addedReceivers = Collections.synchronizedList(new ArrayList<>());
+
+        private CellReceivers(ReceiverSet receivers) {
+            this.receivers = receivers;
+        }
+
+        @Override
+        public boolean add(Long receiver) {
+            boolean added = receivers.add(receiver);
+            if (added) {
+                addedReceivers.add(receiver);
+            }
+            return added;
+        }
+
+        @Override
+        public boolean contains(Object receiver) {
+            return receivers.contains(receiver);
+        }
+
+        @Override
+        public Iterator<Long> iterator() {
+            return receivers.iterator();
+        }
+
+        @Override
+        public int size() {
+            return receivers.size();
+        }
+
+        /**
+         * @return The receivers computed by this cell
+         */
+        public List<Long> getAddedReceivers() {
+            synchronized (addedReceivers) {
+                return new ArrayList<>(addedReceivers);
+            }
+        }
+    }
+
+    /**
+     * Create the checkpoint table if it does not exist
+     * @param connection User database connection
+     * @throws SQLException If the table can not be created
+     */
+    public static void createTable(Connection connection) throws SQLException {
+        try (Statement st = connection.createStatement()) {
+            st.execute("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (COMPUTATION VARCHAR NOT NULL," +
+                    " COMPUTATION_KEY VARCHAR NOT NULL, CELL VARCHAR NOT NULL, RECEIVERS VARBINARY," +
+                    " END_DATE TIMESTAMP WITH TIME ZONE DEFAULT CURRENT_TIMESTAMP, PRIMARY KEY (COMPUTATION, CELL))");
+        }
+    }
+
+    /**
+     * Hash of the script inputs and of the input tables content
+     * @param connection User database connection
+     * @param scriptName Script name, ex. s4_Road_Noise_level
+     * @param inputs Script inputs, the system inputs (starting with _, progression and working directory) are ignored
+     * @param tables Tables read by the script
+     * @return SHA-256 in hexadecimal
+     * @throws SQLException If the tables can not be read
+     */
+    public static String computeKey(Connection connection, String scriptName, Map<String, Object> inputs,
+                                    Collection<String> tables) throws SQLException {
+        StringBuilder key = new StringBuilder("script:").append(scriptName).append('\n');
+        for (Map.Entry<String, Object> input : new TreeMap<>(inputs).entrySet()) {
+            String name = input.getKey();
+            if (name.startsWith("_") || name.equals("progressVisitor") || name.equals("workingDirectory")) {
+                continue;
+            }
+            key.append("input:").append(name).append('=').append(input.getValue()).append('\n');
+        }
+        for (String table : tables) {
+            key.append("table:").append(getTableFingerprint(connection, table)).append('\n');
+        }
+        return ScriptClassCache.hash(key.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Fingerprint kept across the server restarts, unlike the table modification counter. The rows are hashed, so an
+     * update of the table content in place (same rows, other values) gives another fingerprint.
+     * @param connection User database connection
+     * @param tableName Table name
+     * @return Row count, maximum primary key value and sum of the row hashes of the table, or "missing"
+     * @throws SQLException If the table can not be read
+     */
+    static String getTableFingerprint(Connection connection, String tableName) throws SQLException {
+        TableLocation tableLocation = TableLocation.parse(tableName.toUpperCase(Locale.ROOT));
+        if (!JDBCUtilities.tableExists(connection, tableLocation)) {
+            return tableLocation + ":missing";
+        }
+        StringBuilder query = new StringBuilder("SELECT COUNT(*), ");
+        int pkIndex = JDBCUtilities.getIntegerPrimaryKey(connection, tableLocation);
+        if (pkIndex > 0) {
+            String pkName = JDBCUtilities.getColumnName(connection, tableLocation.toString(), pkIndex);
+            query.append("MAX(").append(TableLocation.quoteIdentifier(pkName)).append(")");
+        } else {
+            query.append("NULL");
+        }
+        // Sum of the hashes of the rows, it does not depend on the order of the rows
+        query.append(", SUM(ORA_HASH(CONCAT(''");
+        for (String column : JDBCUtilities.getColumnNames(connection, tableLocation.toString())) {
+            query.append(", COALESCE(CAST(").append(TableLocation.quoteIdentifier(column))
+                    .append(" AS VARCHAR), 'NULL'), '|'");
+        }
+        query.append("))) FROM ").append(tableLocation);
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery(query.toString())) {
+            rs.next();
+            String maxPrimaryKey = pkIndex > 0 ? String.valueOf(rs.getLong(2)) : "";
+            return tableLocation + ":" + rs.getLong(1) + ":" + maxPrimaryKey + ":" + rs.getString(3);
+        }
+    }
+
+    /**
+     * Keep the checkpoints of a computation if they have been recorded with the same key, remove them otherwise
+     * @param connection User database connection
+     * @param computation Computation name, ex. ROADS
+     * @param computationKey See {@link #computeKey(Connection, String, Map, Collection)}
+     * @return Number of completed cells, 0 if the computation must start from scratch
+     * @throws SQLException If the checkpoints can not be read
+     */
+    public static int prepare(Connection connection, String computation, String computationKey)
+            throws SQLException {
+        createTable(connection);
+        try (PreparedStatement st = connection.prepareStatement("DELETE FROM " + TABLE_NAME +
+                " WHERE COMPUTATION = ? AND COMPUTATION_KEY <> ?")) {
+            st.setString(1, computation);
+            st.setString(2, computationKey);
+            st.executeUpdate();
+        }
+        try (PreparedStatement st = connection.prepareStatement("SELECT COUNT(*) FROM " + TABLE_NAME +
+                " WHERE COMPUTATION = ?")) {
+            st.setString(1, computation);
+            try (ResultSet rs = st.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * @param latitudeIndex Cell row
+     * @param longitudeIndex Cell column
+     * @return Cell identifier
+     */
+    public static String cellId(int latitudeIndex, int longitudeIndex) {
+        return latitudeIndex + "_" + longitudeIndex;
+    }
+
+    /**
+     * Read the completed cells and add their receivers to the receivers to skip
+     * @param connection User database connection
+     * @param computation Computation name
+     * @param receivers Receivers already computed, completed with the receivers of the completed cells
+     * @return Identifiers of the completed cells
+     * @throws SQLException If the checkpoints can not be read
+     */
+    public static Set<String> getCompletedCells(Connection connection, String computation, Set<Long> receivers)
+            throws SQLException {
+        Set<String> cells = new HashSet<>();
+        try (PreparedStatement st = connection.prepareStatement("SELECT CELL, RECEIVERS FROM " + TABLE_NAME +
+                " WHERE COMPUTATION = ?")) {
+            st.setString(1, computation);
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    cells.add(rs.getString(1));
+                    byte[] packedReceivers = rs.getBytes(2);
+                    if (packedReceivers != null) {
+                        ByteBuffer buffer = ByteBuffer.wrap(packedReceivers);
+                        while (buffer.remaining() >= Long.BYTES) {
+                            receivers.add(buffer.getLong());
+                        }
+                    }
+                }
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Record a completed cell. Write it in the same transaction as the cell results.
+     * @param connection User database connection
+     * @param computation Computation name
+     * @param computationKey See {@link #computeKey(Connection, String, Map, Collection)}
+     * @param cell Cell identifier, see {@link #cellId(int, int)}
+     * @param receivers Receivers computed in this cell
+     * @throws SQLException If the checkpoint can not be written
+     */
+    public static void saveCompletedCell(Connection connection, String computation, String computationKey,
+                                         String cell, Collection<Long> receivers) throws SQLException {
+        ByteBuffer buffer = ByteBuffer.allocate(receivers.size() * Long.BYTES);
+        for (Long receiver : receivers) {
+            buffer.putLong(receiver);
+        }
+        try (PreparedStatement st = connection.prepareStatement("MERGE INTO " + TABLE_NAME +
+                " (COMPUTATION, COMPUTATION_KEY, CELL, RECEIVERS, END_DATE) KEY (COMPUTATION, CELL)" +
+                " VALUES (?, ?, ?, ?, CURRENT_TIMESTAMP)")) {
+            st.setString(1, computation);
+            st.setString(2, computationKey);
+            st.setString(3, cell);
+            st.setBytes(4, buffer.array());
+            st.executeUpdate();
+        }
+    }
+
+    /**
+     * Append the results of a batch of completed cells to the result tables and record the cells, in one
+     * transaction. The batch tables are removed.
+     * @param connection User database connection
+     * @param computation Computation name
+     * @param computationKey See {@link #computeKey(Connection, String, Map, Collection)}
+     * @param cells Receivers computed by each cell of the batch, by cell identifier
+     * @param resultTables Result table by batch table, the result tables are created with the batch table columns
+     * @throws SQLException If the results or the checkpoints can not be written
+     */
+    public static void commitBatch(Connection connection, String computation, String computationKey,
+                                   Map<String, ? extends Collection<Long>> cells, Map<String, String> resultTables)
+            throws SQLException {
+        List<Map.Entry<String, String>> writtenTables = new ArrayList<>();
+        try (Statement st = connection.createStatement()) {
+            // The tables are created before the transaction, the definition statements are committed at once
+            for (Map.Entry<String, String> entry : resultTables.entrySet()) {
+                if (JDBCUtilities.tableExists(connection, TableLocation.parse(entry.getKey()))) {
+                    st.execute("CREATE TABLE IF NOT EXISTS " + entry.getValue() + " AS SELECT * FROM " +
+                            entry.getKey() + " WITH NO DATA");
+                    writtenTables.add(entry);
+                }
+            }
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                for (Map.Entry<String, String> entry : writtenTables) {
+                    st.execute("INSERT INTO " + entry.getValue() + " SELECT * FROM " + entry.getKey());
+                }
+                for (Map.Entry<String, ? extends Collection<Long>> cell : cells.entrySet()) {
+                    saveCompletedCell(connection, computation, computationKey, cell.getKey(), cell.getValue());
+                }
+                connection.commit();
+            } catch (SQLException | RuntimeException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+            for (Map.Entry<String, String> entry : writtenTables) {
+                st.execute("DROP TABLE IF EXISTS " + entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Forget the completed cells of a computation, once its results are complete
+     * @param connection User database connection
+     * @param computation Computation name
+     * @return Number of removed checkpoints
+     * @throws SQLException If the checkpoints can not be removed
+     */
+    public static int clear(Connection connection, String computation) throws SQLException {
+        createTable(connection);
+        try (PreparedStatement st = connection.prepareStatement("DELETE FROM " + TABLE_NAME +
+                " WHERE COMPUTATION = ?")) {
+            st.setString(1, computation);
+            return st.executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.script;
+
+import org.h2gis.utilities.GeometryTableUtilities;
+import org.h2gis.utilities.JDBCUtilities;
+import org.h2gis.utilities.TableLocation;
+import org.locationtech.jts.geom.Envelope;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Estimated cost of the computation cells of a propagation script, used to choose the cell size.
+ * <p>
+ * The cells are the regular grid of the NoiseModelling point noise map: the envelope of the receivers split in
+ * gridDim x gridDim cells. The cost of a cell is the number of receiver-source pairs within the maximum propagation
+ * distance, counted on a fine density raster of the sources, plus the loading of the sources around the cell. Small
+ * cells reload the same sources many times, large cells in dense areas are the long tail of the computation. The chosen grid dimension minimizes the estimated
+ * duration with a few cells in flight: the largest of the total cost shared by the cells in flight and of the cost
+ * of the most expensive cell.
+ * </p>
+ */
+public class CellCostModel {
+    /** Cost of loading one source around a cell, in receiver-source pairs */
+    public static final double LOAD_WEIGHT = 50;
+    /** Maximum number of columns or rows of the source density raster */
+    private static final int MAX_RASTER_SIZE = 2000;
+    private final Envelope envelope;
+    private final double[] receiversX;
+    private final double[] receiversY;
+    private final double[] sourcesX;
+    private final double[] sourcesY;
+    private final double maximumDistance;
+    /** Sources within the maximum distance of each receiver */
+    private final double[] receiverPairs;
+
+    /**
+     * @param receiversX X of the receivers
+     * @param receiversY Y of the receivers
+     * @param sourcesX X of the sources (ex. center of the road sections)
+     * @param sourcesY Y of the sources
+     * @param maximumDistance Maximum propagation distance
+     */
+    public CellCostModel(double[] receiversX, double[] receiversY, double[] sourcesX, double[] sourcesY,
+                         double maximumDistance) {
+        if (receiversX.length != receiversY.length || sourcesX.length != sourcesY.length) {
+            throw new IllegalArgumentException("The coordinate arrays must have the same length");
+        }
+        this.receiversX = receiversX;
+        this.receiversY = receiversY;
+        this.sourcesX = sourcesX;
+        this.sourcesY = sourcesY;
+        this.maximumDistance = maximumDistance;
+        envelope = new Envelope();
+        for (int i = 0; i < receiversX.length; i++) {
+            envelope.expandToInclude(receiversX[i], receiversY[i]);
+        }
+        receiverPairs = computeReceiverPairs();
+    }
+
+    /**
+     * Count the sources around each receiver, on a raster of half the maximum distance
+     */
+    private double[] computeReceiverPairs() {
+        double[] pairs = new double[receiversX.length];
+        if (receiversX.length == 0) {
+            return pairs;
+        }
+        double distance = Math.max(maximumDistance, 1);
+        double resolution = Math.max(distance / 2,
+                (Math.max(envelope.getWidth(), envelope.getHeight()) + 2 * distance) / MAX_RASTER_SIZE);
+        double originX = envelope.getMinX() - distance;
+        double originY = envelope.getMinY() - distance;
+        int columns = (int) Math.ceil((envelope.getWidth() + 2 * distance) / resolution) + 1;
+        int rows = (int) Math.ceil((envelope.getHeight() + 2 * distance) / resolution) + 1;
+        long[][] sums = new long[rows + 1][columns + 1];
+        for (int i = 0; i < sourcesX.length; i++) {
+            int column = (int) Math.floor((sourcesX[i] - originX) / resolution);
+            int row = (int) Math.floor((sourcesY[i] - originY) / resolution);
+            if (column >= 0 && column < columns && row >= 0 && row < rows) {
+                sums[row + 1][column + 1]++;
+            }
+        }
+        integrate(sums);
+        int margin = (int) Math.ceil(distance / resolution);
+        double windowSide = (2 * margin + 1) * resolution;
+        // The square window is larger than the propagation disc
+        double discRatio = Math.min(1, Math.PI * distance * distance / (windowSide * windowSide));
+        for (int i = 0; i < receiversX.length; i++) {
+            int column = (int) Math.floor((receiversX[i] - originX) / resolution);
+            int row = (int) Math.floor((receiversY[i] - originY) / resolution);
+            pairs[i] = windowSum(sums, row - margin, column - margin, row + margin + 1, column + margin + 1) *
+                    discRatio;
+        }
+        return pairs;
+    }
+
+    /**
+     * Convert the counts of sums[1..][1..] into summed-area table
+     */
+    private static void integrate(long[][] sums) {
+        for (int row = 1; row < sums.length; row++) {
+            for (int column = 1; column < sums[row].length; column++) {
+                sums[row][column] += sums[row - 1][column] + sums[row][column - 1] - sums[row - 1][column - 1];
+            }
+        }
+    }
+
+    /**
+     * @return Sum of the counts of the rows [fromRow, toRow) and columns [fromColumn, toColumn), clipped to the table
+     */
+    private static long windowSum(long[][] sums, int fromRow, int fromColumn, int toRow, int toColumn) {
+        int maxRow = sums.length - 1;
+        int maxColumn = sums[0].length - 1;
+        fromRow = Math.max(0, Math.min(maxRow, fromRow));
+        toRow = Math.max(0, Math.min(maxRow, toRow));
+        fromColumn = Math.max(0, Math.min(maxColumn, fromColumn));
+        toColumn = Math.max(0, Math.min(maxColumn, toColumn));
+        return sums[toRow][toColumn] - sums[fromRow][toColumn] - sums[toRow][fromColumn] + sums[fromRow][fromColumn];
+    }
+
+    /**
+     * Read the receivers and the sources positions
+     * @param connection User database connection
+     * @param receiversTable Receivers table
+     * @param sourcesTable Sources table, the center of the geometries is used
+     * @param maximumDistance Maximum propagation distance
+     * @return Cost model
+     * @throws SQLException If the tables can not be read
+     */
+    public static CellCostModel load(Connection connection, String receiversTable, String sourcesTable,
+                                     double maximumDistance) throws SQLException {
+        double[][] receivers = readCoordinates(connection, receiversTable);
+        double[][] sources = readCoordinates(connection, sourcesTable);
+        return new CellCostModel(receivers[0], receivers[1], sources[0], sources[1], maximumDistance);
+    }
+
+    private static double[][] readCoordinates(Connection connection, String tableName) throws SQLException {
+        TableLocation tableLocation = TableLocation.parse(tableName);
+        List<String> geometryFields = GeometryTableUtilities.getGeometryColumnNames(connection, tableLocation);
+        if (geometryFields.isEmpty()) {
+            throw new SQLException(String.format("The table %s does not exists or does not contain a geometry field",
+                    tableLocation));
+        }
+        String geometry = TableLocation.quoteIdentifier(geometryFields.get(0));
+        int rowCount = (int) JDBCUtilities.getRowCount(connection, tableLocation.toString());
+        double[] x = new double[rowCount];
+        double[] y = new double[rowCount];
+        int index = 0;
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery("SELECT ST_X(C), ST_Y(C) FROM (SELECT ST_CENTROID(" + geometry +
+                     ") C FROM " + tableLocation + " WHERE " + geometry + " IS NOT NULL) T")) {
+            while (rs.next() && index < rowCount) {
+                x[index] = rs.getDouble(1);
+                y[index] = rs.getDouble(2);
+                index++;
+            }
+        }
+        return new double[][]{Arrays.copyOf(x, index), Arrays.copyOf(y, index)};
+    }
+
+    /**
+     * @return Envelope of the receivers, split by the cells
+     */
+    public Envelope getEnvelope() {
+        return new Envelope(envelope);
+    }
+
+    private static int cellIndex(double value, double origin, double cellSize, int gridDim) {
+        return Math.max(0, Math.min(gridDim - 1, (int) Math.floor((value - origin) / cellSize)));
+    }
+
+    /**
+     * @param x X of a receiver
+     * @param y Y of a receiver
+     * @param gridDim Number of cells on each side of the envelope
+     * @return Cell of the receiver [latitude index, longitude index], the same cells as {@link #getCellCosts(int)}
+     */
+    public int[] getCellIndex(double x, double y, int gridDim) {
+        double cellWidth = Math.max(envelope.getWidth(), 1) / gridDim;
+        double cellHeight = Math.max(envelope.getHeight(), 1) / gridDim;
+        return new int[]{cellIndex(y, envelope.getMinY(), cellHeight, gridDim),
+                cellIndex(x, envelope.getMinX(), cellWidth, gridDim)};
+    }
+
+    /**
+     * @param gridDim Number of cells on each side of the envelope
+     * @return Estimated cost by cell [latitude index][longitude index], 0 for the cells without receivers
+     */
+    public double[][] getCellCosts(int gridDim) {
+        double cellWidth = Math.max(envelope.getWidth(), 1) / gridDim;
+        double cellHeight = Math.max(envelope.getHeight(), 1) / gridDim;
+        double[][] costs = new double[gridDim][gridDim];
+        boolean[][] populated = new boolean[gridDim][gridDim];
+        for (int i = 0; i < receiversX.length; i++) {
+            int[] cell = getCellIndex(receiversX[i], receiversY[i], gridDim);
+            costs[cell[0]][cell[1]] += receiverPairs[i];
+            populated[cell[0]][cell[1]] = true;
+        }
+        // The sources loaded by a cell are counted on the grid extended by the propagation distance
+        int marginX = (int) Math.ceil(maximumDistance / cellWidth);
+        int marginY = (int) Math.ceil(maximumDistance / cellHeight);
+        int columns = gridDim + 2 * marginX;
+        int rows = gridDim + 2 * marginY;
+        long[][] sums = new long[rows + 1][columns + 1];
+        for (int i = 0; i < sourcesX.length; i++) {
+            int column = (int) Math.floor((sourcesX[i] - envelope.getMinX()) / cellWidth) + marginX;
+            int row = (int) Math.floor((sourcesY[i] - envelope.getMinY()) / cellHeight) + marginY;
+            if (column >= 0 && column < columns && row >= 0 && row < rows) {
+                sums[row + 1][column + 1]++;
+            }
+        }
+        integrate(sums);
+        for (int lat = 0; lat < gridDim; lat++) {
+            for (int lon = 0; lon < gridDim; lon++) {
+                if (populated[lat][lon]) {
+                    // Window [lat, lat + 2 * margin] of the extended grid
+                    costs[lat][lon] += LOAD_WEIGHT * windowSum(sums, lat, lon, lat + 2 * marginY + 1,
+                            lon + 2 * marginX + 1);
+                }
+            }
+        }
+        return costs;
+    }
+
+    /**
+     * @param costs Cell costs, see {@link #getCellCosts(int)}
+     * @param cellsInFlight Number of cells evaluated at the same time
+     * @return Estimated duration, in the cost unit
+     */
+    static double getEstimatedDuration(double[][] costs, int cellsInFlight) {
+        double total = 0;
+        double max = 0;
+        for (double[] row : costs) {
+            for (double cost : row) {
+                total += cost;
+                max = Math.max(max, cost);
+            }
+        }
+        return Math.max(total / Math.max(1, cellsInFlight), max);
+    }
+
+    /**
+     * Choose the grid dimension of the lowest estimated duration
+     * @param minGridDim Minimum number of cells on each side
+     * @param maxGridDim Maximum number of cells on each side
+     * @param cellsInFlight Number of cells evaluated at the same time
+     * @return Grid dimension, the smallest one on equal durations
+     */
+    public int chooseGridDim(int minGridDim, int maxGridDim, int cellsInFlight) {
+        int bestGridDim = Math.max(1, minGridDim);
+        double bestDuration = Double.MAX_VALUE;
+        for (int gridDim = bestGridDim; gridDim <= maxGridDim; gridDim += Math.max(1, gridDim / 8)) {
+            double duration = getEstimatedDuration(getCellCosts(gridDim), cellsInFlight);
+            if (duration < bestDuration) {
+                bestDuration = duration;
+                bestGridDim = gridDim;
+            }
+        }
+        return bestGridDim;
+    }
+
+    /**
+     * @param costs Cell costs, see {@link #getCellCosts(int)}
+     * @return Distribution of the cost of the cells with receivers: cells, total, min, median, p90, max and
+     * imbalance (max / mean)
+     */
+    public static Map<String, Object> getStatistics(double[][] costs) {
+        List<Double> values = new ArrayList<>();
+        double total = 0;
+        for (double[] row : costs) {
+            for (double cost : row) {
+                if (cost > 0) {
+                    values.add(cost);
+                    total += cost;
+                }
+            }
+        }
+        values.sort(Double::compareTo);
+        Map<String, Object> statistics = new HashMap<>();
+        statistics.put("cells", values.size());
+        statistics.put("total", total);
+        if (!values.isEmpty()) {
+            double max = values.get(values.size() - 1);
+            statistics.put("min", values.get(0));
+            statistics.put("median", values.get(values.size() / 2));
+            statistics.put("p90", values.get(Math.min(values.size() - 1, (int) (values.size() * 0.9))));
+            statistics.put("max", max);
+            statistics.put("imbalance", max / (total / values.size()));
+        }
+        return statistics;
+    }
+
+    /**
+     * Write the cells with receivers and their estimated cost, the DURATION column is filled by the script
+     * @param connection User database connection
+     * @param tableName Report table, replaced
+     * @param gridDim Grid dimension
+     * @param srid Projection of the receivers
+     * @throws SQLException If the table can not be written
+     */
+    public void writeReport(Connection connection, String tableName, int gridDim, int srid) throws SQLException {
+        double[][] costs = getCellCosts(gridDim);
+        double cellWidth = Math.max(envelope.getWidth(), 1) / gridDim;
+        double cellHeight = Math.max(envelope.getHeight(), 1) / gridDim;
+        try (Statement st = connection.createStatement()) {
+            st.execute("DROP TABLE IF EXISTS " + tableName);
+            st.execute("CREATE TABLE " + tableName + " (CELL VARCHAR PRIMARY KEY, LATITUDE_INDEX INTEGER," +
+                    " LONGITUDE_INDEX INTEGER, ESTIMATED_COST DOUBLE PRECISION, DURATION BIGINT," +
+                    " THE_GEOM GEOMETRY(POLYGON, " + srid + "))");
+        }
+        try (PreparedStatement st = connection.prepareStatement("INSERT INTO " + tableName +
+                " (CELL, LATITUDE_INDEX, LONGITUDE_INDEX, ESTIMATED_COST, THE_GEOM) VALUES (?, ?, ?, ?," +
+                " ST_MakeEnvelope(?, ?, ?, ?, " + srid + "))")) {
+            for (int lat = 0; lat < gridDim; lat++) {
+                for (int lon = 0; lon < gridDim; lon++) {
+                    if (costs[lat][lon] <= 0) {
+                        continue;
+                    }
+                    double minX = envelope.getMinX() + lon * cellWidth;
+                    double minY = envelope.getMinY() + lat * cellHeight;
+                    st.setString(1, CellCheckpoints.cellId(lat, lon));
+                    st.setInt(2, lat);
+                    st.setInt(3, lon);
+                    st.setDouble(4, costs[lat][lon]);
+                    st.setDouble(5, minX);
+                    st.setDouble(6, minY);
+                    st.setDouble(7, minX + cellWidth);
+                    st.setDouble(8, minY + cellHeight);
+                    st.addBatch();
+                }
+            }
+            st.executeBatch();
+        }
+    }
+
+    /**
+     * @param statistics See {@link #getStatistics(double[][])}
+     * @return Statistics formatted for the logs
+     */
+    public static String formatStatistics(Map<String, Object> statistics) {
+        if (!statistics.containsKey("max")) {
+            return "no cell";
+        }
+        return String.format(Locale.ROOT, "%d cells, cost min %.3g median %.3g p90 %.3g max %.3g, imbalance %.2f",
+                (Integer) statistics.get("cells"), (Double) statistics.get("min"), (Double) statistics.get("median"),
+                (Double) statistics.get("p90"), (Double) statistics.get("max"), (Double) statistics.get("imbalance"));
+    }
+}
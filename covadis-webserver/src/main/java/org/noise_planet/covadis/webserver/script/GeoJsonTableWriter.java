@@ -0,0 +1,216 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.script;
+
+import groovy.json.JsonOutput;
+import org.h2gis.utilities.GeometryTableUtilities;
+import org.h2gis.utilities.TableLocation;
+import org.h2gis.utilities.dbtypes.DBTypes;
+import org.h2gis.utilities.dbtypes.DBUtils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Write the rows of a spatial table as a GeoJSON FeatureCollection in WGS84, feature by feature, while reading them
+ * with a database cursor. The whole table is never held in memory, the client receives the first features as soon as
+ * they are read.
+ */
+public class GeoJsonTableWriter {
+    /** Number of rows fetched from the database at once */
+    public static final int FETCH_SIZE = 1000;
+    /** Number of features written between two flushes of the output */
+    public static final int FLUSH_FEATURES = 500;
+    /** Size in pixels of a web map tile */
+    private static final int TILE_SIZE = 256;
+    private static final int WGS84 = 4326;
+    private final Connection connection;
+    private final TableLocation tableLocation;
+    private final String geometryField;
+    private final List<String> geometryFields;
+    private final int srid;
+    private double[] boundingBox = null;
+    private double tolerance = 0;
+
+    /**
+     * @param connection User database connection
+     * @param tableName Spatial table, the first geometry field is written
+     * @throws SQLException If the table does not exist or does not contain a geometry field
+     */
+    public GeoJsonTableWriter(Connection connection, String tableName) throws SQLException {
+        this.connection = connection;
+        this.tableLocation = TableLocation.parse(tableName, DBUtils.getDBType(connection));
+        this.geometryFields = GeometryTableUtilities.getGeometryColumnNames(connection, tableLocation);
+        if (geometryFields.isEmpty()) {
+            throw new SQLException(String.format("The table %s does not exists or does not contain a geometry field",
+                    tableLocation));
+        }
+        this.geometryField = TableLocation.quoteIdentifier(geometryFields.get(0));
+        this.srid = GeometryTableUtilities.getSRID(connection, tableLocation);
+    }
+
+    /**
+     * Keep only the features intersecting this envelope
+     * @param boundingBox minX, minY, maxX, maxY in WGS84 coordinates, null to write all the features
+     */
+    public void setBoundingBox(double[] boundingBox) {
+        this.boundingBox = boundingBox;
+    }
+
+    /**
+     * @param tolerance Simplification distance in degrees, 0 to keep the original geometries
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * @param zoom Web map zoom level
+     * @return Size of a pixel in degrees at this zoom level, the geometries can be simplified to this distance
+     * without any visible change
+     */
+    public static double toleranceForZoom(int zoom) {
+        return 360.0 / (TILE_SIZE * Math.pow(2, Math.max(0, zoom)));
+    }
+
+    /**
+     * @param boundingBox minX,minY,maxX,maxY in WGS84 coordinates
+     * @return Parsed envelope or null if the text is null or empty
+     * @throws IllegalArgumentException If the text is not a valid envelope
+     */
+    public static double[] parseBoundingBox(String boundingBox) {
+        if (boundingBox == null || boundingBox.isBlank()) {
+            return null;
+        }
+        String[] parts = boundingBox.split(",");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("The bounding box must be minX,minY,maxX,maxY, got " + boundingBox);
+        }
+        double[] envelope = new double[4];
+        for (int i = 0; i < 4; i++) {
+            envelope[i] = Double.parseDouble(parts[i].trim());
+        }
+        if (envelope[0] > envelope[2] || envelope[1] > envelope[3]) {
+            throw new IllegalArgumentException("The bounding box minimum is greater than the maximum " +
+                    boundingBox);
+        }
+        return envelope;
+    }
+
+    /**
+     * Write all the features of the table
+     * @param writer Output, flushed every {@link #FLUSH_FEATURES} features
+     * @return Number of written features
+     * @throws SQLException If the table can not be read
+     * @throws IOException If the output can not be written
+     */
+    public long write(Writer writer) throws SQLException, IOException {
+        String geometry = geometryField;
+        if (srid != WGS84 && srid != 0) {
+            geometry = "ST_TRANSFORM(" + geometry + ", " + WGS84 + ")";
+        }
+        if (tolerance > 0) {
+            geometry = "ST_SIMPLIFYPRESERVETOPOLOGY(" + geometry + ", " + tolerance + ")";
+        }
+        StringBuilder query = new StringBuilder("SELECT ST_ASGEOJSON(" + geometry + "), * FROM " + tableLocation);
+        if (boundingBox != null) {
+            String envelope = "ST_MAKEENVELOPE(?, ?, ?, ?, " + WGS84 + ")";
+            if (srid == 0) {
+                envelope = "ST_SETSRID(" + envelope + ", 0)";
+            } else if (srid != WGS84) {
+                envelope = "ST_TRANSFORM(" + envelope + ", " + srid + ")";
+            }
+            query.append(" WHERE ").append(geometryField).append(" && ").append(envelope);
+        }
+        DBTypes dbType = DBUtils.getDBType(connection);
+        boolean lazy = dbType == DBTypes.H2 || dbType == DBTypes.H2GIS;
+        if (lazy) {
+            // H2 reads the rows while the cursor moves instead of building the whole result first
+            try (Statement st = connection.createStatement()) {
+                st.execute("SET LAZY_QUERY_EXECUTION TRUE");
+            }
+        }
+        long featureCount = 0;
+        try (PreparedStatement st = connection.prepareStatement(query.toString(), ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY)) {
+            st.setFetchSize(FETCH_SIZE);
+            if (boundingBox != null) {
+                for (int i = 0; i < 4; i++) {
+                    st.setDouble(i + 1, boundingBox[i]);
+                }
+            }
+            try (ResultSet rs = st.executeQuery()) {
+                ResultSetMetaData metaData = rs.getMetaData();
+                List<Integer> propertyColumns = new ArrayList<>();
+                List<String> propertyNames = new ArrayList<>();
+                for (int column = 2; column <= metaData.getColumnCount(); column++) {
+                    String name = metaData.getColumnLabel(column);
+                    if (!geometryFields.contains(name) &&
+                            !metaData.getColumnTypeName(column).toUpperCase(Locale.ROOT).startsWith("GEOMETRY")) {
+                        propertyColumns.add(column);
+                        propertyNames.add(JsonOutput.toJson(name));
+                    }
+                }
+                writer.write("{\"type\":\"FeatureCollection\",\"features\":[");
+                while (rs.next()) {
+                    if (featureCount > 0) {
+                        writer.write(",\n");
+                    }
+                    String geoJson = rs.getString(1);
+                    writer.write("{\"type\":\"Feature\",\"geometry\":");
+                    writer.write(geoJson == null ? "null" : geoJson);
+                    writer.write(",\"properties\":{");
+                    for (int i = 0; i < propertyColumns.size(); i++) {
+                        if (i > 0) {
+                            writer.write(',');
+                        }
+                        writer.write(propertyNames.get(i));
+                        writer.write(':');
+                        writer.write(toJson(rs.getObject(propertyColumns.get(i))));
+                    }
+                    writer.write("}}");
+                    if (++featureCount % FLUSH_FEATURES == 0) {
+                        writer.flush();
+                    }
+                }
+                writer.write("]}");
+                writer.flush();
+            }
+        } finally {
+            if (lazy) {
+                try (Statement st = connection.createStatement()) {
+                    st.execute("SET LAZY_QUERY_EXECUTION FALSE");
+                }
+            }
+        }
+        return featureCount;
+    }
+
+    private static String toJson(Object value) {
+        if (value == null) {
+            return "null";
+        } else if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            return Double.isFinite(number) ? JsonOutput.toJson((Number) value) : "null";
+        } else if (value instanceof Number || value instanceof Boolean) {
+            return value.toString();
+        }
+        return JsonOutput.toJson(value.toString());
+    }
+}
@@ -9,23 +9,33 @@
 
 package org.noise_planet.covadis.webserver.script;
 
-import groovy.lang.GroovyShell;
+import groovy.json.JsonOutput;
 import groovy.lang.Script;
 import org.h2gis.api.ProgressVisitor;
 import org.jetbrains.annotations.NotNull;
 import org.noise_planet.covadis.webserver.Configuration;
+import org.noise_planet.covadis.webserver.OwsController;
 import org.noise_planet.covadis.webserver.database.DatabaseManagement;
 import org.noise_planet.noisemodelling.pathfinder.utils.profiler.RootProgressVisitor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
-import java.io.File;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manage the execution of a Groovy Script
@@ -36,54 +46,113 @@ public class Job<T> implements Callable<T> {
     /** NoiseModelling DataBase for the user */
     private DataSource userDataSource;
     private DataSource serverDataSource;
+    /** Live state of the job, written to the server database in batches */
+    private JobStateStore jobStateStore;
     private Map<String, Object> inputs;
     private boolean isRunning = false;
     private int userId;
     private int jobId;
     private Configuration configuration;
     private Future<T> future;
+    private final CompletableFuture<T> completion = new CompletableFuture<>();
     private ProgressVisitor progressVisitor;
+    private ProgressionTracker progressionTracker;
+    /** Predicted cost of the job, null if unknown */
+    private volatile JobCostEstimator.Estimate estimate;
+    /** Peak heap memory in MB reported by the job process, -1 if the job runs in the server process */
+    private long workerPeakHeap = -1;
+    /** Number of cores shared by the jobs of the {@link JobExecutorService} running this job */
+    private volatile int availableProcessors = Runtime.getRuntime().availableProcessors();
+    /** Process running the job, when the jobs run in separate processes */
+    private volatile Process workerProcess;
+    private volatile Writer workerInput;
 
-    public Job(int userId, ScriptMetadata scriptMetadata,
-               DataSource serverDataSource, DataSource userDataSource, Map<String, Object> inputs, Configuration configuration) throws SQLException {
+    /**
+     * Create a new job, the job is registered in the database with the QUEUED state
+     */
+    public Job(int userId, ScriptMetadata scriptMetadata, DataSource serverDataSource, JobStateStore jobStateStore,
+               DataSource userDataSource, Map<String, Object> inputs, Configuration configuration) throws SQLException {
         this.userId = userId;
         this.scriptMetadata = scriptMetadata;
         this.configuration = configuration;
         this.userDataSource = userDataSource;
         this.serverDataSource = serverDataSource;
+        this.jobStateStore = jobStateStore;
         this.inputs = inputs;
-        progressVisitor = new RootProgressVisitor(1, true, 5);
         try (Connection connection = serverDataSource.getConnection()) {
-            this.jobId = DatabaseManagement.createJob(connection, userId, scriptMetadata.id);
-            progressVisitor.addPropertyChangeListener("PROGRESS" , new ProgressionTracker(serverDataSource, jobId));
+            this.jobId = DatabaseManagement.createJob(connection, userId, scriptMetadata.id,
+                    JsonOutput.toJson(inputs));
         }
+        initProgressVisitor();
+    }
+
+    /**
+     * Restore a job already registered in the database (ex. queued job on server restart)
+     */
+    public Job(int jobId, int userId, ScriptMetadata scriptMetadata, DataSource serverDataSource,
+               JobStateStore jobStateStore, DataSource userDataSource, Map<String, Object> inputs,
+               Configuration configuration) {
+        this.jobId = jobId;
+        this.userId = userId;
+        this.scriptMetadata = scriptMetadata;
+        this.configuration = configuration;
+        this.userDataSource = userDataSource;
+        this.serverDataSource = serverDataSource;
+        this.jobStateStore = jobStateStore;
+        this.inputs = inputs;
+        initProgressVisitor();
+    }
+
+    private void initProgressVisitor() {
+        progressVisitor = new RootProgressVisitor(1, true, 5);
+        progressionTracker = new ProgressionTracker(jobStateStore, jobId);
+        progressVisitor.addPropertyChangeListener("PROGRESS" , progressionTracker);
     }
 
     void setJobState(JobStates newState) {
-        try (Connection connection = serverDataSource.getConnection()) {
-            DatabaseManagement.setJobState(connection, jobId, newState.name());
-        } catch (SQLException | SecurityException ex) {
-            logger.error(ex.getLocalizedMessage(), ex);
-        }
+        jobStateStore.setStatus(jobId, newState);
     }
 
 
     void setJobProgression(int progression) {
-        try (Connection connection = serverDataSource.getConnection()) {
-            DatabaseManagement.setJobProgression(connection, jobId, progression);
-        } catch (SQLException | SecurityException ex) {
-            logger.error(ex.getLocalizedMessage(), ex);
+        jobStateStore.setProgression(jobId, progression);
+    }
+
+    void onJobBegin() {
+        jobStateStore.setBeginTime(jobId);
+    }
+
+    void setJobResult(String result) {
+        jobStateStore.setResult(jobId, result);
+    }
+
+    /**
+     * Convert the object returned by the script into the WPS result output
+     * @param returnData Value returned by the exec method of the script
+     * @return The value of the result key if the script returns a Map, the string value of the object otherwise
+     */
+    public static String getResultString(Object returnData) {
+        if (returnData instanceof Map<?, ?> && ((Map<?, ?>) returnData).containsKey("result")) {
+            return String.valueOf(((Map<?, ?>) returnData).get("result"));
         }
+        return String.valueOf(returnData);
     }
 
     void onJobEnd() throws SQLException {
-        try (Connection connection = serverDataSource.getConnection()) {
-            DatabaseManagement.setJobEndTime(connection, jobId);
+        try {
+            jobStateStore.setEndTime(jobId);
         } catch (SQLException | SecurityException ex) {
             logger.error(ex.getLocalizedMessage(), ex);
         }
     }
 
+    /**
+     * @return Completed with the job result when the job ends, used to wait for the job without blocking a thread
+     */
+    public CompletableFuture<T> getCompletion() {
+        return completion;
+    }
+
     public Future<T> getFuture() {
         return future;
     }
@@ -92,45 +161,339 @@ public class Job<T> implements Callable<T> {
         this.future = future;
     }
 
+    /**
+     * @param availableProcessors Number of cores shared by the jobs of the executor, the job process uses the
+     * threads reserved in this capacity
+     */
+    void setAvailableProcessors(int availableProcessors) {
+        this.availableProcessors = availableProcessors;
+    }
+
     @Override
     public T call() throws Exception {
         // Change the Thread name in order to allocate the logging messages of this job
         Thread.currentThread().setName(getThreadName(jobId));
         
-        // Open the connection to the database
-        try(Connection connection = userDataSource.getConnection()) {
+        try {
             isRunning = true;
             setJobState(JobStates.RUNNING);
-            GroovyShell shell = new GroovyShell();
-            File scriptFile = scriptMetadata.path.toFile();
-            Script script = shell.parse(scriptFile);
-            // Provide system inputs
-            inputs.put("_progression", progressVisitor);
-            // The script is not sandboxed so it have the same read/write access as the application
-            // it is useless to try to limit access to the server configuration
-            inputs.put("_configuration", configuration);
-            Object returnData = script.invokeMethod("exec", new Object[]{connection, inputs});
+            onJobBegin();
+            String memoKey = null;
+            Map<String, String> tablesBefore = null;
+            if (configuration.isJobMemoization() && scriptMetadata.memoization) {
+                try (Connection connection = userDataSource.getConnection()) {
+                    memoKey = JobMemoization.computeKey(connection, userId, scriptMetadata.path, inputs,
+                            scriptMetadata.getFileInputs(), Path.of(configuration.getWorkingDirectory()));
+                    tablesBefore = JobMemoization.getTableFingerprints(connection);
+                    String memoizedResult = reuseMemoizedResult(memoKey, tablesBefore);
+                    if (memoizedResult != null) {
+                        setJobResult(memoizedResult);
+                        setJobState(JobStates.COMPLETED);
+                        setJobProgression(100);
+                        return (T) memoizedResult;
+                    }
+                } catch (SQLException | IOException ex) {
+                    logger.warn("Unable to check the memoized results: {}", ex.getLocalizedMessage());
+                    memoKey = null;
+                }
+            }
+            Map<String, Double> costFeatures = recordCostFeatures();
+            long computeStart = System.currentTimeMillis();
+            progressionTracker.start();
+            Object returnData = configuration.isJobProcess() ? runInWorkerProcess() : runInServerProcess();
+            progressionTracker.stop();
+            if (costFeatures != null) {
+                recordPeakHeap(workerPeakHeap > 0 ? workerPeakHeap : progressionTracker.getPeakHeap());
+            }
+            if (memoKey != null) {
+                memoizeResult(memoKey, tablesBefore, getResultString(returnData),
+                        System.currentTimeMillis() - computeStart);
+            }
+            setJobResult(getResultString(returnData));
             setJobState(JobStates.COMPLETED);
             setJobProgression(100);
             return (T) returnData;
         } catch (Exception ex) {
-            setJobState(JobStates.FAILED);
-            logger.error("Job failed", ex);
+            if(progressVisitor.isCanceled()) {
+                setJobState(JobStates.CANCELED);
+                logger.info("Job canceled");
+            } else {
+                setJobResult(ex.getLocalizedMessage());
+                setJobState(JobStates.FAILED);
+                logger.error("Job failed", ex);
+            }
             throw new RuntimeException(ex);
         } finally {
             isRunning = false;
+            progressionTracker.stop();
             onJobEnd();
         }
     }
 
+    /**
+     * Predict the duration and memory of this job from the past runs of the script, the estimate is saved with the
+     * job and used by the admission control
+     * @return The estimate or null if the script does not declare its cost inputs or has never been run
+     */
+    public JobCostEstimator.Estimate estimateCost() {
+        if (!scriptMetadata.cost.declared) {
+            return null;
+        }
+        try (Connection userConnection = userDataSource.getConnection();
+             Connection connection = serverDataSource.getConnection()) {
+            Map<String, Double> features = JobCostEstimator.extractFeatures(userConnection, scriptMetadata, inputs);
+            estimate = JobCostEstimator.estimate(connection, scriptMetadata.id, features);
+            if (estimate != null) {
+                DatabaseManagement.setJobEstimate(connection, jobId, estimate.duration, estimate.peakHeap);
+            }
+        } catch (SQLException ex) {
+            logger.warn("Unable to estimate the job cost: {}", ex.getLocalizedMessage());
+        }
+        return estimate;
+    }
+
+    /**
+     * Save the cost features of this job, so its duration and memory will calibrate the next estimates
+     * @return The features or null if the script does not declare its cost inputs
+     */
+    private Map<String, Double> recordCostFeatures() {
+        if (!scriptMetadata.cost.declared) {
+            return null;
+        }
+        try (Connection userConnection = userDataSource.getConnection();
+             Connection connection = serverDataSource.getConnection()) {
+            Map<String, Double> features = JobCostEstimator.extractFeatures(userConnection, scriptMetadata, inputs);
+            DatabaseManagement.setJobCostFeatures(connection, jobId, JobCostEstimator.encodeFeatures(features));
+            return features;
+        } catch (SQLException ex) {
+            logger.warn("Unable to read the job cost features: {}", ex.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    private void recordPeakHeap(long peakHeap) {
+        try (Connection connection = serverDataSource.getConnection()) {
+            DatabaseManagement.setJobPeakHeap(connection, jobId, peakHeap);
+        } catch (SQLException ex) {
+            logger.warn("Unable to save the job peak heap: {}", ex.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Look for the result of a previous job with the same memo key, whose output tables have not been modified
+     * @param memoKey Memo key of this job, see {@link JobMemoization}
+     * @param currentTables Current fingerprint of the user tables
+     * @return The result of the previous job or null if the job must be computed
+     * @throws SQLException If the server database can not be read
+     */
+    private String reuseMemoizedResult(String memoKey, Map<String, String> currentTables) throws SQLException {
+        try (Connection connection = serverDataSource.getConnection()) {
+            Map<String, Object> memo = DatabaseManagement.getJobMemo(connection, memoKey);
+            if (memo == null) {
+                return null;
+            }
+            if (!JobMemoization.isOutputUnchanged((String) memo.get("outputTables"), currentTables)) {
+                logger.info("The output tables of job {} have been modified since, the job is computed again",
+                        memo.get("jobId"));
+                DatabaseManagement.deleteJobMemo(connection, memoKey);
+                return null;
+            }
+            int memoJobId = (Integer) memo.get("jobId");
+            long timeSaved = (Long) memo.get("duration");
+            DatabaseManagement.setJobMemoHit(connection, memoKey, jobId, memoJobId, timeSaved);
+            logger.info("Same script, inputs and input tables as job {}, its result is reused", memoJobId);
+            return (String) memo.get("result");
+        }
+    }
+
+    /**
+     * Record the result of this job and the tables it wrote, so it can be reused by the next identical job
+     * @param memoKey Memo key of this job
+     * @param tablesBefore Fingerprint of the user tables before the job
+     * @param result Job result
+     * @param duration Computation time in milliseconds
+     */
+    private void memoizeResult(String memoKey, Map<String, String> tablesBefore, String result, long duration) {
+        try (Connection userConnection = userDataSource.getConnection();
+             Connection connection = serverDataSource.getConnection()) {
+            String outputTables = JobMemoization.getOutputTables(tablesBefore,
+                    JobMemoization.getTableFingerprints(userConnection));
+            DatabaseManagement.saveJobMemo(connection, memoKey, userId, jobId, result, outputTables, duration);
+        } catch (SQLException ex) {
+            logger.warn("Unable to memoize the job result: {}", ex.getLocalizedMessage());
+        }
+    }
+
+    private Object runInServerProcess() throws SQLException, IOException {
+        // Open the connection to the database
+        try(Connection connection = userDataSource.getConnection()) {
+            Script script = ScriptClassCache.getInstance().createScript(scriptMetadata.path);
+            // Provide system inputs
+            inputs.put("_progression", progressVisitor);
+            // The script is not sandboxed so it have the same read/write access as the application
+            // it is useless to try to limit access to the server configuration
+            inputs.put("_configuration", configuration);
+            // Scripts running several tasks at the same time (ex. pipelines) open their own connections
+            inputs.put("_dataSource", userDataSource);
+            return script.invokeMethod("exec", new Object[]{connection, inputs});
+        }
+    }
+
+    /**
+     * Run the script in a new java process sized with the script resources, see {@link JobWorkerProcess}
+     * @return Result of the script
+     * @throws IOException If the process can not be started
+     * @throws InterruptedException If the job thread has been interrupted
+     */
+    private Object runInWorkerProcess() throws IOException, InterruptedException {
+        // The process is sized with the resources reserved by the JobExecutorService
+        List<String> processCommand = JobWorkerProcess.buildCommand(getRequiredThreads(availableProcessors),
+                getRequiredHeap());
+        Process process = new ProcessBuilder(processCommand).start();
+        workerProcess = process;
+        logger.info("Job process {} started", process.pid());
+        // Relay the process logs in a thread with the job name, so they are part of the job logs
+        Thread logRelay = new Thread(() -> {
+            try (BufferedReader errorReader = new BufferedReader(
+                    new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = errorReader.readLine()) != null) {
+                    JobWorkerProcess.relayLogLine(logger, line);
+                }
+            } catch (IOException ex) {
+                logger.debug(ex.getLocalizedMessage(), ex);
+            }
+        }, Thread.currentThread().getName());
+        logRelay.setDaemon(true);
+        logRelay.start();
+        String result = null;
+        String error = null;
+        try (BufferedReader outputReader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            workerInput = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+            sendToWorker(JobWorkerProcess.buildRequest(scriptMetadata.path, configuration,
+                    OwsController.getUserDatabaseName(userId), inputs));
+            if (progressVisitor.isCanceled()) {
+                sendToWorker(JobWorkerProcess.CANCEL);
+            }
+            String line;
+            while ((line = outputReader.readLine()) != null) {
+                int separator = line.indexOf(' ');
+                String command = separator > 0 ? line.substring(0, separator) : line;
+                String value = separator > 0 ? line.substring(separator + 1) : "";
+                switch (command) {
+                    case JobWorkerProcess.PROGRESS:
+                        progressionTracker.update(Double.parseDouble(value));
+                        break;
+                    case JobWorkerProcess.HEAP:
+                        workerPeakHeap = Long.parseLong(value);
+                        break;
+                    case JobWorkerProcess.RESULT:
+                        result = JobWorkerProcess.decodeValue(value);
+                        break;
+                    case JobWorkerProcess.ERROR:
+                        error = JobWorkerProcess.decodeValue(value);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            int exitCode = process.waitFor();
+            logRelay.join(TimeUnit.SECONDS.toMillis(1));
+            if (exitCode == 0 && result != null) {
+                return result;
+            }
+            throw new IllegalStateException(error != null ? error :
+                    String.format("Job process ended with the exit code %d", exitCode));
+        } finally {
+            workerInput = null;
+            workerProcess = null;
+            process.destroyForcibly();
+        }
+    }
+
+    private void sendToWorker(String line) {
+        Writer writer = workerInput;
+        if (writer != null) {
+            try {
+                synchronized (writer) {
+                    writer.write(line);
+                    writer.write('\n');
+                    writer.flush();
+                }
+            } catch (IOException ex) {
+                logger.warn("Unable to send {} to the job process: {}", line, ex.getLocalizedMessage());
+            }
+        }
+    }
+
     public void cancel() {
         progressVisitor.cancel();
+        sendToWorker(JobWorkerProcess.CANCEL);
+    }
+
+    /**
+     * Stop the job process immediately, used if the job does not handle the cancel request
+     */
+    public void abort() {
+        Process process = workerProcess;
+        if (process != null) {
+            process.destroyForcibly();
+        }
     }
 
     public boolean isRunning() {
         return isRunning;
     }
 
+    /**
+     * @return User identifier that submitted the job
+     */
+    public int getUserId() {
+        return userId;
+    }
+
+    /**
+     * @return Metadata of the script run by this job
+     */
+    public ScriptMetadata getScriptMetadata() {
+        return scriptMetadata;
+    }
+
+    /**
+     * @return Predicted cost of the job, null if not estimated
+     */
+    public JobCostEstimator.Estimate getEstimate() {
+        return estimate;
+    }
+
+    /**
+     * @param availableProcessors Number of cores of the server
+     * @return Number of threads used by the job
+     */
+    public int getRequiredThreads(int availableProcessors) {
+        return scriptMetadata.resources.getRequiredThreads(inputs, availableProcessors);
+    }
+
+    /**
+     * @return Heap memory in MB used by the job: reserved by the {@link JobExecutorService} and given to the job
+     * process (-Xmx), 0 if the script does not declare its needs
+     */
+    public long getRequiredHeap() {
+        long estimatedHeap = estimate != null ? estimate.peakHeapHigh : -1;
+        if (configuration != null && configuration.isJobProcess()) {
+            return scriptMetadata.resources.getProcessHeap(inputs, estimatedHeap);
+        }
+        return scriptMetadata.resources.getRequiredHeap(inputs, estimatedHeap);
+    }
+
+    /**
+     * @return Script inputs provided by the user
+     */
+    public Map<String, Object> getInputs() {
+        return inputs;
+    }
+
     @NotNull
     public static String getThreadName(int jobId) {
         return String.format("JOB_%d", jobId);
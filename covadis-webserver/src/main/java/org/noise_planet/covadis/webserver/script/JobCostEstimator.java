@@ -0,0 +1,288 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.script;
+
+import groovy.json.JsonOutput;
+import groovy.json.JsonSlurper;
+import org.h2gis.utilities.JDBCUtilities;
+import org.h2gis.utilities.TableLocation;
+import org.h2gis.utilities.dbtypes.DBUtils;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Predict the duration and peak heap memory of a job before it runs.
+ * <p>
+ * The features of a job are the row counts of its input tables and its numeric settings, as declared by the script
+ * (see {@link ScriptCost}), and the number of threads. They are recorded in the JOBS table with the measured peak
+ * heap when the job starts. The prediction is a power law fitted on the completed runs of the same script:
+ * {@code log(duration) = b0 + sum(bi * log(1 + feature_i))}, solved by a ridge regression so a few runs are
+ * enough to get an estimate. The same model is fitted on the peak heap.
+ * </p>
+ */
+public class JobCostEstimator {
+    /** Number of the most recent completed jobs used to fit the model */
+    public static final int HISTORY_SIZE = 200;
+    /** Feature holding the number of threads of the job */
+    public static final String THREADS_FEATURE = "threads";
+    /** Regularization of the regression, keeps the coefficients small when there are few runs */
+    static final double RIDGE = 0.1;
+
+    private JobCostEstimator() {}
+
+    /**
+     * Prediction of the job cost
+     */
+    public static class Estimate {
+        /** Number of past runs used for the prediction */
+        final public int samples;
+        /** Predicted duration in milliseconds */
+        final public long duration;
+        /** Duration range in milliseconds (two standard deviations), -1 if there are not enough runs */
+        final public long durationLow;
+        final public long durationHigh;
+        /** Predicted peak heap memory in MB, -1 if unknown */
+        final public long peakHeap;
+        /** Upper bound of the peak heap memory in MB, -1 if there are not enough runs */
+        final public long peakHeapHigh;
+
+        public Estimate(int samples, long duration, long durationLow, long durationHigh, long peakHeap,
+                        long peakHeapHigh) {
+            this.samples = samples;
+            this.duration = duration;
+            this.durationLow = durationLow;
+            this.durationHigh = durationHigh;
+            this.peakHeap = peakHeap;
+            this.peakHeapHigh = peakHeapHigh;
+        }
+    }
+
+    /**
+     * Read the cost features of a job
+     * @param userConnection User database connection
+     * @param scriptMetadata Script of the job
+     * @param inputs Job inputs
+     * @return Feature values by name, null if the script does not declare its cost inputs
+     * @throws SQLException If an input table can not be read
+     */
+    public static Map<String, Double> extractFeatures(Connection userConnection, ScriptMetadata scriptMetadata,
+                                                      Map<String, Object> inputs) throws SQLException {
+        ScriptCost cost = scriptMetadata.cost;
+        if (!cost.declared) {
+            return null;
+        }
+        Map<String, Double> features = new TreeMap<>();
+        for (String tableInput : cost.tables) {
+            Object tableName = inputs.get(tableInput);
+            if (tableName != null && !tableName.toString().isEmpty()) {
+                TableLocation tableLocation = TableLocation.parse(tableName.toString(),
+                        DBUtils.getDBType(userConnection));
+                features.put(tableInput, JDBCUtilities.tableExists(userConnection, tableLocation) ?
+                        (double) JDBCUtilities.getRowCount(userConnection, tableLocation.toString()) : 0.0);
+            }
+        }
+        for (Map.Entry<String, Object> valueInput : cost.values.entrySet()) {
+            Object value = inputs.get(valueInput.getKey());
+            Double number = toNumber(value);
+            features.put(valueInput.getKey(), number != null ? number : toNumber(valueInput.getValue()));
+        }
+        features.values().removeIf(Objects::isNull);
+        features.put(THREADS_FEATURE, (double) scriptMetadata.resources.getRequiredThreads(inputs,
+                Runtime.getRuntime().availableProcessors()));
+        return features;
+    }
+
+    private static Double toNumber(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value ? 1.0 : 0.0;
+        }
+        if (value != null) {
+            String text = value.toString().trim();
+            if (text.equalsIgnoreCase("true") || text.equalsIgnoreCase("false")) {
+                return Boolean.parseBoolean(text) ? 1.0 : 0.0;
+            }
+            try {
+                return Double.parseDouble(text);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param features Feature values
+     * @return Features encoded for the JOBS table
+     */
+    public static String encodeFeatures(Map<String, Double> features) {
+        return JsonOutput.toJson(features);
+    }
+
+    /**
+     * @param encodedFeatures Features read from the JOBS table
+     * @return Feature values by name
+     */
+    public static Map<String, Double> decodeFeatures(String encodedFeatures) {
+        Map<String, Double> features = new TreeMap<>();
+        Object parsed = new JsonSlurper().parseText(encodedFeatures);
+        if (parsed instanceof Map) {
+            ((Map<?, ?>) parsed).forEach((name, value) -> {
+                if (value instanceof Number) {
+                    features.put(name.toString(), ((Number) value).doubleValue());
+                }
+            });
+        }
+        return features;
+    }
+
+    /**
+     * Predict the cost of a job from the completed runs of the same script
+     * @param serverConnection Server database connection
+     * @param scriptId Script identifier
+     * @param features Features of the job, see {@link #extractFeatures(Connection, ScriptMetadata, Map)}
+     * @return The estimate or null if there is no completed run of this script
+     * @throws SQLException If the job history can not be read
+     */
+    public static Estimate estimate(Connection serverConnection, String scriptId, Map<String, Double> features)
+            throws SQLException {
+        List<Map<String, Object>> history = DatabaseManagement.getJobCostHistory(serverConnection, scriptId,
+                HISTORY_SIZE);
+        List<Map<String, Double>> durationFeatures = new ArrayList<>();
+        List<Double> durations = new ArrayList<>();
+        List<Map<String, Double>> heapFeatures = new ArrayList<>();
+        List<Double> heaps = new ArrayList<>();
+        for (Map<String, Object> run : history) {
+            Map<String, Double> runFeatures = decodeFeatures((String) run.get("features"));
+            durationFeatures.add(runFeatures);
+            durations.add((double) Math.max(1L, (Long) run.get("duration")));
+            Long peakHeap = (Long) run.get("peakHeap");
+            if (peakHeap != null && peakHeap > 0) {
+                heapFeatures.add(runFeatures);
+                heaps.add((double) peakHeap);
+            }
+        }
+        double[] duration = predict(durationFeatures, durations, features);
+        if (duration == null) {
+            return null;
+        }
+        double[] heap = predict(heapFeatures, heaps, features);
+        return new Estimate(durations.size(), Math.round(duration[0]),
+                duration.length > 1 ? Math.round(duration[1]) : -1,
+                duration.length > 1 ? Math.round(duration[2]) : -1,
+                heap != null ? Math.round(heap[0]) : -1,
+                heap != null && heap.length > 1 ? Math.round(heap[2]) : -1);
+    }
+
+    /**
+     * Fit the power law on the past runs and evaluate it on the job features
+     * @param runFeatures Features of the past runs
+     * @param measures Measured value of the past runs (duration or heap), strictly positive
+     * @param features Features of the job
+     * @return [prediction] or [prediction, low bound, high bound] when there are more runs than coefficients,
+     * null if there is no past run
+     */
+    public static double[] predict(List<Map<String, Double>> runFeatures, List<Double> measures,
+                            Map<String, Double> features) {
+        int n = measures.size();
+        if (n == 0) {
+            return null;
+        }
+        List<String> names = new ArrayList<>(features.keySet());
+        int p = names.size();
+        double[][] x = new double[n][p];
+        double[] y = new double[n];
+        double[] meanX = new double[p];
+        double meanY = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < p; j++) {
+                x[i][j] = Math.log1p(Math.max(0, runFeatures.get(i).getOrDefault(names.get(j), 0.0)));
+                meanX[j] += x[i][j] / n;
+            }
+            y[i] = Math.log(measures.get(i));
+            meanY += y[i] / n;
+        }
+        // Ridge regression on the centered values, the intercept is not penalized
+        double[][] a = new double[p][p + 1];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < p; j++) {
+                double xj = x[i][j] - meanX[j];
+                for (int k = 0; k < p; k++) {
+                    a[j][k] += xj * (x[i][k] - meanX[k]);
+                }
+                a[j][p] += xj * (y[i] - meanY);
+            }
+        }
+        for (int j = 0; j < p; j++) {
+            a[j][j] += RIDGE;
+        }
+        double[] coefficients = solve(a);
+        double prediction = meanY;
+        for (int j = 0; j < p; j++) {
+            prediction += coefficients[j] * (Math.log1p(Math.max(0, features.get(names.get(j)))) - meanX[j]);
+        }
+        if (n <= p + 1) {
+            return new double[] {Math.exp(prediction)};
+        }
+        double squaredResiduals = 0;
+        for (int i = 0; i < n; i++) {
+            double fitted = meanY;
+            for (int j = 0; j < p; j++) {
+                fitted += coefficients[j] * (x[i][j] - meanX[j]);
+            }
+            squaredResiduals += (y[i] - fitted) * (y[i] - fitted);
+        }
+        double deviation = Math.sqrt(squaredResiduals / (n - p - 1));
+        return new double[] {Math.exp(prediction), Math.exp(prediction - 2 * deviation),
+                Math.exp(prediction + 2 * deviation)};
+    }
+
+    /**
+     * Gauss-Jordan elimination with partial pivoting
+     * @param a Augmented matrix [A|b], symmetric positive definite A
+     * @return Solution of A x = b
+     */
+    private static double[] solve(double[][] a) {
+        int p = a.length;
+        for (int column = 0; column < p; column++) {
+            int pivot = column;
+            for (int row = column + 1; row < p; row++) {
+                if (Math.abs(a[row][column]) > Math.abs(a[pivot][column])) {
+                    pivot = row;
+                }
+            }
+            double[] swap = a[column];
+            a[column] = a[pivot];
+            a[pivot] = swap;
+            for (int row = 0; row < p; row++) {
+                if (row != column) {
+                    double factor = a[row][column] / a[column][column];
+                    for (int k = column; k <= p; k++) {
+                        a[row][k] -= factor * a[column][k];
+                    }
+                }
+            }
+        }
+        double[] solution = new double[p];
+        for (int j = 0; j < p; j++) {
+            solution[j] = a[j][p] / a[j][j];
+        }
+        return solution;
+    }
+}
@@ -8,47 +8,350 @@
  */
 package org.noise_planet.covadis.webserver.script;
 
-import org.jetbrains.annotations.NotNull;
-import org.noise_planet.covadis.webserver.database.DatabaseManagement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.sql.SQLException;
+import java.util.*;
 import java.util.concurrent.*;
 
 /**
  * Manage pool of Job Threads.
+ * Submitted jobs wait in a bounded queue (their state is QUEUED in the JOBS table) until a worker slot is free.
+ * <p>
+ * Worker slots are shared between users (fair-share): when a slot is free the next job is taken from the user having
+ * the lowest number of running jobs relative to its weight. Jobs of the same user are started in submission order.
+ * A user can not use more than its maximum number of slots, so a slot always remains for the other users.
+ * </p>
+ * <p>
+ * Jobs are admitted only while the sum of the threads and heap declared by the running scripts (see
+ * {@link ScriptResources}) and the resources reserved outside of the queue (see {@link #reserveResources}) fit the
+ * server cores and maximum heap. When enough runs of the script are known, the heap
+ * predicted by the {@link JobCostEstimator} replaces the declared heap. A job that does not fit is kept in the queue
+ * while smaller jobs of the other users may start in the meantime (backfill). When a job has been blocked longer
+ * than the drain delay ({@link #DRAIN_DELAY} by default) no other job is started until enough resources are released
+ * for it.
+ * </p>
  */
 public class JobExecutorService {
+    /** Heap memory in MB kept for the web server itself */
+    public static final long SERVER_HEAP_RESERVE = 512;
+    /** Physical memory in MB kept for the operating system and the memory of the JVMs outside of their heap */
+    public static final long SYSTEM_MEMORY_RESERVE = 2048;
+    private static final long MB = 1024 * 1024;
+    /** Waiting time of a job blocked by the lack of resources before stopping the backfill of smaller jobs */
+    public static final long DRAIN_DELAY = TimeUnit.MINUTES.toMillis(15);
     private final Map<Integer, Job<?>> jobs = new ConcurrentHashMap<>();
+    /** Jobs waiting for a free worker slot by user identifier, guarded by this */
+    private final Map<Integer, Deque<JobTask<?>>> userQueues = new HashMap<>();
+    /** Running jobs, guarded by this */
+    private final Map<Integer, JobTask<?>> runningTasks = new HashMap<>();
+    /** Number of running jobs by user identifier, guarded by this */
+    private final Map<Integer, Integer> userRunningJobs = new HashMap<>();
+    /** Scheduling settings by user identifier, guarded by this */
+    private final Map<Integer, UserShare> userShares = new HashMap<>();
+    /** Cumulated waiting time in the queue and number of started jobs by user identifier, guarded by this */
+    private final Map<Integer, long[]> userWaitStatistics = new HashMap<>();
+    private int queueSize = 0;
+    /** Sum of the threads and heap (MB) declared by the running jobs, guarded by this */
+    private int usedThreads = 0;
+    private long usedHeap = 0;
+    /** Number of resource reservations made outside of the job queue, guarded by this */
+    private int reservations = 0;
+    private final int maximumRunningJobs;
+    private final int availableProcessors;
+    private final long heapCapacity;
+    private final int queueCapacity;
+    private long drainDelay = DRAIN_DELAY;
+    private boolean isShutdown = false;
     private final ExecutorService executorService;
     private final ScheduledExecutorService scheduledExecutorService;
     private final Logger logger = LoggerFactory.getLogger(JobExecutorService.class);
 
-    public JobExecutorService(int corePoolSize, int maximumPoolSize, long keepAliveTime, @NotNull TimeUnit unit) {
-        this.executorService = new ThreadPoolExecutor(corePoolSize, maximumPoolSize, keepAliveTime, unit,
-                new SynchronousQueue<>(), Executors.defaultThreadFactory());
+    /**
+     * @param maximumRunningJobs Number of worker slots, the maximum number of jobs running at the same time
+     * @param queueCapacity Maximum number of jobs waiting for a worker slot
+     */
+    public JobExecutorService(int maximumRunningJobs, int queueCapacity) {
+        this(maximumRunningJobs, queueCapacity, Runtime.getRuntime().availableProcessors(),
+                getHeapCapacity(false));
+    }
+
+    /**
+     * @param maximumRunningJobs Number of worker slots, the maximum number of jobs running at the same time
+     * @param queueCapacity Maximum number of jobs waiting for a worker slot
+     * @param availableProcessors Number of cores shared by the running jobs
+     * @param heapCapacity Heap memory in MB shared by the running jobs, {@link Long#MAX_VALUE} for no limit
+     */
+    public JobExecutorService(int maximumRunningJobs, int queueCapacity, int availableProcessors, long heapCapacity) {
+        if (maximumRunningJobs < 1) {
+            throw new IllegalArgumentException("At least one job worker is required");
+        }
+        this.maximumRunningJobs = maximumRunningJobs;
+        this.queueCapacity = queueCapacity;
+        this.availableProcessors = Math.max(1, availableProcessors);
+        this.heapCapacity = heapCapacity;
+        this.executorService = Executors.newFixedThreadPool(maximumRunningJobs);
         this.scheduledExecutorService = Executors.newScheduledThreadPool(1);
     }
 
-    public <T> Future<T> submitJob(Job<T> job) {
+    /**
+     * Add the job into the queue, it will be started as soon as a worker slot is available
+     * @param job Job to execute
+     * @return Future result of the job
+     * @throws RejectedExecutionException If the queue is full, the job is set as failed
+     */
+    public synchronized <T> Future<T> submitJob(Job<T> job) {
         if (jobs.containsKey(job.getId())) {
             throw new IllegalArgumentException(String.format("Job with ID %d already exists.", job.getId()));
         }
+        if (isShutdown || queueSize >= queueCapacity) {
+            job.setJobState(JobStates.FAILED);
+            try {
+                job.onJobEnd();
+            } catch (SQLException ex) {
+                logger.error(ex.getLocalizedMessage(), ex);
+            }
+            RejectedExecutionException rejectedException = new RejectedExecutionException(String.format(
+                    "Job %d rejected, the job queue is full (%d jobs waiting)", job.getId(), queueSize));
+            job.getCompletion().completeExceptionally(rejectedException);
+            throw rejectedException;
+        }
+        job.setAvailableProcessors(availableProcessors);
+        JobTask<T> task = new JobTask<>(job, job.getRequiredThreads(availableProcessors), job.getRequiredHeap());
+        job.setFuture(task);
         jobs.put(job.getId(), job);
-        Future<T> futureTask = executorService.submit(job);
-        job.setFuture(futureTask);
-        return futureTask;
+        userQueues.computeIfAbsent(job.getUserId(), userId -> new ArrayDeque<>()).addLast(task);
+        queueSize++;
+        dispatch();
+        return task;
+    }
+
+    /**
+     * Set the scheduling settings of a user, used for the next jobs to start
+     * @param userId User identifier
+     * @param userShare Weight and maximum number of running jobs
+     */
+    public synchronized void setUserShare(int userId, UserShare userShare) {
+        userShares.put(userId, userShare);
+        dispatch();
+    }
+
+    /**
+     * @param drainDelay Waiting time in milliseconds of a job blocked by the lack of resources before stopping the
+     * backfill of smaller jobs, {@link #DRAIN_DELAY} by default
+     */
+    public synchronized void setDrainDelay(long drainDelay) {
+        this.drainDelay = drainDelay;
+    }
+
+    /**
+     * @param jobProcess True if each job runs in its own java process, see {@link JobWorkerProcess}
+     * @return Heap memory in MB available for the jobs. The jobs share the heap of this JVM (-Xmx option), or the
+     * physical memory left by this JVM and the system when they run in their own process
+     */
+    public static long getHeapCapacity(boolean jobProcess) {
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        if (jobProcess) {
+            OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+            if (!(operatingSystem instanceof com.sun.management.OperatingSystemMXBean)) {
+                return Long.MAX_VALUE;
+            }
+            long physicalMemoryMB = ((com.sun.management.OperatingSystemMXBean) operatingSystem)
+                    .getTotalPhysicalMemorySize() / MB;
+            long serverHeapMB = maxMemory == Long.MAX_VALUE ? 0 : maxMemory / MB;
+            return Math.max(SERVER_HEAP_RESERVE, physicalMemoryMB - serverHeapMB - SYSTEM_MEMORY_RESERVE);
+        }
+        if (maxMemory == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        long maxMemoryMB = maxMemory / MB;
+        return Math.max(maxMemoryMB / 2, maxMemoryMB - SERVER_HEAP_RESERVE);
+    }
+
+    /**
+     * @param task Queued job
+     * @return True if the declared resources of the job fit in the resources left by the running jobs
+     */
+    private boolean fitsResources(JobTask<?> task) {
+        return fitsResources(task.requiredThreads, task.requiredHeap);
+    }
+
+    /**
+     * @param requiredThreads Threads used by a job
+     * @param requiredHeap Heap memory in MB used by a job
+     * @return True if a job with these resources fits in the resources left by the running jobs
+     */
+    public synchronized boolean fitsResources(int requiredThreads, long requiredHeap) {
+        if (runningTasks.isEmpty() && reservations == 0) {
+            // A job larger than the server is still executed, alone
+            return true;
+        }
+        return usedThreads + requiredThreads <= availableProcessors
+                && (heapCapacity == Long.MAX_VALUE || usedHeap + requiredHeap <= heapCapacity);
+    }
+
+    /**
+     * Reserve resources for a computation that does not go through the job queue (ex. a campaign department), the
+     * queued jobs are started only in the resources left by the reservations
+     * @param requiredThreads Threads used by the computation
+     * @param requiredHeap Heap memory in MB used by the computation
+     * @return True if the resources are reserved, false if they do not fit in the resources left by the running jobs
+     */
+    public synchronized boolean reserveResources(int requiredThreads, long requiredHeap) {
+        if (!fitsResources(requiredThreads, requiredHeap)) {
+            return false;
+        }
+        reservations++;
+        usedThreads += requiredThreads;
+        usedHeap += requiredHeap;
+        return true;
+    }
+
+    /**
+     * Release the resources reserved with {@link #reserveResources(int, long)}
+     * @param requiredThreads Reserved threads
+     * @param requiredHeap Reserved heap memory in MB
+     */
+    public synchronized void releaseResources(int requiredThreads, long requiredHeap) {
+        reservations--;
+        usedThreads -= requiredThreads;
+        usedHeap -= requiredHeap;
+        dispatch();
+    }
+
+    /**
+     * @return Number of cores shared by the running jobs
+     */
+    public int getAvailableProcessors() {
+        return availableProcessors;
+    }
+
+    /**
+     * @param userShare User settings
+     * @return Maximum number of jobs running at the same time for this user
+     */
+    private int getUserSlotLimit(UserShare userShare) {
+        if (userShare.maximumRunningJobs > 0) {
+            return Math.min(userShare.maximumRunningJobs, maximumRunningJobs);
+        }
+        // keep a slot for the other users
+        return Math.max(1, maximumRunningJobs - 1);
+    }
+
+    /**
+     * Select the next job to start according to the fair-share policy and the available resources, and remove it
+     * from the queue
+     * @return The next job to start or null if there is no job that can be started
+     */
+    private JobTask<?> pollNextTask() {
+        List<Map.Entry<Double, Deque<JobTask<?>>>> candidates = new ArrayList<>(userQueues.size());
+        for (Map.Entry<Integer, Deque<JobTask<?>>> entry : userQueues.entrySet()) {
+            Deque<JobTask<?>> userQueue = entry.getValue();
+            if (userQueue.isEmpty()) {
+                continue;
+            }
+            UserShare userShare = userShares.getOrDefault(entry.getKey(), UserShare.DEFAULT);
+            int running = userRunningJobs.getOrDefault(entry.getKey(), 0);
+            if (running >= getUserSlotLimit(userShare)) {
+                continue;
+            }
+            candidates.add(new AbstractMap.SimpleEntry<>(running / userShare.weight, userQueue));
+        }
+        // Lowest share first, then oldest job first
+        candidates.sort(Comparator.<Map.Entry<Double, Deque<JobTask<?>>>>comparingDouble(Map.Entry::getKey)
+                .thenComparingLong(candidate -> candidate.getValue().peekFirst().submitTime));
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Double, Deque<JobTask<?>>> candidate : candidates) {
+            JobTask<?> task = candidate.getValue().peekFirst();
+            if (fitsResources(task)) {
+                queueSize--;
+                return candidate.getValue().pollFirst();
+            }
+            if (now - task.submitTime > drainDelay) {
+                // Do not start smaller jobs anymore, the running jobs have to release their resources for this one
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Start queued jobs while worker slots are available
+     */
+    private synchronized void dispatch() {
+        while (!isShutdown && runningTasks.size() < maximumRunningJobs) {
+            JobTask<?> task = pollNextTask();
+            if (task == null) {
+                break;
+            }
+            int userId = task.job.getUserId();
+            runningTasks.put(task.job.getId(), task);
+            userRunningJobs.merge(userId, 1, Integer::sum);
+            usedThreads += task.requiredThreads;
+            usedHeap += task.requiredHeap;
+            if (task.requiredThreads > 0 || task.requiredHeap > 0) {
+                logger.info("Start job {} using {} threads and {} MB (in use {}/{} threads, {}/{} MB)",
+                        task.job.getId(), task.requiredThreads, task.requiredHeap, usedThreads, availableProcessors,
+                        usedHeap, heapCapacity == Long.MAX_VALUE ? "unlimited" : heapCapacity);
+            }
+            long[] waitStatistics = userWaitStatistics.computeIfAbsent(userId, id -> new long[2]);
+            waitStatistics[0] += System.currentTimeMillis() - task.submitTime;
+            waitStatistics[1]++;
+            executorService.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    onTaskDone(task);
+                }
+            });
+        }
+    }
+
+    private synchronized void onTaskDone(JobTask<?> task) {
+        runningTasks.remove(task.job.getId());
+        usedThreads -= task.requiredThreads;
+        usedHeap -= task.requiredHeap;
+        userRunningJobs.computeIfPresent(task.job.getUserId(), (userId, running) -> running > 1 ? running - 1 : null);
+        jobs.remove(task.job.getId());
+        dispatch();
     }
 
     public boolean cancelJob(int jobId, int abortDelay) {
         Job<?> job = jobs.get(jobId);
         if (job != null) {
+            synchronized (this) {
+                Deque<JobTask<?>> userQueue = userQueues.getOrDefault(job.getUserId(), new ArrayDeque<>());
+                JobTask<?> queuedTask = null;
+                for (JobTask<?> task : userQueue) {
+                    if (task.job.getId() == jobId) {
+                        queuedTask = task;
+                        break;
+                    }
+                }
+                if (queuedTask != null) {
+                    // The job has not been started, just remove it from the queue
+                    userQueue.remove(queuedTask);
+                    queueSize--;
+                    queuedTask.cancel(false);
+                    jobs.remove(jobId);
+                    job.setJobState(JobStates.CANCELED);
+                    try {
+                        job.onJobEnd();
+                    } catch (SQLException ex) {
+                        logger.error(ex.getLocalizedMessage(), ex);
+                    }
+                    return true;
+                }
+            }
             job.cancel();
             // After a specified delay, abort the process if it can't handle the progress monitor cancel
             scheduledExecutorService.schedule(() -> {
                 if (job.isRunning() && job.getFuture() != null) {
                     logger.warn("Aborting job {} after {} seconds.", jobId, abortDelay);
+                    job.abort();
                     job.getFuture().cancel(true);
                 }
             }, abortDelay, TimeUnit.SECONDS);
@@ -60,9 +363,109 @@ public class JobExecutorService {
         }
     }
 
+    /**
+     * @return Number of jobs waiting for a worker slot
+     */
+    public synchronized int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * @return Number of jobs currently running
+     */
+    public synchronized int getRunningJobsCount() {
+        return runningTasks.size();
+    }
+
+    /**
+     * @return Sum of the threads declared by the running jobs
+     */
+    public synchronized int getUsedThreads() {
+        return usedThreads;
+    }
+
+    /**
+     * @return Sum of the heap memory in MB declared by the running jobs
+     */
+    public synchronized long getUsedHeap() {
+        return usedHeap;
+    }
+
+    /**
+     * Queue statistics of each user having queued, running or already started jobs
+     * @return List of rows with the keys userId, queued, running, weight, maximumRunningJobs,
+     * oldestWait (waiting time of the first queued job in ms) and meanWait (mean waiting time in the queue of the
+     * started jobs in ms)
+     */
+    public synchronized List<Map<String, Object>> getUserQueueStatistics() {
+        Set<Integer> users = new TreeSet<>(userQueues.keySet());
+        users.addAll(userRunningJobs.keySet());
+        users.addAll(userWaitStatistics.keySet());
+        long now = System.currentTimeMillis();
+        List<Map<String, Object>> statistics = new ArrayList<>(users.size());
+        for (int userId : users) {
+            Deque<JobTask<?>> userQueue = userQueues.getOrDefault(userId, new ArrayDeque<>());
+            UserShare userShare = userShares.getOrDefault(userId, UserShare.DEFAULT);
+            long[] waitStatistics = userWaitStatistics.getOrDefault(userId, new long[2]);
+            Map<String, Object> row = new HashMap<>();
+            row.put("userId", userId);
+            row.put("queued", userQueue.size());
+            row.put("running", userRunningJobs.getOrDefault(userId, 0));
+            row.put("weight", userShare.weight);
+            row.put("maximumRunningJobs", getUserSlotLimit(userShare));
+            row.put("oldestWait", userQueue.isEmpty() ? 0L : now - userQueue.peekFirst().submitTime);
+            row.put("meanWait", waitStatistics[1] > 0 ? waitStatistics[0] / waitStatistics[1] : 0L);
+            statistics.add(row);
+        }
+        return statistics;
+    }
+
+    /**
+     * Stop accepting new jobs. Queued jobs keep the QUEUED state in the database and will be restored on the next
+     * server start.
+     */
     public void shutdown() {
+        synchronized (this) {
+            isShutdown = true;
+            userQueues.clear();
+            queueSize = 0;
+        }
         executorService.shutdown();
         scheduledExecutorService.shutdown();
     }
 
-}
\ No newline at end of file
+    /**
+     * Future of a job, keep the reference to the job
+     * @param <T> Job result type
+     */
+    private static class JobTask<T> extends FutureTask<T> {
+        final Job<T> job;
+        final long submitTime = System.currentTimeMillis();
+        /** Threads and heap memory (MB) reserved while the job is running */
+        final int requiredThreads;
+        final long requiredHeap;
+
+        JobTask(Job<T> job, int requiredThreads, long requiredHeap) {
+            super(job);
+            this.job = job;
+            this.requiredThreads = requiredThreads;
+            this.requiredHeap = requiredHeap;
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                job.getCompletion().cancel(false);
+                return;
+            }
+            try {
+                job.getCompletion().complete(get());
+            } catch (ExecutionException ex) {
+                job.getCompletion().completeExceptionally(ex.getCause());
+            } catch (InterruptedException ex) {
+                job.getCompletion().completeExceptionally(ex);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
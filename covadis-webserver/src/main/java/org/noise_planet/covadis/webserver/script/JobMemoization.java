@@ -0,0 +1,182 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.script;
+
+import groovy.json.JsonOutput;
+import groovy.json.JsonSlurper;
+import org.h2gis.utilities.JDBCUtilities;
+import org.h2gis.utilities.TableLocation;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Identify the jobs that would compute again the result of a previous job.
+ * <p>
+ * The memo key is a hash of the script content, of the user inputs and of a fingerprint of each input referencing
+ * a table (row count, maximum primary key and last modification) or a file (size and last modification). Only the
+ * inputs declared as files ({@link ScriptInput#file}) are read as file paths, and only in the working directory. The
+ * tables created or modified by the job are recorded with their fingerprint, the result is reused only while these
+ * output tables have not been modified since.
+ * </p>
+ */
+public class JobMemoization {
+
+    private JobMemoization() {
+    }
+
+    /**
+     * Compute the memo key of a job
+     * @param connection User database connection
+     * @param userId User identifier
+     * @param scriptPath Groovy script file
+     * @param inputs User inputs, the system inputs (starting with _) are ignored
+     * @param fileInputs Identifiers of the inputs declared as files
+     * @param fileDirectory Directory of the files readable by the jobs, the files outside of it are not fingerprinted
+     * @return SHA-256 in hexadecimal
+     * @throws SQLException If the input tables can not be read
+     * @throws IOException If the script can not be read
+     */
+    public static String computeKey(Connection connection, int userId, Path scriptPath, Map<String, Object> inputs,
+                                    Set<String> fileInputs, Path fileDirectory) throws SQLException, IOException {
+        Map<String, String> tables = getTableFingerprints(connection);
+        StringBuilder key = new StringBuilder();
+        key.append("user:").append(userId).append('\n');
+        key.append("script:").append(ScriptClassCache.hash(Files.readAllBytes(scriptPath))).append('\n');
+        for (Map.Entry<String, Object> input : new TreeMap<>(inputs).entrySet()) {
+            if (input.getKey().startsWith("_")) {
+                continue;
+            }
+            String value = String.valueOf(input.getValue());
+            key.append("input:").append(input.getKey()).append('=').append(value).append('\n');
+            String tableName = value.toUpperCase(Locale.ROOT);
+            if (tables.containsKey(tableName)) {
+                key.append("table:").append(getInputTableFingerprint(connection, tableName)).append('\n');
+            } else if (fileInputs.contains(input.getKey())) {
+                String fileFingerprint = getFileFingerprint(value, fileDirectory);
+                if (fileFingerprint != null) {
+                    key.append("file:").append(fileFingerprint).append('\n');
+                }
+            }
+        }
+        return ScriptClassCache.hash(key.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Cheap fingerprint of all the tables of the PUBLIC schema, read from the database metadata
+     * @param connection User database connection
+     * @return Fingerprint (last modification and row count) by table name
+     * @throws SQLException If the metadata can not be read
+     */
+    public static Map<String, String> getTableFingerprints(Connection connection) throws SQLException {
+        Map<String, String> fingerprints = new HashMap<>();
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery("SELECT TABLE_NAME, LAST_MODIFICATION, ROW_COUNT_ESTIMATE" +
+                     " FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = 'PUBLIC' AND TABLE_TYPE = 'BASE TABLE'")) {
+            while (rs.next()) {
+                fingerprints.put(rs.getString(1), rs.getLong(2) + ":" + rs.getLong(3));
+            }
+        }
+        return fingerprints;
+    }
+
+    /**
+     * @param connection User database connection
+     * @param tableName Existing table name
+     * @return Row count, maximum primary key value and last modification of the table
+     * @throws SQLException If the table can not be read
+     */
+    static String getInputTableFingerprint(Connection connection, String tableName) throws SQLException {
+        TableLocation tableLocation = TableLocation.parse(tableName);
+        String maxPrimaryKey = "";
+        int pkIndex = JDBCUtilities.getIntegerPrimaryKey(connection, tableLocation);
+        try (Statement st = connection.createStatement()) {
+            if (pkIndex > 0) {
+                String pkName = JDBCUtilities.getColumnName(connection, tableName, pkIndex);
+                try (ResultSet rs = st.executeQuery("SELECT MAX(" + TableLocation.quoteIdentifier(pkName) +
+                        ") FROM " + tableLocation)) {
+                    if (rs.next()) {
+                        maxPrimaryKey = String.valueOf(rs.getLong(1));
+                    }
+                }
+            }
+            try (ResultSet rs = st.executeQuery("SELECT LAST_MODIFICATION FROM INFORMATION_SCHEMA.TABLES" +
+                    " WHERE TABLE_SCHEMA = 'PUBLIC' AND TABLE_NAME = '" + tableName.replace("'", "''") + "'")) {
+                long lastModification = rs.next() ? rs.getLong(1) : 0;
+                return tableName + ":" + JDBCUtilities.getRowCount(connection, tableName) + ":" +
+                        maxPrimaryKey + ":" + lastModification;
+            }
+        }
+    }
+
+    /**
+     * @param value Input value
+     * @param fileDirectory Directory of the files readable by the jobs
+     * @return Size and last modification of the file if the value is the path of an existing file in the directory,
+     * null otherwise
+     */
+    static String getFileFingerprint(String value, Path fileDirectory) {
+        try {
+            Path path = Path.of(value).toAbsolutePath().normalize();
+            if (Files.isRegularFile(path) && path.toRealPath().startsWith(fileDirectory.toRealPath())) {
+                return path + ":" + Files.size(path) + ":" + Files.getLastModifiedTime(path).toMillis();
+            }
+        } catch (InvalidPathException | IOException | SecurityException ex) {
+            // not a file
+        }
+        return null;
+    }
+
+    /**
+     * @param before Table fingerprints before the job execution
+     * @param after Table fingerprints after the job execution
+     * @return The fingerprint of the tables created or modified by the job, in JSON
+     */
+    public static String getOutputTables(Map<String, String> before, Map<String, String> after) {
+        Map<String, String> outputTables = new TreeMap<>();
+        for (Map.Entry<String, String> table : after.entrySet()) {
+            if (!Objects.equals(before.get(table.getKey()), table.getValue())) {
+                outputTables.put(table.getKey(), table.getValue());
+            }
+        }
+        return JsonOutput.toJson(outputTables);
+    }
+
+    /**
+     * @param outputTables Fingerprint of the output tables recorded with the memo, in JSON
+     * @param currentTables Current table fingerprints
+     * @return True if all the output tables still exist and have not been modified
+     */
+    public static boolean isOutputUnchanged(String outputTables, Map<String, String> currentTables) {
+        if (outputTables == null) {
+            return false;
+        }
+        Map<?, ?> recorded = (Map<?, ?>) new JsonSlurper().parseText(outputTables);
+        for (Map.Entry<?, ?> table : recorded.entrySet()) {
+            if (!Objects.equals(currentTables.get(String.valueOf(table.getKey())), table.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
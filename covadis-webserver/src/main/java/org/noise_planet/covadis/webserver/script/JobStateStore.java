@@ -0,0 +1,308 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.script;
+
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+import org.noise_planet.covadis.webserver.utilities.StringUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.DecimalFormat;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory state of the jobs run by this process, written to the JOBS table in batches.
+ * <p>
+ * The progression of a running job only changes the memory, it is written on a fixed interval together with the
+ * progression of the other jobs, using a single connection. State changes (begin, end, status) are written at once,
+ * with all the other pending changes, so the other processes (worker nodes, job watchers) see them without delay.
+ * The job list reads the live values of the running jobs from this store.
+ * </p>
+ */
+public class JobStateStore {
+    public static final long DEFAULT_FLUSH_INTERVAL = 2000;
+    private final Logger logger = LoggerFactory.getLogger(JobStateStore.class);
+    private final DataSource serverDataSource;
+    private final Map<Integer, JobState> liveJobs = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flushExecutor;
+
+    /**
+     * @param serverDataSource Server database
+     * @param flushInterval Delay in milliseconds between two writes of the job progressions
+     */
+    public JobStateStore(DataSource serverDataSource, long flushInterval) {
+        this.serverDataSource = serverDataSource;
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "JOB_STATE_FLUSH");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flushExecutor.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Pending changes of a job, null fields are left unchanged in the JOBS table
+     */
+    public static class JobState {
+        final int jobId;
+        String status;
+        Double progression;
+        Timestamp beginDate;
+        Timestamp endDate;
+        String result;
+        /** Last known values, kept after the write for the job list */
+        String liveStatus;
+        double liveProgression;
+        /** Estimates of the progression sampler, never written to the database */
+        double throughput;
+        long remainingMillis = -1;
+        boolean dirty;
+
+        JobState(int jobId) {
+            this.jobId = jobId;
+        }
+
+        public int getJobId() {
+            return jobId;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public Double getProgression() {
+            return progression;
+        }
+
+        public Timestamp getBeginDate() {
+            return beginDate;
+        }
+
+        public Timestamp getEndDate() {
+            return endDate;
+        }
+
+        public String getResult() {
+            return result;
+        }
+    }
+
+    private JobState getJobState(int jobId) {
+        return liveJobs.computeIfAbsent(jobId, JobState::new);
+    }
+
+    /**
+     * Change the status of a job, written at once
+     * @param jobId Job identifier
+     * @param status New status
+     */
+    public void setStatus(int jobId, JobStates status) {
+        JobState jobState = getJobState(jobId);
+        synchronized (jobState) {
+            jobState.status = status.name();
+            jobState.liveStatus = status.name();
+            jobState.dirty = true;
+        }
+        flushQuietly();
+    }
+
+    /**
+     * Change the progression of a job, written on the next flush
+     * @param jobId Job identifier
+     * @param progression Progression in percent
+     */
+    public void setProgression(int jobId, double progression) {
+        JobState jobState = getJobState(jobId);
+        synchronized (jobState) {
+            if (jobState.liveProgression != progression) {
+                jobState.progression = progression;
+                jobState.liveProgression = progression;
+                jobState.dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Keep the throughput and remaining time of a running job, for the job list only
+     * @param jobId Job identifier
+     * @param throughput Progress events per second
+     * @param remainingMillis Estimated remaining time in milliseconds, -1 if unknown
+     */
+    public void setEstimate(int jobId, double throughput, long remainingMillis) {
+        JobState jobState = getJobState(jobId);
+        synchronized (jobState) {
+            jobState.throughput = throughput;
+            jobState.remainingMillis = remainingMillis;
+        }
+    }
+
+    /**
+     * Set the result of a job, written with the next status change
+     * @param jobId Job identifier
+     * @param result Result of the script or error message
+     */
+    public void setResult(int jobId, String result) {
+        JobState jobState = getJobState(jobId);
+        synchronized (jobState) {
+            jobState.result = result;
+            jobState.dirty = true;
+        }
+    }
+
+    /**
+     * Set the begin date of the job to now, written at once
+     * @param jobId Job identifier
+     */
+    public void setBeginTime(int jobId) {
+        JobState jobState = getJobState(jobId);
+        synchronized (jobState) {
+            jobState.beginDate = new Timestamp(System.currentTimeMillis());
+            jobState.dirty = true;
+        }
+        flushQuietly();
+    }
+
+    /**
+     * Set the end date of the job to now and write all its pending changes, the job is not live anymore
+     * @param jobId Job identifier
+     * @throws SQLException If the changes can not be written
+     */
+    public void setEndTime(int jobId) throws SQLException {
+        JobState jobState = getJobState(jobId);
+        synchronized (jobState) {
+            jobState.endDate = new Timestamp(System.currentTimeMillis());
+            jobState.dirty = true;
+        }
+        flush();
+        liveJobs.remove(jobId);
+    }
+
+    /**
+     * Write the pending changes of all the jobs in a single batch
+     * @throws SQLException If the changes can not be written, they are kept for the next flush
+     */
+    public synchronized void flush() throws SQLException {
+        List<JobState> pendingChanges = new ArrayList<>();
+        for (JobState jobState : liveJobs.values()) {
+            synchronized (jobState) {
+                if (jobState.dirty) {
+                    JobState change = new JobState(jobState.jobId);
+                    change.status = jobState.status;
+                    change.progression = jobState.progression;
+                    change.beginDate = jobState.beginDate;
+                    change.endDate = jobState.endDate;
+                    change.result = jobState.result;
+                    pendingChanges.add(change);
+                    jobState.status = null;
+                    jobState.progression = null;
+                    jobState.beginDate = null;
+                    jobState.endDate = null;
+                    jobState.result = null;
+                    jobState.dirty = false;
+                }
+            }
+        }
+        if (pendingChanges.isEmpty()) {
+            return;
+        }
+        try (Connection connection = serverDataSource.getConnection()) {
+            DatabaseManagement.updateJobStates(connection, pendingChanges);
+        } catch (SQLException ex) {
+            // Keep the changes not yet overwritten by newer values
+            for (JobState change : pendingChanges) {
+                JobState jobState = liveJobs.get(change.jobId);
+                if (jobState != null) {
+                    synchronized (jobState) {
+                        jobState.status = jobState.status == null ? change.status : jobState.status;
+                        jobState.progression = jobState.progression == null ? change.progression :
+                                jobState.progression;
+                        jobState.beginDate = jobState.beginDate == null ? change.beginDate : jobState.beginDate;
+                        jobState.endDate = jobState.endDate == null ? change.endDate : jobState.endDate;
+                        jobState.result = jobState.result == null ? change.result : jobState.result;
+                        jobState.dirty = true;
+                    }
+                }
+            }
+            throw ex;
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (SQLException ex) {
+            logger.error("Unable to write the job states", ex);
+        }
+    }
+
+    /**
+     * Replace the status and progression read from the JOBS table by the live values of the running jobs
+     * @param jobs Rows returned by {@link DatabaseManagement#getJobs(Connection, int)}
+     */
+    public void applyLiveValues(List<Map<String, Object>> jobs) {
+        DecimalFormat f = (DecimalFormat) (DecimalFormat.getInstance(Locale.ROOT));
+        f.applyPattern("#.### '%'");
+        for (Map<String, Object> job : jobs) {
+            JobState jobState = liveJobs.get((Integer) job.get("id"));
+            if (jobState == null) {
+                continue;
+            }
+            synchronized (jobState) {
+                if (jobState.liveStatus != null) {
+                    job.put("status", jobState.liveStatus);
+                }
+                job.put("progression", f.format(jobState.liveProgression));
+                job.put("percentCompleted", (int) jobState.liveProgression);
+                if (jobState.remainingMillis >= 0) {
+                    job.put("eta", String.format(Locale.ROOT, "%s (%.1f steps/s)",
+                            StringUtilities.durationToString(Duration.ofMillis(jobState.remainingMillis)),
+                            jobState.throughput));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Identifier of the jobs having values kept in memory
+     */
+    public Set<Integer> getLiveJobIds() {
+        return new HashSet<>(liveJobs.keySet());
+    }
+
+    /**
+     * @return Number of jobs having values kept in memory
+     */
+    public int getLiveJobCount() {
+        return liveJobs.size();
+    }
+
+    /**
+     * Write the pending changes and stop the periodic writes
+     */
+    public void shutdown() {
+        flushExecutor.shutdown();
+        flushQuietly();
+    }
+}
@@ -0,0 +1,306 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.script;
+
+import com.zaxxer.hikari.HikariDataSource;
+import groovy.json.JsonOutput;
+import groovy.json.JsonSlurper;
+import groovy.lang.Script;
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.PatternLayout;
+import org.noise_planet.covadis.webserver.Configuration;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+import org.noise_planet.noisemodelling.pathfinder.utils.profiler.RootProgressVisitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Entry point of the java process running a single job, used when the server runs the jobs in separate processes.
+ * <p>
+ * The server writes the job request (JSON) on the first line of the process standard input, then may write
+ * {@link #CANCEL} to cancel the job. The process writes on its standard output the protocol lines
+ * {@link #PROGRESS}, {@link #HEAP} (peak heap memory in MB), {@link #RESULT}, {@link #ERROR} or {@link #CANCELED}.
+ * The log messages, and anything printed by the script, are written on the standard error with the log level as
+ * first word.
+ * </p>
+ */
+public class JobWorkerProcess {
+    public static final String PROGRESS = "PROGRESS";
+    public static final String HEAP = "HEAP";
+    public static final String RESULT = "RESULT";
+    public static final String ERROR = "ERROR";
+    public static final String CANCELED = "CANCELED";
+    public static final String CANCEL = "CANCEL";
+
+    private static final Logger logger = LoggerFactory.getLogger(JobWorkerProcess.class);
+    private static PrintStream protocolStream;
+    private static String lastProgression = "";
+
+    /**
+     * Build the command line starting a job process, using the java runtime and the class path of this server
+     * @param threads Number of processors seen by the job JVM, 0 for all
+     * @param heap Maximum heap memory of the job JVM in MB, 0 for the JVM default
+     * @return Command line
+     */
+    public static List<String> buildCommand(int threads, long heap) {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        if (heap > 0) {
+            command.add(String.format(Locale.ROOT, "-Xmx%dm", heap));
+        }
+        if (threads > 0) {
+            command.add(String.format(Locale.ROOT, "-XX:ActiveProcessorCount=%d", threads));
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(JobWorkerProcess.class.getName());
+        return command;
+    }
+
+    /**
+     * Build the job request sent to the job process
+     * @param scriptPath Groovy script file
+     * @param workingDirectory Server working directory, where the user database is stored
+     * @param databaseName User database name
+     * @param inputs Script inputs, the system inputs (starting with _) are not sent
+     * @return Request in JSON, on a single line
+     */
+    public static String buildRequest(Path scriptPath, String workingDirectory, String databaseName,
+                                      Map<String, Object> inputs) {
+        return buildRequest(scriptPath, workingDirectory, "", databaseName, inputs);
+    }
+
+    /**
+     * Build the job request sent to the job process
+     * @param scriptPath Groovy script file
+     * @param workingDirectory Server working directory, where the user database is stored
+     * @param databaseServer H2 TCP server of the user database (worker nodes), empty if the database is local
+     * @param databaseName User database name
+     * @param inputs Script inputs, the system inputs (starting with _) are not sent
+     * @return Request in JSON, on a single line
+     */
+    public static String buildRequest(Path scriptPath, String workingDirectory, String databaseServer,
+                                      String databaseName, Map<String, Object> inputs) {
+        return JsonOutput.toJson(createRequest(scriptPath, workingDirectory, databaseServer, databaseName,
+                Configuration.DEFAULT_DATABASE_USER, Configuration.DEFAULT_DATABASE_PASSWORD, inputs));
+    }
+
+    /**
+     * Build the job request sent to the job process, through its standard input
+     * @param scriptPath Groovy script file
+     * @param configuration Server configuration, the job process uses the same database credentials and directories
+     * @param databaseName User database name
+     * @param inputs Script inputs, the system inputs (starting with _) are not sent
+     * @return Request in JSON, on a single line
+     */
+    public static String buildRequest(Path scriptPath, Configuration configuration, String databaseName,
+                                      Map<String, Object> inputs) {
+        Map<String, Object> request = createRequest(scriptPath, configuration.getWorkingDirectory(),
+                configuration.getDatabaseServer(), databaseName, configuration.getDatabaseUser(),
+                configuration.getDatabasePassword(), inputs);
+        request.put("pipelinesDirectory", configuration.getPipelinesDirectory().toString());
+        request.put("scriptPath", configuration.getScriptPath());
+        return JsonOutput.toJson(request);
+    }
+
+    private static Map<String, Object> createRequest(Path scriptPath, String workingDirectory, String databaseServer,
+                                                     String databaseName, String databaseUser,
+                                                     String databasePassword, Map<String, Object> inputs) {
+        Map<String, Object> jobInputs = new HashMap<>();
+        for (Map.Entry<String, Object> input : inputs.entrySet()) {
+            if (!input.getKey().startsWith("_")) {
+                jobInputs.put(input.getKey(), input.getValue());
+            }
+        }
+        Map<String, Object> request = new HashMap<>();
+        request.put("script", scriptPath.toAbsolutePath().toString());
+        request.put("workingDirectory", workingDirectory);
+        request.put("databaseServer", databaseServer);
+        request.put("database", databaseName);
+        request.put("databaseUser", databaseUser);
+        request.put("databasePassword", databasePassword);
+        request.put("inputs", jobInputs);
+        return request;
+    }
+
+    /**
+     * Log a line written by the job process on its standard error, with the same level
+     * @param jobLogger Logger of the job
+     * @param line Log line, the first word is the log level
+     */
+    public static void relayLogLine(Logger jobLogger, String line) {
+        int separator = line.indexOf(' ');
+        String level = separator > 0 ? line.substring(0, separator) : "";
+        String message = separator > 0 ? line.substring(separator + 1) : line;
+        switch (level) {
+            case "FATAL":
+            case "ERROR":
+                jobLogger.error(message);
+                break;
+            case "WARN":
+                jobLogger.warn(message);
+                break;
+            case "DEBUG":
+            case "TRACE":
+                jobLogger.debug(message);
+                break;
+            case "INFO":
+                jobLogger.info(message);
+                break;
+            default:
+                jobLogger.info(line);
+        }
+    }
+
+    /**
+     * @param value Text value, may contain line breaks
+     * @return Value encoded on a single line
+     */
+    public static String encodeValue(String value) {
+        return JsonOutput.toJson(Collections.singletonMap("value", value));
+    }
+
+    /**
+     * @param encodedValue Value encoded by {@link #encodeValue(String)}
+     * @return Text value
+     */
+    public static String decodeValue(String encodedValue) {
+        Object value = ((Map<?, ?>) new JsonSlurper().parseText(encodedValue)).get("value");
+        return value != null ? value.toString() : null;
+    }
+
+    private static synchronized void send(String command, String value) {
+        protocolStream.println(command + " " + value);
+        protocolStream.flush();
+    }
+
+    private static synchronized void sendProgression(double progression) {
+        String newProgression = String.format(Locale.ROOT, "%.4f", progression);
+        if (!newProgression.equals(lastProgression)) {
+            lastProgression = newProgression;
+            send(PROGRESS, newProgression);
+        }
+    }
+
+    /**
+     * @return Peak heap memory used by this process in MB
+     */
+    private static long getPeakHeap() {
+        long peakHeap = 0;
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP && memoryPool.getPeakUsage() != null) {
+                peakHeap += memoryPool.getPeakUsage().getUsed();
+            }
+        }
+        return peakHeap / (1024 * 1024);
+    }
+
+    public static void main(String[] args) throws IOException {
+        // The standard output is reserved to the protocol
+        protocolStream = new PrintStream(System.out, true, StandardCharsets.UTF_8);
+        System.setOut(System.err);
+        org.apache.log4j.Logger rootLogger = org.apache.log4j.Logger.getRootLogger();
+        rootLogger.removeAllAppenders();
+        rootLogger.setLevel(Level.INFO);
+        rootLogger.addAppender(new ConsoleAppender(new PatternLayout("%p %m%n"), ConsoleAppender.SYSTEM_ERR));
+
+        BufferedReader standardInput = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String requestLine = standardInput.readLine();
+        if (requestLine == null) {
+            logger.error("No job request received");
+            System.exit(1);
+        }
+        Map<String, Object> request = (Map<String, Object>) new JsonSlurper().parseText(requestLine);
+        RootProgressVisitor progressVisitor = new RootProgressVisitor(1, true, 5);
+        progressVisitor.addPropertyChangeListener("PROGRESS", evt -> {
+            if (evt.getNewValue() instanceof Double) {
+                sendProgression((Double) evt.getNewValue());
+            }
+        });
+
+        // Wait for the cancel command, the job is also canceled if the server process ends
+        Thread cancelListener = new Thread(() -> {
+            try {
+                String line;
+                while ((line = standardInput.readLine()) != null) {
+                    if (CANCEL.equals(line.trim())) {
+                        break;
+                    }
+                }
+            } catch (IOException ex) {
+                logger.error(ex.getLocalizedMessage(), ex);
+            }
+            progressVisitor.cancel();
+        }, "CANCEL_LISTENER");
+        cancelListener.setDaemon(true);
+        cancelListener.start();
+
+        String workingDirectory = (String) request.get("workingDirectory");
+        Configuration configuration = new Configuration(false);
+        configuration.setWorkingDirectory(workingDirectory);
+        int exitCode = 0;
+        String databaseServer = (String) request.getOrDefault("databaseServer", "");
+        String databaseUser = (String) request.getOrDefault("databaseUser", Configuration.DEFAULT_DATABASE_USER);
+        String databasePassword = (String) request.getOrDefault("databasePassword",
+                Configuration.DEFAULT_DATABASE_PASSWORD);
+        configuration.setDatabaseUser(databaseUser);
+        configuration.setDatabasePassword(databasePassword);
+        configuration.setDatabaseServer(databaseServer);
+        if (request.containsKey("pipelinesDirectory")) {
+            configuration.setPipelinesDirectory((String) request.get("pipelinesDirectory"));
+        }
+        if (request.containsKey("scriptPath")) {
+            configuration.setScriptPath((String) request.get("scriptPath"));
+        }
+        try (HikariDataSource dataSource = databaseServer.isEmpty() ?
+                DatabaseManagement.createH2DataSource(workingDirectory, (String) request.get("database"),
+                        databaseUser, databasePassword, "", false, true) :
+                DatabaseManagement.createRemoteH2DataSource(databaseServer, (String) request.get("database"),
+                        databaseUser, databasePassword, "", false);
+             Connection connection = dataSource.getConnection()) {
+            Script script = ScriptClassCache.getInstance().createScript(Path.of((String) request.get("script")));
+            Map<String, Object> inputs = new HashMap<>((Map<String, Object>) request.get("inputs"));
+            inputs.put("_progression", progressVisitor);
+            inputs.put("_configuration", configuration);
+            inputs.put("_dataSource", dataSource);
+            Object returnData = script.invokeMethod("exec", new Object[]{connection, inputs});
+            send(HEAP, String.valueOf(getPeakHeap()));
+            send(RESULT, encodeValue(Job.getResultString(returnData)));
+        } catch (Throwable ex) {
+            exitCode = 1;
+            if (progressVisitor.isCanceled()) {
+                logger.info("Job canceled");
+                send(CANCELED, "");
+            } else {
+                logger.error("Job failed", ex);
+                send(ERROR, encodeValue(ex.getLocalizedMessage()));
+            }
+        }
+        System.exit(exitCode);
+    }
+}
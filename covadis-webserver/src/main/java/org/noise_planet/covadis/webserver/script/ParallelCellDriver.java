@@ -0,0 +1,208 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.script;
+
+import org.h2gis.api.ProgressVisitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluate the computation cells of a propagation script with several cells in flight.
+ * <p>
+ * A cell evaluation loads the buildings, the DEM and the sources of the cell on a single thread before the
+ * propagation runs on all the cores. With several cells in flight the loading of the next cells overlaps the
+ * propagation of the current one. A new cell is only started if the free heap stays above a threshold, the first
+ * cell in flight is always started.
+ * </p>
+ * <p>
+ * Each cell is evaluated with its own connection from the data source. The completion of the cells and the
+ * checkpoints are handled on the calling thread, a checkpoint is run when no cell is in flight.
+ * </p>
+ * <p>
+ * The cells in flight are evaluated at the same time by the same handler. The NoiseModelling noise maps and result
+ * writers are not thread safe, the handler creates them for each cell in {@link CellHandler#evaluate} with the
+ * tables of this cell, and only shares immutable parameters and thread safe objects between the cells.
+ * </p>
+ * @param <C> Cell identifier
+ */
+public class ParallelCellDriver<C> {
+    /** Default number of cells in flight */
+    public static final int DEFAULT_CELLS_IN_FLIGHT = 2;
+    /** Default part of the maximum heap that must be free to start another cell */
+    public static final double DEFAULT_MIN_FREE_HEAP = 0.25;
+    private final Logger logger = LoggerFactory.getLogger(ParallelCellDriver.class);
+    private final DataSource dataSource;
+    private final Connection connection;
+    private final int cellsInFlight;
+    private double minFreeHeap = DEFAULT_MIN_FREE_HEAP;
+
+    /**
+     * Cell evaluation and completion
+     * @param <C> Cell identifier
+     */
+    public interface CellHandler<C> {
+        /**
+         * Evaluate a cell, called on a worker thread at the same time as the other cells in flight
+         * @param connection Connection dedicated to this cell
+         * @param cell Cell identifier
+         * @throws Exception Evaluation error, the other cells in flight are completed then the error is thrown
+         */
+        void evaluate(Connection connection, C cell) throws Exception;
+
+        /**
+         * Called on the driver thread once the cell is evaluated
+         * @param cell Cell identifier
+         * @throws Exception Stops the driver
+         */
+        void completed(C cell) throws Exception;
+
+        /**
+         * @return True to run a checkpoint after the cells in flight
+         */
+        default boolean isCheckpointDue() {
+            return false;
+        }
+
+        /**
+         * Called on the driver thread when no cell is in flight
+         * @throws Exception Stops the driver
+         */
+        default void checkpoint() throws Exception {
+        }
+    }
+
+    /**
+     * @param dataSource Source of the connections of the cells, null to evaluate the cells one at a time
+     * @param connection Connection used when there is no data source
+     * @param cellsInFlight Maximum number of cells evaluated at the same time
+     */
+    public ParallelCellDriver(DataSource dataSource, Connection connection, int cellsInFlight) {
+        this.dataSource = dataSource;
+        this.connection = connection;
+        this.cellsInFlight = dataSource == null ? 1 : Math.max(1, cellsInFlight);
+    }
+
+    public int getCellsInFlight() {
+        return cellsInFlight;
+    }
+
+    /**
+     * @param minFreeHeap Part [0-1] of the maximum heap that must be free to start another cell
+     */
+    public void setMinFreeHeap(double minFreeHeap) {
+        this.minFreeHeap = minFreeHeap;
+    }
+
+    /**
+     * @return True if the free heap is large enough to start another cell
+     */
+    boolean hasFreeHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return runtime.maxMemory() - used >= runtime.maxMemory() * minFreeHeap;
+    }
+
+    /**
+     * Evaluate the cells
+     * @param cells Cells in the start order
+     * @param handler Cell evaluation
+     * @param progressVisitor No new cell is started once canceled
+     * @return Number of completed cells
+     * @throws Exception The first evaluation or completion error
+     */
+    public int run(List<C> cells, CellHandler<C> handler, ProgressVisitor progressVisitor) throws Exception {
+        Deque<C> pending = new ArrayDeque<>(cells);
+        if (cellsInFlight == 1) {
+            int completed = 0;
+            while (!pending.isEmpty() && !progressVisitor.isCanceled()) {
+                C cell = pending.poll();
+                handler.evaluate(connection, cell);
+                handler.completed(cell);
+                completed++;
+                if (handler.isCheckpointDue()) {
+                    handler.checkpoint();
+                }
+            }
+            return completed;
+        }
+        AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService executorService = Executors.newFixedThreadPool(cellsInFlight, runnable -> {
+            Thread thread = new Thread(runnable, "CELL_" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletionService<C> completionService = new ExecutorCompletionService<>(executorService);
+        int running = 0;
+        int completed = 0;
+        boolean checkpointDue = false;
+        Exception error = null;
+        try {
+            while (true) {
+                while (error == null && !checkpointDue && !progressVisitor.isCanceled() && !pending.isEmpty() &&
+                        running < cellsInFlight && (running == 0 || hasFreeHeap())) {
+                    C cell = pending.poll();
+                    completionService.submit(() -> {
+                        try (Connection cellConnection = dataSource.getConnection()) {
+                            handler.evaluate(cellConnection, cell);
+                        }
+                        return cell;
+                    });
+                    running++;
+                }
+                if (running == 0) {
+                    if (error != null) {
+                        throw error;
+                    }
+                    if (checkpointDue) {
+                        handler.checkpoint();
+                        checkpointDue = false;
+                        continue;
+                    }
+                    break;
+                }
+                Future<C> done = completionService.take();
+                running--;
+                try {
+                    C cell = done.get();
+                    if (error == null) {
+                        handler.completed(cell);
+                        completed++;
+                        checkpointDue |= handler.isCheckpointDue();
+                    }
+                } catch (ExecutionException ex) {
+                    if (error == null) {
+                        error = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+                        logger.error("Cell evaluation failed, wait for the {} other cell(s) in flight", running);
+                    }
+                } catch (Exception ex) {
+                    if (error == null) {
+                        error = ex;
+                    }
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+        return completed;
+    }
+}
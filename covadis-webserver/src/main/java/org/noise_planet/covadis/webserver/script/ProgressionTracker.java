@@ -9,48 +9,144 @@
 package org.noise_planet.covadis.webserver.script;
 
 
-import org.noise_planet.covadis.webserver.database.DatabaseManagement;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import javax.sql.DataSource;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
-import java.sql.Connection;
-import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Send Job Progression state to the database
+ * Send Job Progression state to the job state store.
+ * <p>
+ * The progress events are fired by the compute threads (ex. once per receiver), they only store the progression in
+ * an atomic counter. A shared sampler thread publishes the progression at a fixed rate, with the throughput (progress
+ * events per second) and the estimated remaining time.
+ * </p>
  */
 public class ProgressionTracker implements PropertyChangeListener {
-    DataSource serverDataSource;
-    int jobIdentifier;
-    private final Logger logger = LoggerFactory.getLogger(ProgressionTracker.class);
-    private String lastProg = "";
-    private long lastProgressionUpdate = 0;
-    private static final long TABLE_UPDATE_DELAY = 5000;
-
-    public ProgressionTracker(DataSource serverDataSource, int jobIdentifier) {
-        this.serverDataSource = serverDataSource;
+    public static final long SAMPLE_INTERVAL = 1000;
+    /** Weight of the last sample in the smoothed throughput */
+    private static final double SMOOTHING = 0.3;
+    private static final ScheduledExecutorService SAMPLER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "PROGRESSION_SAMPLER");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final JobStateStore jobStateStore;
+    private final int jobIdentifier;
+    /** Raw bits of the last progression [0-1], written by the compute threads */
+    private final AtomicLong progressionBits = new AtomicLong(Double.doubleToRawLongBits(0));
+    private final LongAdder events = new LongAdder();
+    private ScheduledFuture<?> sampling;
+    // Sampler state
+    private long lastSampleTime;
+    private long lastSampleEvents;
+    private double lastSampleProgression;
+    /** Progression per millisecond, smoothed */
+    private double progressionRate;
+    private volatile double throughput;
+    private volatile long remainingMillis = -1;
+    /** Maximum heap memory used by the process while the job runs, in bytes */
+    private volatile long peakHeap;
+
+    public ProgressionTracker(JobStateStore jobStateStore, int jobIdentifier) {
+        this.jobStateStore = jobStateStore;
         this.jobIdentifier = jobIdentifier;
     }
 
     @Override
     public void propertyChange(PropertyChangeEvent evt) {
-        if(evt.getNewValue() instanceof Double) {
-            String newLogProgress = String.format("%.2f", (Double)(evt.getNewValue()) * 100.0D);
-            if(!lastProg.equals(newLogProgress)) {
-                lastProg = newLogProgress;
-                long t = System.currentTimeMillis();
-                if(t - lastProgressionUpdate > TABLE_UPDATE_DELAY) {
-                    lastProgressionUpdate = t;
-                    try (Connection connection = serverDataSource.getConnection()) {
-                        DatabaseManagement.setJobProgression(connection, jobIdentifier, (Double) (evt.getNewValue()) * 100.0);
-                    } catch (SQLException ex) {
-                        logger.error(ex.getLocalizedMessage(), ex);
-                    }
-                }
-            }
+        Object newValue = evt.getNewValue();
+        if(newValue instanceof Double) {
+            update((Double) newValue);
+        }
+    }
+
+    /**
+     * Record the progression, called by the compute threads
+     * @param progression Progression [0-1]
+     */
+    public void update(double progression) {
+        progressionBits.set(Double.doubleToRawLongBits(progression));
+        events.increment();
+    }
+
+    /**
+     * Start publishing the progression at a fixed rate
+     */
+    public synchronized void start() {
+        if (sampling == null) {
+            lastSampleTime = System.currentTimeMillis();
+            lastSampleEvents = events.sum();
+            lastSampleProgression = getProgression();
+            sampling = SAMPLER.scheduleAtFixedRate(this::sample, SAMPLE_INTERVAL, SAMPLE_INTERVAL,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop the publication, the last progression is published
+     */
+    public synchronized void stop() {
+        if (sampling != null) {
+            sampling.cancel(false);
+            sampling = null;
+            sample();
         }
     }
-}
\ No newline at end of file
+
+    synchronized void sample() {
+        long now = System.currentTimeMillis();
+        Runtime runtime = Runtime.getRuntime();
+        peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+        long eventCount = events.sum();
+        double progression = getProgression();
+        long elapsed = now - lastSampleTime;
+        if (elapsed > 0) {
+            double sampleThroughput = (eventCount - lastSampleEvents) * 1000.0 / elapsed;
+            double sampleRate = Math.max(0, progression - lastSampleProgression) / elapsed;
+            throughput = throughput == 0 ? sampleThroughput :
+                    SMOOTHING * sampleThroughput + (1 - SMOOTHING) * throughput;
+            progressionRate = progressionRate == 0 ? sampleRate :
+                    SMOOTHING * sampleRate + (1 - SMOOTHING) * progressionRate;
+            remainingMillis = progressionRate > 0 ? (long) ((1 - progression) / progressionRate) : -1;
+        }
+        lastSampleTime = now;
+        lastSampleEvents = eventCount;
+        lastSampleProgression = progression;
+        jobStateStore.setProgression(jobIdentifier, progression * 100.0);
+        jobStateStore.setEstimate(jobIdentifier, throughput, remainingMillis);
+    }
+
+    /**
+     * @return Last progression [0-1]
+     */
+    public double getProgression() {
+        return Double.longBitsToDouble(progressionBits.get());
+    }
+
+    /**
+     * @return Progress events per second, smoothed over the last samples
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * @return Maximum heap memory used by the process while the job was running, in MB. It includes the memory of
+     * the other jobs running in the same process.
+     */
+    public long getPeakHeap() {
+        return peakHeap / (1024 * 1024);
+    }
+
+    /**
+     * @return Estimated remaining time in milliseconds, -1 if unknown
+     */
+    public long getRemainingMillis() {
+        return remainingMillis;
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.script;
+
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Download the resources referenced by the WPS Execute inputs.
+ * <p>
+ * The references are given by the clients, so the server must not become a proxy to its own network: only http and
+ * https resources of public addresses are downloaded, unless the host is trusted by the server configuration. The
+ * redirections are checked in the same way. The host names are checked while connecting, the connection uses the
+ * checked addresses so a second resolution can not give a private address. The download is limited in time and in
+ * size.
+ * </p>
+ */
+public class ReferenceDownloader {
+    public static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(30);
+    public static final Duration DEFAULT_DOWNLOAD_TIMEOUT = Duration.ofMinutes(30);
+    /** Maximum size of a referenced resource in bytes */
+    public static final long DEFAULT_MAX_SIZE = 2L * 1024 * 1024 * 1024;
+    private static final int MAX_REDIRECTS = 5;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Hosts connected without name resolution, as recognized by OkHttp
+    private static final Pattern IP_ADDRESS_HOST = Pattern.compile("([0-9a-fA-F]*:[0-9a-fA-F:.]*)|([\\d.]+)");
+    private static final OkHttpClient HTTP_CLIENT = new OkHttpClient.Builder().connectTimeout(CONNECT_TIMEOUT)
+            .followRedirects(false).followSslRedirects(false).build();
+    private final Set<String> trustedHosts = new HashSet<>();
+    private final OkHttpClient httpClient;
+    private long maxSize = DEFAULT_MAX_SIZE;
+    private Duration downloadTimeout = DEFAULT_DOWNLOAD_TIMEOUT;
+
+    /**
+     * @param trustedHosts Host names that may be on a private network (ex. an internal data server)
+     */
+    public ReferenceDownloader(Collection<String> trustedHosts) {
+        for (String host : trustedHosts) {
+            this.trustedHosts.add(host.trim().toLowerCase(Locale.ROOT));
+        }
+        // Same connection pool, the addresses given by the resolver are the only ones connected
+        httpClient = HTTP_CLIENT.newBuilder().dns(this::resolve).build();
+    }
+
+    /**
+     * @param maxSize Maximum size of a referenced resource in bytes
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param downloadTimeout Maximum duration of a download, redirections included
+     */
+    public void setDownloadTimeout(Duration downloadTimeout) {
+        this.downloadTimeout = downloadTimeout;
+    }
+
+    /**
+     * Download a referenced resource
+     * @param uri Resource location
+     * @param destination Written file
+     * @throws IllegalArgumentException If the resource location is not allowed or the resource is too large
+     * @throws IOException If the resource can not be downloaded in time
+     */
+    public void download(URI uri, Path destination) throws IOException {
+        long deadline = System.nanoTime() + downloadTimeout.toNanos();
+        URI location = uri;
+        for (int redirect = 0; redirect <= MAX_REDIRECTS; redirect++) {
+            String redirection = fetch(checkLocation(location), destination, deadline);
+            if (redirection == null) {
+                return;
+            }
+            location = location.resolve(redirection);
+        }
+        throw new IOException("Too many redirections of the reference " + uri);
+    }
+
+    private HttpUrl checkLocation(URI uri) {
+        String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.ROOT);
+        // Local files are never read, a reference would give access to the server files
+        if (!scheme.equals("http") && !scheme.equals("https")) {
+            throw new IllegalArgumentException("Unsupported reference " + uri + ", only http and https are allowed");
+        }
+        HttpUrl url = HttpUrl.parse(uri.toString());
+        if (url == null || url.host().isEmpty()) {
+            throw new IllegalArgumentException("Missing host of the reference " + uri);
+        }
+        // The addresses are not resolved, they are checked here. The host names are checked by the resolver.
+        String host = url.host();
+        if (IP_ADDRESS_HOST.matcher(host).matches() && !trustedHosts.contains(host.toLowerCase(Locale.ROOT))) {
+            try {
+                if (!isPublicAddress(InetAddress.getByName(host))) {
+                    throw new IllegalArgumentException("The reference " + uri + " is not on a public address");
+                }
+            } catch (UnknownHostException ex) {
+                throw new IllegalArgumentException("Invalid address of the reference " + uri);
+            }
+        }
+        return url;
+    }
+
+    /**
+     * Resolver of the http client, the connection is done on the returned addresses
+     * @param host Host name of a reference
+     * @return Resolved addresses, public unless the host is trusted
+     * @throws UnknownHostException If the host is unknown or has a private address
+     */
+    private List<InetAddress> resolve(String host) throws UnknownHostException {
+        List<InetAddress> addresses = Arrays.asList(InetAddress.getAllByName(host));
+        if (!trustedHosts.contains(host.toLowerCase(Locale.ROOT))) {
+            for (InetAddress address : addresses) {
+                if (!isPublicAddress(address)) {
+                    throw new PrivateAddressException(host);
+                }
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * @param address Resolved address
+     * @return False if the address is local to the server or its network (loopback, link-local, private ranges)
+     */
+    public static boolean isPublicAddress(InetAddress address) {
+        if (address.isAnyLocalAddress() || address.isLoopbackAddress() || address.isLinkLocalAddress() ||
+                address.isSiteLocalAddress() || address.isMulticastAddress()) {
+            return false;
+        }
+        byte[] bytes = address.getAddress();
+        if (address instanceof Inet6Address) {
+            // fc00::/7 unique local addresses
+            return (bytes[0] & 0xfe) != 0xfc;
+        }
+        // 0.0.0.0/8 current network and 100.64.0.0/10 shared address space
+        return bytes[0] != 0 && !(bytes[0] == 100 && (bytes[1] & 0xc0) == 64);
+    }
+
+    /**
+     * @return The redirection location or null if the resource has been written
+     */
+    private String fetch(HttpUrl url, Path destination, long deadline) throws IOException {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            throw new IOException("Timeout while downloading the reference " + url);
+        }
+        Call call = httpClient.newCall(new Request.Builder().url(url).get().build());
+        // Whole call, the response body included
+        call.timeout().timeout(remaining, TimeUnit.NANOSECONDS);
+        try (Response response = call.execute()) {
+            int statusCode = response.code();
+            String location = response.header("Location");
+            if (statusCode >= 300 && statusCode < 400 && location != null) {
+                return location;
+            } else if (statusCode != 200) {
+                throw new IOException("Unable to download the reference " + url + ", HTTP status " + statusCode);
+            }
+            ResponseBody body = response.body();
+            if (body != null) {
+                if (body.contentLength() > maxSize) {
+                    throw new IllegalArgumentException("The reference " + url + " is larger than " + maxSize +
+                            " bytes");
+                }
+                writeBody(url, body.byteStream(), destination);
+            }
+            return null;
+        } catch (PrivateAddressException ex) {
+            throw new IllegalArgumentException("The reference " + url + " is not on a public address", ex);
+        } catch (InterruptedIOException ex) {
+            throw new IOException("Timeout while downloading the reference " + url, ex);
+        }
+    }
+
+    /**
+     * Write the response body to the spool file, up to the maximum size
+     */
+    private void writeBody(HttpUrl url, InputStream inputStream, Path destination) throws IOException {
+        try (InputStream input = inputStream;
+             OutputStream outputStream = Files.newOutputStream(destination)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long size = 0;
+            int length;
+            while ((length = input.read(buffer)) != -1) {
+                size += length;
+                if (size > maxSize) {
+                    throw new IllegalArgumentException("The reference " + url + " is larger than " + maxSize +
+                            " bytes");
+                }
+                outputStream.write(buffer, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Host name resolved to an address of the server network
+     */
+    private static final class PrivateAddressException extends UnknownHostException {
+        PrivateAddressException(String host) {
+            super(host + " is not a public host");
+        }
+    }
+}
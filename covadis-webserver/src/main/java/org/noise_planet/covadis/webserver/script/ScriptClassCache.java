@@ -0,0 +1,166 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.script;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovyCodeSource;
+import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the compiled Groovy script classes.
+ * The entries are identified by the script path and the hash of the script content, so a modified script is
+ * compiled again even if the file watcher did not notify the change.
+ * Each script is compiled in its own class loader, the classes of an evicted entry can then be unloaded.
+ */
+public class ScriptClassCache {
+    private static final ScriptClassCache INSTANCE = new ScriptClassCache();
+    private final Logger logger = LoggerFactory.getLogger(ScriptClassCache.class);
+    private final Map<Path, CacheEntry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong compileTimeNanos = new AtomicLong();
+
+    /**
+     * @return Cache shared by the web server jobs and the script metadata parser
+     */
+    public static ScriptClassCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Create a new instance of the script, the class is compiled only if it is not in the cache or if the script
+     * content has changed.
+     * @param scriptPath Groovy script file
+     * @return New script instance with an empty binding
+     * @throws IOException If the script file can not be read
+     */
+    public Script createScript(Path scriptPath) throws IOException {
+        return InvokerHelper.createScript(getScriptClass(scriptPath), new Binding());
+    }
+
+    /**
+     * Fetch the compiled class of the script
+     * @param scriptPath Groovy script file
+     * @return Compiled script class
+     * @throws IOException If the script file can not be read
+     */
+    public Class<?> getScriptClass(Path scriptPath) throws IOException {
+        Path key = scriptPath.toAbsolutePath().normalize();
+        byte[] content = Files.readAllBytes(key);
+        String contentHash = hash(content);
+        CacheEntry entry = entries.get(key);
+        if (entry != null && entry.contentHash.equals(contentHash)) {
+            hitCount.incrementAndGet();
+            return entry.scriptClass;
+        }
+        return entries.compute(key, (path, oldEntry) -> {
+            if (oldEntry != null && oldEntry.contentHash.equals(contentHash)) {
+                // compiled by another thread in the meantime
+                hitCount.incrementAndGet();
+                return oldEntry;
+            }
+            return compile(path, content, contentHash);
+        }).scriptClass;
+    }
+
+    private CacheEntry compile(Path scriptPath, byte[] content, String contentHash) {
+        long start = System.nanoTime();
+        GroovyClassLoader classLoader = new GroovyClassLoader(ScriptClassCache.class.getClassLoader());
+        GroovyCodeSource codeSource = new GroovyCodeSource(new String(content, StandardCharsets.UTF_8),
+                scriptPath.getFileName().toString(), GroovyShell.DEFAULT_CODE_BASE);
+        Class<?> scriptClass = classLoader.parseClass(codeSource, false);
+        long elapsed = System.nanoTime() - start;
+        compileTimeNanos.addAndGet(elapsed);
+        long misses = missCount.incrementAndGet();
+        logger.info("Script {} compiled in {} ms (cache hits: {}, misses: {}, total compile time: {} ms)",
+                scriptPath.getFileName(), elapsed / 1_000_000, hitCount.get(), misses, getCompileTimeMillis());
+        return new CacheEntry(contentHash, scriptClass);
+    }
+
+    /**
+     * Remove the compiled class of this script from the cache
+     * @param scriptPath Groovy script file
+     */
+    public void invalidate(Path scriptPath) {
+        if (entries.remove(scriptPath.toAbsolutePath().normalize()) != null) {
+            logger.info("Script {} removed from the compiled scripts cache", scriptPath.getFileName());
+        }
+    }
+
+    /**
+     * Remove all compiled classes
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return Number of script classes fetched from the cache
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return Number of script compilations
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return Cumulated time spent compiling scripts in milliseconds
+     */
+    public long getCompileTimeMillis() {
+        return compileTimeNanos.get() / 1_000_000;
+    }
+
+    /**
+     * @param content Data to hash
+     * @return SHA-256 of the data in hexadecimal
+     */
+    public static String hash(byte[] content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest(content)) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static class CacheEntry {
+        final String contentHash;
+        final Class<?> scriptClass;
+
+        CacheEntry(String contentHash, Class<?> scriptClass) {
+            this.contentHash = contentHash;
+            this.scriptClass = scriptClass;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.script;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inputs driving the computation cost of a script, declared in the script metadata next to the resources:
+ * <pre>
+ * cost = [tables: ['tableReceivers', 'tableSources', 'tableBuilding'],
+ *         values: [confReflOrder: 0, confMaxSrcDist: 150, confDiffHorizontal: false]]
+ * </pre>
+ * <ul>
+ *     <li>tables: inputs naming a table of the user database, the number of rows of the table is a cost feature</li>
+ *     <li>values: numeric or boolean inputs with the value used by the script when the input is not set</li>
+ * </ul>
+ * The duration and heap memory of the next jobs are predicted from the past runs, see {@link JobCostEstimator}.
+ * Scripts without declaration are not estimated.
+ */
+public class ScriptCost {
+    /** Cost of a script that does not declare its cost inputs */
+    public static final ScriptCost UNDECLARED = new ScriptCost(false, Collections.emptyList(),
+            Collections.emptyMap());
+
+    /** True if the script declares its cost inputs */
+    public final boolean declared;
+    /** Name of the inputs giving a table name */
+    public final List<String> tables;
+    /** Name and default value of the numeric or boolean inputs */
+    public final Map<String, Object> values;
+
+    public ScriptCost(boolean declared, List<String> tables, Map<String, Object> values) {
+        this.declared = declared;
+        this.tables = Collections.unmodifiableList(tables);
+        this.values = Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * Read the cost binding of a script
+     * @param costValue Value of the cost variable in the script or null if not declared
+     * @return Script cost inputs
+     */
+    public static ScriptCost fromMetadata(Object costValue) {
+        if (!(costValue instanceof Map)) {
+            return UNDECLARED;
+        }
+        Map<?, ?> cost = (Map<?, ?>) costValue;
+        List<String> tables = new ArrayList<>();
+        if (cost.get("tables") instanceof Collection) {
+            ((Collection<?>) cost.get("tables")).forEach(table -> tables.add(table.toString()));
+        }
+        Map<String, Object> values = new LinkedHashMap<>();
+        if (cost.get("values") instanceof Map) {
+            ((Map<?, ?>) cost.get("values")).forEach((name, defaultValue) -> values.put(name.toString(),
+                    defaultValue));
+        }
+        return new ScriptCost(true, tables, values);
+    }
+}
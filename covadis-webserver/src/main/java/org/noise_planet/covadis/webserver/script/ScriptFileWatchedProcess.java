@@ -11,7 +11,6 @@
 package org.noise_planet.covadis.webserver.script;
 
 
-import org.noise_planet.covadis.webserver.OwsController;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,41 +22,56 @@ import java.util.stream.Stream;
 /**
  * Monitors a specified directory and its subdirectories for changes in files.
  * Specifically watches for creation, deletion, and modification events of files with the `.groovy` extension
- * and triggers a script reload using the provided OwsController.
+ * and of directories, the changes are given to the script registry that coalesces them.
  */
 public class ScriptFileWatchedProcess implements Callable<Boolean> {
 
     private final Path scriptsDir;
-    private final OwsController owsController;
+    private final ScriptRegistry scriptRegistry;
     private final Logger logger = LoggerFactory.getLogger(ScriptFileWatchedProcess.class);
 
-    public ScriptFileWatchedProcess(Path scriptsDir, OwsController owsController) {
+    public ScriptFileWatchedProcess(Path scriptsDir, ScriptRegistry scriptRegistry) {
         this.scriptsDir = scriptsDir;
-        this.owsController = owsController;
+        this.scriptRegistry = scriptRegistry;
+    }
+
+    private void registerDirectories(WatchService watchService, Path root) throws IOException {
+        try (Stream<Path> pathStream = Files.walk(root)) {
+            pathStream.filter(Files::isDirectory)
+                    .forEach(dir -> {
+                        try {
+                            dir.register(watchService,
+                                    StandardWatchEventKinds.ENTRY_CREATE,
+                                    StandardWatchEventKinds.ENTRY_DELETE,
+                                    StandardWatchEventKinds.ENTRY_MODIFY);
+                        } catch (IOException e) {
+                            logger.error(e.getMessage(), e);
+                        }
+                    });
+        }
     }
     @Override
     public Boolean call() throws Exception {
         try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
-            try (Stream<Path> pathStream = Files.walk(scriptsDir)) {
-                pathStream.filter(Files::isDirectory)
-                        .forEach(dir -> {
-                            try {
-                                dir.register(watchService,
-                                        StandardWatchEventKinds.ENTRY_CREATE,
-                                        StandardWatchEventKinds.ENTRY_DELETE,
-                                        StandardWatchEventKinds.ENTRY_MODIFY);
-                            } catch (IOException e) {
-                                logger.error(e.getMessage(), e);
-                            }
-                        });
-            }
+            registerDirectories(watchService, scriptsDir);
             while (true) {
                 try {
                     WatchKey key = watchService.take();
                     for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            scriptRegistry.notifyChanged(scriptsDir);
+                            continue;
+                        }
                         Path fileName = (Path) event.context();
-                        if (fileName.toString().endsWith(".groovy")) {
-                            owsController.reloadScripts();
+                        Path changedPath = ((Path) key.watchable()).resolve(fileName);
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changedPath)) {
+                            // New group, its scripts are parsed with the other changes
+                            registerDirectories(watchService, changedPath);
+                            scriptRegistry.notifyChanged(changedPath);
+                        } else if (fileName.toString().endsWith(".groovy") ||
+                                event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                            // Only the changed scripts are parsed again once the events are coalesced
+                            scriptRegistry.notifyChanged(changedPath);
                         }
                     }
                     boolean valid = key.reset();
@@ -12,4 +12,6 @@ public class ScriptInput {
     public String description;
     public String type;
     public boolean optional = false;
+    /** True if the input is the path of a file read by the script ({@code file: true} in the script inputs) */
+    public boolean file = false;
 }
@@ -11,16 +11,11 @@
 package org.noise_planet.covadis.webserver.script;
 
 
-import groovy.lang.GroovyShell;
-import groovy.lang.Script;
-import net.opengis.wps10.DataInputsType1;
-import net.opengis.wps10.ExecuteType;
-import net.opengis.wps10.InputType;
-
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -33,16 +28,35 @@ public class ScriptMetadata {
     final public String title;
     final public String description;
     final public Path path;
+    /** Declared threads and heap needs, used by the job admission control */
+    final public ScriptResources resources;
+    /** Inputs driving the computation cost, used to predict the job duration and memory */
+    final public ScriptCost cost;
+    /** False if the script has effects outside of the user database, its result is never reused */
+    final public boolean memoization;
 
     final public Map<String, ScriptInput> inputs = new HashMap<>();
     final public Map<String, ScriptOutput> outputs = new HashMap<>();
 
     public ScriptMetadata(String group, File file) throws IOException {
-        Map metadata = parseGroovyScriptMetadata(file);
+        this(group, file, null);
+    }
+
+    /**
+     * @param group Script group
+     * @param file Groovy script file
+     * @param cacheDirectory Directory of the cached metadata, null to always read the metadata from the script
+     * @throws IOException If the script file can not be read
+     */
+    public ScriptMetadata(String group, File file, Path cacheDirectory) throws IOException {
+        Map metadata = parseGroovyScriptMetadata(file, cacheDirectory);
         id = group + ":" + file.getName().replace(".groovy", "");
         title = metadata.getOrDefault("title", id).toString();
         description = metadata.getOrDefault("description", "").toString();
         path = file.toPath();
+        resources = ScriptResources.fromMetadata(metadata.get("resources"));
+        cost = ScriptCost.fromMetadata(metadata.get("cost"));
+        memoization = !Boolean.FALSE.equals(metadata.get("memoization"));
 
         // Convert metadata inputs into ScriptInput instances
         Object inputsValue = metadata.get("inputs");
@@ -61,6 +75,7 @@ public class ScriptMetadata {
                     if (minValue != null) {
                         si.optional = true;
                     }
+                    si.file = Boolean.TRUE.equals(inputAttributes.get("file"));
                 }
                 inputs.put(si.id, si);
             }
@@ -80,46 +95,31 @@ public class ScriptMetadata {
     }
 
     /**
-     * Parses metadata from a provided Groovy script file and extracts details such as title,
-     * description, inputs, and outputs defined within the script. The method analyzes the script
-     * content to populate a metadata map, which includes blocks of inputs and outputs if defined.
-     *
-     * @param scriptFile the Groovy script file to parse for metadata
-     * @return a map containing metadata fields such as "title", "description", "inputs", and "outputs",
-     * where "inputs" and "outputs" are themselves maps with their respective properties
-     * @throws IOException if an error occurs while reading the script file
+     * @return Identifiers of the inputs declared as file paths read by the script
      */
-    private static Map parseGroovyScriptMetadata(File scriptFile) throws IOException {
-        GroovyShell shell = new GroovyShell();
-        Script script = shell.parse(scriptFile);
-        script.run();
-        return script.getBinding().getVariables();
+    public Set<String> getFileInputs() {
+        Set<String> fileInputs = new HashSet<>();
+        for (ScriptInput input : inputs.values()) {
+            if (input.file) {
+                fileInputs.add(input.id);
+            }
+        }
+        return fileInputs;
     }
 
     /**
-     * Extracts input data from the provided {@code ExecuteType} object and returns a map of input names
-     * to their corresponding values. It processes the data inputs defined in the {@code ExecuteType}
-     * object to construct this mapping.
+     * Parses metadata from a provided Groovy script file and extracts details such as title,
+     * description, inputs, and outputs defined within the script. The literal declarations are read
+     * from the syntax tree of the script, the script is only run if a declaration is not a literal.
      *
-     * @param execute the {@code ExecuteType} object that contains the data inputs to extract.
-     * @return a map where keys are input names (as strings) and values are the corresponding input data
-     *         values (as objects), or {@code null} if no data is associated with an input.
+     * @param scriptFile the Groovy script file to parse for metadata
+     * @param cacheDirectory directory of the cached metadata, null to disable the cache
+     * @return a map containing metadata fields such as "title", "description", "inputs", "outputs" and "resources",
+     * where "inputs" and "outputs" are themselves maps with their respective properties
+     * @throws IOException if an error occurs while reading the script file
      */
-    public static Map<String, Object> extractInputs(ExecuteType execute) {
-        Map<String, Object> inputsMap = new HashMap<>();
-        DataInputsType1 dataInputs = execute.getDataInputs();
-        if (dataInputs != null) {
-            for (Object obj : dataInputs.getInput()) {
-                if (obj instanceof InputType) {
-                    InputType input = (InputType) obj;
-                    String name = input.getIdentifier().getValue();
-                    Object value = (input.getData() != null && input.getData().getLiteralData() != null)
-                            ? input.getData().getLiteralData().getValue() : null;
-                    inputsMap.put(name, value);
-                }
-            }
-        }
-        return inputsMap;
+    private static Map parseGroovyScriptMetadata(File scriptFile, Path cacheDirectory) throws IOException {
+        return ScriptMetadataExtractor.readMetadata(scriptFile.toPath(), cacheDirectory);
     }
 
 }
@@ -0,0 +1,337 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.script;
+
+import groovy.json.JsonOutput;
+import groovy.json.JsonSlurper;
+import org.codehaus.groovy.ast.ImportNode;
+import org.codehaus.groovy.ast.ModuleNode;
+import org.codehaus.groovy.ast.expr.BinaryExpression;
+import org.codehaus.groovy.ast.expr.ClassExpression;
+import org.codehaus.groovy.ast.expr.ConstantExpression;
+import org.codehaus.groovy.ast.expr.DeclarationExpression;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.expr.GStringExpression;
+import org.codehaus.groovy.ast.expr.ListExpression;
+import org.codehaus.groovy.ast.expr.MapEntryExpression;
+import org.codehaus.groovy.ast.expr.MapExpression;
+import org.codehaus.groovy.ast.expr.PropertyExpression;
+import org.codehaus.groovy.ast.expr.UnaryMinusExpression;
+import org.codehaus.groovy.ast.expr.VariableExpression;
+import org.codehaus.groovy.ast.stmt.ExpressionStatement;
+import org.codehaus.groovy.ast.stmt.Statement;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.syntax.Types;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read the metadata declarations (title, description, inputs, outputs...) of a Groovy script without running it.
+ * <p>
+ * The top level assignments of the script are read from the syntax tree. Their values must be literals: strings,
+ * numbers, booleans, lists, maps, classes and concatenations of strings. The script is never run: if a declaration
+ * is not a literal the script needs a manual fix and {@link NotLiteralMetadataException} is thrown. The extracted
+ * metadata is cached on disk in a JSON file named after the hash of the script content.
+ * </p>
+ */
+public class ScriptMetadataExtractor {
+    /** Script variables read as metadata */
+    public static final Set<String> METADATA_VARIABLES = Set.of("title", "description", "inputs", "outputs",
+            "resources", "cost", "memoization");
+    /** Incremented when the extracted metadata changes, the cached files of another version are ignored */
+    private static final int CACHE_VERSION = 1;
+    private static final String[] DEFAULT_IMPORTS = {"java.lang.", "java.util.", "java.io.", "java.net.",
+            "groovy.lang.", "groovy.util.", "java.math."};
+    private static final Logger logger = LoggerFactory.getLogger(ScriptMetadataExtractor.class);
+    private static final Object NOT_LITERAL = new Object();
+
+    private ScriptMetadataExtractor() {
+    }
+
+    /**
+     * The metadata declarations of the script are not literals or can not be parsed, the script must be fixed by
+     * hand before it can be published
+     */
+    public static class NotLiteralMetadataException extends IOException {
+        public NotLiteralMetadataException(Path scriptPath) {
+            super("The metadata of " + scriptPath.getFileName() + " are not literals, the script needs a manual fix");
+        }
+    }
+
+    /**
+     * Read the metadata of a script, from the cache if the script content has not changed
+     * @param scriptPath Groovy script file
+     * @param cacheDirectory Directory of the cached metadata, null to disable the cache
+     * @return Metadata variables of the script
+     * @throws NotLiteralMetadataException If a metadata declaration is not a literal
+     * @throws IOException If the script file can not be read
+     */
+    public static Map<String, Object> readMetadata(Path scriptPath, Path cacheDirectory) throws IOException {
+        byte[] content = Files.readAllBytes(scriptPath);
+        String contentHash = ScriptClassCache.hash(content);
+        Path cacheFile = cacheDirectory != null ? cacheDirectory.resolve(contentHash + ".json") : null;
+        if (cacheFile != null && Files.exists(cacheFile)) {
+            Map<String, Object> metadata = readCacheFile(cacheFile);
+            if (metadata != null) {
+                return metadata;
+            }
+        }
+        Map<String, Object> metadata = extract(new String(content, StandardCharsets.UTF_8),
+                scriptPath.getFileName().toString());
+        if (metadata == null) {
+            throw new NotLiteralMetadataException(scriptPath);
+        }
+        if (cacheFile != null) {
+            writeCacheFile(cacheFile, metadata);
+        }
+        return metadata;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> readCacheFile(Path cacheFile) {
+        try {
+            Object cached = new JsonSlurper().parse(cacheFile.toFile(), StandardCharsets.UTF_8.name());
+            if (cached instanceof Map && Integer.valueOf(CACHE_VERSION).equals(((Map<?, ?>) cached).get("version"))
+                    && ((Map<?, ?>) cached).get("metadata") instanceof Map) {
+                return (Map<String, Object>) ((Map<?, ?>) cached).get("metadata");
+            }
+        } catch (RuntimeException ex) {
+            logger.warn("Ignore the invalid script metadata cache file {}", cacheFile, ex);
+        }
+        return null;
+    }
+
+    private static void writeCacheFile(Path cacheFile, Map<String, Object> metadata) {
+        Map<String, Object> cached = new LinkedHashMap<>();
+        cached.put("version", CACHE_VERSION);
+        cached.put("metadata", metadata);
+        try {
+            Files.createDirectories(cacheFile.getParent());
+            // Written then renamed, a concurrent reader never sees a partial file
+            Path temporaryFile = Files.createTempFile(cacheFile.getParent(), "metadata", ".tmp");
+            Files.writeString(temporaryFile, JsonOutput.toJson(cached), StandardCharsets.UTF_8);
+            Files.move(temporaryFile, cacheFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            logger.warn("Unable to write the script metadata cache file {}", cacheFile, ex);
+        }
+    }
+
+    /**
+     * Extract the metadata declarations from the syntax tree of the script
+     * @param source Script content
+     * @param fileName Script file name, used in the error messages
+     * @return Metadata variables, the classes are given as in {@link Class#toString()}, or null if a declaration
+     * is not a literal or the script can not be parsed
+     */
+    public static Map<String, Object> extract(String source, String fileName) {
+        return extractVariables(source, fileName, METADATA_VARIABLES);
+    }
+
+    /**
+     * Extract the declarations of script variables from the syntax tree, without running the script
+     * @param source Script content
+     * @param fileName Script file name, used in the error messages
+     * @param variables Name of the binding variables to read
+     * @return Declared variables, the classes are given as in {@link Class#toString()}, or null if a declaration
+     * is not a literal or the script can not be parsed
+     */
+    public static Map<String, Object> extractVariables(String source, String fileName, Set<String> variables) {
+        ModuleNode module;
+        try {
+            CompilationUnit compilationUnit = new CompilationUnit(new CompilerConfiguration());
+            SourceUnit sourceUnit = compilationUnit.addSource(fileName, source);
+            compilationUnit.compile(Phases.CONVERSION);
+            module = sourceUnit.getAST();
+        } catch (CompilationFailedException ex) {
+            logger.warn("Unable to parse the script {}", fileName, ex);
+            return null;
+        }
+        Map<String, String> imports = new HashMap<>();
+        for (ImportNode importNode : module.getImports()) {
+            imports.put(importNode.getAlias(), importNode.getClassName());
+        }
+        List<String> packages = new ArrayList<>();
+        for (ImportNode importNode : module.getStarImports()) {
+            packages.add(importNode.getPackageName());
+        }
+        for (String defaultImport : DEFAULT_IMPORTS) {
+            packages.add(defaultImport);
+        }
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        for (Statement statement : module.getStatementBlock().getStatements()) {
+            if (!(statement instanceof ExpressionStatement) ||
+                    !(((ExpressionStatement) statement).getExpression() instanceof BinaryExpression)) {
+                continue;
+            }
+            BinaryExpression assignment = (BinaryExpression) ((ExpressionStatement) statement).getExpression();
+            // def title = ... is a local variable, not a binding variable
+            if (assignment instanceof DeclarationExpression || assignment.getOperation().getType() != Types.ASSIGN ||
+                    !(assignment.getLeftExpression() instanceof VariableExpression)) {
+                continue;
+            }
+            String variable = ((VariableExpression) assignment.getLeftExpression()).getName();
+            if (!variables.contains(variable)) {
+                continue;
+            }
+            Object value = evaluate(assignment.getRightExpression(), imports, packages);
+            if (value == NOT_LITERAL) {
+                logger.debug("The {} declaration of {} line {} is not a literal", variable, fileName,
+                        assignment.getLineNumber());
+                return null;
+            }
+            metadata.put(variable, value);
+        }
+        return metadata;
+    }
+
+    private static Object evaluate(Expression expression, Map<String, String> imports, List<String> packages) {
+        if (expression instanceof ClassExpression) {
+            return resolveClass(expression.getType().getName(), imports, packages);
+        } else if (expression instanceof ConstantExpression) {
+            return ((ConstantExpression) expression).getValue();
+        } else if (expression instanceof GStringExpression) {
+            GStringExpression gString = (GStringExpression) expression;
+            if (!gString.getValues().isEmpty()) {
+                return NOT_LITERAL;
+            }
+            StringBuilder text = new StringBuilder();
+            for (ConstantExpression string : gString.getStrings()) {
+                text.append(string.getValue());
+            }
+            return text.toString();
+        } else if (expression instanceof ListExpression) {
+            List<Object> list = new ArrayList<>();
+            for (Expression item : ((ListExpression) expression).getExpressions()) {
+                Object value = evaluate(item, imports, packages);
+                if (value == NOT_LITERAL) {
+                    return NOT_LITERAL;
+                }
+                list.add(value);
+            }
+            return list;
+        } else if (expression instanceof MapExpression) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            for (MapEntryExpression entry : ((MapExpression) expression).getMapEntryExpressions()) {
+                Object key = evaluate(entry.getKeyExpression(), imports, packages);
+                Object value = evaluate(entry.getValueExpression(), imports, packages);
+                if (!(key instanceof String) || value == NOT_LITERAL) {
+                    return NOT_LITERAL;
+                }
+                map.put((String) key, value);
+            }
+            return map;
+        } else if (expression instanceof PropertyExpression &&
+                "class".equals(((PropertyExpression) expression).getPropertyAsString())) {
+            // Integer.class
+            String className = getClassName(((PropertyExpression) expression).getObjectExpression());
+            return className != null ? resolveClass(className, imports, packages) : NOT_LITERAL;
+        } else if (expression instanceof VariableExpression) {
+            // A class name without .class
+            String name = ((VariableExpression) expression).getName();
+            return !name.isEmpty() && Character.isUpperCase(name.charAt(0)) ?
+                    resolveClass(name, imports, packages) : NOT_LITERAL;
+        } else if (expression instanceof UnaryMinusExpression) {
+            Object value = evaluate(((UnaryMinusExpression) expression).getExpression(), imports, packages);
+            return negate(value);
+        } else if (expression instanceof BinaryExpression &&
+                ((BinaryExpression) expression).getOperation().getType() == Types.PLUS) {
+            Object left = evaluate(((BinaryExpression) expression).getLeftExpression(), imports, packages);
+            Object right = evaluate(((BinaryExpression) expression).getRightExpression(), imports, packages);
+            if (left instanceof String && right != NOT_LITERAL && !(right instanceof Map || right instanceof List)) {
+                return left + String.valueOf(right);
+            }
+        }
+        return NOT_LITERAL;
+    }
+
+    private static Object negate(Object value) {
+        if (value instanceof Integer) {
+            return -(Integer) value;
+        } else if (value instanceof Long) {
+            return -(Long) value;
+        } else if (value instanceof Double) {
+            return -(Double) value;
+        } else if (value instanceof Float) {
+            return -(Float) value;
+        } else if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).negate();
+        } else if (value instanceof BigInteger) {
+            return ((BigInteger) value).negate();
+        }
+        return NOT_LITERAL;
+    }
+
+    /**
+     * @param expression Class name expression, such as Geometry or org.locationtech.jts.geom.Geometry
+     * @return Dotted name or null
+     */
+    private static String getClassName(Expression expression) {
+        if (expression instanceof ClassExpression) {
+            return expression.getType().getName();
+        } else if (expression instanceof VariableExpression) {
+            return ((VariableExpression) expression).getName();
+        } else if (expression instanceof PropertyExpression) {
+            String owner = getClassName(((PropertyExpression) expression).getObjectExpression());
+            String property = ((PropertyExpression) expression).getPropertyAsString();
+            return owner != null && property != null ? owner + "." + property : null;
+        }
+        return null;
+    }
+
+    /**
+     * Resolve a class name as the compiler would, without loading the script
+     * @param name Simple or qualified class name
+     * @param imports Imported classes by alias
+     * @param packages Imported packages, ending with a dot
+     * @return Class description as given by {@link Class#toString()}
+     */
+    private static Object resolveClass(String name, Map<String, String> imports, List<String> packages) {
+        List<String> candidates = new ArrayList<>();
+        if (imports.containsKey(name)) {
+            candidates.add(imports.get(name));
+        } else if (name.contains(".")) {
+            candidates.add(name);
+        } else {
+            for (String packageName : packages) {
+                candidates.add(packageName + name);
+            }
+        }
+        ClassLoader classLoader = ScriptMetadataExtractor.class.getClassLoader();
+        for (String candidate : candidates) {
+            try {
+                return Class.forName(candidate, false, classLoader).toString();
+            } catch (ClassNotFoundException | LinkageError ex) {
+                // try the next package
+            }
+        }
+        // An imported or qualified class that is not in the server class path
+        return candidates.size() == 1 && (imports.containsKey(name) || name.contains(".")) ?
+                "class " + candidates.get(0) : NOT_LITERAL;
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.script;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Registry of the WPS scripts.
+ * <p>
+ * The scripts are published as an immutable {@link Snapshot} replaced atomically, the readers never see a partially
+ * reloaded list. The file changes are coalesced during a short window, then only the created, modified or deleted
+ * scripts are parsed again.
+ * </p>
+ */
+public class ScriptRegistry implements AutoCloseable {
+    /** Default delay between the first file change and the registry update */
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 500;
+    private final Logger logger = LoggerFactory.getLogger(ScriptRegistry.class);
+    private final WpsScriptWrapper wpsScriptWrapper;
+    private final Path scriptsRoot;
+    private final Path cacheDirectory;
+    private final long debounceMillis;
+    /** Scripts by absolute path, only modified while holding the registry lock */
+    private final Map<Path, ScriptMetadata> scriptsByPath = new HashMap<>();
+    private final Set<Path> pendingChanges = new LinkedHashSet<>();
+    private final ScheduledExecutorService scheduler;
+    private boolean updateScheduled = false;
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.emptyList());
+
+    /**
+     * Immutable state of the registry
+     */
+    public static final class Snapshot {
+        /** Incremented on each registry update */
+        final public long version;
+        /** Scripts sorted by identifier */
+        final public List<ScriptMetadata> scripts;
+        /** Scripts by process identifier */
+        final public Map<String, ScriptMetadata> scriptsById;
+
+        Snapshot(long version, Collection<ScriptMetadata> scripts) {
+            this.version = version;
+            List<ScriptMetadata> sorted = new ArrayList<>(scripts);
+            sorted.sort(Comparator.comparing(script -> script.id));
+            Map<String, ScriptMetadata> byId = new LinkedHashMap<>();
+            for (ScriptMetadata script : sorted) {
+                byId.put(script.id, script);
+            }
+            this.scripts = Collections.unmodifiableList(sorted);
+            this.scriptsById = Collections.unmodifiableMap(byId);
+        }
+
+        /**
+         * @param processId Process identifier (group:name)
+         * @return The script with this identifier
+         */
+        public Optional<ScriptMetadata> find(String processId) {
+            return Optional.ofNullable(scriptsById.get(processId));
+        }
+    }
+
+    /**
+     * Load all the scripts
+     * @param scriptsRoot Root directory of the scripts, the sub-directories are the script groups
+     * @param cacheDirectory Directory of the cached script metadata, null to disable the cache
+     * @param debounceMillis Delay between the first file change and the registry update
+     * @throws IOException If a script can not be read
+     */
+    public ScriptRegistry(Path scriptsRoot, Path cacheDirectory, long debounceMillis) throws IOException {
+        this.wpsScriptWrapper = new WpsScriptWrapper(scriptsRoot);
+        this.scriptsRoot = scriptsRoot.toAbsolutePath().normalize();
+        this.cacheDirectory = cacheDirectory;
+        this.debounceMillis = debounceMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SCRIPT_REGISTRY");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reload();
+    }
+
+    /**
+     * @return Current scripts, never modified
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Scan all the scripts again
+     * @return New snapshot
+     * @throws IOException If a script can not be read
+     */
+    public synchronized Snapshot reload() throws IOException {
+        Map<String, List<File>> groupedScripts = wpsScriptWrapper.loadScripts();
+        List<File> files = new ArrayList<>();
+        groupedScripts.values().forEach(files::addAll);
+        List<ScriptMetadata> scripts = WpsScriptWrapper.buildScriptWrappers(groupedScripts, cacheDirectory);
+        scriptsByPath.clear();
+        for (int i = 0; i < scripts.size(); i++) {
+            scriptsByPath.put(files.get(i).toPath().toAbsolutePath().normalize(), scripts.get(i));
+        }
+        return publish();
+    }
+
+    /**
+     * Record a file change, the changes recorded during the debounce delay following the first one are applied
+     * together
+     * @param path Created, modified or deleted script file or directory
+     */
+    public synchronized void notifyChanged(Path path) {
+        pendingChanges.add(path.toAbsolutePath().normalize());
+        if (!updateScheduled) {
+            updateScheduled = true;
+            scheduler.schedule(this::applyPendingChanges, debounceMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void applyPendingChanges() {
+        List<Path> changes;
+        synchronized (this) {
+            changes = new ArrayList<>(pendingChanges);
+            pendingChanges.clear();
+            updateScheduled = false;
+        }
+        try {
+            update(changes);
+        } catch (IOException | RuntimeException ex) {
+            logger.error("Unable to update the scripts, reload all of them", ex);
+            try {
+                reload();
+            } catch (IOException reloadException) {
+                logger.error(reloadException.getLocalizedMessage(), reloadException);
+            }
+        }
+    }
+
+    /**
+     * Parse again the changed scripts
+     * @param changedPaths Created, modified or deleted script files or directories
+     * @return New snapshot
+     * @throws IOException If a script can not be read
+     */
+    public synchronized Snapshot update(Collection<Path> changedPaths) throws IOException {
+        Map<String, List<File>> parsed = new LinkedHashMap<>();
+        int removed = 0;
+        for (Path changedPath : changedPaths) {
+            Path path = changedPath.toAbsolutePath().normalize();
+            if (!path.startsWith(scriptsRoot)) {
+                continue;
+            }
+            // Deleted file or directory, or directory whose content may have been replaced
+            List<Path> previous = scriptsByPath.keySet().stream().filter(scriptPath -> scriptPath.startsWith(path))
+                    .collect(Collectors.toList());
+            for (Path scriptPath : previous) {
+                if (!Files.exists(scriptPath)) {
+                    scriptsByPath.remove(scriptPath);
+                    ScriptClassCache.getInstance().invalidate(scriptPath);
+                    removed++;
+                }
+            }
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> files = Files.walk(path)) {
+                    files.filter(file -> file.toString().endsWith(".groovy") && Files.isRegularFile(file))
+                            .forEach(file -> addParsed(parsed, file));
+                }
+            } else if (path.toString().endsWith(".groovy") && Files.isRegularFile(path)) {
+                addParsed(parsed, path);
+            }
+        }
+        List<File> files = new ArrayList<>();
+        parsed.values().forEach(files::addAll);
+        List<ScriptMetadata> scripts = WpsScriptWrapper.buildScriptWrappers(parsed, cacheDirectory);
+        for (int i = 0; i < scripts.size(); i++) {
+            scriptsByPath.put(files.get(i).toPath().toAbsolutePath().normalize(), scripts.get(i));
+        }
+        if (scripts.isEmpty() && removed == 0) {
+            return snapshot;
+        }
+        logger.info("{} script(s) parsed, {} script(s) removed", scripts.size(), removed);
+        return publish();
+    }
+
+    private void addParsed(Map<String, List<File>> parsed, Path file) {
+        ScriptClassCache.getInstance().invalidate(file);
+        Path relativeParent = scriptsRoot.relativize(file.getParent());
+        String group = relativeParent.toString().replace(File.separatorChar, '/');
+        List<File> groupFiles = parsed.computeIfAbsent(group, k -> new ArrayList<>());
+        if (!groupFiles.contains(file.toFile())) {
+            groupFiles.add(file.toFile());
+        }
+    }
+
+    private Snapshot publish() {
+        snapshot = new Snapshot(snapshot.version + 1, scriptsByPath.values());
+        return snapshot;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.script;
+
+import java.util.Map;
+
+/**
+ * Resources needed by a script, declared in the script metadata next to the inputs and outputs:
+ * <pre>
+ * resources = [threads: 0, threadsInput: 'confThreadNumber', heap: 2048, heapInput: 'confJobHeap']
+ * </pre>
+ * <ul>
+ *     <li>threads: number of threads used by the script, 0 for all the cores</li>
+ *     <li>threadsInput: optional script input overriding the number of threads, 0 for all the cores</li>
+ *     <li>heap: estimated heap memory used by the script in MB</li>
+ *     <li>heapInput: optional script input overriding the heap memory in MB</li>
+ * </ul>
+ * When the jobs run in separate processes, the heap and the threads are the -Xmx and the number of processors of
+ * the job JVM.
+ * Scripts without declaration are not limited by the admission control.
+ */
+public class ScriptResources {
+    /** Resources of a script that does not declare its needs */
+    public static final ScriptResources UNDECLARED = new ScriptResources(false, 0, "", 0, "");
+
+    /** True if the script declares its resource needs */
+    public final boolean declared;
+    /** Number of threads used by the script, 0 for all the cores */
+    public final int threads;
+    /** Name of the script input that override the number of threads, empty if none */
+    public final String threadsInput;
+    /** Estimated heap memory used by the script in MB */
+    public final long heap;
+    /** Name of the script input that override the heap memory, empty if none */
+    public final String heapInput;
+
+    public ScriptResources(boolean declared, int threads, String threadsInput, long heap, String heapInput) {
+        this.declared = declared;
+        this.threads = Math.max(0, threads);
+        this.threadsInput = threadsInput;
+        this.heap = Math.max(0, heap);
+        this.heapInput = heapInput;
+    }
+
+    /**
+     * Read the resources binding of a script
+     * @param resourcesValue Value of the resources variable in the script or null if not declared
+     * @return Script resources
+     * @throws IllegalArgumentException If a resource value is not a number
+     */
+    public static ScriptResources fromMetadata(Object resourcesValue) {
+        if (!(resourcesValue instanceof Map)) {
+            return UNDECLARED;
+        }
+        Map<?, ?> resources = (Map<?, ?>) resourcesValue;
+        Object threadsInput = resources.get("threadsInput");
+        Object heapInput = resources.get("heapInput");
+        return new ScriptResources(true, parseInt(resources.get("threads")),
+                threadsInput != null ? threadsInput.toString() : "", parseInt(resources.get("heap")),
+                heapInput != null ? heapInput.toString() : "");
+    }
+
+    private static int parseInt(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        return Integer.parseInt(value.toString().trim());
+    }
+
+    /**
+     * Number of threads the job will use
+     * @param inputs Job inputs
+     * @param availableProcessors Number of cores of the server
+     * @return Number of threads in the range [1, availableProcessors] or 0 if the script does not declare its needs
+     */
+    public int getRequiredThreads(Map<String, Object> inputs, int availableProcessors) {
+        if (!declared) {
+            return 0;
+        }
+        int requiredThreads = getInputValue(inputs, threadsInput, threads);
+        if (requiredThreads <= 0 || requiredThreads > availableProcessors) {
+            return availableProcessors;
+        }
+        return requiredThreads;
+    }
+
+    /**
+     * @param inputs Job inputs
+     * @return Estimated heap memory used by the job in MB, 0 if the script does not declare its needs
+     */
+    public long getRequiredHeap(Map<String, Object> inputs) {
+        if (!declared) {
+            return 0;
+        }
+        return Math.max(0, getInputValue(inputs, heapInput, (int) heap));
+    }
+
+    /**
+     * @param inputs Job inputs
+     * @param estimatedHeap Upper bound of the heap memory predicted from the past runs in MB, see
+     * {@link JobCostEstimator}, -1 if unknown
+     * @return Heap memory used by the job in MB: the input value if set by the user, the estimate if known, the
+     * declared value otherwise. 0 if the script does not declare its needs
+     */
+    public long getRequiredHeap(Map<String, Object> inputs, long estimatedHeap) {
+        if (!declared) {
+            return 0;
+        }
+        boolean userValue = !heapInput.isEmpty() && inputs != null && inputs.get(heapInput) != null;
+        if (!userValue && estimatedHeap > 0) {
+            return estimatedHeap;
+        }
+        return getRequiredHeap(inputs);
+    }
+
+    /**
+     * @param inputs Job inputs
+     * @param estimatedHeap Upper bound of the heap memory predicted from the past runs in MB, -1 if unknown
+     * @return Maximum heap of a job run in its own java process in MB. The process heap is a hard limit, so the
+     * prediction can raise the declared value but never lower it. 0 if the script does not declare its needs
+     */
+    public long getProcessHeap(Map<String, Object> inputs, long estimatedHeap) {
+        return Math.max(getRequiredHeap(inputs, estimatedHeap), getRequiredHeap(inputs));
+    }
+
+    private static int getInputValue(Map<String, Object> inputs, String inputName, int defaultValue) {
+        if (!inputName.isEmpty() && inputs != null && inputs.get(inputName) != null) {
+            try {
+                return parseInt(inputs.get(inputName));
+            } catch (NumberFormatException ex) {
+                // the script will reject the input, keep the declared value
+            }
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,591 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.script;
+
+import org.h2.util.ScriptReader;
+import org.h2gis.api.ProgressVisitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Load a SQL script, such as the dumps written by NoiseModelling or by the H2 SCRIPT command, into a database.
+ * <p>
+ * The file is decompressed and split into statements on a reader thread while the calling thread writes into the
+ * database. The values of the INSERT statements made only of literals are bound to prepared statements inserting
+ * several rows at once, executed in batches with a commit every {@link #setCommitRows(int)} rows. The other
+ * statements are executed as they are, after the pending rows.
+ * </p>
+ * <p>
+ * The pending rows are executed when the inserted table changes, so the tables are filled in the order of the file
+ * (ex. a referenced row is inserted before the rows referencing it). The rows of one table having different value
+ * placeholders (ex. a geometry given as a literal then as a function call) are inserted grouped by placeholders.
+ * </p>
+ */
+public class SqlDumpLoader {
+    /** Default number of rows inserted by one prepared statement */
+    public static final int DEFAULT_ROWS_PER_STATEMENT = 100;
+    /** Default number of prepared statements executed in a batch */
+    public static final int DEFAULT_BATCH_SIZE = 20;
+    /** Default number of rows inserted between two commits */
+    public static final int DEFAULT_COMMIT_ROWS = 200000;
+    private static final int BUFFER_LENGTH = 65536;
+    private static final int CHUNK_SIZE = 1000;
+    private static final int QUEUE_SIZE = 16;
+    private static final List<Object> END_OF_SCRIPT = Collections.emptyList();
+    private static final Pattern INSERT_PREFIX = Pattern.compile("^INSERT\\s+INTO\\s+" +
+            "((?:\"[^\"]*\"|[\\w$]+)(?:\\s*\\.\\s*(?:\"[^\"]*\"|[\\w$]+))*)\\s*" +
+            "(\\((?:\"[^\"]*\"|[^()\"'])*\\))?\\s*VALUES\\s*", Pattern.CASE_INSENSITIVE);
+    private static final Pattern NUMBER = Pattern.compile("[+-]?(?:\\d+(?:\\.\\d*)?|\\.\\d+)(?:[eE][+-]?\\d+)?");
+
+    private final Logger logger = LoggerFactory.getLogger(SqlDumpLoader.class);
+    private final Connection connection;
+    private int rowsPerStatement = DEFAULT_ROWS_PER_STATEMENT;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int commitRows = DEFAULT_COMMIT_ROWS;
+
+    /**
+     * Rows of an INSERT statement sharing the same table and the same placeholders
+     */
+    static final class InsertRow {
+        final String prefix;
+        final String template;
+        final Object[] values;
+
+        InsertRow(String prefix, String template, Object[] values) {
+            this.prefix = prefix;
+            this.template = template;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Pending rows of an insert prefix and template
+     */
+    private final class InsertGroup {
+        final String prefix;
+        final String template;
+        final List<Object[]> rows = new ArrayList<>();
+        PreparedStatement statement = null;
+        int batched = 0;
+
+        InsertGroup(String prefix, String template) {
+            this.prefix = prefix;
+            this.template = template;
+        }
+
+        void add(Object[] values) throws SQLException {
+            rows.add(values);
+            if (rows.size() == rowsPerStatement) {
+                if (statement == null) {
+                    statement = connection.prepareStatement(buildInsert(rowsPerStatement));
+                }
+                bind(statement);
+                statement.addBatch();
+                batched++;
+                if (batched >= batchSize) {
+                    statement.executeBatch();
+                    batched = 0;
+                }
+            }
+        }
+
+        String buildInsert(int rowCount) {
+            StringBuilder sql = new StringBuilder(prefix).append(' ');
+            for (int i = 0; i < rowCount; i++) {
+                if (i > 0) {
+                    sql.append(", ");
+                }
+                sql.append(template);
+            }
+            return sql.toString();
+        }
+
+        void bind(PreparedStatement preparedStatement) throws SQLException {
+            int index = 1;
+            for (Object[] row : rows) {
+                for (Object value : row) {
+                    preparedStatement.setObject(index++, value);
+                }
+            }
+            rows.clear();
+        }
+
+        void flush() throws SQLException {
+            if (batched > 0) {
+                statement.executeBatch();
+                batched = 0;
+            }
+            if (!rows.isEmpty()) {
+                try (PreparedStatement remaining = connection.prepareStatement(buildInsert(rows.size()))) {
+                    bind(remaining);
+                    remaining.execute();
+                }
+            }
+        }
+
+        void close() throws SQLException {
+            if (statement != null) {
+                statement.close();
+                statement = null;
+            }
+        }
+    }
+
+    /**
+     * @param connection Destination database, the auto-commit mode is restored once the script is loaded
+     */
+    public SqlDumpLoader(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * @param rowsPerStatement Number of rows inserted by one prepared statement
+     */
+    public void setRowsPerStatement(int rowsPerStatement) {
+        this.rowsPerStatement = Math.max(1, rowsPerStatement);
+    }
+
+    /**
+     * @param batchSize Number of prepared statements executed in a batch
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * @param commitRows Number of rows inserted between two commits
+     */
+    public void setCommitRows(int commitRows) {
+        this.commitRows = Math.max(1, commitRows);
+    }
+
+    /**
+     * Load a SQL script
+     * @param scriptFile Script file
+     * @param compressed True if the file is compressed with GZIP
+     * @param progressVisitor Progression on the compressed file position, the load stops once canceled
+     * @return Number of inserted rows
+     * @throws IllegalStateException If the load is canceled, the rows inserted since the last commit are rolled back
+     * @throws SQLException If a statement fails, the rows inserted since the last commit are rolled back
+     * @throws IOException If the file can not be read
+     */
+    public long load(File scriptFile, boolean compressed, ProgressVisitor progressVisitor)
+            throws SQLException, IOException {
+        long start = System.currentTimeMillis();
+        FileInputStream fileInputStream = new FileInputStream(scriptFile);
+        ProgressVisitor subProgress;
+        Reader reader;
+        try {
+            subProgress = progressVisitor.subProcess(
+                    (int) Math.max(1, fileInputStream.getChannel().size() / BUFFER_LENGTH));
+            InputStream inputStream = compressed ? new GZIPInputStream(fileInputStream, BUFFER_LENGTH) :
+                    fileInputStream;
+            reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8), BUFFER_LENGTH);
+        } catch (IOException | RuntimeException ex) {
+            // Invalid GZIP header, the reader thread that closes the file is not started
+            fileInputStream.close();
+            throw ex;
+        }
+        BlockingQueue<List<Object>> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        AtomicReference<Throwable> readError = new AtomicReference<>();
+        AtomicLong position = new AtomicLong();
+        Thread readerThread = new Thread(() -> {
+            try (Reader closeable = reader) {
+                ScriptReader scriptReader = new ScriptReader(closeable);
+                scriptReader.setSkipRemarks(true);
+                List<Object> chunk = new ArrayList<>(CHUNK_SIZE);
+                String statement;
+                while ((statement = scriptReader.readStatement()) != null) {
+                    statement = statement.trim();
+                    if (statement.isEmpty()) {
+                        continue;
+                    }
+                    List<InsertRow> rows = parseInsert(statement);
+                    if (rows != null) {
+                        chunk.addAll(rows);
+                    } else {
+                        chunk.add(statement);
+                    }
+                    if (chunk.size() >= CHUNK_SIZE) {
+                        position.set(fileInputStream.getChannel().position());
+                        queue.put(chunk);
+                        chunk = new ArrayList<>(CHUNK_SIZE);
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    queue.put(chunk);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Throwable ex) {
+                readError.set(ex);
+            }
+            try {
+                queue.put(END_OF_SCRIPT);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, "SQL_DUMP_READER");
+        readerThread.setDaemon(true);
+        readerThread.start();
+
+        boolean autoCommit = connection.getAutoCommit();
+        Map<String, Map<String, InsertGroup>> groups = new HashMap<>();
+        String insertPrefix = null;
+        long insertedRows = 0;
+        long uncommittedRows = 0;
+        long otherStatements = 0;
+        boolean completed = false;
+        try (Statement st = connection.createStatement()) {
+            connection.setAutoCommit(false);
+            while (!progressVisitor.isCanceled()) {
+                List<Object> chunk = queue.poll(1, TimeUnit.SECONDS);
+                if (chunk == null) {
+                    continue;
+                }
+                if (chunk == END_OF_SCRIPT) {
+                    break;
+                }
+                for (Object item : chunk) {
+                    if (item instanceof InsertRow) {
+                        InsertRow row = (InsertRow) item;
+                        if (!row.prefix.equals(insertPrefix)) {
+                            // Keep the order of the tables, the prepared statements are kept for the next rows
+                            flush(groups, false);
+                            insertPrefix = row.prefix;
+                        }
+                        groups.computeIfAbsent(row.prefix, prefix -> new HashMap<>())
+                                .computeIfAbsent(row.template, template -> new InsertGroup(row.prefix, template))
+                                .add(row.values);
+                        insertedRows++;
+                        if (++uncommittedRows >= commitRows) {
+                            flush(groups, false);
+                            connection.commit();
+                            uncommittedRows = 0;
+                        }
+                    } else {
+                        // The statement may modify the tables of the pending rows
+                        flush(groups, true);
+                        insertPrefix = null;
+                        st.execute((String) item);
+                        otherStatements++;
+                    }
+                }
+                subProgress.setStep((int) (position.get() / BUFFER_LENGTH));
+            }
+            if (progressVisitor.isCanceled()) {
+                logger.info("Load of {} canceled, the rows read since the last commit are rolled back",
+                        scriptFile.getName());
+                throw new IllegalStateException("The load of " + scriptFile.getName() + " has been canceled");
+            }
+            Throwable error = readError.get();
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            } else if (error != null) {
+                throw new IOException("Unable to read " + scriptFile, error);
+            }
+            flush(groups, true);
+            connection.commit();
+            completed = true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while loading " + scriptFile, ex);
+        } finally {
+            if (!completed) {
+                readerThread.interrupt();
+                for (Map<String, InsertGroup> prefixGroups : groups.values()) {
+                    for (InsertGroup group : prefixGroups.values()) {
+                        try {
+                            group.close();
+                        } catch (SQLException ex) {
+                            logger.debug("Unable to close an insert statement", ex);
+                        }
+                    }
+                }
+                try {
+                    connection.rollback();
+                } catch (SQLException ex) {
+                    logger.debug("Unable to rollback the load of " + scriptFile, ex);
+                }
+            }
+            connection.setAutoCommit(autoCommit);
+        }
+        logger.info("Loaded {} rows and {} other statements of {} in {} s", insertedRows, otherStatements,
+                scriptFile.getName(), (System.currentTimeMillis() - start) / 1000);
+        return insertedRows;
+    }
+
+    /**
+     * Execute the pending rows
+     * @param groups Pending rows
+     * @param close True to close the prepared statements
+     * @throws SQLException Insert error
+     */
+    private static void flush(Map<String, Map<String, InsertGroup>> groups, boolean close) throws SQLException {
+        for (Map<String, InsertGroup> prefixGroups : groups.values()) {
+            for (InsertGroup group : prefixGroups.values()) {
+                group.flush();
+                if (close) {
+                    group.close();
+                }
+            }
+        }
+        if (close) {
+            groups.clear();
+        }
+    }
+
+    /**
+     * Split an INSERT statement into rows of bound values.
+     * <p>
+     * The numbers, strings, binary strings and NULL values of the tuples are replaced by placeholders. The values may
+     * also be typed strings (GEOMETRY 'POINT(1 2)' or 'POINT(1 2)'::GEOMETRY) or function calls on such values.
+     * </p>
+     * @param statement SQL statement without the trailing semicolon
+     * @return The rows of the statement or null if the statement has to be executed as it is
+     */
+    static List<InsertRow> parseInsert(String statement) {
+        if (statement.endsWith(";")) {
+            statement = statement.substring(0, statement.length() - 1).trim();
+        }
+        Matcher matcher = INSERT_PREFIX.matcher(statement);
+        if (!matcher.lookingAt()) {
+            return null;
+        }
+        String prefix = "INSERT INTO " + matcher.group(1) + (matcher.group(2) != null ? matcher.group(2) : "") +
+                " VALUES";
+        List<InsertRow> rows = new ArrayList<>();
+        int position = matcher.end();
+        StringBuilder template = new StringBuilder();
+        List<Object> values = new ArrayList<>();
+        while (true) {
+            if (position >= statement.length() || statement.charAt(position) != '(') {
+                return null;
+            }
+            template.setLength(0);
+            values.clear();
+            position = parseValues(statement, position + 1, template.append('('), values, true);
+            if (position < 0) {
+                return null;
+            }
+            rows.add(new InsertRow(prefix, template.toString(), values.toArray()));
+            position = skipSpaces(statement, position);
+            if (position == statement.length()) {
+                return rows;
+            }
+            if (statement.charAt(position) != ',') {
+                return null;
+            }
+            position = skipSpaces(statement, position + 1);
+        }
+    }
+
+    private static int skipSpaces(String sql, int position) {
+        while (position < sql.length() && Character.isWhitespace(sql.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Parse a list of values up to the closing parenthesis
+     * @param sql Statement
+     * @param position Position after the opening parenthesis
+     * @param template Receives the values with placeholders and the closing parenthesis
+     * @param values Receives the bound values
+     * @param tuple True for the values of a row, false for the arguments of a function
+     * @return Position after the closing parenthesis or -1 if the values are not supported
+     */
+    private static int parseValues(String sql, int position, StringBuilder template, List<Object> values,
+                                   boolean tuple) {
+        position = skipSpaces(sql, position);
+        if (!tuple && position < sql.length() && sql.charAt(position) == ')') {
+            template.append(')');
+            return position + 1;
+        }
+        while (true) {
+            position = parseValue(sql, skipSpaces(sql, position), template, values, tuple);
+            if (position < 0) {
+                return -1;
+            }
+            position = skipSpaces(sql, position);
+            if (position >= sql.length()) {
+                return -1;
+            }
+            char separator = sql.charAt(position);
+            if (separator == ')') {
+                template.append(')');
+                return position + 1;
+            }
+            if (separator != ',') {
+                return -1;
+            }
+            template.append(", ");
+            position++;
+        }
+    }
+
+    private static int parseValue(String sql, int position, StringBuilder template, List<Object> values,
+                                  boolean tuple) {
+        if (position >= sql.length()) {
+            return -1;
+        }
+        char c = sql.charAt(position);
+        if (c == '\'') {
+            StringBuilder text = new StringBuilder();
+            position = parseString(sql, position, text);
+            if (position < 0) {
+                return -1;
+            }
+            values.add(text.toString());
+            if (sql.startsWith("::", position)) {
+                int typeEnd = parseIdentifier(sql, position + 2);
+                if (typeEnd < 0) {
+                    return -1;
+                }
+                template.append("CAST(? AS ").append(sql, position + 2, typeEnd).append(')');
+                return typeEnd;
+            }
+            template.append('?');
+            return position;
+        }
+        if ((c == 'X' || c == 'x') && position + 1 < sql.length() && sql.charAt(position + 1) == '\'') {
+            StringBuilder text = new StringBuilder();
+            position = parseString(sql, position + 1, text);
+            if (position < 0 || text.length() % 2 != 0) {
+                return -1;
+            }
+            byte[] bytes = new byte[text.length() / 2];
+            for (int i = 0; i < bytes.length; i++) {
+                int high = Character.digit(text.charAt(i * 2), 16);
+                int low = Character.digit(text.charAt(i * 2 + 1), 16);
+                if (high < 0 || low < 0) {
+                    return -1;
+                }
+                bytes[i] = (byte) (high << 4 | low);
+            }
+            values.add(bytes);
+            template.append('?');
+            return position;
+        }
+        if (Character.isDigit(c) || c == '.' || c == '-' || c == '+') {
+            Matcher matcher = NUMBER.matcher(sql).region(position, sql.length());
+            if (!matcher.lookingAt()) {
+                return -1;
+            }
+            values.add(parseNumber(matcher.group()));
+            template.append('?');
+            return matcher.end();
+        }
+        if (Character.isLetter(c) || c == '_') {
+            int end = parseIdentifier(sql, position);
+            String identifier = sql.substring(position, end);
+            int next = skipSpaces(sql, end);
+            String upper = identifier.toUpperCase(Locale.ROOT);
+            if (upper.equals("NULL") && tuple) {
+                values.add(null);
+                template.append('?');
+                return end;
+            }
+            if (upper.equals("NULL") || upper.equals("TRUE") || upper.equals("FALSE")) {
+                template.append(upper);
+                return end;
+            }
+            if (next < sql.length() && sql.charAt(next) == '\'') {
+                // Typed literal such as GEOMETRY 'POINT (1 2)'
+                StringBuilder text = new StringBuilder();
+                position = parseString(sql, next, text);
+                if (position < 0) {
+                    return -1;
+                }
+                values.add(text.toString());
+                template.append("CAST(? AS ").append(identifier).append(')');
+                return position;
+            }
+            if (next < sql.length() && sql.charAt(next) == '(') {
+                template.append(identifier).append('(');
+                return parseValues(sql, next + 1, template, values, false);
+            }
+        }
+        return -1;
+    }
+
+    private static int parseIdentifier(String sql, int position) {
+        int end = position;
+        while (end < sql.length() && (Character.isLetterOrDigit(sql.charAt(end)) || sql.charAt(end) == '_' ||
+                sql.charAt(end) == '$' || (end > position && sql.charAt(end) == '.'))) {
+            end++;
+        }
+        return end > position ? end : -1;
+    }
+
+    /**
+     * @param sql Statement
+     * @param position Position of the opening quote
+     * @param text Receives the unescaped string
+     * @return Position after the closing quote or -1
+     */
+    private static int parseString(String sql, int position, StringBuilder text) {
+        int i = position + 1;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == '\'') {
+                    text.append('\'');
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            text.append(c);
+            i++;
+        }
+        return -1;
+    }
+
+    private static Object parseNumber(String number) {
+        boolean integer = number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0;
+        if (integer && number.length() < 10) {
+            return Integer.parseInt(number);
+        } else if (integer && number.length() < 19) {
+            return Long.parseLong(number);
+        }
+        return new BigDecimal(number);
+    }
+}
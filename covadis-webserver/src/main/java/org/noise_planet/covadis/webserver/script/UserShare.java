@@ -0,0 +1,46 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.script;
+
+import org.noise_planet.covadis.webserver.secure.Role;
+
+import java.util.Set;
+
+/**
+ * Share of the job workers given to a user by the job scheduler
+ */
+public class UserShare {
+    public static final double DEFAULT_WEIGHT = 1.0;
+    public static final double ADMINISTRATOR_WEIGHT = 2.0;
+    public static final UserShare DEFAULT = new UserShare(DEFAULT_WEIGHT, 0);
+
+    /** Relative weight, a user with a weight of 2 gets twice as many workers as a user with a weight of 1 */
+    public final double weight;
+    /** Maximum number of jobs running at the same time for this user, 0 to use the server default */
+    public final int maximumRunningJobs;
+
+    public UserShare(double weight, int maximumRunningJobs) {
+        this.weight = weight > 0 ? weight : DEFAULT_WEIGHT;
+        this.maximumRunningJobs = Math.max(0, maximumRunningJobs);
+    }
+
+    /**
+     * Build the user share, using the default value of the user roles for the missing settings
+     * @param roles User roles
+     * @param weight User weight or null to use the role weight
+     * @param maximumRunningJobs Maximum running jobs or null to use the server default
+     * @return User share
+     */
+    public static UserShare fromRoles(Set<Role> roles, Double weight, Integer maximumRunningJobs) {
+        double roleWeight = roles.contains(Role.ADMINISTRATOR) ? ADMINISTRATOR_WEIGHT : DEFAULT_WEIGHT;
+        return new UserShare(weight != null ? weight : roleWeight,
+                maximumRunningJobs != null ? maximumRunningJobs : 0);
+    }
+}
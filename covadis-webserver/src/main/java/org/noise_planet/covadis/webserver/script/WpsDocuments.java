@@ -0,0 +1,149 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.script;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * WPS GetCapabilities and DescribeProcess documents, rendered once for each version of the script registry.
+ * Each document is kept as UTF-8 bytes, compressed with GZIP and identified by an entity tag, so that a request is
+ * answered without rendering or compressing anything.
+ */
+public class WpsDocuments {
+    private final ScriptRegistry scriptRegistry;
+    private volatile RenderedDocuments renderedDocuments = null;
+
+    /**
+     * Rendered XML document
+     */
+    public static final class Document {
+        /** UTF-8 content */
+        final public byte[] content;
+        /** GZIP compressed content */
+        final public byte[] gzipContent;
+        /** Weak entity tag, the same for the compressed and the uncompressed content */
+        final public String etag;
+
+        Document(String xml) {
+            content = xml.getBytes(StandardCharsets.UTF_8);
+            etag = "W/\"" + ScriptClassCache.hash(content).substring(0, 32) + "\"";
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 4 + 64);
+            try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed)) {
+                gzipOutputStream.write(content);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            gzipContent = compressed.toByteArray();
+        }
+
+        /**
+         * @param ifNoneMatch Value of the If-None-Match request header, may be null
+         * @return True if the client already has this document
+         */
+        public boolean matches(String ifNoneMatch) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            String opaqueTag = etag.substring(2);
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || (tag.startsWith("W/") ? tag.substring(2) : tag).equals(opaqueTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class RenderedDocuments {
+        final long version;
+        final Document capabilities;
+        final Map<String, Document> processDescriptions;
+
+        RenderedDocuments(ScriptRegistry.Snapshot snapshot) {
+            version = snapshot.version;
+            capabilities = new Document(WpsScriptWrapper.generateCapabilitiesXML(snapshot.scripts));
+            Map<String, Document> descriptions = new HashMap<>(snapshot.scripts.size() * 2);
+            for (ScriptMetadata script : snapshot.scripts) {
+                descriptions.put(script.id, new Document(WpsScriptWrapper.generateDescribeProcessXML(script)));
+            }
+            processDescriptions = Collections.unmodifiableMap(descriptions);
+        }
+    }
+
+    /**
+     * @param scriptRegistry The documents are rendered again when the registry publishes a new snapshot
+     */
+    public WpsDocuments(ScriptRegistry scriptRegistry) {
+        this.scriptRegistry = scriptRegistry;
+    }
+
+    private RenderedDocuments getRenderedDocuments() {
+        ScriptRegistry.Snapshot snapshot = scriptRegistry.getSnapshot();
+        RenderedDocuments rendered = renderedDocuments;
+        if (rendered == null || rendered.version != snapshot.version) {
+            synchronized (this) {
+                rendered = renderedDocuments;
+                if (rendered == null || rendered.version != snapshot.version) {
+                    rendered = new RenderedDocuments(snapshot);
+                    renderedDocuments = rendered;
+                }
+            }
+        }
+        return rendered;
+    }
+
+    /**
+     * @return GetCapabilities document of the current scripts
+     */
+    public Document getCapabilities() {
+        return getRenderedDocuments().capabilities;
+    }
+
+    /**
+     * @param processId Process identifier
+     * @return DescribeProcess document of this process or null if the process does not exist
+     */
+    public Document getProcessDescription(String processId) {
+        return getRenderedDocuments().processDescriptions.get(processId);
+    }
+
+    /**
+     * @param acceptEncoding Value of the Accept-Encoding request header, may be null
+     * @return True if the client accepts a GZIP compressed response
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.toLowerCase(Locale.ROOT).split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim();
+            if (name.equals("gzip") || name.equals("*")) {
+                for (int i = 1; i < parameters.length; i++) {
+                    String parameter = parameters[i].trim().replace(" ", "");
+                    if (parameter.matches("q=0(\\.0*)?")) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+}
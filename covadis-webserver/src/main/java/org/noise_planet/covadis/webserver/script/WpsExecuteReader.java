@@ -0,0 +1,559 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver.script;
+
+import org.h2gis.api.EmptyProgressVisitor;
+import org.h2gis.functions.io.csv.CSVDriverFunction;
+import org.h2gis.functions.io.geojson.GeoJsonDriverFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Read a WPS 1.0.0 Execute request as a stream.
+ * <p>
+ * Literal inputs are kept as strings. ComplexData inputs (GeoJSON, WKT or CSV) are written to a file while being
+ * read, then imported into a new table of the user database, the script receives the table name.
+ * The request body is never held in memory.
+ * </p>
+ * <p>
+ * Reference inputs are only recorded by {@link #read(InputStream)}, their download may be long so the resources are
+ * imported in the same way by {@link #importReferences(ExecuteRequest)}.
+ * </p>
+ */
+public class WpsExecuteReader {
+    /** Prefix of the tables created for the complex inputs */
+    public static final String INPUT_TABLE_PREFIX = "WPS_INPUT_";
+    private static final String XLINK_NAMESPACE = "http://www.w3.org/1999/xlink";
+    /** Size of the CDATA chunks reported by the JDK StAX parser, a ComplexData is never read as a single string */
+    private static final String CDATA_CHUNK_SIZE_PROPERTY = "jdk.xml.cdataChunkSize";
+    private static final int CDATA_CHUNK_SIZE = 64 * 1024;
+    private static final int WKT_BATCH_SIZE = 500;
+    private static final XMLInputFactory XML_INPUT_FACTORY = createInputFactory();
+    private final Logger logger = LoggerFactory.getLogger(WpsExecuteReader.class);
+    private final DataSource userDataSource;
+    private final Path spoolDirectory;
+    private final ReferenceDownloader referenceDownloader;
+
+    /**
+     * Format of a complex input
+     */
+    public enum ComplexFormat {
+        GEOJSON(".geojson"), WKT(".wkt"), CSV(".csv");
+
+        final public String fileExtension;
+
+        ComplexFormat(String fileExtension) {
+            this.fileExtension = fileExtension;
+        }
+
+        /**
+         * @param mimeType Mime type of the input, may be null
+         * @return The format or null if the mime type does not tell it
+         * @throws IllegalArgumentException If the mime type is not supported
+         */
+        public static ComplexFormat fromMimeType(String mimeType) {
+            if (mimeType == null || mimeType.isBlank()) {
+                return null;
+            }
+            String type = mimeType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+            if (type.contains("json")) {
+                return GEOJSON;
+            } else if (type.contains("csv")) {
+                return CSV;
+            } else if (type.contains("wkt")) {
+                return WKT;
+            } else if (type.equals("text/plain") || type.equals("application/octet-stream")) {
+                return null;
+            }
+            throw new IllegalArgumentException("Unsupported complex input mime type " + mimeType +
+                    ", use GeoJSON, WKT or CSV");
+        }
+
+        /**
+         * @param fileName File name or URL path of a referenced input
+         * @return The format or null if the extension does not tell it
+         */
+        public static ComplexFormat fromFileName(String fileName) {
+            String name = fileName.toLowerCase(Locale.ROOT);
+            if (name.endsWith(".geojson") || name.endsWith(".json")) {
+                return GEOJSON;
+            } else if (name.endsWith(".csv")) {
+                return CSV;
+            } else if (name.endsWith(".wkt")) {
+                return WKT;
+            }
+            return null;
+        }
+
+        /**
+         * Guess the format from the first characters of the content
+         * @param content Spooled content
+         * @return The format, CSV if the content is neither JSON nor WKT
+         * @throws IOException If the content can not be read
+         */
+        static ComplexFormat fromContent(Path content) throws IOException {
+            try (Reader reader = Files.newBufferedReader(content, StandardCharsets.UTF_8)) {
+                StringBuilder start = new StringBuilder();
+                int c;
+                while ((c = reader.read()) != -1 && start.length() < 32) {
+                    if (start.length() > 0 || !Character.isWhitespace(c)) {
+                        start.append((char) c);
+                    }
+                }
+                String head = start.toString().toUpperCase(Locale.ROOT);
+                if (head.startsWith("{")) {
+                    return GEOJSON;
+                } else if (head.matches("(?s)(SRID=\\d+;)?(POINT|LINESTRING|POLYGON|MULTIPOINT|MULTILINESTRING" +
+                        "|MULTIPOLYGON|GEOMETRYCOLLECTION)\\b.*")) {
+                    return WKT;
+                }
+                return CSV;
+            }
+        }
+    }
+
+    /**
+     * Content of an Execute request
+     */
+    public static final class ExecuteRequest {
+        /** Process identifier (group:name) */
+        final public String processId;
+        /** Input values by identifier, complex inputs are replaced by the name of their table */
+        final public Map<String, Object> inputs;
+        /** Tables created in the user database for the complex inputs */
+        final public List<String> inputTables;
+        /** True if the ResponseForm is a ResponseDocument */
+        final public boolean responseDocument;
+        /** True if the ResponseDocument asks for an asynchronous execution */
+        final public boolean storeExecuteResponse;
+        /** Reference inputs not imported yet */
+        final public List<ReferenceInput> references;
+
+        ExecuteRequest(String processId, Map<String, Object> inputs, List<String> inputTables,
+                       boolean responseDocument, boolean storeExecuteResponse, List<ReferenceInput> references) {
+            this.processId = processId;
+            this.inputs = Collections.unmodifiableMap(inputs);
+            this.inputTables = Collections.unmodifiableList(inputTables);
+            this.responseDocument = responseDocument;
+            this.storeExecuteResponse = storeExecuteResponse;
+            this.references = Collections.unmodifiableList(references);
+        }
+
+        @Override
+        public String toString() {
+            return "Execute " + processId + " " + inputs + (references.isEmpty() ? "" : " " + references);
+        }
+    }
+
+    /**
+     * Resource of a Reference input
+     */
+    public static final class ReferenceInput {
+        /** Input identifier */
+        final public String name;
+        /** Resource location */
+        final public URI uri;
+        /** Format given by the mimeType attribute or the file extension, null if unknown */
+        final ComplexFormat format;
+
+        ReferenceInput(String name, URI uri, ComplexFormat format) {
+            this.name = name;
+            this.uri = uri;
+            this.format = format;
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + uri;
+        }
+    }
+
+    /**
+     * @param userDataSource Database where the complex inputs are imported
+     * @param spoolDirectory Directory of the temporary files holding the complex inputs while they are read
+     */
+    public WpsExecuteReader(DataSource userDataSource, Path spoolDirectory) {
+        this(userDataSource, spoolDirectory, new ReferenceDownloader(Collections.emptySet()));
+    }
+
+    /**
+     * @param userDataSource Database where the complex inputs are imported
+     * @param spoolDirectory Directory of the temporary files holding the complex inputs while they are read
+     * @param referenceDownloader Download of the Reference inputs
+     */
+    public WpsExecuteReader(DataSource userDataSource, Path spoolDirectory, ReferenceDownloader referenceDownloader) {
+        this.userDataSource = userDataSource;
+        this.spoolDirectory = spoolDirectory;
+        this.referenceDownloader = referenceDownloader;
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        try {
+            factory.setProperty(CDATA_CHUNK_SIZE_PROPERTY, CDATA_CHUNK_SIZE);
+        } catch (IllegalArgumentException ex) {
+            // Other StAX implementations already split the large CDATA sections
+        }
+        return factory;
+    }
+
+    /**
+     * Read an Execute request. If the request is not valid the tables already created are removed.
+     * The Reference inputs are not downloaded, see {@link #importReferences(ExecuteRequest)}.
+     * @param body Request content
+     * @return Execute request
+     * @throws XMLStreamException If the request is not well formed
+     * @throws IOException If a complex input can not be spooled
+     * @throws SQLException If a complex input can not be imported
+     * @throws IllegalArgumentException If the request is not a valid Execute request
+     */
+    public ExecuteRequest read(InputStream body) throws XMLStreamException, IOException, SQLException {
+        List<String> inputTables = new ArrayList<>();
+        List<ReferenceInput> references = new ArrayList<>();
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(body);
+        try {
+            reader.nextTag();
+            if (!"Execute".equals(reader.getLocalName())) {
+                throw new IllegalArgumentException("WPS request not valid, expected Execute and got "
+                        + reader.getLocalName());
+            }
+            String processId = null;
+            Map<String, Object> inputs = new LinkedHashMap<>();
+            boolean responseDocument = false;
+            boolean storeExecuteResponse = false;
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "Identifier":
+                        processId = reader.getElementText().trim();
+                        break;
+                    case "DataInputs":
+                        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                            if ("Input".equals(reader.getLocalName())) {
+                                readInput(reader, inputs, inputTables, references);
+                            } else {
+                                skipElement(reader);
+                            }
+                        }
+                        break;
+                    case "ResponseForm":
+                        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                            if ("ResponseDocument".equals(reader.getLocalName())) {
+                                responseDocument = true;
+                                storeExecuteResponse = Boolean.parseBoolean(
+                                        reader.getAttributeValue(null, "storeExecuteResponse"));
+                            }
+                            skipElement(reader);
+                        }
+                        break;
+                    default:
+                        skipElement(reader);
+                }
+            }
+            if (processId == null || processId.isEmpty()) {
+                throw new IllegalArgumentException("WPS request not valid, missing process identifier");
+            }
+            return new ExecuteRequest(processId, inputs, inputTables, responseDocument, storeExecuteResponse,
+                    references);
+        } catch (XMLStreamException | IOException | SQLException | RuntimeException ex) {
+            dropTables(inputTables);
+            throw ex;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void readInput(XMLStreamReader reader, Map<String, Object> inputs, List<String> inputTables,
+                           List<ReferenceInput> references) throws XMLStreamException, IOException, SQLException {
+        String name = null;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            switch (reader.getLocalName()) {
+                case "Identifier":
+                    name = reader.getElementText().trim();
+                    break;
+                case "Data":
+                    requireIdentifier(name);
+                    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                        switch (reader.getLocalName()) {
+                            case "LiteralData":
+                                inputs.put(name, reader.getElementText());
+                                break;
+                            case "ComplexData":
+                                inputs.put(name, spoolComplexData(reader, name, inputTables));
+                                break;
+                            default:
+                                throw new IllegalArgumentException("Unsupported " + reader.getLocalName() +
+                                        " for the input " + name);
+                        }
+                    }
+                    break;
+                case "Reference":
+                    requireIdentifier(name);
+                    references.add(readReference(reader, name));
+                    break;
+                default:
+                    skipElement(reader);
+            }
+        }
+    }
+
+    private static void requireIdentifier(String name) {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("WPS request not valid, the input identifier must precede its data");
+        }
+    }
+
+    /**
+     * Write the text content of the current ComplexData element to a file, then import it
+     * @return Name of the created table
+     */
+    private String spoolComplexData(XMLStreamReader reader, String inputName, List<String> inputTables)
+            throws XMLStreamException, IOException, SQLException {
+        if ("base64".equalsIgnoreCase(reader.getAttributeValue(null, "encoding"))) {
+            throw new IllegalArgumentException("Base64 encoded complex input " + inputName + " is not supported");
+        }
+        ComplexFormat format = ComplexFormat.fromMimeType(reader.getAttributeValue(null, "mimeType"));
+        Path spoolFile = createSpoolFile(format);
+        try {
+            try (Writer writer = Files.newBufferedWriter(spoolFile, StandardCharsets.UTF_8)) {
+                int event;
+                while ((event = reader.next()) != XMLStreamConstants.END_ELEMENT) {
+                    if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                            || event == XMLStreamConstants.SPACE) {
+                        writer.write(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    } else if (event == XMLStreamConstants.START_ELEMENT) {
+                        throw new IllegalArgumentException("XML complex input " + inputName +
+                                " is not supported, use GeoJSON, WKT or CSV");
+                    }
+                }
+            }
+            return importSpoolFile(spoolFile, format, inputName, inputTables);
+        } finally {
+            Files.deleteIfExists(spoolFile);
+        }
+    }
+
+    /**
+     * Read the location of the current Reference element
+     */
+    private static ReferenceInput readReference(XMLStreamReader reader, String inputName) throws XMLStreamException {
+        String href = reader.getAttributeValue(XLINK_NAMESPACE, "href");
+        if (href == null) {
+            href = reader.getAttributeValue(null, "href");
+        }
+        if (href == null) {
+            throw new IllegalArgumentException("Missing href of the input reference " + inputName);
+        }
+        String mimeType = reader.getAttributeValue(null, "mimeType");
+        skipElement(reader);
+        URI uri = URI.create(href.trim());
+        ComplexFormat format = ComplexFormat.fromMimeType(mimeType);
+        if (format == null && uri.getPath() != null) {
+            format = ComplexFormat.fromFileName(uri.getPath());
+        }
+        return new ReferenceInput(inputName, uri, format);
+    }
+
+    /**
+     * Download the resources of the Reference inputs, then import them. If a resource can not be imported all the
+     * tables of the request are removed.
+     * @param execute Request read by {@link #read(InputStream)}
+     * @return Execute request where the Reference inputs are replaced by the name of their table
+     * @throws IOException If a resource can not be downloaded
+     * @throws SQLException If a resource can not be imported
+     * @throws IllegalArgumentException If a resource location is not allowed
+     */
+    public ExecuteRequest importReferences(ExecuteRequest execute) throws IOException, SQLException {
+        if (execute.references.isEmpty()) {
+            return execute;
+        }
+        Map<String, Object> inputs = new LinkedHashMap<>(execute.inputs);
+        List<String> inputTables = new ArrayList<>(execute.inputTables);
+        try {
+            for (ReferenceInput reference : execute.references) {
+                inputs.put(reference.name, spoolReference(reference, inputTables));
+            }
+        } catch (IOException | SQLException | RuntimeException ex) {
+            dropTables(inputTables);
+            throw ex;
+        }
+        return new ExecuteRequest(execute.processId, inputs, inputTables, execute.responseDocument,
+                execute.storeExecuteResponse, Collections.emptyList());
+    }
+
+    /**
+     * Download the resource of a Reference input to a file, then import it
+     * @return Name of the created table
+     */
+    private String spoolReference(ReferenceInput reference, List<String> inputTables)
+            throws IOException, SQLException {
+        Path spoolFile = createSpoolFile(reference.format);
+        try {
+            try {
+                referenceDownloader.download(reference.uri, spoolFile);
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException(ex.getMessage() + " (input " + reference.name + ")", ex);
+            }
+            return importSpoolFile(spoolFile, reference.format, reference.name, inputTables);
+        } finally {
+            Files.deleteIfExists(spoolFile);
+        }
+    }
+
+    private Path createSpoolFile(ComplexFormat format) throws IOException {
+        Files.createDirectories(spoolDirectory);
+        // The H2GIS drivers find the format of the file with its extension
+        return Files.createTempFile(spoolDirectory, "input_", format == null ? ".tmp" : format.fileExtension);
+    }
+
+    private String importSpoolFile(Path spoolFile, ComplexFormat format, String inputName, List<String> inputTables)
+            throws IOException, SQLException {
+        if (format == null) {
+            format = ComplexFormat.fromContent(spoolFile);
+            Path renamed = spoolFile.resolveSibling(spoolFile.getFileName() + format.fileExtension);
+            Files.move(spoolFile, renamed);
+            try {
+                return importSpoolFile(renamed, format, inputName, inputTables);
+            } finally {
+                Files.deleteIfExists(renamed);
+            }
+        }
+        String tableName = createTableName(inputName);
+        try (Connection connection = userDataSource.getConnection()) {
+            inputTables.add(tableName);
+            switch (format) {
+                case GEOJSON:
+                    new GeoJsonDriverFunction().importFile(connection, tableName, spoolFile.toFile(),
+                            new EmptyProgressVisitor());
+                    break;
+                case CSV:
+                    new CSVDriverFunction().importFile(connection, tableName, spoolFile.toFile(),
+                            new EmptyProgressVisitor());
+                    break;
+                default:
+                    importWkt(connection, tableName, spoolFile);
+            }
+        }
+        logger.info("Complex input {} imported into the table {}", inputName, tableName);
+        return tableName;
+    }
+
+    /**
+     * Import one geometry by line, WKT or EWKT, into a table (PK, THE_GEOM)
+     * @param connection User database connection
+     * @param tableName Table to create
+     * @param wktFile WKT content
+     * @throws IOException If the file can not be read
+     * @throws SQLException If a geometry is not valid
+     */
+    static void importWkt(Connection connection, String tableName, Path wktFile) throws IOException, SQLException {
+        try (Statement st = connection.createStatement()) {
+            st.execute("CREATE TABLE " + tableName + "(PK SERIAL PRIMARY KEY, THE_GEOM GEOMETRY)");
+        }
+        try (BufferedReader reader = Files.newBufferedReader(wktFile, StandardCharsets.UTF_8);
+             PreparedStatement insert = connection.prepareStatement(
+                     "INSERT INTO " + tableName + "(THE_GEOM) VALUES (CAST(? AS GEOMETRY))")) {
+            int batchSize = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                insert.setString(1, line);
+                insert.addBatch();
+                if (++batchSize >= WKT_BATCH_SIZE) {
+                    insert.executeBatch();
+                    batchSize = 0;
+                }
+            }
+            if (batchSize > 0) {
+                insert.executeBatch();
+            }
+        }
+    }
+
+    private static String createTableName(String inputName) {
+        String suffix = UUID.randomUUID().toString().replace("-", "").substring(0, 12);
+        return (INPUT_TABLE_PREFIX + inputName.replaceAll("[^A-Za-z0-9_]", "_") + "_" + suffix)
+                .toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Remove the tables created for the complex inputs of a request
+     * @param inputTables Table names
+     */
+    public void dropTables(List<String> inputTables) {
+        dropTables(userDataSource, inputTables);
+    }
+
+    /**
+     * Remove the tables created for the complex inputs of a request
+     * @param userDataSource User database containing the tables
+     * @param inputTables Table names
+     */
+    public static void dropTables(DataSource userDataSource, List<String> inputTables) {
+        if (inputTables.isEmpty()) {
+            return;
+        }
+        try (Connection connection = userDataSource.getConnection();
+             Statement st = connection.createStatement()) {
+            for (String tableName : inputTables) {
+                st.execute("DROP TABLE IF EXISTS " + tableName);
+            }
+        } catch (SQLException ex) {
+            LoggerFactory.getLogger(WpsExecuteReader.class)
+                    .error("Unable to remove the input tables " + inputTables, ex);
+        }
+    }
+
+    /**
+     * Skip the current element and its children, the reader is left on the end of the element
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+}
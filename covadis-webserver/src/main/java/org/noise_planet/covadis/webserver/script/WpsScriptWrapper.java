@@ -21,7 +21,14 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -169,15 +176,54 @@ public class WpsScriptWrapper {
      * @throws IOException if a script file cannot be read or parsed
      */
     public static List<ScriptMetadata> buildScriptWrappers(Map<String, List<File>> scriptFiles) throws IOException {
-        List<ScriptMetadata> wrappers = new ArrayList<>();
+        return buildScriptWrappers(scriptFiles, null);
+    }
+
+    /**
+     * Builds a list of {@link ScriptMetadata} objects from the Groovy scripts, the scripts are parsed in parallel.
+     * The scripts whose metadata are not literals are logged and left out of the list.
+     *
+     * @param scriptFiles a map of grouped script files (group → list of script files)
+     * @param cacheDirectory directory of the metadata cached by script content hash, null to disable the cache
+     * @return a list of {@code ScriptWrapper} instances in the order of the script files
+     * @throws IOException if a script file cannot be read or parsed
+     */
+    public static List<ScriptMetadata> buildScriptWrappers(Map<String, List<File>> scriptFiles, Path cacheDirectory)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        List<Callable<ScriptMetadata>> tasks = new ArrayList<>();
         for (Map.Entry<String, List<File>> entry : scriptFiles.entrySet()) {
             String group = entry.getKey();
             for (File file : entry.getValue()) {
-                ScriptMetadata wrapper = new ScriptMetadata(group, file);
-                wrappers.add(wrapper);
+                tasks.add(() -> new ScriptMetadata(group, file, cacheDirectory));
             }
         }
-
+        List<ScriptMetadata> wrappers = new ArrayList<>(tasks.size());
+        int threads = Math.max(1, Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        Logger logger = LoggerFactory.getLogger(WpsScriptWrapper.class);
+        try {
+            for (Future<ScriptMetadata> future : executorService.invokeAll(tasks)) {
+                try {
+                    wrappers.add(future.get());
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof ScriptMetadataExtractor.NotLiteralMetadataException) {
+                        // The other scripts are still published
+                        logger.error("{} The script is not published", ex.getCause().getMessage());
+                    } else if (ex.getCause() instanceof IOException) {
+                        throw (IOException) ex.getCause();
+                    } else {
+                        throw new IOException(ex.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading the scripts metadata", ex);
+        } finally {
+            executorService.shutdownNow();
+        }
+        logger.info("Metadata of {} scripts read in {} ms", wrappers.size(), System.currentTimeMillis() - start);
         return wrappers;
     }
 
@@ -241,7 +287,8 @@ public class WpsScriptWrapper {
 
         sb.append("    <DataInputs>\n");
         for (ScriptInput input : wrapper.inputs.values()) {
-            input.type = input.type.replace("class java.lang.", "");
+            // The metadata is shared by the registry snapshots, it is not modified
+            String type = input.type.replace("class java.lang.", "");
             if (input.optional) {
                 sb.append("      <Input minOccurs=\"0\" maxOccurs=\"1\">\n");
             }else {
@@ -251,7 +298,7 @@ public class WpsScriptWrapper {
             sb.append("        <ows:Title>").append(input.title).append("</ows:Title>\n");
             sb.append("        <ows:Abstract>").append(escapeForWpsXml(input.description)).append("</ows:Abstract>\n");
             sb.append("        <LiteralData>\n");
-            if ("class java.lang.Boolean".equalsIgnoreCase(input.type)) {
+            if ("class java.lang.Boolean".equalsIgnoreCase(type)) {
                 sb.append("      <ows:DataType>xs:boolean</ows:DataType>\n");
                 sb.append("      <ows:AllowedValues>\n");
                 sb.append("        <ows:Value>true</ows:Value>\n");
@@ -259,7 +306,7 @@ public class WpsScriptWrapper {
                 sb.append("      </ows:AllowedValues>\n");
                 sb.append("      <DefaultValue>false</DefaultValue>\n");
             }else {
-                sb.append("          <ows:DataType>xs:").append((input.type).toLowerCase()).append("</ows:DataType>\n");
+                sb.append("          <ows:DataType>xs:").append(type.toLowerCase()).append("</ows:DataType>\n");
             }
 
             sb.append("        </LiteralData>\n");
@@ -283,6 +330,105 @@ public class WpsScriptWrapper {
         return sb.toString();
     }
 
+    /**
+     * Generates a WPS ExecuteResponse XML describing the state of a job. The response contains the statusLocation
+     * that the client can poll until the job is finished, and the job result when the job is completed.
+     *
+     * @param wrapper the ScriptMetadata of the script run by the job
+     * @param jobId the job identifier
+     * @param jobState the job state, one of {@link JobStates}
+     * @param percentCompleted job progression in percent
+     * @param result the job result, or the error message if the job failed; may be null
+     * @param serviceUrl the url of the WPS service, the status of the job is available at serviceUrl/status/jobId
+     * @return XML string for WPS ExecuteResponse
+     */
+    public static String generateExecuteResponseXML(ScriptMetadata wrapper, int jobId, JobStates jobState,
+                                                    int percentCompleted, String result, String serviceUrl) {
+        String statusLocation = serviceUrl + "/status/" + jobId;
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<wps:ExecuteResponse xmlns:wps=\"http://www.opengis.net/wps/1.0.0\"\n");
+        sb.append("    xmlns:ows=\"http://www.opengis.net/ows/1.1\"\n");
+        sb.append("    xmlns:xlink=\"http://www.w3.org/1999/xlink\"\n");
+        sb.append("    xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n");
+        sb.append("    xsi:schemaLocation=\"http://www.opengis.net/wps/1.0.0 ");
+        sb.append("http://schemas.opengis.net/wps/1.0.0/wpsAll.xsd\"\n");
+        sb.append("    service=\"WPS\" version=\"1.0.0\" xml:lang=\"en\"\n");
+        sb.append("    serviceInstance=\"").append(escapeXml(serviceUrl))
+                .append("?service=WPS&amp;request=GetCapabilities\"\n");
+        sb.append("    statusLocation=\"").append(escapeXml(statusLocation)).append("\">\n");
+
+        sb.append("  <wps:Process wps:processVersion=\"1.0.0\">\n");
+        sb.append("    <ows:Identifier>").append(wrapper.id).append("</ows:Identifier>\n");
+        sb.append("    <ows:Title>").append(escapeForWpsXml(wrapper.title)).append("</ows:Title>\n");
+        sb.append("  </wps:Process>\n");
+
+        sb.append("  <wps:Status creationTime=\"")
+                .append(DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(OffsetDateTime.now())).append("\">\n");
+        switch (jobState) {
+            case QUEUED:
+                sb.append("    <wps:ProcessAccepted>Job ").append(jobId)
+                        .append(" is waiting in the queue</wps:ProcessAccepted>\n");
+                break;
+            case RUNNING:
+                sb.append("    <wps:ProcessStarted percentCompleted=\"").append(percentCompleted).append("\">Job ")
+                        .append(jobId).append(" is running</wps:ProcessStarted>\n");
+                break;
+            case COMPLETED:
+                sb.append("    <wps:ProcessSucceeded>Job ").append(jobId)
+                        .append(" is completed</wps:ProcessSucceeded>\n");
+                break;
+            default:
+                sb.append("    <wps:ProcessFailed>\n");
+                sb.append("      <ows:ExceptionReport version=\"1.0.0\">\n");
+                sb.append("        <ows:Exception exceptionCode=\"NoApplicableCode\">\n");
+                sb.append("          <ows:ExceptionText>Job ").append(jobId).append(" ")
+                        .append(jobState.name().toLowerCase(Locale.ROOT));
+                if (result != null && !result.isEmpty()) {
+                    sb.append(": ").append(escapeXml(result));
+                }
+                sb.append("</ows:ExceptionText>\n");
+                sb.append("        </ows:Exception>\n");
+                sb.append("      </ows:ExceptionReport>\n");
+                sb.append("    </wps:ProcessFailed>\n");
+        }
+        sb.append("  </wps:Status>\n");
+
+        if (jobState == JobStates.COMPLETED) {
+            // The scripts return a single value, set as the "result" output
+            String outputId = wrapper.outputs.containsKey("result") || wrapper.outputs.isEmpty() ? "result"
+                    : wrapper.outputs.keySet().iterator().next();
+            ScriptOutput output = wrapper.outputs.get(outputId);
+            sb.append("  <wps:ProcessOutputs>\n");
+            sb.append("    <wps:Output>\n");
+            sb.append("      <ows:Identifier>").append(outputId).append("</ows:Identifier>\n");
+            sb.append("      <ows:Title>").append(escapeForWpsXml(output != null ? output.title : outputId))
+                    .append("</ows:Title>\n");
+            sb.append("      <wps:Data>\n");
+            sb.append("        <wps:LiteralData>").append(escapeXml(result)).append("</wps:LiteralData>\n");
+            sb.append("      </wps:Data>\n");
+            sb.append("    </wps:Output>\n");
+            sb.append("  </wps:ProcessOutputs>\n");
+        }
+        sb.append("</wps:ExecuteResponse>\n");
+        return sb.toString();
+    }
+
+    /**
+     * Escapes the XML special characters, keeping the content of the string as is
+     *
+     * @param input the input string to be escaped; can be null
+     * @return the escaped string, an empty string if the input is null
+     */
+    private static String escapeXml(String input) {
+        if (input == null) return "";
+        return input
+                .replace("&", "&amp;")
+                .replace("<", "&lt;")
+                .replace(">", "&gt;")
+                .replace("\"", "&quot;");
+    }
+
     /**
      * Escapes a given input string for use in WPS (Web Processing Service) XML documents.
      * This method sanitizes the input by removing HTML tags, replacing certain characters
@@ -0,0 +1,30 @@
+// Update the job list with the progression pushed by the server
+function openJobProgressStream(url) {
+    console.log("Opening WebSocket connection to " + url);
+    let ws = new WebSocket(url);
+    ws.onmessage = msg => updateJobs(JSON.parse(msg.data).jobs);
+    ws.onerror = () => console.error("WebSocket error: " + ws.readyState);
+    ws.onclose = () => {
+        console.log("WebSocket closed. Attempting to reconnect in 5 seconds...");
+        setTimeout(() => openJobProgressStream(url), 5000);
+    };
+}
+
+function setJobField(jobId, field, value) {
+    let element = document.getElementById(`job-${jobId}-${field}`);
+    if (element && value !== undefined) {
+        element.textContent = value;
+    }
+}
+
+function updateJobs(jobs) {
+    for (const job of jobs) {
+        setJobField(job.id, "status", job.status);
+        setJobField(job.id, "progression", job.progression);
+        setJobField(job.id, "eta", job.eta);
+        let etaRow = document.getElementById(`job-${job.id}-eta-row`);
+        if (etaRow) {
+            etaRow.style.display = job.eta ? "" : "none";
+        }
+    }
+}
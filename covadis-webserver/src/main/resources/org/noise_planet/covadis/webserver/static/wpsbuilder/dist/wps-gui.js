@@ -63181,6 +63181,122 @@ wps.ui.prototype.execute = function(ui) {
         ui.redraw();
       };
 
+      // The features can be downloaded from downloadUrl, or copied from downloadText if there is no url
+      var showOutputFeatures = function(ui, features, downloadText, downloadUrl) {
+        var html;
+        if (downloadUrl) {
+          html = '<a id="btn-download" class="btn btn-default" download="features.geojson">';
+          html += '<i class="fa fa-download fa-fw"></i>Download</a>';
+        } else {
+          html = '<button id="btn-download" type="button" class="btn btn-default">';
+          html += '<i class="fa fa-download fa-fw"></i>Download</button>';
+        }
+        html += '<div id="map" class="output-map"></div>';
+        $('.output-map').detach();
+        $('#tab-results').html(html);
+        if (downloadUrl) {
+          $('#btn-download').attr('href', downloadUrl);
+        } else {
+          $('#btn-download').click(function() {
+            var html = '<div class="form-row">';
+            html += '<label for="features-download" style="width:100%"><i class="glyphicon glyphicon-share"> Features:</i></label>';
+            html += '<textarea readonly class="wpsgui form-control" id="features-download" rows="5"></textarea>';
+            html += '</div>';
+            html += '<div class="form-tips"> Select the text above and copy to the clipboard.</div>';
+            $("#dialog-form").html(html);
+            $("#dialog").dialog("option", "title", "Download Features").dialog( "open" );
+            // bootstrap's hide class has important, so we need to remove it
+            $("#dialog").removeClass('hide');
+            $("#features-download").val(downloadText);
+            $("#features-download").focus();
+          });
+        }
+        ui.activateTab('tab-results');
+        if (!ui.outputMap) {
+          ui.outputMap = {};
+          ui.outputMap.source = new ol.source.Vector();
+          ui.outputMap.vector = new ol.layer.Vector({source: ui.outputMap.source, style: ui.outputStyle});
+          ui.outputMap.map = new ol.Map({
+            target: 'map',
+            layers: [
+              wps.backgroundLayer,
+              ui.outputMap.vector
+            ],
+            view: new ol.View(wps.mapSettings)
+          });
+        } else {
+          ui.outputMap.map.setTarget('map');
+        }
+        // workaround for changing target of logo anchor
+        window.setTimeout(function() {
+          $('.ol-attribution ul li a').attr('target', '_blank');
+        }, 1000);
+        ui.outputMap.source.clear();
+        ui.outputMap.source.addFeatures(features);
+        fitOutputFeatures(ui);
+      };
+
+      var fitOutputFeatures = function(ui) {
+        if (ui.outputMap.source.getFeatures().length === 0) {
+          return;
+        }
+        var view = ui.outputMap.map.getView();
+        var extent = ui.outputMap.source.getExtent();
+        if (extent[0] === extent[2]) {
+          view.setCenter([extent[0], extent[1]]);
+          view.setZoom(8);
+        } else {
+          view.fitExtent(
+            ui.outputMap.source.getExtent(), ui.outputMap.map.getSize());
+        }
+      };
+
+      // Read the GeoJSON FeatureCollection written by the server with one feature by line, the features of each
+      // received chunk are given to onFeatures without waiting for the whole collection
+      var streamGeoJsonFeatures = function(url, onFeatures) {
+        var format = new ol.format.GeoJSON();
+        var decoder = new TextDecoder('utf-8');
+        var pending = '';
+        var readLines = function(text, last) {
+          var lines = (pending + text).split('\n');
+          pending = last ? '' : lines.pop();
+          var features = [];
+          for (var i = 0; i < lines.length; i++) {
+            var line = lines[i].replace(/^\{"type":"FeatureCollection","features":\[/, '')
+                .replace(/(,|\]\})\s*$/, '');
+            if (line.length > 0) {
+              features.push(format.readFeature(JSON.parse(line)));
+            }
+          }
+          if (features.length > 0) {
+            onFeatures(features);
+          }
+        };
+        return fetch(url, {credentials: 'same-origin'}).then(function(response) {
+          if (!response.ok) {
+            throw new Error(response.status + ' ' + response.statusText);
+          }
+          var reader = response.body.getReader();
+          var read = function() {
+            return reader.read().then(function(chunk) {
+              if (chunk.done) {
+                readLines(decoder.decode(), true);
+                return;
+              }
+              readLines(decoder.decode(chunk.value, {stream: true}), false);
+              return read();
+            });
+          };
+          return read();
+        });
+      };
+
+      // Table_Visualization_Map returns a link to the GeoJSON features of a table, streamed by the server
+      var geoJsonLink = function(result) {
+        var match = /href="(ows\/geojson\/[^"]+)"/.exec(result);
+        return match ? match[1].replace(/&amp;/g, '&') : null;
+      };
+
       $('#workspace').append('<i id="progress-indicator" class="fa fa-spinner fa-spin fa-5x"></i>');
 
       process.execute({
@@ -63205,55 +63321,28 @@ wps.ui.prototype.execute = function(ui) {
           markOutputComplete(ui, true);
           prettyXML(body);
           if ($.isArray(output.result)) {
-            var html = '<button id="btn-download" type="button" class="btn btn-default">';
-            html += '<i class="fa fa-download fa-fw"></i>Download</button>';
-            html += '<div id="map" class="output-map"></div>';
-            $('.output-map').detach();
-            $('#tab-results').html(html);
-            $('#btn-download').click(function() {
-              var html = '<div class="form-row">';
-              html += '<label for="features-download" style="width:100%"><i class="glyphicon glyphicon-share"> Features:</i></label>';
-              html += '<textarea readonly class="wpsgui form-control" id="features-download" rows="5"></textarea>';
-              html += '</div>';
-              html += '<div class="form-tips"> Select the text above and copy to the clipboard.</div>';
-              $("#dialog-form").html(html);
-              $("#dialog").dialog("option", "title", "Download Features").dialog( "open" );
-              // bootstrap's hide class has important, so we need to remove it
-              $("#dialog").removeClass('hide');
-              $("#features-download").val(responseText);
-              $("#features-download").focus();
+            showOutputFeatures(ui, output.result, responseText);
+          } else if ((typeof output.result === 'string') && geoJsonLink(output.result) !== null) {
+            var url = geoJsonLink(output.result);
+            var fitted = false;
+            $('#workspace').append('<i id="progress-indicator" class="fa fa-spinner fa-spin fa-5x"></i>');
+            showOutputFeatures(ui, [], null, url);
+            // The features are sent in WGS84, the projection of the map. They are drawn while being received.
+            streamGeoJsonFeatures(url, function(features) {
+              ui.outputMap.source.addFeatures(features);
+              if (!fitted) {
+                fitted = true;
+                fitOutputFeatures(ui);
+              }
+            }).then(function() {
+              $('#progress-indicator').remove();
+              fitOutputFeatures(ui);
+            }, function(error) {
+              $('#progress-indicator').remove();
+              $('.output-map').detach();
+              $('#tab-results').html('Unable to load the features (' + error.message + ') ' + String(output.result));
+              ui.activateTab('tab-results');
             });
-            ui.activateTab('tab-results');
-            if (!ui.outputMap) {
-              ui.outputMap = {};
-              ui.outputMap.source = new ol.source.Vector();
-              ui.outputMap.vector = new ol.layer.Vector({source: ui.outputMap.source, style: ui.outputStyle});
-              ui.outputMap.map = new ol.Map({
-                target: 'map',
-                layers: [
-                  wps.backgroundLayer,
-                  ui.outputMap.vector
-                ],
-                view: new ol.View(wps.mapSettings)
-              });
-            } else {
-              ui.outputMap.map.setTarget('map');
-            }
-            // workaround for changing target of logo anchor
-            window.setTimeout(function() {
-              $('.ol-attribution ul li a').attr('target', '_blank');
-            }, 1000);
-            ui.outputMap.source.clear();
-            ui.outputMap.source.addFeatures(output.result);
-            var view = ui.outputMap.map.getView();
-            var extent = ui.outputMap.source.getExtent();
-            if (extent[0] === extent[2]) {
-              view.setCenter([extent[0], extent[1]]);
-              view.setZoom(8);
-            } else {
-              view.fitExtent(
-                ui.outputMap.source.getExtent(), ui.outputMap.map.getSize());
-            }
           } else {
             if ((typeof output.result === 'string') && output.result.indexOf('<?xml') !== -1) {
               $('.output-map').detach();
@@ -0,0 +1,152 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+import org.noise_planet.covadis.webserver.pipeline.Campaign;
+import org.noise_planet.covadis.webserver.pipeline.CampaignRunner;
+import org.noise_planet.covadis.webserver.script.JobStates;
+import org.noise_planet.covadis.webserver.secure.Role;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CampaignTest {
+    private static final String STEP_SCRIPT = "import java.sql.Connection\n" +
+            "def exec(Connection connection, Map input) {\n" +
+            "    if (input.inseeDepartment == input.failOn) {\n" +
+            "        throw new IllegalStateException('Failure requested')\n" +
+            "    }\n" +
+            "    connection.createStatement().execute(\"CREATE TABLE IF NOT EXISTS \" + input.table + \"(PK INTEGER)\")\n" +
+            "    return input.inseeDepartment + ' wrote ' + input.table\n" +
+            "}\n";
+
+    private static final String PIPELINE = "title = 'Test department'\n" +
+            "steps = [\n" +
+            "    extract: [script: 'Step.groovy', inputs: [inseeDepartment: '${inseeDepartment}', table: 'ZONE']],\n" +
+            "    road: [script: 'Step.groovy', inputs: [inseeDepartment: '${inseeDepartment}', table: 'LDEN_ROADS',\n" +
+            "           failOn: '${failOn}'], dependsOn: ['extract']]\n" +
+            "]\n";
+
+    @Test
+    void testLongestProcessingTimeFirst() {
+        Map<String, Long> durations = new HashMap<>();
+        durations.put("44", 3_600_000L);
+        durations.put("85", 7_200_000L);
+        durations.put("2A", 600_000L);
+        // Never computed departments first, then the longest ones
+        assertEquals(List.of("75", "85", "44", "2A"), Campaign.orderByCost(List.of("44", "2A", "75", "85"),
+                durations));
+    }
+
+    @Test
+    void testEstimatedCost() {
+        Map<String, Long> durations = new HashMap<>();
+        durations.put("44", 3_600_000L);
+        Map<String, Double> sizes = Campaign.parseDepartmentSizes(Map.of("44", 1000, "75", "4000", "48", 100,
+                "2a", 500));
+        Map<String, Long> estimations = Campaign.estimateDurations(List.of("44", "75", "48", "2A", "85"), durations,
+                sizes);
+        assertEquals(Map.of("44", 3_600_000L, "75", 14_400_000L, "48", 360_000L, "2A", 1_800_000L), estimations);
+        // The departments without size nor history first, then the estimated ones
+        assertEquals(List.of("85", "75", "44", "2A", "48"), Campaign.orderByCost(List.of("44", "2A", "75", "85",
+                "48"), durations, sizes));
+        // Without any history the largest departments are started first
+        assertEquals(List.of("75", "44", "48"), Campaign.orderByCost(List.of("48", "44", "75"), Map.of(), sizes));
+        assertThrows(IllegalArgumentException.class, () -> Campaign.parseDepartmentSizes(Map.of("44", "large")));
+        assertThrows(IllegalArgumentException.class, () -> Campaign.parseDepartmentSizes(Map.of("44", -1)));
+        assertThrows(IllegalArgumentException.class, () -> Campaign.parseDepartmentSizes(List.of(44)));
+    }
+
+    @Test
+    void testDepartmentCodes() {
+        assertEquals("2A", Campaign.checkDepartment("2a"));
+        assertEquals("974", Campaign.checkDepartment(" 974"));
+        assertEquals("campaign_007_01", CampaignRunner.getDepartmentDatabaseName(7, "01"));
+        for (String department : List.of("2C", "1", "1234", "../44", "44;DROP", "")) {
+            assertThrows(IllegalArgumentException.class, () -> Campaign.checkDepartment(department));
+        }
+        assertThrows(IllegalArgumentException.class, () -> CampaignRunner.getDepartmentDatabaseName(7, "../../x"));
+    }
+
+    @Test
+    void testStatistics() {
+        List<Map<String, Object>> departments = List.of(
+                Map.of("status", JobStates.COMPLETED.name()),
+                Map.of("status", JobStates.COMPLETED.name()),
+                Map.of("status", JobStates.FAILED.name()),
+                Map.of("status", JobStates.RUNNING.name()),
+                Map.of("status", JobStates.QUEUED.name()));
+        long now = 10 * 3_600_000L;
+        Map<String, Object> statistics = Campaign.getStatistics(new Timestamp(now - 4 * 3_600_000L), departments,
+                now);
+        assertEquals(2, statistics.get("completed"));
+        assertEquals(1, statistics.get("failed"));
+        assertEquals(2, statistics.get("remaining"));
+        assertEquals(0.5, (Double) statistics.get("throughput"), 1e-9);
+        assertEquals(4 * 3_600_000L, statistics.get("remainingMillis"));
+        assertEquals(-1.0, Campaign.getStatistics(null, departments, now).get("throughput"));
+    }
+
+    @Test
+    void testRunCampaign(@TempDir Path temporaryDirectory) throws Exception {
+        Files.writeString(temporaryDirectory.resolve("Step.groovy"), STEP_SCRIPT);
+        Path definition = temporaryDirectory.resolve("pipeline.groovy");
+        Files.writeString(definition, PIPELINE);
+        Configuration configuration = new Configuration(true);
+        configuration.setWorkingDirectory(temporaryDirectory.toString());
+        configuration.setPipelinesDirectory(temporaryDirectory.toString());
+        try (HikariDataSource serverDataSource = DatabaseManagement.createH2DataSource(
+                temporaryDirectory.toString(), "server", "sa", "sa", "", false)) {
+            DatabaseManagement.initializeServerDatabaseStructure(serverDataSource, configuration);
+            try (Connection connection = serverDataSource.getConnection()) {
+                int userId = DatabaseManagement.addUser(connection, "campaign@localhost", Role.RUNNER);
+                int campaignId = DatabaseManagement.createCampaign(connection, userId, "Test", "pipeline.groovy",
+                        "{\"failOn\": \"85\"}", 2, List.of("44", "85", "2A"));
+                new CampaignRunner(campaignId, serverDataSource, configuration, false).run();
+
+                // A failed department does not stop the other ones
+                Map<String, Object> campaign = DatabaseManagement.getCampaign(connection, campaignId);
+                assertEquals(JobStates.FAILED.name(), campaign.get("status"));
+                assertNotNull(campaign.get("endDate"));
+                Map<String, String> states = new HashMap<>();
+                for (Map<String, Object> department : DatabaseManagement.getCampaignDepartments(connection,
+                        campaignId)) {
+                    states.put((String) department.get("department"), (String) department.get("status"));
+                }
+                assertEquals(Map.of("44", JobStates.COMPLETED.name(), "85", JobStates.FAILED.name(),
+                        "2A", JobStates.COMPLETED.name()), states);
+                Map<String, Long> durations = DatabaseManagement.getDepartmentDurations(connection,
+                        "pipeline.groovy");
+                assertEquals(2, durations.size());
+                assertTrue(durations.containsKey("44"));
+
+                // The departments are computed in their own database
+                try (HikariDataSource departmentDataSource = DatabaseManagement.createH2DataSource(
+                        temporaryDirectory.toString(), CampaignRunner.getDepartmentDatabaseName(campaignId, "44"),
+                        "sa", "sa", "", false);
+                     Connection departmentConnection = departmentDataSource.getConnection()) {
+                    assertTrue(departmentConnection.createStatement().executeQuery("SELECT * FROM " +
+                            "INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = 'LDEN_ROADS'").next());
+                }
+            }
+        }
+    }
+}
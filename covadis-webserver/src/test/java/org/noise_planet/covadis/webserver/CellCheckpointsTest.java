@@ -0,0 +1,107 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+import org.noise_planet.covadis.webserver.script.CellCheckpoints;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CellCheckpointsTest {
+
+    private static int countRows(Statement st, String table) throws Exception {
+        try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            assertTrue(rs.next());
+            return rs.getInt(1);
+        }
+    }
+
+    @Test
+    void testResumeComputation(@TempDir Path temporaryDirectory) throws Exception {
+        try (HikariDataSource dataSource = DatabaseManagement.createH2DataSource(temporaryDirectory.toString(),
+                "user", "sa", "sa", "", false);
+             Connection connection = dataSource.getConnection();
+             Statement st = connection.createStatement()) {
+            st.execute("CREATE TABLE RECEIVERS(PK INTEGER PRIMARY KEY, HEIGHT DOUBLE)");
+            st.execute("INSERT INTO RECEIVERS VALUES (1, 4), (2, 4), (3, 4)");
+            String key = CellCheckpoints.computeKey(connection, "script", Map.of("confId", 1,
+                    "workingDirectory", "/tmp/a"), List.of("RECEIVERS"));
+            assertEquals(0, CellCheckpoints.prepare(connection, "ROADS", key));
+
+            // The results of the cells are appended to the result table with their checkpoint
+            st.execute("CREATE TABLE LDEN_BATCH(IDRECEIVER INTEGER, LAEQ DOUBLE)");
+            st.execute("INSERT INTO LDEN_BATCH VALUES (1, 50), (2, 55)");
+            CellCheckpoints.commitBatch(connection, "ROADS", key, Map.of(CellCheckpoints.cellId(0, 0), List.of(1L),
+                    CellCheckpoints.cellId(0, 1), List.of(2L)), Map.of("LDEN_BATCH", "LDEN"));
+            st.execute("CREATE TABLE LDEN_BATCH(IDRECEIVER INTEGER, LAEQ DOUBLE)");
+            st.execute("INSERT INTO LDEN_BATCH VALUES (3, 60)");
+            CellCheckpoints.commitBatch(connection, "ROADS", key, Map.of(CellCheckpoints.cellId(1, 0), List.of(3L)),
+                    Map.of("LDEN_BATCH", "LDEN"));
+            assertEquals(3, countRows(st, "LDEN"));
+            assertFalse(st.executeQuery("SELECT * FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = 'LDEN_BATCH'")
+                    .next());
+
+            // Same inputs, the working directory is not part of the key
+            String sameKey = CellCheckpoints.computeKey(connection, "script", Map.of("confId", 1,
+                    "workingDirectory", "/tmp/b"), List.of("RECEIVERS"));
+            assertEquals(key, sameKey);
+            assertEquals(3, CellCheckpoints.prepare(connection, "ROADS", sameKey));
+            Set<Long> receivers = new HashSet<>();
+            assertEquals(Set.of("0_0", "0_1", "1_0"), CellCheckpoints.getCompletedCells(connection, "ROADS",
+                    receivers));
+            assertEquals(Set.of(1L, 2L, 3L), receivers);
+
+            // Input table updated in place, same row count and primary keys
+            st.execute("UPDATE RECEIVERS SET HEIGHT = 1.5 WHERE PK = 2");
+            assertNotEquals(key, CellCheckpoints.computeKey(connection, "script", Map.of("confId", 1),
+                    List.of("RECEIVERS")));
+            st.execute("UPDATE RECEIVERS SET HEIGHT = 4 WHERE PK = 2");
+            assertEquals(key, CellCheckpoints.computeKey(connection, "script", Map.of("confId", 1),
+                    List.of("RECEIVERS")));
+
+            // Modified input table, the computation starts from scratch
+            st.execute("INSERT INTO RECEIVERS VALUES (4, 4)");
+            String otherKey = CellCheckpoints.computeKey(connection, "script", Map.of("confId", 1),
+                    List.of("RECEIVERS"));
+            assertNotEquals(key, otherKey);
+            assertEquals(0, CellCheckpoints.prepare(connection, "ROADS", otherKey));
+
+            CellCheckpoints.saveCompletedCell(connection, "ROADS", otherKey, "0_0", List.of(1L));
+            assertEquals(1, CellCheckpoints.clear(connection, "ROADS"));
+        }
+    }
+
+    @Test
+    void testReceiverSet() {
+        CellCheckpoints.ReceiverSet receivers = new CellCheckpoints.ReceiverSet();
+        receivers.add(1L);
+        CellCheckpoints.CellReceivers firstCell = receivers.forCell();
+        CellCheckpoints.CellReceivers secondCell = receivers.forCell();
+        firstCell.addAll(List.of(1L, 2L));
+        secondCell.addAll(List.of(2L, 3L));
+        // A receiver is computed by only one cell
+        assertEquals(List.of(2L), firstCell.getAddedReceivers());
+        assertEquals(List.of(3L), secondCell.getAddedReceivers());
+        assertTrue(secondCell.contains(1L));
+        assertEquals(3, receivers.size());
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import org.junit.jupiter.api.Test;
+import org.noise_planet.covadis.webserver.script.CellCostModel;
+
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CellCostModelTest {
+
+    /**
+     * Sparse receivers and sources on 10 km, with a dense town in the south-west corner
+     */
+    private static CellCostModel createModel() {
+        Random random = new Random(42);
+        int sparse = 2000;
+        int dense = 8000;
+        double[] receiversX = new double[sparse + dense];
+        double[] receiversY = new double[sparse + dense];
+        double[] sourcesX = new double[sparse + dense];
+        double[] sourcesY = new double[sparse + dense];
+        for (int i = 0; i < sparse + dense; i++) {
+            double extent = i < sparse ? 10000 : 1000;
+            receiversX[i] = random.nextDouble() * extent;
+            receiversY[i] = random.nextDouble() * extent;
+            sourcesX[i] = random.nextDouble() * extent;
+            sourcesY[i] = random.nextDouble() * extent;
+        }
+        return new CellCostModel(receiversX, receiversY, sourcesX, sourcesY, 250);
+    }
+
+    @Test
+    void testCellCosts() {
+        CellCostModel model = createModel();
+        double[][] costs = model.getCellCosts(10);
+        // The most expensive cell is the town
+        double max = 0;
+        int maxLat = -1;
+        int maxLon = -1;
+        for (int lat = 0; lat < costs.length; lat++) {
+            for (int lon = 0; lon < costs[lat].length; lon++) {
+                if (costs[lat][lon] > max) {
+                    max = costs[lat][lon];
+                    maxLat = lat;
+                    maxLon = lon;
+                }
+            }
+        }
+        assertEquals(0, maxLat);
+        assertEquals(0, maxLon);
+        // Same cells for the receivers of the computation
+        assertArrayEquals(new int[]{0, 0}, model.getCellIndex(500, 500, 10));
+        assertArrayEquals(new int[]{9, 9}, model.getCellIndex(20000, 20000, 10));
+        Map<String, Object> statistics = CellCostModel.getStatistics(costs);
+        assertEquals(100, statistics.get("cells"));
+        assertTrue((Double) statistics.get("imbalance") > 10);
+        assertFalse(CellCostModel.formatStatistics(statistics).isEmpty());
+    }
+
+    @Test
+    void testChooseGridDim() {
+        CellCostModel model = createModel();
+        int gridDim = model.chooseGridDim(10, 250, 2);
+        assertTrue(gridDim > 10 && gridDim <= 250);
+        // Smaller cells than the minimum grid lower the cost of the town cell
+        double[][] chosen = model.getCellCosts(gridDim);
+        double[][] coarse = model.getCellCosts(10);
+        assertTrue((Double) CellCostModel.getStatistics(chosen).get("max") <
+                (Double) CellCostModel.getStatistics(coarse).get("max"));
+        assertEquals(gridDim, model.chooseGridDim(10, 250, 2));
+    }
+}
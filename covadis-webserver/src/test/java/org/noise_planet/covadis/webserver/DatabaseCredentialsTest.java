@@ -0,0 +1,64 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DatabaseCredentialsTest {
+
+    private static HikariDataSource open(Path directory, String databaseName, String user, String password)
+            throws Exception {
+        return DatabaseManagement.createH2DataSource(directory.toString(), databaseName, user, password, "",
+                false);
+    }
+
+    /**
+     * The default credentials are only replaced by the explicit migration, the default user keeps a known password
+     */
+    @Test
+    void testMigrateDefaultCredentials(@TempDir Path temporaryDirectory) throws Exception {
+        for (String databaseName : List.of("server", "user_001")) {
+            try (HikariDataSource dataSource = open(temporaryDirectory, databaseName,
+                    Configuration.DEFAULT_DATABASE_USER, Configuration.DEFAULT_DATABASE_PASSWORD);
+                 Connection connection = dataSource.getConnection();
+                 Statement st = connection.createStatement()) {
+                st.execute("CREATE TABLE BUILDINGS(PK INTEGER PRIMARY KEY)");
+            }
+        }
+        // Opening a database does not change its credentials
+        assertThrows(RuntimeException.class, () -> open(temporaryDirectory, "user_001", "admin", "secret").close());
+        open(temporaryDirectory, "user_001", Configuration.DEFAULT_DATABASE_USER,
+                Configuration.DEFAULT_DATABASE_PASSWORD).close();
+
+        assertEquals(List.of("server", "user_001"), DatabaseManagement.migrateDefaultCredentials(
+                temporaryDirectory.toString(), "admin", "secret", ""));
+        for (String databaseName : List.of("server", "user_001")) {
+            try (HikariDataSource dataSource = open(temporaryDirectory, databaseName, "admin", "secret");
+                 Connection connection = dataSource.getConnection();
+                 Statement st = connection.createStatement()) {
+                st.execute("INSERT INTO BUILDINGS VALUES (1)");
+            }
+            open(temporaryDirectory, databaseName, Configuration.DEFAULT_DATABASE_USER, "secret").close();
+        }
+        // Already migrated
+        assertTrue(DatabaseManagement.migrateDefaultCredentials(temporaryDirectory.toString(), "admin", "secret",
+                "").isEmpty());
+    }
+}
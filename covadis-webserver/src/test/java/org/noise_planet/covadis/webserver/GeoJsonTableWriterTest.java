@@ -0,0 +1,85 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import com.zaxxer.hikari.HikariDataSource;
+import groovy.json.JsonSlurper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+import org.noise_planet.covadis.webserver.script.GeoJsonTableWriter;
+
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GeoJsonTableWriterTest {
+
+    @Test
+    void testWriteFeatures(@TempDir Path temporaryDirectory) throws Exception {
+        try (HikariDataSource dataSource = DatabaseManagement.createH2DataSource(temporaryDirectory.toString(),
+                "user", "sa", "sa", "", true);
+             Connection connection = dataSource.getConnection();
+             Statement st = connection.createStatement()) {
+            st.execute("CREATE TABLE RECEIVERS(PK SERIAL PRIMARY KEY, THE_GEOM GEOMETRY(POINT, 4326), LAEQ DOUBLE," +
+                    " NAME VARCHAR)");
+            st.execute("INSERT INTO RECEIVERS(THE_GEOM, LAEQ, NAME) SELECT ST_SETSRID(ST_MAKEPOINT(X, 47), 4326)," +
+                    " X * 10, 'it''s \"' || X || '\"' FROM SYSTEM_RANGE(0, 1999)");
+            st.execute("INSERT INTO RECEIVERS(THE_GEOM, LAEQ, NAME) VALUES (NULL, NULL, NULL)");
+
+            GeoJsonTableWriter writer = new GeoJsonTableWriter(connection, "receivers");
+            StringWriter all = new StringWriter();
+            assertEquals(2001, writer.write(all));
+            Map<?, ?> collection = (Map<?, ?>) new JsonSlurper().parseText(all.toString());
+            assertEquals("FeatureCollection", collection.get("type"));
+            List<?> features = (List<?>) collection.get("features");
+            assertEquals(2001, features.size());
+            Map<?, ?> feature = (Map<?, ?>) features.get(12);
+            List<?> coordinates = (List<?>) ((Map<?, ?>) feature.get("geometry")).get("coordinates");
+            assertEquals(12, ((Number) coordinates.get(0)).doubleValue(), 1e-9);
+            assertEquals(47, ((Number) coordinates.get(1)).doubleValue(), 1e-9);
+            Map<?, ?> properties = (Map<?, ?>) feature.get("properties");
+            assertEquals(Map.of("PK", 13, "LAEQ", 120.0, "NAME", "it's \"12\""),
+                    Map.of("PK", properties.get("PK"), "LAEQ", ((Number) properties.get("LAEQ")).doubleValue(),
+                            "NAME", properties.get("NAME")));
+            assertFalse(properties.containsKey("THE_GEOM"));
+            assertNull(((Map<?, ?>) features.get(2000)).get("geometry"));
+
+            writer.setBoundingBox(GeoJsonTableWriter.parseBoundingBox("9.5, 46, 20.5, 48"));
+            writer.setTolerance(GeoJsonTableWriter.toleranceForZoom(12));
+            StringWriter filtered = new StringWriter();
+            assertEquals(11, writer.write(filtered));
+            assertEquals(11, ((List<?>) ((Map<?, ?>) new JsonSlurper().parseText(filtered.toString()))
+                    .get("features")).size());
+        }
+    }
+
+    @Test
+    void testInvalidParameters(@TempDir Path temporaryDirectory) throws Exception {
+        assertNull(GeoJsonTableWriter.parseBoundingBox(""));
+        assertThrows(IllegalArgumentException.class, () -> GeoJsonTableWriter.parseBoundingBox("1,2,3"));
+        assertThrows(IllegalArgumentException.class, () -> GeoJsonTableWriter.parseBoundingBox("3,2,1,4"));
+        assertEquals(GeoJsonTableWriter.toleranceForZoom(3) / 2, GeoJsonTableWriter.toleranceForZoom(4), 1e-12);
+        try (HikariDataSource dataSource = DatabaseManagement.createH2DataSource(temporaryDirectory.toString(),
+                "user", "sa", "sa", "", true);
+             Connection connection = dataSource.getConnection();
+             Statement st = connection.createStatement()) {
+            st.execute("CREATE TABLE NO_GEOMETRY(PK INTEGER)");
+            assertThrows(SQLException.class, () -> new GeoJsonTableWriter(connection, "NO_GEOMETRY"));
+            assertThrows(SQLException.class, () -> new GeoJsonTableWriter(connection, "MISSING"));
+        }
+    }
+}
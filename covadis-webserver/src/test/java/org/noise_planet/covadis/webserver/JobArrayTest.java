@@ -0,0 +1,89 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import org.h2gis.api.EmptyProgressVisitor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.locationtech.jts.geom.Envelope;
+import org.noise_planet.covadis.webserver.hpc.JobArray;
+import org.noise_planet.covadis.webserver.hpc.KdTilePartition;
+import org.noise_planet.covadis.webserver.script.JobWorkerProcess;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JobArrayTest {
+
+    /**
+     * Each point belongs to one tile, the tiles have the same number of points
+     */
+    @Test
+    void testKdTilePartition() {
+        Random random = new Random(42);
+        int pointCount = 1000;
+        double[] x = new double[pointCount];
+        double[] y = new double[pointCount];
+        for (int i = 0; i < pointCount; i++) {
+            // Dense cluster in a wide sparse area
+            boolean dense = i % 2 == 0;
+            x[i] = dense ? random.nextDouble() * 100 : random.nextDouble() * 10000;
+            y[i] = dense ? random.nextDouble() * 100 : random.nextDouble() * 5000;
+        }
+        KdTilePartition partition = KdTilePartition.partition(x, y, 7);
+        assertEquals(7, partition.getTileCount());
+        int total = 0;
+        for (int tile = 0; tile < partition.getTileCount(); tile++) {
+            assertTrue(Math.abs(partition.getTileSize(tile) - pointCount / 7) <= 1);
+            total += partition.getTileSize(tile);
+        }
+        assertEquals(pointCount, total);
+        for (int i = 0; i < pointCount; i++) {
+            Envelope envelope = partition.getEnvelope(partition.getTile(i));
+            assertTrue(envelope.contains(x[i], y[i]));
+        }
+        Envelope buffered = partition.getBufferedEnvelope(0, 50);
+        assertEquals(partition.getEnvelope(0).getWidth() + 100, buffered.getWidth(), 1e-6);
+        // No more tiles than points
+        assertEquals(2, KdTilePartition.partition(new double[]{0, 1}, new double[]{0, 1}, 4).getTileCount());
+    }
+
+    /**
+     * The local runner runs the tasks in separate processes, with the files expected by the Slurm scripts
+     */
+    @Test
+    void testLocalRunnerAndSlurmScripts(@TempDir Path temporaryDirectory) throws Exception {
+        Path scriptPath = Path.of(Objects.requireNonNull(
+                JobArrayTest.class.getResource("test/Test_Config_Webserver.groovy")).toURI());
+        JobArray jobArray = new JobArray(temporaryDirectory, 2, 1, 256);
+        for (int task = 0; task < jobArray.getTaskCount(); task++) {
+            jobArray.writeRequest(task, JobWorkerProcess.buildRequest(scriptPath, temporaryDirectory.toString(),
+                    "tile_" + task, Map.of("numbers", "1, 2", "multiplier", 2.0)));
+        }
+        List<String> results = jobArray.runLocal(2, new EmptyProgressVisitor());
+        assertEquals(List.of("Done! Table TEST_CONFIG has been created.",
+                "Done! Table TEST_CONFIG has been created."), results);
+        assertThrows(IllegalStateException.class, () -> jobArray.readTaskResult(JobArray.MERGE_TASK));
+
+        Path submitScript = jobArray.writeSlurmScripts("test", "{}");
+        String tasksScript = Files.readString(temporaryDirectory.resolve(JobArray.TASKS_SCRIPT));
+        assertTrue(tasksScript.contains("#SBATCH --array=0-1"));
+        assertTrue(tasksScript.contains("#SBATCH --cpus-per-task=1"));
+        assertTrue(tasksScript.contains("< task_${SLURM_ARRAY_TASK_ID}.json > task_${SLURM_ARRAY_TASK_ID}.out"));
+        assertTrue(Files.readString(submitScript).contains("--dependency=afterok:${ARRAY_ID}"));
+        assertTrue(Files.exists(jobArray.getRequestFile(JobArray.MERGE_TASK)));
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.h2.tools.Server;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+import org.noise_planet.covadis.webserver.script.JobStateStore;
+import org.noise_planet.covadis.webserver.script.JobStates;
+import org.noise_planet.covadis.webserver.secure.Role;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JobClaimTest {
+
+    /**
+     * Worker node process used by the tests: wait for the start signal on the standard input, then claim the queued
+     * jobs until the queue is empty and write the claimed job identifiers on the standard output
+     */
+    static class ClaimWorker {
+        public static void main(String[] args) throws Exception {
+            String databaseServer = args[0];
+            String workerId = args[1];
+            try (HikariDataSource remoteDataSource = DatabaseManagement.createRemoteH2DataSource(databaseServer,
+                    "server", "sa", "sa", "", false);
+                 Connection connection = remoteDataSource.getConnection();
+                 BufferedReader input = new BufferedReader(new InputStreamReader(System.in,
+                         StandardCharsets.UTF_8))) {
+                input.readLine();
+                Map<String, Object> claimedJob;
+                while ((claimedJob = DatabaseManagement.claimNextJob(connection, workerId)) != null) {
+                    System.out.println(claimedJob.get("id"));
+                }
+            }
+            System.out.flush();
+        }
+    }
+
+    /**
+     * Worker nodes running in their own java process, connected through the H2 TCP server, claim each queued job
+     * exactly once
+     */
+    @Test
+    void testConcurrentClaims(@TempDir Path temporaryDirectory) throws Exception {
+        Configuration configuration = new Configuration(true);
+        configuration.setWorkingDirectory(temporaryDirectory.toString());
+        int jobCount = 40;
+        int workerCount = 4;
+        int tcpPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            tcpPort = socket.getLocalPort();
+        }
+        try (HikariDataSource serverDataSource = DatabaseManagement.createH2DataSource(
+                temporaryDirectory.toString(), "server", "sa", "sa", "", false)) {
+            DatabaseManagement.initializeServerDatabaseStructure(serverDataSource, configuration);
+            try (Connection connection = serverDataSource.getConnection()) {
+                int userId = DatabaseManagement.addUser(connection, "worker@localhost", Role.RUNNER);
+                for (int i = 0; i < jobCount; i++) {
+                    DatabaseManagement.createJob(connection, userId, "Test:Job", "{}");
+                }
+            }
+            Server databaseServer = Server.createTcpServer("-tcpPort", String.valueOf(tcpPort),
+                    "-baseDir", temporaryDirectory.toString(), "-ifExists").start();
+            List<Process> workers = new ArrayList<>();
+            try {
+                for (int worker = 0; worker < workerCount; worker++) {
+                    workers.add(new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                            "-cp", System.getProperty("java.class.path"), ClaimWorker.class.getName(),
+                            "tcp://localhost:" + tcpPort, "worker_" + worker)
+                            .redirectError(ProcessBuilder.Redirect.DISCARD).start());
+                }
+                // Start the claims at the same time
+                for (Process worker : workers) {
+                    Writer input = new OutputStreamWriter(worker.getOutputStream(), StandardCharsets.UTF_8);
+                    input.write('\n');
+                    input.flush();
+                }
+                List<Integer> allClaimedJobs = new ArrayList<>();
+                Map<Integer, String> jobWorkers = new HashMap<>();
+                for (int worker = 0; worker < workerCount; worker++) {
+                    Process process = workers.get(worker);
+                    try (BufferedReader output = new BufferedReader(
+                            new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                        String line;
+                        while ((line = output.readLine()) != null) {
+                            if (!line.matches("\\d+")) {
+                                // log message
+                                continue;
+                            }
+                            int jobId = Integer.parseInt(line);
+                            allClaimedJobs.add(jobId);
+                            jobWorkers.put(jobId, "worker_" + worker);
+                        }
+                    }
+                    assertTrue(process.waitFor(60, TimeUnit.SECONDS));
+                    assertEquals(0, process.exitValue());
+                }
+                assertEquals(jobCount, allClaimedJobs.size());
+                assertEquals(jobCount, jobWorkers.size());
+                assertEquals(allClaimedJobs.size(), allClaimedJobs.stream().distinct().count());
+                try (Connection connection = serverDataSource.getConnection()) {
+                    for (Map.Entry<Integer, String> entry : jobWorkers.entrySet()) {
+                        Map<String, Object> job = DatabaseManagement.getJob(connection, entry.getKey());
+                        // The job is started later by the job executor of the worker
+                        assertEquals(JobStates.QUEUED.name(), job.get("status"));
+                        assertEquals("-", job.get("startDate"));
+                        assertEquals(entry.getValue(), job.get("worker"));
+                    }
+                    // Nothing left to claim
+                    assertNull(DatabaseManagement.claimNextJob(connection, "worker_late"));
+                    // The claimed jobs of a worker that stopped sending heartbeats are queued again
+                    assertEquals(0, DatabaseManagement.failStaleJobs(connection, 60_000));
+                    Thread.sleep(10);
+                    DatabaseManagement.updateJobsHeartbeat(connection, "worker_0");
+                    int worker0Jobs = Collections.frequency(jobWorkers.values(), "worker_0");
+                    assertEquals(jobCount - worker0Jobs, DatabaseManagement.failStaleJobs(connection, 5));
+                    int releasedJobs = 0;
+                    while (DatabaseManagement.claimNextJob(connection, "worker_late") != null) {
+                        releasedJobs++;
+                    }
+                    assertEquals(jobCount - worker0Jobs, releasedJobs);
+                }
+            } finally {
+                workers.forEach(Process::destroyForcibly);
+                databaseServer.stop();
+            }
+        }
+    }
+
+    /**
+     * A job canceled after its claim is stopped by its worker node, the job can not overwrite the canceled status
+     */
+    @Test
+    void testCancelClaimedJob(@TempDir Path temporaryDirectory) throws Exception {
+        Configuration configuration = new Configuration(true);
+        configuration.setWorkingDirectory(temporaryDirectory.toString());
+        try (HikariDataSource serverDataSource = DatabaseManagement.createH2DataSource(
+                temporaryDirectory.toString(), "server", "sa", "sa", "", false)) {
+            DatabaseManagement.initializeServerDatabaseStructure(serverDataSource, configuration);
+            JobStateStore jobStateStore = new JobStateStore(serverDataSource, JobStateStore.DEFAULT_FLUSH_INTERVAL);
+            try (Connection connection = serverDataSource.getConnection()) {
+                int userId = DatabaseManagement.addUser(connection, "worker@localhost", Role.RUNNER);
+                int claimedJob = DatabaseManagement.createJob(connection, userId, "Test:Job", "{}");
+                int queuedJob = DatabaseManagement.createJob(connection, userId, "Test:Job", "{}");
+                assertTrue(DatabaseManagement.claimJob(connection, claimedJob, "worker_0"));
+                assertFalse(DatabaseManagement.claimJob(connection, claimedJob, "worker_1"));
+                assertTrue(DatabaseManagement.requestJobCancel(connection, claimedJob));
+                assertTrue(DatabaseManagement.requestJobCancel(connection, queuedJob));
+                // The queued job is ended at once, the claimed job is ended by its worker
+                assertNotEquals("-", DatabaseManagement.getJob(connection, queuedJob).get("endDate"));
+                assertEquals(List.of(claimedJob), DatabaseManagement.getCanceledJobs(connection, "worker_0"));
+                // The job reports its start and completion before handling the cancel request
+                jobStateStore.setStatus(claimedJob, JobStates.RUNNING);
+                jobStateStore.setStatus(claimedJob, JobStates.COMPLETED);
+                jobStateStore.setEndTime(claimedJob);
+                Map<String, Object> job = DatabaseManagement.getJob(connection, claimedJob);
+                assertEquals(JobStates.CANCELED.name(), job.get("status"));
+                assertNotEquals("-", job.get("endDate"));
+                assertNull(DatabaseManagement.claimNextJob(connection, "worker_1"));
+            } finally {
+                jobStateStore.shutdown();
+            }
+        }
+    }
+
+    /**
+     * The fair-share policy is applied to the claims: weights, maximum running jobs and free worker resources
+     */
+    @Test
+    void testFairShareClaims(@TempDir Path temporaryDirectory) throws Exception {
+        Configuration configuration = new Configuration(true);
+        configuration.setWorkingDirectory(temporaryDirectory.toString());
+        try (HikariDataSource serverDataSource = DatabaseManagement.createH2DataSource(
+                temporaryDirectory.toString(), "server", "sa", "sa", "", false)) {
+            DatabaseManagement.initializeServerDatabaseStructure(serverDataSource, configuration);
+            try (Connection connection = serverDataSource.getConnection()) {
+                int heavyUser = DatabaseManagement.addUser(connection, "heavy@localhost", Role.RUNNER);
+                int defaultUser = DatabaseManagement.addUser(connection, "default@localhost", Role.RUNNER);
+                int limitedUser = DatabaseManagement.addUser(connection, "limited@localhost", Role.RUNNER);
+                DatabaseManagement.updateUserShare(connection, heavyUser, 2.0, null);
+                DatabaseManagement.updateUserShare(connection, limitedUser, null, 1);
+                Map<Integer, List<Integer>> userJobs = new HashMap<>();
+                for (int userId : List.of(heavyUser, defaultUser, limitedUser)) {
+                    List<Integer> jobs = new ArrayList<>();
+                    for (int i = 0; i < 3; i++) {
+                        jobs.add(DatabaseManagement.createJob(connection, userId, "Test:Job", "{}"));
+                    }
+                    userJobs.put(userId, jobs);
+                }
+                // The jobs that do not fit in the worker resources are left in the queue
+                int largeJob = userJobs.get(heavyUser).get(0);
+                assertEquals(userJobs.get(defaultUser).get(0), DatabaseManagement.claimNextJob(connection,
+                        "worker_small", 4, job -> !job.get("userId").equals(heavyUser)).get("id"));
+                // Without explicit maximum a user keeps a slot of the worker for the other users
+                assertEquals(largeJob, DatabaseManagement.claimNextJob(connection, "worker_small", 2,
+                        job -> true).get("id"));
+                assertEquals(userJobs.get(limitedUser).get(0), DatabaseManagement.claimNextJob(connection,
+                        "worker_small", 2, job -> true).get("id"));
+                assertNull(DatabaseManagement.claimNextJob(connection, "worker_small", 2, job -> true));
+                // Running jobs relative to the weight: heavy 1/2, default 1, limited is at its maximum
+                List<Integer> expectedOrder = List.of(userJobs.get(heavyUser).get(1),
+                        userJobs.get(heavyUser).get(2), userJobs.get(defaultUser).get(1),
+                        userJobs.get(defaultUser).get(2));
+                List<Integer> claimOrder = new ArrayList<>();
+                Map<String, Object> claimedJob;
+                while ((claimedJob = DatabaseManagement.claimNextJob(connection, "worker_large")) != null) {
+                    claimOrder.add((Integer) claimedJob.get("id"));
+                }
+                assertEquals(expectedOrder, claimOrder);
+            }
+        }
+    }
+}
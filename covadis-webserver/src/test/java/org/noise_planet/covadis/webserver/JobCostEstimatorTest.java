@@ -0,0 +1,56 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import org.junit.jupiter.api.Test;
+import org.noise_planet.covadis.webserver.script.JobCostEstimator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JobCostEstimatorTest {
+
+    private static double duration(double receivers, double sources) {
+        return 10 * receivers * Math.sqrt(sources);
+    }
+
+    @Test
+    void testPowerLawCalibration() {
+        int[] receivers = {1000, 2000, 5000, 10000, 20000, 50000, 1000, 5000, 20000, 50000, 2000, 10000};
+        int[] sources = {100, 500, 100, 1000, 200, 500, 2000, 5000, 1000, 100, 300, 3000};
+        List<Map<String, Double>> runs = new ArrayList<>();
+        List<Double> durations = new ArrayList<>();
+        for (int i = 0; i < receivers.length; i++) {
+            runs.add(Map.of("tableReceivers", (double) receivers[i], "tableSources", (double) sources[i]));
+            durations.add(duration(receivers[i], sources[i]));
+        }
+        double[] prediction = JobCostEstimator.predict(runs, durations,
+                Map.of("tableReceivers", 30000.0, "tableSources", 800.0));
+        assertNotNull(prediction);
+        assertEquals(3, prediction.length);
+        double expected = duration(30000, 800);
+        assertEquals(expected, prediction[0], expected * 0.1);
+        assertTrue(prediction[1] <= prediction[0] && prediction[0] <= prediction[2]);
+    }
+
+    @Test
+    void testFewRuns() {
+        assertNull(JobCostEstimator.predict(new ArrayList<>(), new ArrayList<>(), Map.of("tableReceivers", 10.0)));
+        // With a single run the prediction is the measure of this run, without range
+        double[] prediction = JobCostEstimator.predict(List.of(Map.of("tableReceivers", 100.0)), List.of(5000.0),
+                Map.of("tableReceivers", 100.0));
+        assertNotNull(prediction);
+        assertEquals(1, prediction.length);
+        assertEquals(5000.0, prediction[0], 1e-6);
+    }
+}
@@ -0,0 +1,468 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+import org.noise_planet.covadis.webserver.script.Job;
+import org.noise_planet.covadis.webserver.script.JobExecutorService;
+import org.noise_planet.covadis.webserver.script.JobStateStore;
+import org.noise_planet.covadis.webserver.script.JobStates;
+import org.noise_planet.covadis.webserver.script.ScriptMetadata;
+import org.noise_planet.covadis.webserver.script.UserShare;
+import org.noise_planet.covadis.webserver.secure.Role;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JobExecutorServiceTest {
+    /** Script waiting for its release latch, the threads and heap of the job are given by the inputs */
+    private static final String WAIT_SCRIPT = "title = 'Wait'\n" +
+            "resources = [threads: 1, threadsInput: 'threads', heap: 0, heapInput: 'heap']\n" +
+            "memoization = false\n" +
+            "def exec(connection, input) {\n" +
+            "    ((List) input.get('started')).add(input.get('name'))\n" +
+            "    ((java.util.concurrent.CountDownLatch) input.get('release')).await()\n" +
+            "    return input.get('name')\n" +
+            "}\n";
+
+    @TempDir
+    Path temporaryDirectory;
+    private Configuration configuration;
+    private HikariDataSource serverDataSource;
+    private HikariDataSource userDataSource;
+    private JobStateStore jobStateStore;
+    private ScriptMetadata scriptMetadata;
+    /** Names of the started jobs, in start order */
+    private final List<String> startedJobs = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    void setUp() throws Exception {
+        configuration = new Configuration(true);
+        configuration.setWorkingDirectory(temporaryDirectory.toString());
+        serverDataSource = DatabaseManagement.createH2DataSource(temporaryDirectory.toString(), "server", "sa",
+                "sa", "", false);
+        DatabaseManagement.initializeServerDatabaseStructure(serverDataSource, configuration);
+        userDataSource = DatabaseManagement.createH2DataSource(temporaryDirectory.toString(), "user", "sa", "sa",
+                "", false);
+        jobStateStore = new JobStateStore(serverDataSource, JobStateStore.DEFAULT_FLUSH_INTERVAL);
+        Path scriptPath = temporaryDirectory.resolve("Wait.groovy");
+        Files.writeString(scriptPath, WAIT_SCRIPT, StandardCharsets.UTF_8);
+        scriptMetadata = new ScriptMetadata("Test", scriptPath.toFile());
+    }
+
+    @AfterEach
+    void tearDown() {
+        jobStateStore.shutdown();
+        userDataSource.close();
+        serverDataSource.close();
+    }
+
+    private int addUser(String email) throws SQLException {
+        try (Connection connection = serverDataSource.getConnection()) {
+            return DatabaseManagement.addUser(connection, email, Role.RUNNER);
+        }
+    }
+
+    /**
+     * Register a queued job in the database and build it as the server does when it restores the queue
+     */
+    private Job<Object> createJob(int userId, String name, int threads, long heap, CountDownLatch release)
+            throws SQLException {
+        int jobId;
+        try (Connection connection = serverDataSource.getConnection()) {
+            jobId = DatabaseManagement.createJob(connection, userId, scriptMetadata.id, "{}");
+        }
+        return restoreJob(jobId, userId, name, threads, heap, release);
+    }
+
+    private Job<Object> restoreJob(int jobId, int userId, String name, int threads, long heap,
+                                   CountDownLatch release) {
+        Map<String, Object> inputs = new HashMap<>();
+        inputs.put("name", name);
+        inputs.put("threads", threads);
+        inputs.put("heap", heap);
+        inputs.put("release", release);
+        inputs.put("started", startedJobs);
+        return new Job<>(jobId, userId, scriptMetadata, serverDataSource, jobStateStore, userDataSource, inputs,
+                configuration);
+    }
+
+    private String getJobStatus(int jobId) throws SQLException {
+        try (Connection connection = serverDataSource.getConnection()) {
+            return (String) DatabaseManagement.getJob(connection, jobId).get("status");
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < end, "Timeout");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * A job submitted while the queue is full is rejected and set as failed, the accepted jobs are still run
+     */
+    @Test
+    void testQueueRejection() throws Exception {
+        JobExecutorService executor = new JobExecutorService(1, 1, 4, 1024);
+        try {
+            int userId = addUser("queue@localhost");
+            CountDownLatch release = new CountDownLatch(1);
+            Job<Object> running = createJob(userId, "running", 1, 0, release);
+            Job<Object> queued = createJob(userId, "queued", 1, 0, release);
+            Job<Object> rejected = createJob(userId, "rejected", 1, 0, release);
+            executor.submitJob(running);
+            executor.submitJob(queued);
+            assertEquals(1, executor.getRunningJobsCount());
+            assertEquals(1, executor.getQueueSize());
+            assertThrows(RejectedExecutionException.class, () -> executor.submitJob(rejected));
+            assertTrue(rejected.getCompletion().isCompletedExceptionally());
+            assertEquals(JobStates.FAILED.name(), getJobStatus(rejected.getId()));
+            assertEquals(1, executor.getQueueSize());
+            // The same job can not be queued twice
+            assertThrows(IllegalArgumentException.class, () -> executor.submitJob(queued));
+
+            release.countDown();
+            assertEquals("running", running.getCompletion().get(30, TimeUnit.SECONDS));
+            assertEquals("queued", queued.getCompletion().get(30, TimeUnit.SECONDS));
+            assertEquals(List.of("running", "queued"), startedJobs);
+            assertEquals(JobStates.COMPLETED.name(), getJobStatus(running.getId()));
+            assertEquals(JobStates.COMPLETED.name(), getJobStatus(queued.getId()));
+            waitFor(() -> executor.getRunningJobsCount() == 0);
+            assertEquals(0, executor.getQueueSize());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Restart sequence of the server: the jobs running at shutdown are failed, the queued jobs are submitted again
+     * in submission order to the new executor
+     */
+    @Test
+    void testRestoreQueuedJobs() throws Exception {
+        int userId = addUser("restore@localhost");
+        List<Integer> queuedJobs = new ArrayList<>();
+        int interruptedJob;
+        try (Connection connection = serverDataSource.getConnection()) {
+            interruptedJob = DatabaseManagement.createJob(connection, userId, scriptMetadata.id, "{}");
+            DatabaseManagement.setJobState(connection, interruptedJob, JobStates.RUNNING.name());
+            for (int i = 0; i < 3; i++) {
+                queuedJobs.add(DatabaseManagement.createJob(connection, userId, scriptMetadata.id, "{}"));
+            }
+            // A canceled job is not restored
+            DatabaseManagement.setJobState(connection, queuedJobs.remove(1), JobStates.CANCELED.name());
+            // The input tables are kept with the job until its end
+            DatabaseManagement.setJobInputTables(connection, interruptedJob, List.of("WPS_INPUT_A", "WPS_INPUT_B"));
+            DatabaseManagement.setJobInputTables(connection, queuedJobs.get(0), List.of("WPS_INPUT_C"));
+            assertTrue(DatabaseManagement.getEndedJobInputTables(connection).isEmpty());
+            // Still needed by the jobs that are not ended, for example the jobs run by the worker nodes
+            List<Map<String, Object>> unfinishedJobs = DatabaseManagement.getUnfinishedJobInputTables(connection);
+            assertEquals(2, unfinishedJobs.size());
+            assertEquals(interruptedJob, unfinishedJobs.get(0).get("id"));
+            assertEquals(List.of("WPS_INPUT_C"), unfinishedJobs.get(1).get("inputTables"));
+        }
+        // Server restart
+        List<Map<String, Object>> restoredJobs;
+        try (Connection connection = serverDataSource.getConnection()) {
+            assertEquals(1, DatabaseManagement.failInterruptedJobs(connection));
+            restoredJobs = DatabaseManagement.getQueuedJobs(connection);
+            // The tables of the interrupted job have to be removed
+            List<Map<String, Object>> endedJobs = DatabaseManagement.getEndedJobInputTables(connection);
+            assertEquals(1, endedJobs.size());
+            assertEquals(interruptedJob, endedJobs.get(0).get("id"));
+            assertEquals(List.of("WPS_INPUT_A", "WPS_INPUT_B"), endedJobs.get(0).get("inputTables"));
+            DatabaseManagement.setJobInputTables(connection, interruptedJob, Collections.emptyList());
+            assertTrue(DatabaseManagement.getEndedJobInputTables(connection).isEmpty());
+        }
+        assertEquals(JobStates.FAILED.name(), getJobStatus(interruptedJob));
+        assertEquals(queuedJobs.size(), restoredJobs.size());
+        assertEquals(List.of("WPS_INPUT_C"), restoredJobs.get(0).get("inputTables"));
+        assertEquals(Collections.emptyList(), restoredJobs.get(1).get("inputTables"));
+        JobExecutorService executor = new JobExecutorService(1, queuedJobs.size(), 4, 1024);
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            List<Job<Object>> jobs = new ArrayList<>();
+            for (Map<String, Object> restoredJob : restoredJobs) {
+                int jobId = (Integer) restoredJob.get("id");
+                assertEquals(userId, restoredJob.get("userId"));
+                assertEquals(scriptMetadata.id, restoredJob.get("script"));
+                Job<Object> job = restoreJob(jobId, userId, "job_" + jobId, 1, 0, release);
+                executor.submitJob(job);
+                jobs.add(job);
+            }
+            assertEquals(1, executor.getRunningJobsCount());
+            assertEquals(queuedJobs.size() - 1, executor.getQueueSize());
+            release.countDown();
+            for (Job<Object> job : jobs) {
+                job.getCompletion().get(30, TimeUnit.SECONDS);
+                assertEquals(JobStates.COMPLETED.name(), getJobStatus(job.getId()));
+            }
+            List<String> expectedOrder = new ArrayList<>();
+            for (int jobId : queuedJobs) {
+                expectedOrder.add("job_" + jobId);
+            }
+            assertEquals(expectedOrder, startedJobs);
+        } finally {
+            executor.shutdown();
+        }
+        try (Connection connection = serverDataSource.getConnection()) {
+            assertTrue(DatabaseManagement.getQueuedJobs(connection).isEmpty());
+        }
+    }
+
+    /**
+     * The cores and heap given to the constructor bound the resources reserved by the running jobs
+     */
+    @Test
+    void testResourceCapacityConstructor() throws Exception {
+        assertThrows(IllegalArgumentException.class, () -> new JobExecutorService(0, 1, 4, 1024));
+        JobExecutorService executor = new JobExecutorService(2, 4, 3, 1000);
+        try {
+            assertEquals(3, executor.getAvailableProcessors());
+            int firstUser = addUser("first@localhost");
+            int secondUser = addUser("second@localhost");
+            CountDownLatch releaseFirst = new CountDownLatch(1);
+            CountDownLatch releaseSecond = new CountDownLatch(1);
+            // More threads than the cores, the job reserves all the cores
+            Job<Object> first = createJob(firstUser, "first", 8, 600, releaseFirst);
+            Job<Object> second = createJob(secondUser, "second", 1, 500, releaseSecond);
+            assertEquals(3, first.getRequiredThreads(executor.getAvailableProcessors()));
+            assertEquals(600, first.getRequiredHeap());
+            executor.submitJob(first);
+            assertEquals(3, executor.getUsedThreads());
+            assertEquals(600, executor.getUsedHeap());
+            assertFalse(executor.fitsResources(1, 0));
+            // A slot is free but the cores and heap are not
+            executor.submitJob(second);
+            assertEquals(1, executor.getRunningJobsCount());
+            assertEquals(1, executor.getQueueSize());
+            releaseFirst.countDown();
+            first.getCompletion().get(30, TimeUnit.SECONDS);
+            waitFor(() -> executor.getRunningJobsCount() == 1 && executor.getQueueSize() == 0);
+            assertEquals(1, executor.getUsedThreads());
+            assertEquals(500, executor.getUsedHeap());
+            releaseSecond.countDown();
+            second.getCompletion().get(30, TimeUnit.SECONDS);
+            waitFor(() -> executor.getRunningJobsCount() == 0);
+            assertEquals(0, executor.getUsedThreads());
+            assertEquals(0, executor.getUsedHeap());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Free slots go to the user having the lowest number of running jobs relative to its weight, a user never runs
+     * more jobs than its maximum
+     */
+    @Test
+    void testFairShare() throws Exception {
+        JobExecutorService executor = new JobExecutorService(4, 10, 8, Long.MAX_VALUE);
+        try {
+            int heavyUser = addUser("heavy@localhost");
+            int lightUser = addUser("light@localhost");
+            int otherUser = addUser("other@localhost");
+            executor.setUserShare(heavyUser, new UserShare(2.0, 0));
+            executor.setUserShare(lightUser, UserShare.DEFAULT);
+            CountDownLatch releaseBlocker = new CountDownLatch(1);
+            CountDownLatch releaseHeavy = new CountDownLatch(1);
+            CountDownLatch releaseLightFirst = new CountDownLatch(1);
+            CountDownLatch releaseLight = new CountDownLatch(1);
+            // Uses all the cores, the next jobs wait in the queue until it ends
+            Job<Object> blocker = createJob(otherUser, "blocker", 8, 0, releaseBlocker);
+            executor.submitJob(blocker);
+            List<Job<Object>> jobs = new ArrayList<>();
+            for (int i = 1; i <= 3; i++) {
+                jobs.add(createJob(heavyUser, "heavy_" + i, 1, 0, releaseHeavy));
+            }
+            jobs.add(createJob(lightUser, "light_1", 1, 0, releaseLightFirst));
+            for (int i = 2; i <= 3; i++) {
+                jobs.add(createJob(lightUser, "light_" + i, 1, 0, releaseLight));
+            }
+            for (Job<Object> job : jobs) {
+                executor.submitJob(job);
+            }
+            assertEquals(6, executor.getQueueSize());
+            releaseBlocker.countDown();
+            // heavy_1 (oldest), light_1 (0 < 0.5), heavy_2 (0.5 < 1), heavy_3 (1 = 1, oldest)
+            waitFor(() -> startedJobs.size() == 5);
+            assertEquals("blocker", startedJobs.get(0));
+            assertEquals(Set.of("heavy_1", "heavy_2", "heavy_3", "light_1"),
+                    new HashSet<>(startedJobs.subList(1, 5)));
+            assertEquals(4, executor.getRunningJobsCount());
+            assertEquals(2, executor.getQueueSize());
+
+            // The light user is limited to a single running job, the free slots stay unused
+            executor.setUserShare(lightUser, new UserShare(1.0, 1));
+            releaseHeavy.countDown();
+            for (int i = 0; i < 3; i++) {
+                jobs.get(i).getCompletion().get(30, TimeUnit.SECONDS);
+            }
+            waitFor(() -> executor.getRunningJobsCount() == 1);
+            assertEquals(2, executor.getQueueSize());
+            assertEquals(5, startedJobs.size());
+            Map<String, Object> lightStatistics = executor.getUserQueueStatistics().stream()
+                    .filter(row -> row.get("userId").equals(lightUser)).findFirst().orElseThrow();
+            assertEquals(1, lightStatistics.get("maximumRunningJobs"));
+            assertEquals(1, lightStatistics.get("running"));
+            assertEquals(2, lightStatistics.get("queued"));
+
+            // light_2 starts when light_1 ends
+            releaseLightFirst.countDown();
+            waitFor(() -> startedJobs.size() == 6);
+            assertEquals("light_2", startedJobs.get(5));
+            assertEquals(1, executor.getQueueSize());
+            releaseLight.countDown();
+            for (Job<Object> job : jobs) {
+                job.getCompletion().get(30, TimeUnit.SECONDS);
+            }
+            assertEquals(List.of("light_2", "light_3"), startedJobs.subList(5, 7));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * A job that does not fit in the free resources lets the smaller jobs start (backfill) until it waited longer
+     * than the drain delay, then it is the next job started when the resources are released
+     */
+    @Test
+    void testBackfillAndDrain() throws Exception {
+        JobExecutorService executor = new JobExecutorService(4, 10, 4, 1000);
+        try {
+            int largeUser = addUser("large@localhost");
+            int blockedUser = addUser("blocked@localhost");
+            int smallUser = addUser("small@localhost");
+            CountDownLatch releaseLarge = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            Job<Object> large = createJob(largeUser, "large", 2, 600, releaseLarge);
+            Job<Object> blocked = createJob(blockedUser, "blocked", 1, 600, release);
+            Job<Object> small = createJob(smallUser, "small", 1, 100, release);
+            Job<Object> drained = createJob(smallUser, "drained", 1, 100, release);
+            executor.submitJob(large);
+            assertTrue(executor.fitsResources(2, 400));
+            assertFalse(executor.fitsResources(1, 600));
+            assertFalse(executor.fitsResources(3, 0));
+            // Not enough heap left for the blocked job, the small job of another user starts in the meantime
+            executor.submitJob(blocked);
+            executor.submitJob(small);
+            assertEquals(2, executor.getRunningJobsCount());
+            assertEquals(1, executor.getQueueSize());
+            assertEquals(3, executor.getUsedThreads());
+            assertEquals(700, executor.getUsedHeap());
+            waitFor(() -> startedJobs.size() == 2);
+            assertEquals(Set.of("large", "small"), new HashSet<>(startedJobs));
+
+            // The blocked job waited too long, the resources are kept for it even if the next job fits
+            executor.setDrainDelay(50);
+            Thread.sleep(100);
+            assertTrue(executor.fitsResources(1, 100));
+            executor.submitJob(drained);
+            assertEquals(2, executor.getRunningJobsCount());
+            assertEquals(2, executor.getQueueSize());
+
+            releaseLarge.countDown();
+            large.getCompletion().get(30, TimeUnit.SECONDS);
+            // Both fit once the large job released its resources
+            waitFor(() -> startedJobs.size() == 4);
+            assertEquals(Set.of("blocked", "drained"), new HashSet<>(startedJobs.subList(2, 4)));
+            assertEquals(0, executor.getQueueSize());
+            release.countDown();
+            for (Job<Object> job : List.of(blocked, small, drained)) {
+                job.getCompletion().get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * A job declaring more resources than the server is still run, alone
+     */
+    @Test
+    void testJobLargerThanServer() throws Exception {
+        JobExecutorService executor = new JobExecutorService(2, 10, 4, 1000);
+        try {
+            int hugeUser = addUser("huge@localhost");
+            int nextUser = addUser("next@localhost");
+            CountDownLatch releaseHuge = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            Job<Object> huge = createJob(hugeUser, "huge", 4, 4000, releaseHuge);
+            Job<Object> next = createJob(nextUser, "next", 1, 100, release);
+            executor.submitJob(huge);
+            executor.submitJob(next);
+            assertEquals(1, executor.getRunningJobsCount());
+            assertEquals(4000, executor.getUsedHeap());
+            assertEquals(1, executor.getQueueSize());
+            releaseHuge.countDown();
+            huge.getCompletion().get(30, TimeUnit.SECONDS);
+            release.countDown();
+            assertEquals("next", next.getCompletion().get(30, TimeUnit.SECONDS));
+            assertEquals(List.of("huge", "next"), startedJobs);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The resources reserved by the campaign departments are not given to the queued jobs
+     */
+    @Test
+    void testReserveResources() throws Exception {
+        JobExecutorService executor = new JobExecutorService(2, 10, 4, 1000);
+        try {
+            int userId = addUser("reserve@localhost");
+            assertTrue(executor.reserveResources(3, 600));
+            assertFalse(executor.reserveResources(2, 0));
+            CountDownLatch release = new CountDownLatch(1);
+            Job<Object> job = createJob(userId, "job", 2, 100, release);
+            executor.submitJob(job);
+            assertEquals(0, executor.getRunningJobsCount());
+            assertEquals(1, executor.getQueueSize());
+            executor.releaseResources(3, 600);
+            waitFor(() -> startedJobs.contains("job"));
+            assertEquals(2, executor.getUsedThreads());
+            // The department waits for the resources of the running job
+            assertFalse(executor.reserveResources(3, 0));
+            assertTrue(executor.reserveResources(2, 0));
+            release.countDown();
+            assertEquals("job", job.getCompletion().get(30, TimeUnit.SECONDS));
+            executor.releaseResources(2, 0);
+            assertEquals(0, executor.getUsedThreads());
+            assertEquals(0, executor.getUsedHeap());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+import org.noise_planet.covadis.webserver.script.JobMemoization;
+import org.noise_planet.covadis.webserver.secure.Role;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JobMemoizationTest {
+
+    /**
+     * The memo key only changes when the script, the inputs or the input tables change
+     */
+    @Test
+    void testMemoKey(@TempDir Path temporaryDirectory) throws Exception {
+        Path scriptPath = temporaryDirectory.resolve("Script.groovy");
+        Files.writeString(scriptPath, "def exec(connection, input) { return 'ok' }");
+        try (HikariDataSource dataSource = DatabaseManagement.createH2DataSource(
+                temporaryDirectory.toString(), "user", "sa", "sa", "", false);
+             Connection connection = dataSource.getConnection();
+             Statement st = connection.createStatement()) {
+            st.execute("CREATE TABLE BUILDINGS(PK INTEGER PRIMARY KEY, HEIGHT DOUBLE)");
+            st.execute("INSERT INTO BUILDINGS VALUES (1, 10), (2, 12)");
+            Set<String> noFileInputs = Collections.emptySet();
+            Map<String, Object> inputs = new HashMap<>();
+            inputs.put("tableBuilding", "buildings");
+            inputs.put("paramHeight", 4);
+            String key = JobMemoization.computeKey(connection, 1, scriptPath, inputs, noFileInputs,
+                    temporaryDirectory);
+            // System inputs are ignored
+            inputs.put("_progression", new Object());
+            assertEquals(key, JobMemoization.computeKey(connection, 1, scriptPath, inputs, noFileInputs,
+                    temporaryDirectory));
+            assertNotEquals(key, JobMemoization.computeKey(connection, 2, scriptPath, inputs, noFileInputs,
+                    temporaryDirectory));
+            inputs.put("paramHeight", 5);
+            String otherParameterKey = JobMemoization.computeKey(connection, 1, scriptPath, inputs,
+                    noFileInputs, temporaryDirectory);
+            assertNotEquals(key, otherParameterKey);
+            // The input table has been modified
+            st.execute("INSERT INTO BUILDINGS VALUES (3, 8)");
+            assertNotEquals(otherParameterKey, JobMemoization.computeKey(connection, 1, scriptPath, inputs,
+                    noFileInputs, temporaryDirectory));
+        }
+    }
+
+    /**
+     * Only the inputs declared as files and located in the working directory are read from the disk
+     */
+    @Test
+    void testFileInputs(@TempDir Path temporaryDirectory, @TempDir Path otherDirectory) throws Exception {
+        Path scriptPath = temporaryDirectory.resolve("Script.groovy");
+        Files.writeString(scriptPath, "def exec(connection, input) { return 'ok' }");
+        Path inputFile = temporaryDirectory.resolve("buildings.geojson");
+        Files.writeString(inputFile, "{}");
+        Path outsideFile = otherDirectory.resolve("roads.geojson");
+        Files.writeString(outsideFile, "{}");
+        try (HikariDataSource dataSource = DatabaseManagement.createH2DataSource(
+                temporaryDirectory.toString(), "user", "sa", "sa", "", false);
+             Connection connection = dataSource.getConnection()) {
+            Map<String, Object> inputs = new HashMap<>();
+            inputs.put("pathFile", inputFile.toString());
+            Set<String> fileInputs = Set.of("pathFile");
+            String key = JobMemoization.computeKey(connection, 1, scriptPath, inputs, fileInputs,
+                    temporaryDirectory);
+            String undeclaredKey = JobMemoization.computeKey(connection, 1, scriptPath, inputs,
+                    Collections.emptySet(), temporaryDirectory);
+            Files.writeString(inputFile, "{\"type\": \"FeatureCollection\"}");
+            // The declared file input has been modified
+            assertNotEquals(key, JobMemoization.computeKey(connection, 1, scriptPath, inputs, fileInputs,
+                    temporaryDirectory));
+            // An input that is not declared as a file is only compared by value
+            assertEquals(undeclaredKey, JobMemoization.computeKey(connection, 1, scriptPath, inputs,
+                    Collections.emptySet(), temporaryDirectory));
+            // A file outside of the working directory is never read
+            inputs.put("pathFile", outsideFile.toString());
+            String outsideKey = JobMemoization.computeKey(connection, 1, scriptPath, inputs, fileInputs,
+                    temporaryDirectory);
+            Files.writeString(outsideFile, "{\"type\": \"FeatureCollection\"}");
+            assertEquals(outsideKey, JobMemoization.computeKey(connection, 1, scriptPath, inputs, fileInputs,
+                    temporaryDirectory));
+        }
+    }
+
+    /**
+     * The result is reused only while the tables written by the job are left untouched
+     */
+    @Test
+    void testOutputTables(@TempDir Path temporaryDirectory) throws Exception {
+        try (HikariDataSource dataSource = DatabaseManagement.createH2DataSource(
+                temporaryDirectory.toString(), "user", "sa", "sa", "", false);
+             Connection connection = dataSource.getConnection();
+             Statement st = connection.createStatement()) {
+            st.execute("CREATE TABLE SOURCES(PK INTEGER PRIMARY KEY)");
+            Map<String, String> before = JobMemoization.getTableFingerprints(connection);
+            st.execute("CREATE TABLE RECEIVERS_LEVEL(PK INTEGER PRIMARY KEY, LAEQ DOUBLE)");
+            st.execute("INSERT INTO RECEIVERS_LEVEL VALUES (1, 55)");
+            String outputTables = JobMemoization.getOutputTables(before,
+                    JobMemoization.getTableFingerprints(connection));
+            assertTrue(outputTables.contains("RECEIVERS_LEVEL"));
+            assertFalse(outputTables.contains("SOURCES"));
+            assertTrue(JobMemoization.isOutputUnchanged(outputTables,
+                    JobMemoization.getTableFingerprints(connection)));
+            st.execute("INSERT INTO SOURCES VALUES (1)");
+            assertTrue(JobMemoization.isOutputUnchanged(outputTables,
+                    JobMemoization.getTableFingerprints(connection)));
+            st.execute("DELETE FROM RECEIVERS_LEVEL");
+            assertFalse(JobMemoization.isOutputUnchanged(outputTables,
+                    JobMemoization.getTableFingerprints(connection)));
+            st.execute("DROP TABLE RECEIVERS_LEVEL");
+            assertFalse(JobMemoization.isOutputUnchanged(outputTables,
+                    JobMemoization.getTableFingerprints(connection)));
+        }
+    }
+
+    /**
+     * Memo storage and hit accounting in the server database
+     */
+    @Test
+    void testJobMemoStorage(@TempDir Path temporaryDirectory) throws Exception {
+        Configuration configuration = new Configuration(true);
+        configuration.setWorkingDirectory(temporaryDirectory.toString());
+        try (HikariDataSource serverDataSource = DatabaseManagement.createH2DataSource(
+                temporaryDirectory.toString(), "server", "sa", "sa", "", false)) {
+            DatabaseManagement.initializeServerDatabaseStructure(serverDataSource, configuration);
+            try (Connection connection = serverDataSource.getConnection()) {
+                int userId = DatabaseManagement.addUser(connection, "memo@localhost", Role.RUNNER);
+                int firstJob = DatabaseManagement.createJob(connection, userId, "Test:Job", "{}");
+                int secondJob = DatabaseManagement.createJob(connection, userId, "Test:Job", "{}");
+                assertNull(DatabaseManagement.getJobMemo(connection, "key"));
+                DatabaseManagement.saveJobMemo(connection, "key", userId, firstJob, "done", "{}", 60_000);
+                Map<String, Object> memo = DatabaseManagement.getJobMemo(connection, "key");
+                assertNotNull(memo);
+                assertEquals(firstJob, memo.get("jobId"));
+                assertEquals("done", memo.get("result"));
+                assertEquals(60_000L, memo.get("duration"));
+                DatabaseManagement.setJobMemoHit(connection, "key", secondJob, firstJob, 60_000);
+                Map<String, Object> statistics = DatabaseManagement.getJobMemoStatistics(connection, -1);
+                assertEquals(1, ((Number) statistics.get("hits")).intValue());
+                DatabaseManagement.deleteJobMemo(connection, "key");
+                assertNull(DatabaseManagement.getJobMemo(connection, "key"));
+            }
+        }
+    }
+}
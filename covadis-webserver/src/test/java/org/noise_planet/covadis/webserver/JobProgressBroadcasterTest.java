@@ -0,0 +1,321 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import com.zaxxer.hikari.HikariDataSource;
+import groovy.json.JsonSlurper;
+import io.javalin.websocket.WsConnectContext;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+import org.noise_planet.covadis.webserver.script.JobStateStore;
+import org.noise_planet.covadis.webserver.script.JobStates;
+import org.noise_planet.covadis.webserver.secure.Role;
+import org.noise_planet.covadis.webserver.secure.User;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JobProgressBroadcasterTest {
+    @TempDir
+    Path temporaryDirectory;
+    private HikariDataSource serverDataSource;
+    private JobStateStore jobStateStore;
+    private JobProgressBroadcaster broadcaster;
+
+    /**
+     * WebSocket connection of a job list page, the messages are kept instead of being sent
+     */
+    private static class TestClient {
+        final List<List<Map<String, Object>>> messages = new ArrayList<>();
+        final WsConnectContext ctx;
+        boolean open = true;
+        /** True to acknowledge the messages at once, false to keep them pending */
+        boolean acknowledge = true;
+        WriteCallback pendingCallback = null;
+
+        TestClient(String sessionId) {
+            RemoteEndpoint remote = (RemoteEndpoint) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{RemoteEndpoint.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("sendString") && args.length == 2) {
+                            Map<?, ?> message = (Map<?, ?>) new JsonSlurper().parseText((String) args[0]);
+                            List<Map<String, Object>> jobs = new ArrayList<>();
+                            for (Object job : (List<?>) message.get("jobs")) {
+                                Map<String, Object> values = new HashMap<>();
+                                ((Map<?, ?>) job).forEach((key, value) -> values.put(key.toString(), value));
+                                jobs.add(values);
+                            }
+                            messages.add(jobs);
+                            pendingCallback = (WriteCallback) args[1];
+                            if (acknowledge) {
+                                acknowledge();
+                            }
+                            return null;
+                        }
+                        return defaultValue(proxy, method, args);
+                    });
+            Session session = (Session) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{Session.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "isOpen":
+                                return open;
+                            case "getRemote":
+                                return remote;
+                            case "close":
+                                open = false;
+                                return null;
+                            default:
+                                return defaultValue(proxy, method, args);
+                        }
+                    });
+            ctx = new WsConnectContext(sessionId, session);
+        }
+
+        private static Object defaultValue(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "TestClient";
+                default:
+                    Class<?> type = method.getReturnType();
+                    if (type == boolean.class) {
+                        return false;
+                    } else if (type == int.class) {
+                        return 0;
+                    } else if (type == long.class) {
+                        return 0L;
+                    }
+                    return null;
+            }
+        }
+
+        void acknowledge() {
+            WriteCallback callback = pendingCallback;
+            pendingCallback = null;
+            if (callback != null) {
+                callback.writeSuccess();
+            }
+        }
+
+        /**
+         * @return Values of the last message by job identifier
+         */
+        Map<Integer, Map<String, Object>> lastMessage() {
+            Map<Integer, Map<String, Object>> jobs = new HashMap<>();
+            for (Map<String, Object> job : messages.get(messages.size() - 1)) {
+                jobs.put((Integer) job.get("id"), job);
+            }
+            return jobs;
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Configuration configuration = new Configuration(true);
+        configuration.setWorkingDirectory(temporaryDirectory.toString());
+        serverDataSource = DatabaseManagement.createH2DataSource(temporaryDirectory.toString(), "server", "sa",
+                "sa", "", false);
+        DatabaseManagement.initializeServerDatabaseStructure(serverDataSource, configuration);
+        jobStateStore = new JobStateStore(serverDataSource, JobStateStore.DEFAULT_FLUSH_INTERVAL);
+        broadcaster = new JobProgressBroadcaster(serverDataSource, jobStateStore, false);
+    }
+
+    @AfterEach
+    void tearDown() {
+        broadcaster.shutdown();
+        jobStateStore.shutdown();
+        serverDataSource.close();
+    }
+
+    private User addUser(String email) throws SQLException {
+        try (Connection connection = serverDataSource.getConnection()) {
+            return new User(DatabaseManagement.addUser(connection, email, Role.RUNNER), email, Set.of(Role.RUNNER),
+                    "");
+        }
+    }
+
+    private int startJob(User user, double progression) throws SQLException {
+        int jobId;
+        try (Connection connection = serverDataSource.getConnection()) {
+            jobId = DatabaseManagement.createJob(connection, user.getIdentifier(), "Test", "{}");
+        }
+        jobStateStore.setStatus(jobId, JobStates.RUNNING);
+        jobStateStore.setProgression(jobId, progression);
+        return jobId;
+    }
+
+    /**
+     * Only the changed values of the jobs visible by the user are sent, the ended jobs are sent with their final state
+     */
+    @Test
+    void testPushChanges() throws Exception {
+        User owner = addUser("owner@localhost");
+        User other = addUser("other@localhost");
+        User administrator = new User(1, DatabaseManagement.ADMIN_EMAIL, Set.of(Role.ADMINISTRATOR), "");
+        int ownerJob = startJob(owner, 10);
+        int otherJob = startJob(other, 20);
+        TestClient ownerClient = new TestClient("owner");
+        TestClient administratorClient = new TestClient("administrator");
+        broadcaster.subscribe(ownerClient.ctx, owner);
+        broadcaster.subscribe(administratorClient.ctx, administrator);
+        assertEquals(2, broadcaster.getSubscriberCount());
+
+        broadcaster.push();
+        assertEquals(Set.of(ownerJob), ownerClient.lastMessage().keySet());
+        assertEquals(Set.of(ownerJob, otherJob), administratorClient.lastMessage().keySet());
+        assertEquals(JobStates.RUNNING.name(), ownerClient.lastMessage().get(ownerJob).get("status"));
+        assertEquals(10, ownerClient.lastMessage().get(ownerJob).get("percentCompleted"));
+
+        // Nothing changed, nothing sent
+        broadcaster.push();
+        assertEquals(1, ownerClient.messages.size());
+        assertEquals(1, administratorClient.messages.size());
+
+        // Only the changed job is sent
+        jobStateStore.setProgression(otherJob, 30);
+        broadcaster.push();
+        assertEquals(1, ownerClient.messages.size());
+        assertEquals(Set.of(otherJob), administratorClient.lastMessage().keySet());
+        assertEquals(30, administratorClient.lastMessage().get(otherJob).get("percentCompleted"));
+
+        // The final state of the ended job is read from the JOBS table
+        jobStateStore.setProgression(ownerJob, 100);
+        jobStateStore.setStatus(ownerJob, JobStates.COMPLETED);
+        jobStateStore.setEndTime(ownerJob);
+        broadcaster.push();
+        assertEquals(Set.of(ownerJob), ownerClient.lastMessage().keySet());
+        assertEquals(JobStates.COMPLETED.name(), ownerClient.lastMessage().get(ownerJob).get("status"));
+        assertEquals(100, ownerClient.lastMessage().get(ownerJob).get("percentCompleted"));
+        assertEquals(JobStates.COMPLETED.name(), administratorClient.lastMessage().get(ownerJob).get("status"));
+        // Sent once
+        broadcaster.push();
+        assertEquals(2, ownerClient.messages.size());
+
+        // The closed connections are removed
+        ownerClient.open = false;
+        broadcaster.push();
+        assertEquals(1, broadcaster.getSubscriberCount());
+    }
+
+    /**
+     * The jobs queued and ended between two pushes and the jobs run by another node are read from the JOBS table
+     */
+    @Test
+    void testJobsNotInStore() throws Exception {
+        User owner = addUser("owner@localhost");
+        User other = addUser("other@localhost");
+        TestClient ownerClient = new TestClient("owner");
+        TestClient otherClient = new TestClient("other");
+        broadcaster.subscribe(ownerClient.ctx, owner);
+        broadcaster.subscribe(otherClient.ctx, other);
+        broadcaster.push();
+        assertTrue(ownerClient.messages.isEmpty());
+
+        // Queued and ended before the next push
+        int shortJob = startJob(owner, 0);
+        jobStateStore.setProgression(shortJob, 100);
+        jobStateStore.setStatus(shortJob, JobStates.COMPLETED);
+        jobStateStore.setEndTime(shortJob);
+        // Run by a worker node, the web node store does not have it
+        int remoteJob;
+        try (Connection connection = serverDataSource.getConnection()) {
+            remoteJob = DatabaseManagement.createJob(connection, owner.getIdentifier(), "Test", "{}");
+            DatabaseManagement.setJobState(connection, remoteJob, JobStates.RUNNING.name());
+            DatabaseManagement.setJobProgression(connection, remoteJob, 25);
+        }
+        broadcaster.push();
+        assertEquals(Set.of(shortJob, remoteJob), ownerClient.lastMessage().keySet());
+        assertEquals(JobStates.COMPLETED.name(), ownerClient.lastMessage().get(shortJob).get("status"));
+        assertEquals(100, ownerClient.lastMessage().get(shortJob).get("percentCompleted"));
+        assertEquals(JobStates.RUNNING.name(), ownerClient.lastMessage().get(remoteJob).get("status"));
+        assertEquals(25, ownerClient.lastMessage().get(remoteJob).get("percentCompleted"));
+        assertTrue(otherClient.messages.isEmpty());
+
+        // The ended job is sent once, the remote job is sent when it ends
+        try (Connection connection = serverDataSource.getConnection()) {
+            DatabaseManagement.setJobState(connection, remoteJob, JobStates.FAILED.name());
+            DatabaseManagement.setJobEndTime(connection, remoteJob);
+        }
+        broadcaster.push();
+        assertEquals(Set.of(remoteJob), ownerClient.lastMessage().keySet());
+        assertEquals(JobStates.FAILED.name(), ownerClient.lastMessage().get(remoteJob).get("status"));
+        broadcaster.push();
+        assertEquals(2, ownerClient.messages.size());
+        assertTrue(otherClient.messages.isEmpty());
+    }
+
+    /**
+     * The interval between two messages is doubled while the client does not read the previous message, then halved
+     * after each message
+     */
+    @Test
+    void testBackOff() throws Exception {
+        User owner = addUser("slow@localhost");
+        int jobId = startJob(owner, 0);
+        TestClient client = new TestClient("slow");
+        client.acknowledge = false;
+        broadcaster.subscribe(client.ctx, owner);
+        broadcaster.push();
+        assertEquals(1, client.messages.size());
+        // The first message is not written yet, the back-off becomes 4 intervals
+        for (int waiting = 1; waiting <= 2; waiting++) {
+            jobStateStore.setProgression(jobId, waiting);
+            broadcaster.push();
+        }
+        assertEquals(1, client.messages.size());
+        client.acknowledge();
+        client.acknowledge = true;
+        List<Integer> pushCounts = new ArrayList<>();
+        int pushes = 0;
+        int progression = 2;
+        while (pushCounts.size() < 3) {
+            assertTrue(++progression < 100, "Timeout");
+            jobStateStore.setProgression(jobId, progression);
+            int sentMessages = client.messages.size();
+            broadcaster.push();
+            pushes++;
+            if (client.messages.size() > sentMessages) {
+                pushCounts.add(pushes);
+                pushes = 0;
+            }
+        }
+        // The changes are merged and sent after 4, 2 and 1 intervals
+        assertEquals(List.of(4, 2, 1), pushCounts);
+        assertEquals(4, client.messages.size());
+        assertEquals(progression, client.lastMessage().get(jobId).get("percentCompleted"));
+
+        // A failed write closes the connection
+        client.acknowledge = false;
+        jobStateStore.setProgression(jobId, 99);
+        broadcaster.push();
+        client.pendingCallback.writeFailed(new IOException("Broken pipe"));
+        assertEquals(0, broadcaster.getSubscriberCount());
+        assertFalse(client.open);
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+import org.noise_planet.covadis.webserver.script.JobStateStore;
+import org.noise_planet.covadis.webserver.script.JobStates;
+import org.noise_planet.covadis.webserver.script.ProgressionTracker;
+import org.noise_planet.covadis.webserver.secure.Role;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JobStateStoreTest {
+
+    @Test
+    void testWriteBehind(@TempDir Path temporaryDirectory) throws Exception {
+        Configuration configuration = new Configuration(true);
+        configuration.setWorkingDirectory(temporaryDirectory.toString());
+        try (HikariDataSource serverDataSource = DatabaseManagement.createH2DataSource(
+                temporaryDirectory.toString(), "server", "sa", "sa", "", false)) {
+            DatabaseManagement.initializeServerDatabaseStructure(serverDataSource, configuration);
+            // Long interval, the progression is only written by the explicit flushes of this test
+            JobStateStore jobStateStore = new JobStateStore(serverDataSource, 60_000);
+            try (Connection connection = serverDataSource.getConnection()) {
+                int userId = DatabaseManagement.addUser(connection, "state@localhost", Role.RUNNER);
+                int jobId = DatabaseManagement.createJob(connection, userId, "Test:Job", "{}");
+
+                // State changes are written at once
+                jobStateStore.setStatus(jobId, JobStates.RUNNING);
+                jobStateStore.setBeginTime(jobId);
+                assertEquals(JobStates.RUNNING.name(), DatabaseManagement.getJob(connection, jobId).get("status"));
+
+                // Progression is kept in memory until the next flush
+                jobStateStore.setProgression(jobId, 10);
+                jobStateStore.setProgression(jobId, 42.5);
+                assertEquals(0, DatabaseManagement.getJob(connection, jobId).get("percentCompleted"));
+                List<Map<String, Object>> jobs = DatabaseManagement.getJobs(connection, userId);
+                jobStateStore.applyLiveValues(jobs);
+                assertEquals(42, jobs.get(0).get("percentCompleted"));
+                jobStateStore.flush();
+                assertEquals(42, DatabaseManagement.getJob(connection, jobId).get("percentCompleted"));
+
+                // The result is written with the final state, then the job leaves the store
+                jobStateStore.setResult(jobId, "done");
+                jobStateStore.setProgression(jobId, 100);
+                jobStateStore.setStatus(jobId, JobStates.COMPLETED);
+                jobStateStore.setEndTime(jobId);
+                assertEquals(0, jobStateStore.getLiveJobCount());
+                Map<String, Object> job = DatabaseManagement.getJob(connection, jobId);
+                assertEquals(JobStates.COMPLETED.name(), job.get("status"));
+                assertEquals(100, job.get("percentCompleted"));
+                assertNotEquals("-", job.get("endDate"));
+                assertEquals("done", DatabaseManagement.getJobResult(connection, jobId));
+            } finally {
+                jobStateStore.shutdown();
+            }
+        }
+    }
+
+    /**
+     * The compute threads only update counters, the progression is published by the sampler
+     */
+    @Test
+    void testProgressionSampler(@TempDir Path temporaryDirectory) throws Exception {
+        Configuration configuration = new Configuration(true);
+        configuration.setWorkingDirectory(temporaryDirectory.toString());
+        try (HikariDataSource serverDataSource = DatabaseManagement.createH2DataSource(
+                temporaryDirectory.toString(), "server", "sa", "sa", "", false)) {
+            DatabaseManagement.initializeServerDatabaseStructure(serverDataSource, configuration);
+            JobStateStore jobStateStore = new JobStateStore(serverDataSource, 60_000);
+            try (Connection connection = serverDataSource.getConnection()) {
+                int userId = DatabaseManagement.addUser(connection, "sampler@localhost", Role.RUNNER);
+                int jobId = DatabaseManagement.createJob(connection, userId, "Test:Job", "{}");
+                ProgressionTracker progressionTracker = new ProgressionTracker(jobStateStore, jobId);
+                progressionTracker.start();
+                int steps = 100_000;
+                ExecutorService computeThreads = Executors.newFixedThreadPool(4);
+                for (int thread = 0; thread < 4; thread++) {
+                    computeThreads.submit(() -> {
+                        for (int step = 1; step <= steps / 4; step++) {
+                            progressionTracker.update(0.25);
+                        }
+                    });
+                }
+                computeThreads.shutdown();
+                assertTrue(computeThreads.awaitTermination(30, TimeUnit.SECONDS));
+                Thread.sleep(ProgressionTracker.SAMPLE_INTERVAL + 200);
+                progressionTracker.update(0.5);
+                progressionTracker.stop();
+                assertEquals(0.5, progressionTracker.getProgression());
+                assertTrue(progressionTracker.getThroughput() > 0);
+                assertTrue(progressionTracker.getRemainingMillis() >= 0);
+                List<Map<String, Object>> jobs = DatabaseManagement.getJobs(connection, userId);
+                jobStateStore.applyLiveValues(jobs);
+                assertEquals(50, jobs.get(0).get("percentCompleted"));
+                assertNotNull(jobs.get(0).get("eta"));
+                jobStateStore.flush();
+                assertEquals(50, DatabaseManagement.getJob(connection, jobId).get("percentCompleted"));
+            } finally {
+                jobStateStore.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.script.JobWorkerProcess;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JobWorkerProcessTest {
+
+    /**
+     * Run the test script in a separate java process and read the result on the process protocol output
+     */
+    @Test
+    void testRunScriptInWorkerProcess(@TempDir Path temporaryDirectory) throws Exception {
+        Path scriptPath = Path.of(Objects.requireNonNull(
+                JobWorkerProcessTest.class.getResource("test/Test_Config_Webserver.groovy")).toURI());
+
+        List<String> command = JobWorkerProcess.buildCommand(1, 256);
+        assertTrue(command.contains("-Xmx256m"));
+        assertTrue(command.contains("-XX:ActiveProcessorCount=1"));
+
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        try (Writer input = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+             BufferedReader output = new BufferedReader(
+                     new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            input.write(JobWorkerProcess.buildRequest(scriptPath, temporaryDirectory.toString(), "user_001",
+                    Map.of("numbers", "1, 2, 3", "multiplier", 2.0, "_progression", new Object())));
+            input.write('\n');
+            input.flush();
+            String result = null;
+            String line;
+            while ((line = output.readLine()) != null) {
+                if (line.startsWith(JobWorkerProcess.RESULT + " ")) {
+                    result = JobWorkerProcess.decodeValue(line.substring(JobWorkerProcess.RESULT.length() + 1));
+                }
+            }
+            assertTrue(process.waitFor(60, TimeUnit.SECONDS));
+            assertEquals(0, process.exitValue());
+            assertEquals("Done! Table TEST_CONFIG has been created.", result);
+        } finally {
+            process.destroyForcibly();
+        }
+    }
+
+    @Test
+    void testEncodeValue() {
+        String value = "line 1\nline 2 \"quoted\"";
+        String encoded = JobWorkerProcess.encodeValue(value);
+        assertFalse(encoded.contains("\n"));
+        assertEquals(value, JobWorkerProcess.decodeValue(encoded));
+    }
+}
@@ -27,6 +27,8 @@ import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -211,4 +213,60 @@ class NoiseModellingServerHttpTest {
             assertEquals(JobStates.COMPLETED.name(), jobs.get(0).get("status").toString());
         }
     }
+
+    /**
+     * Tests the asynchronous Execute operation of the Web Processing Service (WPS).
+     *
+     * The Execute request asks for a stored response document, the server must answer immediately with an
+     * ExecuteResponse containing the statusLocation of the job. The statusLocation is polled until the job
+     * is completed, then the raw result of the job is fetched.
+     *
+     * @throws Exception if an error occurs during the HTTP request, response handling, or validation steps.
+     */
+    @Test
+    @Order(4)
+    void testPostWPSExecuteAsynchronous() throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        String requestBody ="<p0:Execute xmlns:p0=\"http://www.opengis.net/wps/1.0.0\" " +
+                "service=\"WPS\" version=\"1.0.0\"><p1:Identifier xmlns:p1=\"http://www.opengis.net/ows/1.1\">Database_Manager:Clean_Database</p1:Identifier><p0:DataInputs><p0:Input><p1:Identifier xmlns:p1=\"http://www.opengis.net/ows/1.1\">areYouSure</p1:Identifier><p0:Data><p0:LiteralData>true</p0:LiteralData></p0:Data></p0:Input></p0:DataInputs><p0:ResponseForm><p0:ResponseDocument storeExecuteResponse=\"true\" status=\"true\"><p0:Output><p1:Identifier xmlns:p1=\"http://www.opengis.net/ows/1.1\">result</p1:Identifier></p0:Output></p0:ResponseDocument></p0:ResponseForm></p0:Execute>";
+
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(BASE_URL))
+                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
+                .header("Content-Type", "text/xml")
+                .build();
+
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+        assertEquals(200, response.statusCode());
+        assertTrue(response.body().contains("wps:ExecuteResponse"));
+        Matcher matcher = Pattern.compile("statusLocation=\"[^\"]*/status/(\\d+)\"").matcher(response.body());
+        assertTrue(matcher.find(), response.body());
+        int jobId = Integer.parseInt(matcher.group(1));
+
+        // Poll the job status until the job is finished
+        String status = "";
+        for (int i = 0; i < 100 && !status.contains("ProcessSucceeded") && !status.contains("ProcessFailed"); i++) {
+            HttpResponse<String> statusResponse = client.send(HttpRequest.newBuilder()
+                    .uri(URI.create(BASE_URL + "/status/" + jobId)).GET().build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, statusResponse.statusCode());
+            status = statusResponse.body();
+            Thread.sleep(100);
+        }
+        assertTrue(status.contains("wps:ProcessSucceeded"), status);
+        assertTrue(status.contains("dropped"), status);
+
+        HttpResponse<String> resultResponse = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(BASE_URL + "/result/" + jobId)).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, resultResponse.statusCode());
+        assertTrue(resultResponse.body().contains("dropped"));
+
+        // Unknown job
+        HttpResponse<String> missingResponse = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(BASE_URL + "/status/" + (jobId + 1))).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(404, missingResponse.statusCode());
+    }
 }
@@ -0,0 +1,103 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.h2gis.api.EmptyProgressVisitor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+import org.noise_planet.covadis.webserver.script.ParallelCellDriver;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParallelCellDriverTest {
+
+    @Test
+    void testCellsInFlight(@TempDir Path temporaryDirectory) throws Exception {
+        try (HikariDataSource dataSource = DatabaseManagement.createH2DataSource(temporaryDirectory.toString(),
+                "user", "sa", "sa", "", false)) {
+            ParallelCellDriver<Integer> driver = new ParallelCellDriver<>(dataSource, null, 3);
+            driver.setMinFreeHeap(0);
+            AtomicInteger inFlight = new AtomicInteger();
+            AtomicInteger maxInFlight = new AtomicInteger();
+            List<Integer> completed = new ArrayList<>();
+            List<Integer> checkpoints = new ArrayList<>();
+            ConcurrentHashMap<Connection, Integer> connections = new ConcurrentHashMap<>();
+            Set<Connection> inFlightConnections = ConcurrentHashMap.newKeySet();
+            int count = driver.run(List.of(0, 1, 2, 3, 4, 5, 6, 7), new ParallelCellDriver.CellHandler<Integer>() {
+                @Override
+                public void evaluate(Connection connection, Integer cell) throws Exception {
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    // A connection is never shared by two cells in flight
+                    assertTrue(inFlightConnections.add(connection));
+                    connections.put(connection, cell);
+                    Thread.sleep(50);
+                    inFlightConnections.remove(connection);
+                    inFlight.decrementAndGet();
+                }
+
+                @Override
+                public void completed(Integer cell) {
+                    completed.add(cell);
+                }
+
+                @Override
+                public boolean isCheckpointDue() {
+                    return completed.size() % 4 == 0;
+                }
+
+                @Override
+                public void checkpoint() {
+                    // No cell is evaluated during a checkpoint
+                    assertEquals(0, inFlight.get());
+                    checkpoints.add(completed.size());
+                }
+            }, new EmptyProgressVisitor());
+            assertEquals(8, count);
+            assertEquals(8, completed.size());
+            assertTrue(maxInFlight.get() > 1 && maxInFlight.get() <= 3);
+            assertFalse(checkpoints.isEmpty());
+            assertTrue(connections.size() > 1);
+        }
+    }
+
+    @Test
+    void testEvaluationError() {
+        ParallelCellDriver<Integer> driver = new ParallelCellDriver<>(null, null, 4);
+        // Without data source the cells are evaluated one at a time with the script connection
+        assertEquals(1, driver.getCellsInFlight());
+        List<Integer> completed = new ArrayList<>();
+        ParallelCellDriver.CellHandler<Integer> handler = new ParallelCellDriver.CellHandler<>() {
+            @Override
+            public void evaluate(Connection connection, Integer cell) throws Exception {
+                if (cell == 1) {
+                    throw new SQLException("Cell failure");
+                }
+            }
+
+            @Override
+            public void completed(Integer cell) {
+                completed.add(cell);
+            }
+        };
+        assertThrows(SQLException.class, () -> driver.run(List.of(0, 1, 2), handler, new EmptyProgressVisitor()));
+        assertEquals(List.of(0), completed);
+    }
+}
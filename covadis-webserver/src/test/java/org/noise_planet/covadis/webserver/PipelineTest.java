@@ -0,0 +1,142 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.h2gis.api.EmptyProgressVisitor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+import org.noise_planet.covadis.webserver.pipeline.Pipeline;
+import org.noise_planet.covadis.webserver.pipeline.PipelineExecutor;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PipelineTest {
+    /** Record the step in the STEP_RUNS table, wait for the other branch if asked, then create the output table */
+    private static final String STEP_SCRIPT = "import java.sql.Connection\n" +
+            "def exec(Connection connection, Map input) {\n" +
+            "    def st = connection.createStatement()\n" +
+            "    st.execute(\"CREATE TABLE IF NOT EXISTS STEP_RUNS(STEP VARCHAR)\")\n" +
+            "    st.execute(\"INSERT INTO STEP_RUNS VALUES ('\" + input.step + \"')\")\n" +
+            "    if (input.waitFor) {\n" +
+            "        // Both branches must run at the same time, each one waits for the other\n" +
+            "        long end = System.currentTimeMillis() + 10000\n" +
+            "        while (System.currentTimeMillis() < end) {\n" +
+            "            def rs = st.executeQuery(\"SELECT COUNT(*) FROM STEP_RUNS WHERE STEP = '\" + input.waitFor + \"'\")\n" +
+            "            rs.next()\n" +
+            "            if (rs.getInt(1) > 0) { break }\n" +
+            "            Thread.sleep(20)\n" +
+            "        }\n" +
+            "        def rs = st.executeQuery(\"SELECT COUNT(*) FROM STEP_RUNS WHERE STEP = '\" + input.waitFor + \"'\")\n" +
+            "        rs.next()\n" +
+            "        if (rs.getInt(1) == 0) { throw new IllegalStateException(input.waitFor + ' did not run') }\n" +
+            "    }\n" +
+            "    if (input.failIfExists && st.executeQuery(\"SELECT * FROM INFORMATION_SCHEMA.TABLES\" +\n" +
+            "            \" WHERE TABLE_NAME = '\" + input.failIfExists + \"'\").next()) {\n" +
+            "        throw new IllegalStateException('Failure requested')\n" +
+            "    }\n" +
+            "    st.execute(\"CREATE TABLE IF NOT EXISTS \" + input.table + \"(PK INTEGER)\")\n" +
+            "    return input.step + ' wrote ' + input.table\n" +
+            "}\n";
+
+    private static final String PIPELINE = "title = 'Test pipeline'\n" +
+            "steps = [\n" +
+            "    extract: [script: 'Step.groovy', inputs: [step: 'extract', table: 'EXTRACT_${zone}'],\n" +
+            "              outputs: [table: 'EXTRACT_${zone}']],\n" +
+            "    road: [script: 'Step.groovy', inputs: [step: 'road', table: 'ROAD', waitFor: 'rail', source: '${extract.table}'],\n" +
+            "           dependsOn: ['extract'], outputs: [table: 'ROAD']],\n" +
+            "    rail: [script: 'Step.groovy', inputs: [step: 'rail', table: 'RAIL', waitFor: 'road'],\n" +
+            "           dependsOn: ['extract'], outputs: [table: 'RAIL']],\n" +
+            "    merge: [script: 'Step.groovy', inputs: [step: 'merge', table: 'MERGED', failIfExists: 'FAIL_MERGE',\n" +
+            "            previous: '${road.result}'], dependsOn: ['road', 'rail']]\n" +
+            "]\n";
+
+    @Test
+    void testParallelBranchesAndCheckpoints(@TempDir Path temporaryDirectory) throws Exception {
+        Files.writeString(temporaryDirectory.resolve("Step.groovy"), STEP_SCRIPT);
+        Path definition = temporaryDirectory.resolve("pipeline.groovy");
+        // Placeholders are kept as is by Groovy in single quoted strings
+        Files.writeString(definition, PIPELINE);
+        Pipeline pipeline = Pipeline.load(definition);
+        assertEquals("Test pipeline", pipeline.title);
+        assertEquals(4, pipeline.getSteps().size());
+        try (HikariDataSource dataSource = DatabaseManagement.createH2DataSource(
+                temporaryDirectory.toString(), "user", "sa", "sa", "", false);
+             Connection connection = dataSource.getConnection();
+             Statement st = connection.createStatement()) {
+            st.execute("CREATE TABLE FAIL_MERGE(PK INTEGER)");
+            PipelineExecutor executor = new PipelineExecutor(pipeline, dataSource, 2);
+            IllegalStateException failure = assertThrows(IllegalStateException.class,
+                    () -> executor.run(Map.of("zone", "44"), new EmptyProgressVisitor()));
+            assertTrue(failure.getMessage().contains("merge"));
+            // Road and rail have waited for each other, so they ran at the same time
+            assertEquals(3, countRows(st, "SELECT COUNT(*) FROM STEP_RUNS"));
+            assertEquals(1, countRows(st, "SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = 'EXTRACT_44'"));
+
+            // The second run only computes the failed step
+            st.execute("DROP TABLE FAIL_MERGE");
+            Map<String, String> results = executor.run(Map.of("zone", "44"), new EmptyProgressVisitor());
+            assertEquals("road wrote ROAD", results.get("road"));
+            assertEquals("merge wrote MERGED", results.get("merge"));
+            assertEquals(4, countRows(st, "SELECT COUNT(*) FROM STEP_RUNS"));
+            assertEquals(1, countRows(st, "SELECT COUNT(*) FROM STEP_RUNS WHERE STEP = 'merge'"));
+
+            // Other parameters, all the steps are computed again
+            executor.run(Map.of("zone", "85"), new EmptyProgressVisitor());
+            assertEquals(8, countRows(st, "SELECT COUNT(*) FROM STEP_RUNS"));
+        }
+    }
+
+    @Test
+    void testInvalidGraph(@TempDir Path temporaryDirectory) throws Exception {
+        Path definition = temporaryDirectory.resolve("cycle.groovy");
+        Files.writeString(definition, "steps = [a: [script: 'A.groovy', dependsOn: ['b']],\n" +
+                "b: [script: 'B.groovy', dependsOn: ['a']]]\n");
+        assertThrows(IllegalArgumentException.class, () -> Pipeline.load(definition));
+        Path unknown = temporaryDirectory.resolve("unknown.groovy");
+        Files.writeString(unknown, "steps = [a: [script: 'A.groovy', dependsOn: ['c']]]\n");
+        assertThrows(IllegalArgumentException.class, () -> Pipeline.load(unknown));
+    }
+
+    @Test
+    void testPipelinesDirectory(@TempDir Path temporaryDirectory) throws Exception {
+        Path pipelinesDirectory = Files.createDirectories(temporaryDirectory.resolve("pipelines"));
+        Path marker = temporaryDirectory.resolve("marker");
+        // The definition is read without running the file
+        Files.writeString(pipelinesDirectory.resolve("pipeline.groovy"), "new File('" +
+                marker.toString().replace("\\", "/") + "').createNewFile()\n" +
+                "title = 'Literal pipeline'\nsteps = [a: [script: 'A.groovy']]\n");
+        Files.writeString(temporaryDirectory.resolve("outside.groovy"), "steps = [a: [script: 'A.groovy']]\n");
+        assertEquals("Literal pipeline", Pipeline.load(pipelinesDirectory, "pipeline.groovy").title);
+        assertFalse(Files.exists(marker));
+        assertThrows(IllegalArgumentException.class, () -> Pipeline.load(pipelinesDirectory, "../outside.groovy"));
+        assertThrows(IllegalArgumentException.class, () -> Pipeline.load(pipelinesDirectory,
+                temporaryDirectory.resolve("outside.groovy").toString()));
+        assertThrows(IllegalArgumentException.class, () -> Pipeline.load(pipelinesDirectory, "missing.groovy"));
+        Files.writeString(pipelinesDirectory.resolve("computed.groovy"),
+                "steps = [a: [script: new File('A.groovy').name]]\n");
+        assertThrows(IllegalArgumentException.class, () -> Pipeline.load(pipelinesDirectory, "computed.groovy"));
+    }
+
+    private static int countRows(Statement st, String query) throws Exception {
+        try (ResultSet rs = st.executeQuery(query)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.script.ReferenceDownloader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReferenceDownloaderTest {
+    private HttpServer server;
+    private String baseUrl;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/data.csv", exchange -> {
+            byte[] body = "ID,LEVEL\n1,42.5\n".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        server.createContext("/large", exchange -> {
+            // Chunked response, the size is only known while reading
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(new byte[64 * 1024]);
+            } catch (IOException ex) {
+                // Download canceled by the client
+            }
+        });
+        server.createContext("/slow", exchange -> {
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.createContext("/redirect", exchange -> {
+            exchange.getResponseHeaders().add("Location", "/data.csv");
+            exchange.sendResponseHeaders(302, -1);
+            exchange.close();
+        });
+        server.createContext("/redirect_private", exchange -> {
+            exchange.getResponseHeaders().add("Location", "http://169.254.169.254/latest/meta-data/");
+            exchange.sendResponseHeaders(302, -1);
+            exchange.close();
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void testPrivateAddresses(@TempDir Path temporaryDirectory) throws Exception {
+        for (String address : List.of("127.0.0.1", "10.1.2.3", "172.16.0.1", "192.168.1.1", "169.254.169.254",
+                "0.0.0.0", "100.64.0.1", "::1", "fe80::1", "fd00::1", "224.0.0.1")) {
+            assertFalse(ReferenceDownloader.isPublicAddress(InetAddress.getByName(address)), address);
+        }
+        for (String address : List.of("8.8.8.8", "193.51.24.1", "2001:4860:4860::8888")) {
+            assertTrue(ReferenceDownloader.isPublicAddress(InetAddress.getByName(address)), address);
+        }
+        ReferenceDownloader downloader = new ReferenceDownloader(List.of());
+        Path destination = temporaryDirectory.resolve("input.csv");
+        assertThrows(IllegalArgumentException.class, () -> downloader.download(URI.create(baseUrl + "/data.csv"),
+                destination));
+        assertThrows(IllegalArgumentException.class, () -> downloader.download(
+                URI.create("file:///etc/hosts"), destination));
+        assertThrows(IllegalArgumentException.class, () -> downloader.download(
+                URI.create("http://[::1]/data.csv"), destination));
+        // The host names are checked by the resolver of the connection
+        assertThrows(IllegalArgumentException.class, () -> downloader.download(URI.create("http://localhost:" +
+                server.getAddress().getPort() + "/data.csv"), destination));
+        assertFalse(Files.exists(destination));
+    }
+
+    @Test
+    void testTrustedHost(@TempDir Path temporaryDirectory) throws Exception {
+        ReferenceDownloader downloader = new ReferenceDownloader(List.of("127.0.0.1"));
+        downloader.setMaxSize(16 * 1024);
+        downloader.setDownloadTimeout(Duration.ofMillis(1500));
+        Path destination = temporaryDirectory.resolve("input.csv");
+        downloader.download(URI.create(baseUrl + "/data.csv"), destination);
+        assertEquals("ID,LEVEL\n1,42.5\n", Files.readString(destination));
+        Files.delete(destination);
+        downloader.download(URI.create(baseUrl + "/redirect"), destination);
+        assertEquals("ID,LEVEL\n1,42.5\n", Files.readString(destination));
+        // The redirections are checked as the references
+        assertThrows(IllegalArgumentException.class, () -> downloader.download(
+                URI.create(baseUrl + "/redirect_private"), destination));
+        assertThrows(IllegalArgumentException.class, () -> downloader.download(URI.create(baseUrl + "/large"),
+                destination));
+        assertThrows(IOException.class, () -> downloader.download(URI.create(baseUrl + "/missing"),
+                destination));
+        long begin = System.currentTimeMillis();
+        assertThrows(IOException.class, () -> downloader.download(URI.create(baseUrl + "/slow"), destination));
+        assertTrue(System.currentTimeMillis() - begin < 4500);
+    }
+}
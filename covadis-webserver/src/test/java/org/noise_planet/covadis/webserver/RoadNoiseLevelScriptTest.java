@@ -0,0 +1,130 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import com.zaxxer.hikari.HikariDataSource;
+import groovy.lang.Script;
+import org.h2gis.utilities.JDBCUtilities;
+import org.h2gis.utilities.TableLocation;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+import org.noise_planet.covadis.webserver.script.ScriptClassCache;
+import org.noise_planet.noisemodelling.pathfinder.utils.profiler.RootProgressVisitor;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Run the PlaMADE road propagation script of the script_groovy directory on a small area
+ */
+class RoadNoiseLevelScriptTest {
+    private static final Path SCRIPT = Path.of("..", "script_groovy", "s4_Road_Noise_level.groovy");
+    private static final int RECEIVER_COUNT = 20;
+
+    private static void createInputTables(Statement st) throws Exception {
+        st.execute("CREATE TABLE BUILDINGS_SCREENS(PK INTEGER PRIMARY KEY, THE_GEOM GEOMETRY(POLYGON, 2154)," +
+                " HEIGHT DOUBLE)");
+        st.execute("INSERT INTO BUILDINGS_SCREENS VALUES (1, ST_GeomFromText('POLYGON((95 60, 105 60, 105 70," +
+                " 95 70, 95 60))', 2154), 10)");
+        StringBuilder columns = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for (String period : new String[]{"D", "E", "N"}) {
+            for (int frequency : new int[]{63, 125, 250, 500, 1000, 2000, 4000, 8000}) {
+                columns.append(", LW").append(period).append(frequency).append(" DOUBLE");
+                values.append(", 90");
+            }
+        }
+        st.execute("CREATE TABLE LW_ROADS(PK INTEGER PRIMARY KEY, THE_GEOM GEOMETRY(LINESTRINGZ, 2154)" +
+                columns + ")");
+        st.execute("INSERT INTO LW_ROADS VALUES (1, ST_GeomFromText('LINESTRING Z(-10 0 0.05, 200 0 0.05)', 2154)" +
+                values + ")");
+        st.execute("CREATE TABLE RECEIVERS(PK INTEGER PRIMARY KEY, THE_GEOM GEOMETRY(POINTZ, 2154))");
+        for (int i = 0; i < RECEIVER_COUNT; i++) {
+            st.execute("INSERT INTO RECEIVERS VALUES (" + (i + 1) + ", ST_GeomFromText('POINT Z(" + (i * 10) +
+                    " 30 4)', 2154))");
+        }
+        st.execute("CREATE TABLE DEM(PK INTEGER PRIMARY KEY, THE_GEOM GEOMETRY(POINTZ, 2154))");
+        st.execute("INSERT INTO DEM VALUES (1, ST_GeomFromText('POINT Z(-50 -50 0)', 2154))," +
+                " (2, ST_GeomFromText('POINT Z(250 -50 0)', 2154)), (3, ST_GeomFromText('POINT Z(250 100 0)', 2154))," +
+                " (4, ST_GeomFromText('POINT Z(-50 100 0)', 2154))");
+        st.execute("CREATE TABLE LANDCOVER(PK INTEGER PRIMARY KEY, THE_GEOM GEOMETRY(POLYGON, 2154), G DOUBLE)");
+        st.execute("INSERT INTO LANDCOVER VALUES (1, ST_GeomFromText('POLYGON((-50 10, 250 10, 250 100, -50 100," +
+                " -50 10))', 2154), 1)");
+        st.execute("CREATE TABLE CONF(CONFID INTEGER PRIMARY KEY, CONFREFLORDER INTEGER, CONFMAXSRCDIST INTEGER," +
+                " CONFMAXREFLDIST INTEGER, CONFTHREADNUMBER INTEGER, CONFDIFFVERTICAL BOOLEAN," +
+                " CONFDIFFHORIZONTAL BOOLEAN, CONFSKIPLDAY BOOLEAN, CONFSKIPLEVENING BOOLEAN, CONFSKIPLNIGHT BOOLEAN," +
+                " CONFSKIPLDEN BOOLEAN, CONFEXPORTSOURCEID BOOLEAN, WALL_ALPHA DOUBLE)");
+        st.execute("INSERT INTO CONF VALUES (1, 1, 250, 50, 2, FALSE, FALSE, FALSE, TRUE, FALSE, FALSE, FALSE," +
+                " 0.1)");
+        st.execute("CREATE TABLE ZONE(HYGRO_D DOUBLE, TEMP_D DOUBLE, PFAV_06_18 VARCHAR)");
+        st.execute("INSERT INTO ZONE VALUES (70, 15, '0.5, 0.5, 0.5, 0.5, 0.5, 0.5, 0.5, 0.5, 0.5, 0.5, 0.5, 0.5," +
+                " 0.5, 0.5, 0.5, 0.5')");
+        st.execute("CREATE TABLE METADATA(ROAD_CONF INTEGER, ROAD_START TIMESTAMP, ROAD_END TIMESTAMP)");
+        st.execute("INSERT INTO METADATA VALUES (NULL, NULL, NULL)");
+    }
+
+    /**
+     * The receivers are computed by several cells in flight, each one with its own noise map
+     */
+    @Test
+    void testRoadNoiseLevel(@TempDir Path temporaryDirectory) throws Exception {
+        try (HikariDataSource dataSource = DatabaseManagement.createH2DataSource(temporaryDirectory.toString(),
+                "user", "sa", "sa", "", true);
+             Connection connection = dataSource.getConnection();
+             Statement st = connection.createStatement()) {
+            createInputTables(st);
+            Map<String, Object> input = new HashMap<>();
+            input.put("confId", 1);
+            input.put("cellsInFlight", 2);
+            input.put("_dataSource", dataSource);
+            input.put("progressVisitor", new RootProgressVisitor(1, false, 1));
+            Script script = ScriptClassCache.getInstance().createScript(SCRIPT);
+            Object result = script.invokeMethod("exec", new Object[]{connection, input});
+            assertTrue(result.toString().contains("LDEN_ROADS"));
+
+            for (String table : new String[]{"LDAY_ROADS", "LNIGHT_ROADS", "LDEN_ROADS"}) {
+                try (ResultSet rs = st.executeQuery("SELECT COUNT(*), COUNT(DISTINCT IDRECEIVER), MIN(LAEQ) FROM " +
+                        table)) {
+                    assertTrue(rs.next());
+                    assertEquals(RECEIVER_COUNT, rs.getInt(1), table);
+                    assertEquals(RECEIVER_COUNT, rs.getInt(2), table);
+                    assertTrue(rs.getDouble(3) > 0, table);
+                }
+            }
+            // Skipped period
+            assertFalse(JDBCUtilities.tableExists(connection, TableLocation.parse("LEVENING_ROADS")));
+            // The tables of the cells and the checkpoints are removed once the computation is complete
+            try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE" +
+                    " TABLE_NAME LIKE '%ROADS_CELL%' OR TABLE_NAME LIKE '%_BATCH'")) {
+                assertTrue(rs.next());
+                assertEquals(0, rs.getInt(1));
+            }
+            try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM CELL_CHECKPOINTS WHERE COMPUTATION = 'ROADS'")) {
+                assertTrue(rs.next());
+                assertEquals(0, rs.getInt(1));
+            }
+            try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM CELL_COSTS_ROADS WHERE DURATION IS NOT NULL")) {
+                assertTrue(rs.next());
+                assertTrue(rs.getInt(1) > 1);
+            }
+            try (ResultSet rs = st.executeQuery("SELECT ROAD_CONF FROM METADATA WHERE ROAD_END IS NOT NULL")) {
+                assertTrue(rs.next());
+                assertEquals(1, rs.getInt(1));
+            }
+        }
+    }
+}
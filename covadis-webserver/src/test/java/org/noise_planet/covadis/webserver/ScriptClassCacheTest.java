@@ -0,0 +1,54 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import groovy.lang.Script;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.script.ScriptClassCache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScriptClassCacheTest {
+
+    /**
+     * The script is compiled only once while its content does not change
+     */
+    @Test
+    void testCacheHitAndContentChange(@TempDir Path temporaryDirectory) throws IOException {
+        ScriptClassCache cache = new ScriptClassCache();
+        Path scriptPath = temporaryDirectory.resolve("Cached_Script.groovy");
+        Files.writeString(scriptPath, "def exec() { return 'v1' }");
+
+        Script first = cache.createScript(scriptPath);
+        Script second = cache.createScript(scriptPath);
+        assertNotSame(first, second);
+        assertSame(first.getClass(), second.getClass());
+        assertEquals("v1", second.invokeMethod("exec", new Object[0]));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+
+        // A modified script is compiled again
+        Files.writeString(scriptPath, "def exec() { return 'v2' }");
+        Script third = cache.createScript(scriptPath);
+        assertNotSame(first.getClass(), third.getClass());
+        assertEquals("v2", third.invokeMethod("exec", new Object[0]));
+        assertEquals(2, cache.getMissCount());
+
+        // Invalidated entry is compiled again
+        cache.invalidate(scriptPath);
+        cache.createScript(scriptPath);
+        assertEquals(3, cache.getMissCount());
+    }
+}
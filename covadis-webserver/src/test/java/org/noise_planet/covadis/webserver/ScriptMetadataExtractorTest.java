@@ -0,0 +1,120 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import groovy.lang.Script;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.script.ScriptClassCache;
+import org.noise_planet.covadis.webserver.script.ScriptMetadata;
+import org.noise_planet.covadis.webserver.script.ScriptMetadataExtractor;
+import org.noise_planet.covadis.webserver.script.WpsScriptWrapper;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScriptMetadataExtractorTest {
+
+    private static final String SCRIPT = "import org.locationtech.jts.geom.Geometry\n" +
+            "title = 'Static title'\n" +
+            "description = 'First line ' +\n        'second line'\n" +
+            "inputs = [tableName: [title: 'Table', type: String.class],\n" +
+            "          fence: [title: 'Fence', type: Geometry.class, min: 0, max: 1],\n" +
+            "          height: [title: 'Height', type: Double]]\n" +
+            "outputs = [result: [title: 'Result', type: String.class]]\n" +
+            "resources = [threads: 1, heap: -1]\n" +
+            "memoization = false\n" +
+            "new File(\"%s\").text = 'side effect'\n" +
+            "def exec(connection, input) { return 'done' }\n";
+
+    @Test
+    void testExtractWithoutRun(@TempDir Path temporaryDirectory) throws Exception {
+        Path sideEffect = temporaryDirectory.resolve("side_effect.txt");
+        Path scriptPath = temporaryDirectory.resolve("Static_Script.groovy");
+        Files.writeString(scriptPath, String.format(SCRIPT, sideEffect.toString().replace("\\", "/")));
+        Path cacheDirectory = temporaryDirectory.resolve("cache");
+
+        Map<String, Object> metadata = ScriptMetadataExtractor.readMetadata(scriptPath, cacheDirectory);
+        assertFalse(Files.exists(sideEffect));
+        assertEquals("Static title", metadata.get("title"));
+        assertEquals("First line second line", metadata.get("description"));
+        assertEquals(Boolean.FALSE, metadata.get("memoization"));
+        assertEquals(Map.of("threads", 1, "heap", -1), metadata.get("resources"));
+        Map<?, ?> inputs = (Map<?, ?>) metadata.get("inputs");
+        assertEquals(String.class.toString(), ((Map<?, ?>) inputs.get("tableName")).get("type"));
+        assertEquals("class org.locationtech.jts.geom.Geometry", ((Map<?, ?>) inputs.get("fence")).get("type"));
+        assertEquals(Double.class.toString(), ((Map<?, ?>) inputs.get("height")).get("type"));
+
+        // The second read comes from the cache file
+        try (var cacheFiles = Files.list(cacheDirectory)) {
+            assertEquals(1, cacheFiles.count());
+        }
+        assertEquals(metadata, ScriptMetadataExtractor.readMetadata(scriptPath, cacheDirectory));
+
+        ScriptMetadata scriptMetadata = new ScriptMetadata("Test", scriptPath.toFile(), cacheDirectory);
+        assertEquals("Test:Static_Script", scriptMetadata.id);
+        assertTrue(scriptMetadata.inputs.get("fence").optional);
+        assertFalse(scriptMetadata.memoization);
+        assertFalse(Files.exists(sideEffect));
+    }
+
+    @Test
+    void testNotLiteral() {
+        assertNull(ScriptMetadataExtractor.extract("def name = 'a'\ntitle = \"Title ${name}\"\n", "Script.groovy"));
+        assertNull(ScriptMetadataExtractor.extract("title = buildTitle()\n", "Script.groovy"));
+        assertEquals(Map.of(), ScriptMetadataExtractor.extract("println 'no metadata'\n", "Script.groovy"));
+    }
+
+    /**
+     * A script with a metadata declaration that is not a literal is never run, it is left out of the published
+     * scripts until it is fixed
+     */
+    @Test
+    void testNotLiteralScriptNotRun(@TempDir Path temporaryDirectory) throws Exception {
+        Path sideEffect = temporaryDirectory.resolve("side_effect.txt");
+        Path scriptPath = temporaryDirectory.resolve("Dynamic_Script.groovy");
+        Files.writeString(scriptPath, String.format(SCRIPT, sideEffect.toString().replace("\\", "/"))
+                .replace("title = 'Static title'", "title = 'Title ' + new Date()"));
+        Path staticScriptPath = temporaryDirectory.resolve("Static_Script.groovy");
+        Files.writeString(staticScriptPath, String.format(SCRIPT, sideEffect.toString().replace("\\", "/")));
+
+        assertThrows(ScriptMetadataExtractor.NotLiteralMetadataException.class,
+                () -> ScriptMetadataExtractor.readMetadata(scriptPath, null));
+        List<ScriptMetadata> scripts = WpsScriptWrapper.buildScriptWrappers(Map.of("Test",
+                List.of(scriptPath.toFile(), staticScriptPath.toFile())), null);
+        assertEquals(1, scripts.size());
+        assertEquals("Test:Static_Script", scripts.get(0).id);
+        assertFalse(Files.exists(sideEffect));
+    }
+
+    @Test
+    void testSameMetadataAsScriptRun(@TempDir Path temporaryDirectory) throws Exception {
+        File scriptFile = Path.of(Objects.requireNonNull(
+                WpsScriptMetadataTest.class.getResource("test/Test_Config_Webserver.groovy")).toURI()).toFile();
+        ScriptMetadata extracted = WpsScriptWrapper.buildScriptWrappers(Map.of("TestGroup", List.of(scriptFile)),
+                temporaryDirectory).get(0);
+        // The script was run to read the metadata before the extractor
+        Script script = ScriptClassCache.getInstance().createScript(scriptFile.toPath());
+        script.run();
+        Map<?, ?> binding = script.getBinding().getVariables();
+        assertEquals(binding.get("title"), extracted.title);
+        assertEquals(((Map<?, ?>) binding.get("inputs")).keySet(), extracted.inputs.keySet());
+        for (Map.Entry<?, ?> input : ((Map<?, ?>) binding.get("inputs")).entrySet()) {
+            assertEquals(((Map<?, ?>) input.getValue()).get("type").toString(),
+                    extracted.inputs.get(input.getKey().toString()).type);
+        }
+    }
+}
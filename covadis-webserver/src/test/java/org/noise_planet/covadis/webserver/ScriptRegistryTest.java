@@ -0,0 +1,84 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.script.ScriptMetadata;
+import org.noise_planet.covadis.webserver.script.ScriptRegistry;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScriptRegistryTest {
+
+    private static void writeScript(Path script, String title) throws Exception {
+        Files.createDirectories(script.getParent());
+        Files.writeString(script, "title = '" + title + "'\n" +
+                "inputs = [tableName: [title: 'Table', type: String.class]]\n" +
+                "outputs = [result: [title: 'Result', type: String.class]]\n" +
+                "def exec(connection, input) { return 'done' }\n");
+    }
+
+    @Test
+    void testIncrementalUpdate(@TempDir Path scriptsRoot) throws Exception {
+        Path first = scriptsRoot.resolve("Group").resolve("First.groovy");
+        Path second = scriptsRoot.resolve("Group").resolve("Second.groovy");
+        writeScript(first, "First");
+        writeScript(second, "Second");
+        try (ScriptRegistry registry = new ScriptRegistry(scriptsRoot, null, 50)) {
+            ScriptRegistry.Snapshot initial = registry.getSnapshot();
+            assertEquals(List.of("Group:First", "Group:Second"), new ArrayList<>(initial.scriptsById.keySet()));
+            ScriptMetadata secondMetadata = initial.find("Group:Second").orElseThrow();
+
+            writeScript(first, "First modified");
+            Path third = scriptsRoot.resolve("Other").resolve("Third.groovy");
+            writeScript(third, "Third");
+            ScriptRegistry.Snapshot updated = registry.update(List.of(first, third.getParent()));
+            assertEquals(initial.version + 1, updated.version);
+            assertEquals("First modified", updated.find("Group:First").orElseThrow().title);
+            assertTrue(updated.find("Other:Third").isPresent());
+            // Unchanged scripts are not parsed again
+            assertSame(secondMetadata, updated.find("Group:Second").orElseThrow());
+            // The previous snapshot is never modified
+            assertEquals("First", initial.find("Group:First").orElseThrow().title);
+            assertEquals(2, initial.scripts.size());
+
+            Files.delete(second);
+            assertFalse(registry.update(List.of(second)).find("Group:Second").isPresent());
+            assertThrows(UnsupportedOperationException.class, () -> registry.getSnapshot().scripts.clear());
+        }
+    }
+
+    @Test
+    void testCoalescedChanges(@TempDir Path scriptsRoot) throws Exception {
+        Path script = scriptsRoot.resolve("Group").resolve("Script.groovy");
+        writeScript(script, "Script");
+        try (ScriptRegistry registry = new ScriptRegistry(scriptsRoot, null, 200)) {
+            long version = registry.getSnapshot().version;
+            for (int i = 0; i < 10; i++) {
+                writeScript(script, "Script " + i);
+                registry.notifyChanged(script);
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (registry.getSnapshot().version == version && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            Thread.sleep(400);
+            // A single update for all the events
+            assertEquals(version + 1, registry.getSnapshot().version);
+            assertEquals("Script 9", registry.getSnapshot().find("Group:Script").orElseThrow().title);
+        }
+    }
+}
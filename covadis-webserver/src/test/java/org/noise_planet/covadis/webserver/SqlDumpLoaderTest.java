@@ -0,0 +1,151 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.h2gis.api.EmptyProgressVisitor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+import org.noise_planet.covadis.webserver.script.SqlDumpLoader;
+import org.noise_planet.noisemodelling.pathfinder.utils.profiler.RootProgressVisitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SqlDumpLoaderTest {
+
+    @Test
+    void testLoadDump(@TempDir Path temporaryDirectory) throws Exception {
+        File dump = temporaryDirectory.resolve("Road_Noise_level.sql.gz").toFile();
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(dump.toPath())),
+                StandardCharsets.UTF_8)) {
+            writer.write("-- NoiseModelling dump;\n");
+            writer.write("CREATE TABLE LDEN_ROADS(IDRECEIVER INTEGER, THE_GEOM GEOMETRY, LAEQ DOUBLE," +
+                    " NAME VARCHAR);\n");
+            for (int i = 0; i < 1234; i++) {
+                writer.write("INSERT INTO LDEN_ROADS VALUES (" + i + ", 'POINT Z(" + i + " 2 4)', -" + i +
+                        ".5, " + (i % 10 == 0 ? "NULL" : "'it''s'") + ");\n");
+            }
+            writer.write("INSERT INTO \"PUBLIC\".\"LDEN_ROADS\"(\"IDRECEIVER\", \"THE_GEOM\", \"LAEQ\") VALUES " +
+                    "(5000, NULL, 1E2), (5001, ST_GeomFromText('POINT(1 2)', 2154), 3);\n");
+            writer.write("UPDATE LDEN_ROADS SET LAEQ = 0 WHERE IDRECEIVER = 5001;\n");
+            writer.write("CREATE INDEX ON LDEN_ROADS(IDRECEIVER);\n");
+        }
+        try (HikariDataSource dataSource = DatabaseManagement.createH2DataSource(temporaryDirectory.toString(),
+                "user", "sa", "sa", "", true);
+             Connection connection = dataSource.getConnection();
+             Statement st = connection.createStatement()) {
+            SqlDumpLoader loader = new SqlDumpLoader(connection);
+            loader.setRowsPerStatement(10);
+            loader.setBatchSize(3);
+            loader.setCommitRows(500);
+            assertEquals(1236, loader.load(dump, true, new EmptyProgressVisitor()));
+            assertTrue(connection.getAutoCommit());
+            try (ResultSet rs = st.executeQuery("SELECT COUNT(*), COUNT(NAME), SUM(IDRECEIVER) FROM LDEN_ROADS" +
+                    " WHERE IDRECEIVER < 5000")) {
+                assertTrue(rs.next());
+                assertEquals(1234, rs.getInt(1));
+                assertEquals(1234 - 124, rs.getInt(2));
+                assertEquals(1233 * 1234 / 2, rs.getLong(3));
+            }
+            try (ResultSet rs = st.executeQuery("SELECT ST_X(THE_GEOM), LAEQ, NAME FROM LDEN_ROADS" +
+                    " WHERE IDRECEIVER = 42")) {
+                assertTrue(rs.next());
+                assertEquals(42, rs.getDouble(1), 1e-6);
+                assertEquals(-42.5, rs.getDouble(2), 1e-6);
+                assertEquals("it's", rs.getString(3));
+            }
+            try (ResultSet rs = st.executeQuery("SELECT LAEQ FROM LDEN_ROADS WHERE IDRECEIVER >= 5000" +
+                    " ORDER BY IDRECEIVER")) {
+                assertTrue(rs.next());
+                assertEquals(100, rs.getDouble(1), 1e-6);
+                assertTrue(rs.next());
+                assertEquals(0, rs.getDouble(1), 1e-6);
+            }
+        }
+    }
+
+    /**
+     * The rows of interleaved tables are inserted in the order of the file, a referenced row exists before the rows
+     * referencing it
+     */
+    @Test
+    void testTableOrder(@TempDir Path temporaryDirectory) throws Exception {
+        File dump = temporaryDirectory.resolve("dump.sql").toFile();
+        StringBuilder script = new StringBuilder("CREATE TABLE ROADS(PK INTEGER PRIMARY KEY);\n" +
+                "CREATE TABLE ROAD_SOURCES(PK INTEGER PRIMARY KEY, PK_ROAD INTEGER REFERENCES ROADS(PK));\n");
+        for (int i = 0; i < 25; i++) {
+            script.append("INSERT INTO ROADS VALUES (").append(i).append(");\n");
+            script.append("INSERT INTO ROAD_SOURCES VALUES (").append(i).append(", ").append(i).append(");\n");
+        }
+        Files.writeString(dump.toPath(), script.toString());
+        try (HikariDataSource dataSource = DatabaseManagement.createH2DataSource(temporaryDirectory.toString(),
+                "user", "sa", "sa", "", false);
+             Connection connection = dataSource.getConnection();
+             Statement st = connection.createStatement()) {
+            SqlDumpLoader loader = new SqlDumpLoader(connection);
+            loader.setRowsPerStatement(10);
+            assertEquals(50, loader.load(dump, false, new EmptyProgressVisitor()));
+            try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM ROAD_SOURCES")) {
+                assertTrue(rs.next());
+                assertEquals(25, rs.getInt(1));
+            }
+        }
+    }
+
+    @Test
+    void testLoadError(@TempDir Path temporaryDirectory) throws Exception {
+        File dump = temporaryDirectory.resolve("dump.sql").toFile();
+        Files.writeString(dump.toPath(), "CREATE TABLE T(PK INTEGER PRIMARY KEY);\n" +
+                "INSERT INTO T VALUES (1);\nINSERT INTO T VALUES (1);\n");
+        try (HikariDataSource dataSource = DatabaseManagement.createH2DataSource(temporaryDirectory.toString(),
+                "user", "sa", "sa", "", false);
+             Connection connection = dataSource.getConnection()) {
+            assertThrows(SQLException.class, () -> new SqlDumpLoader(connection).load(dump, false,
+                    new EmptyProgressVisitor()));
+            assertTrue(connection.getAutoCommit());
+        }
+    }
+
+    @Test
+    void testLoadCanceled(@TempDir Path temporaryDirectory) throws Exception {
+        File dump = temporaryDirectory.resolve("dump.sql").toFile();
+        Files.writeString(dump.toPath(), "CREATE TABLE T(PK INTEGER PRIMARY KEY);\nINSERT INTO T VALUES (1);\n");
+        try (HikariDataSource dataSource = DatabaseManagement.createH2DataSource(temporaryDirectory.toString(),
+                "user", "sa", "sa", "", false);
+             Connection connection = dataSource.getConnection();
+             Statement st = connection.createStatement()) {
+            RootProgressVisitor progressVisitor = new RootProgressVisitor(1, false, 1);
+            progressVisitor.cancel();
+            // A canceled load is not reported as a complete load
+            assertThrows(IllegalStateException.class, () -> new SqlDumpLoader(connection).load(dump, false,
+                    progressVisitor));
+            assertTrue(connection.getAutoCommit());
+            assertFalse(st.executeQuery("SELECT * FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = 'T'").next());
+            // The file is not compressed, the GZIP header is invalid
+            assertThrows(IOException.class, () -> new SqlDumpLoader(connection).load(dump, true,
+                    new EmptyProgressVisitor()));
+            assertTrue(connection.getAutoCommit());
+        }
+    }
+}
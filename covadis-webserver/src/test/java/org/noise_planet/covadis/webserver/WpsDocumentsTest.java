@@ -0,0 +1,77 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.script.ScriptRegistry;
+import org.noise_planet.covadis.webserver.script.WpsDocuments;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WpsDocumentsTest {
+
+    private static void writeScript(Path script, String title) throws Exception {
+        Files.createDirectories(script.getParent());
+        Files.writeString(script, "title = '" + title + "'\n" +
+                "inputs = [enabled: [title: 'Enabled', type: Boolean.class]]\n" +
+                "outputs = [result: [title: 'Result', type: String.class]]\n" +
+                "def exec(connection, input) { return 'done' }\n");
+    }
+
+    @Test
+    void testRenderedOncePerVersion(@TempDir Path scriptsRoot) throws Exception {
+        Path script = scriptsRoot.resolve("Group").resolve("Script.groovy");
+        writeScript(script, "First title");
+        try (ScriptRegistry registry = new ScriptRegistry(scriptsRoot, null, 50)) {
+            WpsDocuments documents = new WpsDocuments(registry);
+            WpsDocuments.Document capabilities = documents.getCapabilities();
+            assertSame(capabilities, documents.getCapabilities());
+            assertTrue(new String(capabilities.content, StandardCharsets.UTF_8).contains("First title"));
+            try (GZIPInputStream gzipInputStream = new GZIPInputStream(
+                    new ByteArrayInputStream(capabilities.gzipContent))) {
+                assertArrayEquals(capabilities.content, gzipInputStream.readAllBytes());
+            }
+            assertTrue(capabilities.matches(capabilities.etag));
+            assertTrue(capabilities.matches("\"other\", " + capabilities.etag.substring(2)));
+            assertFalse(capabilities.matches(null));
+
+            WpsDocuments.Document description = documents.getProcessDescription("Group:Script");
+            assertNotNull(description);
+            assertNull(documents.getProcessDescription("Group:Unknown"));
+            // Rendering the description does not modify the script metadata
+            assertEquals(Boolean.class.toString(),
+                    registry.getSnapshot().find("Group:Script").orElseThrow().inputs.get("enabled").type);
+
+            writeScript(script, "Second title");
+            registry.update(List.of(script));
+            WpsDocuments.Document updated = documents.getCapabilities();
+            assertNotSame(capabilities, updated);
+            assertFalse(updated.matches(capabilities.etag));
+            assertTrue(new String(updated.content, StandardCharsets.UTF_8).contains("Second title"));
+        }
+    }
+
+    @Test
+    void testAcceptsGzip() {
+        assertTrue(WpsDocuments.acceptsGzip("gzip, deflate, br"));
+        assertTrue(WpsDocuments.acceptsGzip("br;q=1.0, GZIP;q=0.5"));
+        assertFalse(WpsDocuments.acceptsGzip("gzip;q=0"));
+        assertFalse(WpsDocuments.acceptsGzip("identity"));
+        assertFalse(WpsDocuments.acceptsGzip(null));
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * NoiseModelling is a library capable of producing noise maps. It can be freely used either for research and education, as well as by experts in a professional use.
+ * <p>
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ * <p>
+ * Official webpage : http://noise-planet.org/noisemodelling.html
+ * Contact: contact@noise-planet.org
+ */
+
+package org.noise_planet.covadis.webserver;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.noise_planet.covadis.webserver.database.DatabaseManagement;
+import org.noise_planet.covadis.webserver.script.WpsExecuteReader;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WpsExecuteReaderTest {
+
+    private static final String EXECUTE_START = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<wps:Execute service=\"WPS\" version=\"1.0.0\" xmlns:wps=\"http://www.opengis.net/wps/1.0.0\"" +
+            " xmlns:ows=\"http://www.opengis.net/ows/1.1\" xmlns:xlink=\"http://www.w3.org/1999/xlink\">\n" +
+            "  <ows:Identifier>Group:Script</ows:Identifier>\n  <wps:DataInputs>\n";
+
+    private static String input(String name, String data) {
+        return "    <wps:Input><ows:Identifier>" + name + "</ows:Identifier><wps:Data>" + data +
+                "</wps:Data></wps:Input>\n";
+    }
+
+    private static int countRows(Statement st, String tableName) throws Exception {
+        try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM " + tableName)) {
+            assertTrue(rs.next());
+            return rs.getInt(1);
+        }
+    }
+
+    @Test
+    void testComplexInputsToTables(@TempDir Path temporaryDirectory) throws Exception {
+        StringBuilder geoJson = new StringBuilder("{\"type\":\"FeatureCollection\",\"features\":[");
+        for (int i = 0; i < 100; i++) {
+            geoJson.append(i > 0 ? "," : "").append("{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\"," +
+                    "\"coordinates\":[").append(i).append(",2]},\"properties\":{\"ID\":").append(i).append("}}");
+        }
+        geoJson.append("]}");
+        String xml = EXECUTE_START +
+                input("height", "<wps:LiteralData>4.5</wps:LiteralData>") +
+                input("roads", "<wps:ComplexData mimeType=\"application/geo+json\"><![CDATA[" + geoJson +
+                        "]]></wps:ComplexData>") +
+                input("fence", "<wps:ComplexData>\nSRID=2154;POLYGON((0 0,10 0,10 10,0 0))\nPOINT(1 2)\n" +
+                        "</wps:ComplexData>") +
+                input("levels", "<wps:ComplexData mimeType=\"text/csv\">ID,LEVEL\n1,42.5\n2,&lt;3\n" +
+                        "</wps:ComplexData>") +
+                "  </wps:DataInputs>\n  <wps:ResponseForm><wps:ResponseDocument storeExecuteResponse=\"true\">" +
+                "<wps:Output><ows:Identifier>result</ows:Identifier></wps:Output></wps:ResponseDocument>" +
+                "</wps:ResponseForm>\n</wps:Execute>";
+        Path spoolDirectory = temporaryDirectory.resolve("spool");
+        try (HikariDataSource dataSource = DatabaseManagement.createH2DataSource(temporaryDirectory.toString(),
+                "user", "sa", "sa", "", true);
+             Connection connection = dataSource.getConnection();
+             Statement st = connection.createStatement()) {
+            WpsExecuteReader reader = new WpsExecuteReader(dataSource, spoolDirectory);
+            WpsExecuteReader.ExecuteRequest request = reader.read(
+                    new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+            assertEquals("Group:Script", request.processId);
+            assertTrue(request.responseDocument);
+            assertTrue(request.storeExecuteResponse);
+            assertEquals("4.5", request.inputs.get("height"));
+            assertEquals(3, request.inputTables.size());
+            assertEquals(request.inputs.get("roads"), request.inputTables.get(0));
+            assertEquals(100, countRows(st, request.inputs.get("roads").toString()));
+            assertEquals(2, countRows(st, request.inputs.get("fence").toString()));
+            try (ResultSet rs = st.executeQuery("SELECT ST_SRID(THE_GEOM) FROM " + request.inputs.get("fence") +
+                    " ORDER BY PK")) {
+                assertTrue(rs.next());
+                assertEquals(2154, rs.getInt(1));
+            }
+            try (ResultSet rs = st.executeQuery("SELECT LEVEL FROM " + request.inputs.get("levels") +
+                    " ORDER BY ID")) {
+                assertTrue(rs.next());
+                assertEquals("42.5", rs.getString(1));
+                assertTrue(rs.next());
+                assertEquals("<3", rs.getString(1));
+            }
+            // The spooled files are removed once imported
+            try (var files = Files.list(spoolDirectory)) {
+                assertEquals(0, files.count());
+            }
+            reader.dropTables(request.inputTables);
+            try (ResultSet rs = connection.getMetaData().getTables(null, null,
+                    WpsExecuteReader.INPUT_TABLE_PREFIX + "%", null)) {
+                assertFalse(rs.next());
+            }
+        }
+    }
+
+    @Test
+    void testInvalidRequest(@TempDir Path temporaryDirectory) throws Exception {
+        String xml = EXECUTE_START +
+                input("levels", "<wps:ComplexData mimeType=\"text/csv\">ID,LEVEL\n1,42.5\n</wps:ComplexData>") +
+                "    <wps:Input><ows:Identifier>file</ows:Identifier>" +
+                "<wps:Reference xlink:href=\"file:///etc/hosts\"/></wps:Input>\n" +
+                "  </wps:DataInputs>\n</wps:Execute>";
+        try (HikariDataSource dataSource = DatabaseManagement.createH2DataSource(temporaryDirectory.toString(),
+                "user", "sa", "sa", "", true);
+             Connection connection = dataSource.getConnection()) {
+            WpsExecuteReader reader = new WpsExecuteReader(dataSource, temporaryDirectory.resolve("spool"));
+            // The references are only downloaded by importReferences
+            WpsExecuteReader.ExecuteRequest request = reader.read(
+                    new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+            assertEquals(1, request.inputTables.size());
+            assertEquals(1, request.references.size());
+            assertFalse(request.inputs.containsKey("file"));
+            assertThrows(IllegalArgumentException.class, () -> reader.importReferences(request));
+            // The tables of the inputs read before the error are removed
+            try (ResultSet rs = connection.getMetaData().getTables(null, null,
+                    WpsExecuteReader.INPUT_TABLE_PREFIX + "%", null)) {
+                assertFalse(rs.next());
+            }
+            assertThrows(IllegalArgumentException.class, () -> reader.read(new ByteArrayInputStream(
+                    "<wps:GetCapabilities xmlns:wps=\"http://www.opengis.net/wps/1.0.0\"/>"
+                            .getBytes(StandardCharsets.UTF_8))));
+        }
+    }
+}
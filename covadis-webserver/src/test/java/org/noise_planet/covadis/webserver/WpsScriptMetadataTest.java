@@ -15,6 +15,7 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.noise_planet.covadis.webserver.script.ScriptInput;
 import org.noise_planet.covadis.webserver.script.ScriptOutput;
+import org.noise_planet.covadis.webserver.script.ScriptResources;
 import org.noise_planet.covadis.webserver.script.ScriptMetadata;
 import org.noise_planet.covadis.webserver.script.WpsScriptWrapper;
 
@@ -110,4 +111,31 @@ class WpsScriptMetadataTest {
         String message = (String) result;
         assertEquals("Done! Table TEST_CONFIG has been created.", message);
     }
+
+    /**
+     * The resources declared in the script metadata are resolved with the job inputs
+     */
+    @Test
+    void testScriptResources() {
+        assertFalse(ScriptResources.fromMetadata(null).declared);
+        assertEquals(0, ScriptResources.UNDECLARED.getRequiredThreads(Map.of(), 8));
+        assertEquals(0, ScriptResources.UNDECLARED.getRequiredHeap(Map.of()));
+
+        ScriptResources resources = ScriptResources.fromMetadata(
+                Map.of("threads", 0, "threadsInput", "confThreadNumber", "heap", 2048, "heapInput", "confJobHeap"));
+        assertTrue(resources.declared);
+        assertEquals(2048, resources.getRequiredHeap(Map.of()));
+        assertEquals(40960, resources.getRequiredHeap(Map.of("confJobHeap", "40960")));
+        // 0 is all the cores
+        assertEquals(8, resources.getRequiredThreads(Map.of(), 8));
+        assertEquals(8, resources.getRequiredThreads(Map.of("confThreadNumber", "0"), 8));
+        assertEquals(2, resources.getRequiredThreads(Map.of("confThreadNumber", "2"), 8));
+        // can not use more than the server cores
+        assertEquals(8, resources.getRequiredThreads(Map.of("confThreadNumber", 16), 8));
+        // The prediction replaces the declared heap in the server process, a job process heap is never lowered
+        assertEquals(1024, resources.getRequiredHeap(Map.of(), 1024));
+        assertEquals(2048, resources.getProcessHeap(Map.of(), 1024));
+        assertEquals(3072, resources.getProcessHeap(Map.of(), 3072));
+        assertEquals(40960, resources.getProcessHeap(Map.of("confJobHeap", "40960"), 3072));
+    }
 }
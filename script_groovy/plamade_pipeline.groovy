@@ -0,0 +1,69 @@
+/**
+ * NoiseModelling is an open-source tool designed to produce environmental noise maps on very large urban areas. It can be used as a Java library or be controlled through a user friendly web interface.
+ *
+ * This version is developed by the DECIDE team from the Lab-STICC (CNRS) and by the Mixt Research Unit in Environmental Acoustics (Université Gustave Eiffel).
+ * <http://noise-planet.org/noisemodelling.html>
+ *
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ *
+ * Contact: contact@noise-planet.org
+ *
+ */
+
+/**
+ * PlaMADE chain of a department, run with the Pipeline:Run_Pipeline script.
+ *
+ * Parameters: databaseUser, databasePassword, inputServer (cerema or cloud), inseeDepartment, fetchDistance, confId,
+ * batchSize.
+ *
+ * Road and rail are computed at the same time once the receivers and the emission are ready. The isosurface and
+ * indicator scripts use the same working tables for road and rail (ISO_AREA, LDEN_GEOM_INFRA...), the lock only lets
+ * one of them run at a time, the road isosurface running next to the rail indicators for instance.
+ */
+
+title = 'PlaMADE department'
+
+steps = [
+        extract        : [script   : 's1_Extract_Department.groovy',
+                          inputs   : [databaseUser    : '${databaseUser}', databasePassword: '${databasePassword}',
+                                      inputServer     : '${inputServer}', inseeDepartment: '${inseeDepartment}',
+                                      fetchDistance   : '${fetchDistance}']],
+        receivers      : [script   : 's2_Receivers_Grid.groovy',
+                          inputs   : [confId: '${confId}'],
+                          dependsOn: ['extract'],
+                          outputs  : [receivers: 'RECEIVERS', triangles: 'TRIANGLES']],
+        emission       : [script   : 's3_Emission_Noise_level.groovy',
+                          inputs   : [confId: '${confId}'],
+                          dependsOn: ['extract'],
+                          outputs  : [roads: 'LW_ROADS', rails: 'LW_RAILWAY']],
+        road           : [script   : 's4_Road_Noise_level.groovy',
+                          inputs   : [confId: '${confId}', sources: '${emission.roads}',
+                                      receivers: '${receivers.receivers}'],
+                          dependsOn: ['receivers', 'emission'],
+                          outputs  : [lden: 'LDEN_ROADS', lnight: 'LNIGHT_ROADS']],
+        rail           : [script   : 's4_Rail_Noise_level.groovy',
+                          inputs   : [confId: '${confId}', sources: '${emission.rails}',
+                                      receivers: '${receivers.receivers}'],
+                          dependsOn: ['receivers', 'emission'],
+                          outputs  : [lden: 'LDEN_RAILWAY', lnight: 'LNIGHT_RAILWAY']],
+        road_isosurface: [script   : 's5_Isosurface.groovy',
+                          inputs   : [rail_or_road: 2, lden: '${road.lden}', lnight: '${road.lnight}'],
+                          dependsOn: ['road'],
+                          lock     : 'isosurface'],
+        rail_isosurface: [script   : 's5_Isosurface.groovy',
+                          inputs   : [rail_or_road: 1, lden: '${rail.lden}', lnight: '${rail.lnight}'],
+                          dependsOn: ['rail'],
+                          lock     : 'isosurface'],
+        road_indicators: [script   : 's6_Output_indicators.groovy',
+                          inputs   : [rail_or_road: 2, lden: '${road.lden}', lnight: '${road.lnight}'],
+                          dependsOn: ['road'],
+                          lock     : 'indicators'],
+        rail_indicators: [script   : 's6_Output_indicators.groovy',
+                          inputs   : [rail_or_road: 1, lden: '${rail.lden}', lnight: '${rail.lnight}'],
+                          dependsOn: ['rail'],
+                          lock     : 'indicators'],
+        export         : [script   : 's7_Export.groovy',
+                          inputs   : [databaseUser: '${databaseUser}', databasePassword: '${databasePassword}',
+                                      inputServer : '${inputServer}', batchSize: '${batchSize}'],
+                          dependsOn: ['road_isosurface', 'rail_isosurface', 'road_indicators', 'rail_indicators']]
+]
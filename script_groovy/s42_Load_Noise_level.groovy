@@ -29,17 +29,14 @@
 
 
 import groovy.sql.Sql
-import groovy.transform.CompileStatic
-import org.h2.util.ScriptReader
 import org.h2gis.api.ProgressVisitor
 import org.h2gis.utilities.wrapper.ConnectionWrapper
-import org.noise_planet.noisemodelling.pathfinder.RootProgressVisitor
+import org.noise_planet.covadis.webserver.script.SqlDumpLoader
+import org.noise_planet.noisemodelling.pathfinder.utils.profiler.RootProgressVisitor
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
-import java.nio.file.Files
 import java.sql.Connection
-import java.util.zip.GZIPInputStream
 
 title = 'Load SQL File LDay,Levening,LNight,Lden'
 description = ''
@@ -77,31 +74,6 @@ def run(input) {
     }
 }
 
-@CompileStatic
-static def parseScript(File scriptFile, Sql sql, ProgressVisitor progressLogger, boolean compressed) {
-    long scriptFileSize = Files.size(scriptFile.toPath())
-    int BUFFER_LENGTH = 65536
-    ProgressVisitor subProgress = progressLogger.subProcess((int)(scriptFileSize / BUFFER_LENGTH))
-    Reader reader = null
-    try {
-        FileInputStream s = new FileInputStream(scriptFile)
-        InputStream is = s
-        if(compressed) {
-            is = new GZIPInputStream(s, BUFFER_LENGTH)
-        }
-        reader  = new BufferedReader(new InputStreamReader(is))
-        ScriptReader scriptReader = new ScriptReader(reader)
-        String statement = scriptReader.readStatement()
-        while (statement != null) {
-            sql.execute(statement)
-            subProgress.setStep((int)(s.getChannel().position() / BUFFER_LENGTH))
-            statement = scriptReader.readStatement()
-        }
-    } finally {
-        reader.close()
-    }
-}
-
 // main function of the script
 def exec(Connection connection, input) {
     //Need to change the ConnectionWrapper to WpsConnectionWrapper to work under postGIS database
@@ -141,10 +113,11 @@ def exec(Connection connection, input) {
     }
 
 
-    parseScript(scriptFile, sql, progressLogger, true)
+    // Multi-row batched inserts, the file is decompressed and parsed on another thread
+    long rows = new SqlDumpLoader(connection).load(scriptFile, true, progressLogger)
 
 
-    resultString = "Calculation Done ! "
+    resultString = "Calculation Done ! " + rows + " rows loaded"
 
     // print to command window
     logger.info('Result : ' + resultString)
@@ -28,39 +28,30 @@
 package org.noise_planet.noisemodelling.wps.plamade
 
 import groovy.sql.Sql
-import groovy.time.TimeCategory
-import org.h2gis.functions.spatial.edit.ST_AddZ
-import org.h2gis.utilities.GeometryTableUtilities
-import org.h2gis.utilities.dbtypes.DBTypes
-import org.h2gis.utilities.dbtypes.DBUtils
-import org.noise_planet.noisemodelling.pathfinder.utils.JVMMemoryMetric
-import org.noise_planet.noisemodelling.pathfinder.utils.ProfilerThread
-import org.noise_planet.noisemodelling.pathfinder.utils.ProgressMetric
-import org.noise_planet.noisemodelling.pathfinder.utils.ReceiverStatsMetric
-
-import org.h2gis.api.EmptyProgressVisitor
+import groovy.transform.Field
 import org.h2gis.api.ProgressVisitor
-
+import org.h2gis.utilities.GeometryTableUtilities
 import org.h2gis.utilities.JDBCUtilities
 import org.h2gis.utilities.TableLocation
-import org.h2gis.utilities.SpatialResultSet
+import org.h2gis.utilities.dbtypes.DBTypes
+import org.h2gis.utilities.dbtypes.DBUtils
 import org.h2gis.utilities.wrapper.ConnectionWrapper
-
-import org.locationtech.jts.geom.Geometry
-import org.locationtech.jts.geom.LineString
-
-import org.noise_planet.noisemodelling.emission.*
-import org.noise_planet.noisemodelling.pathfinder.*
-import org.noise_planet.noisemodelling.propagation.*
-import org.noise_planet.noisemodelling.jdbc.*
-
+import org.noise_planet.covadis.webserver.script.CellCheckpoints
+import org.noise_planet.covadis.webserver.script.CellCostModel
+import org.noise_planet.covadis.webserver.script.ParallelCellDriver
+import org.noise_planet.noisemodelling.jdbc.NoiseMapByReceiverMaker
+import org.noise_planet.noisemodelling.jdbc.NoiseMapDatabaseParameters
+import org.noise_planet.noisemodelling.jdbc.input.DefaultTableLoader
+import org.noise_planet.noisemodelling.pathfinder.utils.profiler.RootProgressVisitor
+import org.noise_planet.noisemodelling.propagation.AttenuationParameters
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
+import javax.sql.DataSource
 import java.sql.Connection
-import java.sql.PreparedStatement
 import java.sql.SQLException
-
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
 
 title = 'Compute LDay, Levening, LNight and Lden from rail traffic'
 description = 'Compute Lday noise map from Day Evening Night rail traffic flow rate and speed estimates (specific format, see input details).' +
@@ -77,6 +68,22 @@ inputs = [
                 title      : 'Global configuration Identifier',
                 description: 'Id of the global configuration used for this process',
                 type: Integer.class
+        ],
+        cellsInFlight: [
+                name       : 'Cells in flight',
+                title      : 'Cells in flight',
+                description: 'Number of computation cells evaluated at the same time, the next cells are loaded during' +
+                        ' the propagation of the current one (default 2)',
+                min        : 0, max: 1,
+                type: Integer.class
+        ],
+        archiveResults: [
+                name       : 'Archive the results',
+                title      : 'Archive the results',
+                description: 'Also write the result tables into the Rail_Noise_level.sql.gz file of the working directory,' +
+                        ' it can be loaded into another database with s42_Load_Noise_level (default false)',
+                min        : 0, max: 1,
+                type: Boolean.class
         ]
 ]
 
@@ -89,6 +96,18 @@ outputs = [
         ]
 ]
 
+// Name of the cell checkpoints of this computation, see CellCheckpoints
+@Field static final String CHECKPOINT_COMPUTATION = "RAILWAY"
+@Field static final String BATCH_SUFFIX = "_BATCH"
+// Cell of each receiver
+@Field static final String CELL_INDEX_TABLE = "RECEIVERS_RAILWAY_CELL"
+// Receivers and levels of a cell in flight, followed by the cell identifier
+@Field static final String CELL_RECEIVERS_PREFIX = "RECEIVERS_RAILWAY_CELL_"
+@Field static final String CELL_LEVELS_PREFIX = "LEVELS_RAILWAY_CELL_"
+// Range of the number of cells on each side of the domain, chosen from the receivers and sources density
+@Field static final int MIN_GRID_DIM = 10
+@Field static final int MAX_GRID_DIM = 250
+
 // run the script
 def run(input) {
 
@@ -104,6 +123,74 @@ def run(input) {
     }
 }
 
+/**
+ * Propagation of one cell. Each cell in flight has its own noise map, the noise maps are not thread safe.
+ */
+NoiseMapByReceiverMaker createNoiseMap(String buildingsTable, String sourcesTable, String receiversTable,
+                                       String levelsTable, Map conf) {
+    NoiseMapByReceiverMaker noiseMap = new NoiseMapByReceiverMaker(buildingsTable, sourcesTable, receiversTable)
+    NoiseMapDatabaseParameters parameters = noiseMap.getNoiseMapDatabaseParameters()
+    parameters.setMergeSources(!conf.exportSourceId)
+    parameters.exportReceiverPosition = true
+    parameters.receiversLevelTable = levelsTable
+    // Do not propagate for low emission or far away sources
+    // Maximum error in dB
+    parameters.setMaximumError(0.2d)
+    // Add train directivity
+    noiseMap.sceneInputSettings.setUseTrainDirectivity(true)
+    noiseMap.setComputeHorizontalDiffraction(conf.horizontalDiffraction as boolean)
+    noiseMap.setComputeVerticalDiffraction(conf.verticalDiffraction as boolean)
+    noiseMap.setSoundReflectionOrder(conf.reflectionOrder as int)
+    noiseMap.setGs(1.0)
+    noiseMap.setFrequencyFieldPrepend("HZ")
+
+    // Set environmental parameters
+    AttenuationParameters environmentalData = ((DefaultTableLoader) noiseMap.tableLoader).defaultParameters
+    environmentalData.setHumidity(conf.humidity as double)
+    environmentalData.setTemperature(conf.temperature as double)
+    // The parameters of the cells in flight do not share any array
+    environmentalData.setWindRose((conf.windRose as double[]).clone())
+
+    // Building height field name
+    noiseMap.setHeightField("HEIGHT")
+    // Import table with Snow, Forest, Grass, Pasture field polygons. Attribute G is associated with each polygon
+    if (conf.groundTable != "") {
+        noiseMap.setSoilTableName(conf.groundTable as String)
+    }
+    // Point cloud height above sea level POINT(X Y Z)
+    if (conf.demTable != "") {
+        noiseMap.setDemTable(conf.demTable as String)
+    }
+    noiseMap.setMaximumPropagationDistance(conf.maxSourceDistance as double)
+    noiseMap.setMaximumReflectionDistance(conf.maxReflectionDistance as double)
+    noiseMap.setWallAbsorption(conf.wallAlpha as double)
+    noiseMap.setThreadCount(conf.threadCount as int)
+    return noiseMap
+}
+
+/**
+ * Write the cell of each receiver in the cell index table, the cells of the cost model grid
+ * @return Estimated cost by cell identifier
+ */
+Map<String, Double> prepareCells(Connection connection, CellCostModel costModel, int gridDim, String receiversTable,
+                                 String receiversPk, String receiversGeom) {
+    Sql sql = new Sql(connection)
+    double[][] cellCosts = costModel.getCellCosts(gridDim)
+    Map<String, Double> cells = new HashMap<>()
+    sql.execute("DROP TABLE IF EXISTS " + CELL_INDEX_TABLE)
+    sql.execute("CREATE TABLE " + CELL_INDEX_TABLE + "(PK BIGINT PRIMARY KEY, CELL VARCHAR)")
+    sql.withBatch(1000, "INSERT INTO " + CELL_INDEX_TABLE + " VALUES (?, ?)") { ps ->
+        sql.eachRow("SELECT " + receiversPk + " PK, ST_X(" + receiversGeom + ") X, ST_Y(" + receiversGeom +
+                ") Y FROM " + receiversTable) { row ->
+            int[] cellIndex = costModel.getCellIndex(row.X as double, row.Y as double, gridDim)
+            String cell = CellCheckpoints.cellId(cellIndex[0], cellIndex[1])
+            cells.put(cell, cellCosts[cellIndex[0]][cellIndex[1]])
+            ps.addBatch(row.PK as Long, cell)
+        }
+    }
+    return cells
+}
+
 // main function of the script
 def exec(Connection connection, input) {
     //Need to change the ConnectionWrapper to WpsConnectionWrapper to work under postGIS database
@@ -149,7 +236,7 @@ def exec(Connection connection, input) {
 
     //Get the geometry field of the source table
     TableLocation sourceTableIdentifier = TableLocation.parse(rail_sections)
-    List<String> geomFields = SFSUtilities.getGeometryFields(connection, sourceTableIdentifier)
+    List<String> geomFields = GeometryTableUtilities.getGeometryColumnNames(connection, sourceTableIdentifier)
     if (geomFields.isEmpty()) {
         throw new SQLException(String.format("The table %s does not exists or does not contain a geometry field", sourceTableIdentifier))
     }
@@ -269,180 +356,199 @@ def exec(Connection connection, input) {
     logger.info(String.format("PARAM : The pfav values are %s ", confFavorableOccurrences));
  
 
-    // -------------------------
-    // Initialize some variables
-    // -------------------------
-
-    // Set of already processed receivers
-    Set<Long> receivers = new HashSet<>()
-
-
     // --------------------------------------------
     // Initialize NoiseModelling propagation part
     // --------------------------------------------
 
     String sources_table_name = "LW_RAILWAY"
-    PointNoiseMap pointNoiseMap = new PointNoiseMap(building_table_name, sources_table_name, receivers_table_name)
-
-    LDENConfig ldenConfig_propa = new LDENConfig(LDENConfig.INPUT_MODE.INPUT_MODE_LW_DEN)
-
-    ldenConfig_propa.setComputeLDay(!confSkipLday)
-    ldenConfig_propa.setComputeLEvening(!confSkipLevening)
-    ldenConfig_propa.setComputeLNight(!confSkipLnight)
-    ldenConfig_propa.setComputeLDEN(!confSkipLden)
-    ldenConfig_propa.setMergeSources(!confExportSourceId)
-    ldenConfig_propa.setlDayTable("LDAY_RAILWAY")
-    ldenConfig_propa.setlEveningTable("LEVENING_RAILWAY")
-    ldenConfig_propa.setlNightTable("LNIGHT_RAILWAY")
-    ldenConfig_propa.setlDenTable("LDEN_RAILWAY")
-
-    LDENPointNoiseMapFactory ldenProcessing = new LDENPointNoiseMapFactory(connection, ldenConfig_propa)
-    // Add train directivity
-    // TODO add optional discrete directivity table name
-    ldenProcessing.insertTrainDirectivity()
-    pointNoiseMap.setComputeHorizontalDiffraction(compute_horizontal_diffraction)
-    pointNoiseMap.setComputeVerticalDiffraction(compute_vertical_diffraction)
-    pointNoiseMap.setSoundReflectionOrder(reflexion_order)
-    pointNoiseMap.setGs(1.0)
-
-    // Set environmental parameters
-    PropagationProcessPathData environmentalData = new PropagationProcessPathData(false)
 
-    
-    environmentalData.setHumidity(confHumidity)
-    environmentalData.setTemperature(confTemperature)
-    
-    
-        StringTokenizer tk = new StringTokenizer(confFavorableOccurrences, ',')
-        double[] favOccurrences = new double[PropagationProcessPathData.DEFAULT_WIND_ROSE.length]
-        for (int i = 0; i < favOccurrences.length; i++) {
-            favOccurrences[i] = Math.max(0, Math.min(1, Double.valueOf(tk.nextToken().trim())))
-        }
-        environmentalData.setWindRose(favOccurrences)
-    
-
-    pointNoiseMap.setPropagationProcessPathData(environmentalData)
+    StringTokenizer tk = new StringTokenizer(confFavorableOccurrences, ',')
+    double[] favOccurrences = new double[AttenuationParameters.DEFAULT_WIND_ROSE.length]
+    for (int i = 0; i < favOccurrences.length; i++) {
+        favOccurrences[i] = Math.max(0, Math.min(1, Double.valueOf(tk.nextToken().trim())))
+    }
 
-    // Building height field name
-    pointNoiseMap.setHeightField("HEIGHT")
-    // Import table with Snow, Forest, Grass, Pasture field polygons. Attribute G is associated with each polygon
-    if (ground_table_name != "") {
-        pointNoiseMap.setSoilTableName(ground_table_name)
+    // Parameters of the noise map of each cell
+    Map noiseMapConf = [exportSourceId       : confExportSourceId,
+                        horizontalDiffraction: compute_horizontal_diffraction,
+                        verticalDiffraction  : compute_vertical_diffraction,
+                        reflectionOrder      : reflexion_order,
+                        humidity             : confHumidity,
+                        temperature          : confTemperature,
+                        windRose             : favOccurrences,
+                        groundTable          : ground_table_name,
+                        demTable             : dem_table_name,
+                        maxSourceDistance    : max_src_dist,
+                        maxReflectionDistance: max_ref_dist,
+                        wallAlpha            : wall_alpha,
+                        threadCount          : n_thread]
+
+    // Result table by NoiseModelling period
+    Map<String, String> resultTables = new LinkedHashMap<>()
+    if (!confSkipLday) {
+        resultTables.put("D", "LDAY_RAILWAY")
     }
-    // Point cloud height above sea level POINT(X Y Z)
-    if (dem_table_name != "") {
-        pointNoiseMap.setDemTable(dem_table_name)
+    if (!confSkipLevening) {
+        resultTables.put("E", "LEVENING_RAILWAY")
+    }
+    if (!confSkipLnight) {
+        resultTables.put("N", "LNIGHT_RAILWAY")
+    }
+    if (!confSkipLden) {
+        resultTables.put("DEN", "LDEN_RAILWAY")
     }
 
-    pointNoiseMap.setMaximumPropagationDistance(max_src_dist)
-    pointNoiseMap.setMaximumReflectionDistance(max_ref_dist)
-    pointNoiseMap.setWallAbsorption(wall_alpha)
-    pointNoiseMap.setThreadCount(n_thread)
-
-    // Do not propagate for low emission or far away sources
-    // Maximum error in dB
+    // Cell size of the lowest estimated duration, dense areas need small cells and sparse areas large cells
+    CellCostModel costModel = CellCostModel.load(connection, receivers_table_name, sources_table_name, max_src_dist)
+    int gridDim = costModel.chooseGridDim(MIN_GRID_DIM, MAX_GRID_DIM, ParallelCellDriver.DEFAULT_CELLS_IN_FLIGHT)
+    logger.info(String.format("Grid of %dx%d cells, %s", gridDim, gridDim,
+            CellCostModel.formatStatistics(CellCostModel.getStatistics(costModel.getCellCosts(gridDim)))))
+    // Estimated cost and duration of each cell
+    String costReportTable = "CELL_COSTS_" + CHECKPOINT_COMPUTATION
+    costModel.writeReport(connection, costReportTable, gridDim, sridReceivers)
+    String receiversPk = JDBCUtilities.getColumnName(connection, receivers_table_name, pkIndexRecv)
+    String receiversGeom = geomFieldsRcv.get(0)
+    Map<String, Double> cells = prepareCells(connection, costModel, gridDim, receivers_table_name, receiversPk,
+            receiversGeom)
 
     // --------------------------------------------
-    // Initialize NoiseModelling emission part
+    // Resume a previous run
     // --------------------------------------------
 
-    pointNoiseMap.setComputeRaysOutFactory(ldenProcessing)
-    pointNoiseMap.setPropagationProcessDataFactory(ldenProcessing)
-
-
-    // Do not propagate for low emission or far away sources
-    // Maximum error in dB
-    pointNoiseMap.setMaximumError(0.2d)
-    // NoiseFloor ?
-    //pointNoiseMap.setNoiseFloor(40d);
-
-    // Init Map
-    pointNoiseMap.initialize(connection, new EmptyProgressVisitor())
+    // The cells completed by a previous run with the same inputs and tables are skipped
+    String computationKey = CellCheckpoints.computeKey(connection, "s4_Rail_Noise_level",
+            (input as Map).findAll { !(it.key in ["cellsInFlight", "archiveResults"]) } + [gridDim: gridDim],
+            [sources_table_name, receivers_table_name, building_table_name, dem_table_name, ground_table_name,
+             "CONF", "ZONE"])
+    CellCheckpoints.prepare(connection, CHECKPOINT_COMPUTATION, computationKey)
+    Set<String> completedCells = CellCheckpoints.getCompletedCells(connection, CHECKPOINT_COMPUTATION,
+            new HashSet<Long>())
+    resultTables.values().each { resultTable ->
+        // Results of the cells not completed by the previous run
+        sql.execute("DROP TABLE IF EXISTS " + resultTable + BATCH_SUFFIX)
+        if (completedCells.isEmpty()) {
+            sql.execute("DROP TABLE IF EXISTS " + resultTable)
+        }
+    }
+    if (!completedCells.isEmpty()) {
+        logger.info(String.format("Resume the computation, %d cells already computed", completedCells.size()))
+    }
 
     // --------------------------------------------
     // Run Calculations
     // --------------------------------------------
 
-    // --------------------------------------------
-    // Initialize NoiseModelling emission part
-    // --------------------------------------------
-    pointNoiseMap.setComputeRaysOutFactory(ldenProcessing)
-    pointNoiseMap.setPropagationProcessDataFactory(ldenProcessing)
-
- 
-    // Init Map
-    pointNoiseMap.initialize(connection, new EmptyProgressVisitor())
-
-    pointNoiseMap.setGridDim(25)
-    logger.info("Taille de cellulle : " + pointNoiseMap.getCellWidth().toString())
-
-    // --------------------------------------------
-    // Run Calculations
-    // --------------------------------------------
+    logger.info("Start calculation... ")
 
-    // Init ProgressLogger (loading bar)
-    RootProgressVisitor progressLogger = new RootProgressVisitor(1, true, 1)
+    ProgressVisitor progressLogger
 
+    if("progressVisitor" in input) {
+        progressLogger = input["progressVisitor"] as ProgressVisitor
+    } else {
+        progressLogger = new RootProgressVisitor(1, true, 1);
+    }
 
-    logger.info("Start calculation... ")
-    ProfilerThread profilerThread = new ProfilerThread(new File("profile.csv"));
-    profilerThread.addMetric(ldenProcessing);
-    profilerThread.addMetric(new ProgressMetric(progressLogger))
-    profilerThread.addMetric(new JVMMemoryMetric())
-    profilerThread.addMetric(new ReceiverStatsMetric())
-    pointNoiseMap.setProfilerThread(profilerThread);
-
-    try {
-        ldenProcessing.start()
-        new Thread(profilerThread).start();
-        // Iterate over computation areas
-        int k = 0
-        Map cells = pointNoiseMap.searchPopulatedCells(connection)
-        ProgressVisitor progressVisitor = progressLogger.subProcess(cells.size())
-        new TreeSet<>(cells.keySet()).each { cellIndex ->
-            // Run ray propagation
-            logger.info(String.format("Compute... %.3f %% (%d receivers in this cell)", 100 * k++ / cells.size(), cells.get(cellIndex)))
-            IComputeRaysOut ro = pointNoiseMap.evaluateCell(connection, cellIndex.getLatitudeIndex(), cellIndex.getLongitudeIndex(), progressVisitor, receivers)
-            if (ro instanceof LDENComputeRaysOut) {
-                LDENPropagationProcessData ldenPropagationProcessData = (LDENPropagationProcessData) ro.inputData;
-                logger.info(String.format("This computation area contains %d receivers %d sound sources and %d buildings",
-                        ldenPropagationProcessData.receivers.size(), ldenPropagationProcessData.sourceGeometries.size(),
-                        ldenPropagationProcessData.freeFieldFinder.getBuildingCount()));
-            }
-        }
-    } catch(IllegalArgumentException | IllegalStateException ex) {
-        System.err.println(ex);
-        throw ex;
-    } finally {
-        profilerThread.stop();
-        ldenProcessing.stop()
+    File archiveFile
+    if("workingDirectory" in input) {
+        archiveFile = new File(new File(input["workingDirectory"] as String), "Rail_Noise_level.sql.gz")
+    } else {
+        archiveFile = new File("Rail_Noise_level.sql.gz")
     }
-    
-    // Associate Geometry column to the table LDEN
-    StringBuilder createdTables = new StringBuilder()
 
-    if (ldenConfig_propa.computeLDay) {
-        createdTables.append(" LDAY_RAILWAY")
+    List<String> pendingCells = cells.keySet().findAll { !completedCells.contains(it) }.toList()
+    // Most expensive cells first, the cheap ones fill the end of the computation
+    pendingCells.sort { cell -> -cells.get(cell) }
+    Map<String, Long> cellDurations = new ConcurrentHashMap<>()
+    AtomicInteger evaluatedCells = new AtomicInteger(cells.size() - pendingCells.size())
+    ProgressVisitor progressVisitor = progressLogger.subProcess(pendingCells.size())
+    Map handler = [
+            evaluate: { Connection cellConnection, String cell ->
+                // The receivers and the levels of the cell are in their own tables
+                long cellStart = System.currentTimeMillis()
+                Sql cellSql = new Sql(cellConnection)
+                String cellReceiversTable = CELL_RECEIVERS_PREFIX + cell
+                String cellLevelsTable = CELL_LEVELS_PREFIX + cell
+                cellSql.execute("DROP TABLE IF EXISTS " + cellReceiversTable)
+                cellSql.execute("CREATE TABLE " + cellReceiversTable + " AS SELECT R.* FROM " + receivers_table_name +
+                        " R, " + CELL_INDEX_TABLE + " C WHERE R." + receiversPk + " = C.PK AND C.CELL = '" + cell + "'")
+                cellSql.execute("ALTER TABLE " + cellReceiversTable + " ADD PRIMARY KEY (" + receiversPk + ")")
+                if (dbTypes == DBTypes.POSTGIS) {
+                    cellSql.execute("CREATE INDEX ON " + cellReceiversTable + " USING GIST(" + receiversGeom + ")")
+                } else {
+                    cellSql.execute("CREATE SPATIAL INDEX ON " + cellReceiversTable + "(" + receiversGeom + ")")
+                }
+                cellSql.execute("DROP TABLE IF EXISTS " + cellLevelsTable)
+                int k = evaluatedCells.incrementAndGet()
+                logger.info(String.format("Compute... %.3f %% (cell %s)", 100 * (k - 1) / cells.size(), cell))
+                // Run ray propagation
+                createNoiseMap(building_table_name, sources_table_name, cellReceiversTable, cellLevelsTable,
+                        noiseMapConf).run(new ConnectionWrapper(cellConnection), progressVisitor)
+                cellSql.execute("DROP TABLE IF EXISTS " + cellReceiversTable)
+                cellDurations.put(cell, System.currentTimeMillis() - cellStart)
+            },
+            completed: { String cell ->
+                String cellLevelsTable = CELL_LEVELS_PREFIX + cell
+                if (!progressLogger.isCanceled()) {
+                    // A cell completed after the cancel may be incomplete
+                    Map<String, String> batchTables = new LinkedHashMap<>()
+                    if (JDBCUtilities.tableExists(connection, TableLocation.parse(cellLevelsTable, dbTypes))) {
+                        // Split the levels of the cell by period
+                        String columns = JDBCUtilities.getColumnNames(connection, cellLevelsTable)
+                                .findAll { !it.equalsIgnoreCase("PERIOD") }.join(", ")
+                        resultTables.each { period, resultTable ->
+                            String batchTable = resultTable + BATCH_SUFFIX
+                            sql.execute("DROP TABLE IF EXISTS " + batchTable)
+                            sql.execute("CREATE TABLE " + batchTable + " AS SELECT " + columns + " FROM " +
+                                    cellLevelsTable + " WHERE PERIOD = '" + period + "'")
+                            batchTables.put(batchTable, resultTable)
+                        }
+                    }
+                    List<Long> cellReceivers = sql.rows("SELECT PK FROM " + CELL_INDEX_TABLE + " WHERE CELL = ?",
+                            [cell]).collect { it.PK as Long }
+                    // Write the results of the cell, then checkpoint it
+                    CellCheckpoints.commitBatch(connection, CHECKPOINT_COMPUTATION, computationKey,
+                            [(cell): cellReceivers], batchTables)
+                }
+                sql.execute("DROP TABLE IF EXISTS " + cellLevelsTable)
+            }
+    ]
+    ParallelCellDriver driver = new ParallelCellDriver(input["_dataSource"] as DataSource, connection,
+            input["cellsInFlight"] ? input["cellsInFlight"] as Integer : ParallelCellDriver.DEFAULT_CELLS_IN_FLIGHT)
+    logger.info(String.format("%d cells to compute, %d cells in flight", pendingCells.size(), driver.getCellsInFlight()))
+    driver.run(pendingCells, handler as ParallelCellDriver.CellHandler, progressLogger)
+    if (progressLogger.isCanceled()) {
+        throw new IllegalStateException("The computation has been canceled, the completed cells will be skipped" +
+                " by the next run")
     }
-    if (ldenConfig_propa.computeLEvening) {
-        createdTables.append(" LEVENING_RAILWAY")
+    sql.withBatch(100, "UPDATE " + costReportTable + " SET DURATION = ? WHERE CELL = ?") { ps ->
+        cellDurations.each { cell, duration -> ps.addBatch(duration, cell) }
     }
-    if (ldenConfig_propa.computeLNight) {
-        createdTables.append(" LNIGHT_RAILWAY")
+    // All the cells are in the result tables
+    CellCheckpoints.clear(connection, CHECKPOINT_COMPUTATION)
+    sql.execute("DROP TABLE IF EXISTS " + CELL_INDEX_TABLE)
+    resultTables.values().each { resultTable ->
+        if (!JDBCUtilities.tableExists(connection, TableLocation.parse(resultTable, dbTypes))) {
+            // No cell to compute
+            sql.execute("CREATE TABLE " + resultTable + "(IDRECEIVER BIGINT, THE_GEOM GEOMETRY)")
+        }
     }
-    if (ldenConfig_propa.computeLDEN) {
-        createdTables.append(" LDEN_RAILWAY")
+
+    String createdTables = " " + resultTables.values().join(" ")
+
+    if (input["archiveResults"]) {
+        // Optional copy of the results, the tables are replaced when the file is loaded
+        sql.execute("SCRIPT NOSETTINGS DROP TO '" + archiveFile.absolutePath.replace("'", "''") + "' COMPRESSION GZIP TABLE " +
+                resultTables.values().join(", "))
+        logger.info("The result tables have been archived into " + archiveFile.absolutePath)
     }
 
     sql.execute(String.format("UPDATE metadata SET rail_end = NOW();"))
 
-    resultString = "Calculation Done ! " + createdTables.toString() + " table(s) have been created."
+    resultString = "Calculation Done ! " + createdTables + " table(s) have been created."
 
     // print to command window
     logger.info('Result : ' + resultString)
     logger.info('End : LDAY from Traffic')
-
     // print to WPS Builder
     return resultString
-
 }
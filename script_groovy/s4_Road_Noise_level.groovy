@@ -28,9 +28,7 @@
 package org.noise_planet.noisemodelling.wps.plamade
 
 import groovy.sql.Sql
-import groovy.transform.CompileStatic
-import org.h2.util.ScriptReader
-import org.h2gis.api.EmptyProgressVisitor
+import groovy.transform.Field
 import org.h2gis.api.ProgressVisitor
 import org.h2gis.utilities.GeometryTableUtilities
 import org.h2gis.utilities.JDBCUtilities
@@ -38,21 +36,22 @@ import org.h2gis.utilities.TableLocation
 import org.h2gis.utilities.dbtypes.DBTypes
 import org.h2gis.utilities.dbtypes.DBUtils
 import org.h2gis.utilities.wrapper.ConnectionWrapper
-import org.locationtech.jts.geom.Coordinate
-import org.noise_planet.noisemodelling.jdbc.*
-import org.noise_planet.noisemodelling.pathfinder.IComputeRaysOut
-import org.noise_planet.noisemodelling.pathfinder.RootProgressVisitor
-import org.noise_planet.noisemodelling.pathfinder.utils.*
-import org.noise_planet.noisemodelling.propagation.PropagationProcessPathData
+import org.noise_planet.covadis.webserver.script.CellCheckpoints
+import org.noise_planet.covadis.webserver.script.CellCostModel
+import org.noise_planet.covadis.webserver.script.ParallelCellDriver
+import org.noise_planet.noisemodelling.jdbc.NoiseMapByReceiverMaker
+import org.noise_planet.noisemodelling.jdbc.NoiseMapDatabaseParameters
+import org.noise_planet.noisemodelling.jdbc.input.DefaultTableLoader
+import org.noise_planet.noisemodelling.pathfinder.utils.profiler.RootProgressVisitor
+import org.noise_planet.noisemodelling.propagation.AttenuationParameters
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
-import java.nio.file.Files
+import javax.sql.DataSource
 import java.sql.Connection
 import java.sql.SQLException
-import java.time.LocalDateTime
-import java.time.format.DateTimeFormatter
-import java.util.zip.GZIPInputStream
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
 
 title = 'Compute LDay,Levening,LNight,Lden from road traffic'
 description = 'Compute Lday noise map from Day Evening Night traffic flow rate and speed estimates (specific format, see input details).' +
@@ -69,6 +68,22 @@ inputs = [
                 title      : 'Global configuration Identifier',
                 description: 'Id of the global configuration used for this process',
                 type: Integer.class
+        ],
+        cellsInFlight: [
+                name       : 'Cells in flight',
+                title      : 'Cells in flight',
+                description: 'Number of computation cells evaluated at the same time, the next cells are loaded during' +
+                        ' the propagation of the current one (default 2)',
+                min        : 0, max: 1,
+                type: Integer.class
+        ],
+        archiveResults: [
+                name       : 'Archive the results',
+                title      : 'Archive the results',
+                description: 'Also write the result tables into the Road_Noise_level.sql.gz file of the working directory,' +
+                        ' it can be loaded into another database with s42_Load_Noise_level (default false)',
+                min        : 0, max: 1,
+                type: Boolean.class
         ]
 ]
 
@@ -81,6 +96,19 @@ outputs = [
         ]
 ]
 
+
+// Name of the cell checkpoints of this computation, see CellCheckpoints
+@Field static final String CHECKPOINT_COMPUTATION = "ROADS"
+@Field static final String BATCH_SUFFIX = "_BATCH"
+// Cell of each receiver
+@Field static final String CELL_INDEX_TABLE = "RECEIVERS_ROADS_CELL"
+// Receivers and levels of a cell in flight, followed by the cell identifier
+@Field static final String CELL_RECEIVERS_PREFIX = "RECEIVERS_ROADS_CELL_"
+@Field static final String CELL_LEVELS_PREFIX = "LEVELS_ROADS_CELL_"
+// Range of the number of cells on each side of the domain, chosen from the receivers and sources density
+@Field static final int MIN_GRID_DIM = 10
+@Field static final int MAX_GRID_DIM = 250
+
 // run the script
 def run(input) {
 
@@ -96,66 +124,71 @@ def run(input) {
     }
 }
 
-void exportDomain(LDENPropagationProcessData inputData, String path, int epsg) {
-    System.println("Export domain : Cell number " + inputData.cellId.toString())
-    FileOutputStream outData = new FileOutputStream(path)
-    KMLDocument kmlDocument = new KMLDocument(outData)
-    kmlDocument.setInputCRS("EPSG:" + epsg.toString())
-    kmlDocument.writeHeader();
-    kmlDocument.setOffset(new Coordinate(0, 0, 0))
-    kmlDocument.writeTopographic(inputData.freeFieldFinder.getTriangles(), inputData.freeFieldFinder.getVertices())
-    kmlDocument.writeBuildings(inputData.freeFieldFinder)
-    kmlDocument.writeFooter()
-}
+/**
+ * Propagation of one cell. Each cell in flight has its own noise map, the noise maps are not thread safe.
+ */
+NoiseMapByReceiverMaker createNoiseMap(String buildingsTable, String sourcesTable, String receiversTable,
+                                       String levelsTable, Map conf) {
+    NoiseMapByReceiverMaker noiseMap = new NoiseMapByReceiverMaker(buildingsTable, sourcesTable, receiversTable)
+    NoiseMapDatabaseParameters parameters = noiseMap.getNoiseMapDatabaseParameters()
+    parameters.setMergeSources(!conf.exportSourceId)
+    parameters.exportReceiverPosition = true
+    parameters.receiversLevelTable = levelsTable
+    // Do not propagate for low emission or far away sources
+    // Maximum error in dB
+    parameters.setMaximumError(0.2d)
+    // Add train directivity
+    noiseMap.sceneInputSettings.setUseTrainDirectivity(true)
+    noiseMap.setComputeHorizontalDiffraction(conf.horizontalDiffraction as boolean)
+    noiseMap.setComputeVerticalDiffraction(conf.verticalDiffraction as boolean)
+    noiseMap.setSoundReflectionOrder(conf.reflectionOrder as int)
+    noiseMap.setFrequencyFieldPrepend("HZ")
 
-def forgeCreateTable(Sql sql, String tableName, LDENConfig ldenConfig, String geomField, String tableReceiver, String tableResult) {
-    // Create a logger to display messages in the geoserver logs and in the command prompt.
-    Logger logger = LoggerFactory.getLogger("org.noise_planet.noisemodelling")
+    // Set environmental parameters
+    AttenuationParameters environmentalData = ((DefaultTableLoader) noiseMap.tableLoader).defaultParameters
+    environmentalData.setHumidity(conf.humidity as double)
+    environmentalData.setTemperature(conf.temperature as double)
+    // The parameters of the cells in flight do not share any array
+    environmentalData.setWindRose((conf.windRose as double[]).clone())
 
-    StringBuilder sb = new StringBuilder("create table ");
-    sb.append(tableName);
-    if (!ldenConfig.mergeSources) {
-        sb.append(" (IDRECEIVER bigint NOT NULL");
-        sb.append(", IDSOURCE bigint NOT NULL");
-    } else {
-        sb.append(" (IDRECEIVER bigint NOT NULL");
-    }
-    sb.append(", THE_GEOM geometry")
-    for (int idfreq = 0; idfreq < ldenConfig.propagationProcessPathData.freq_lvl.size(); idfreq++) {
-        sb.append(", HZ");
-        sb.append(ldenConfig.propagationProcessPathData.freq_lvl.get(idfreq));
-        sb.append(" numeric(5, 2)");
-    }
-    sb.append(", LAEQ numeric(5, 2), LEQ numeric(5, 2) ) AS SELECT PK");
-    if (!ldenConfig.mergeSources) {
-        sb.append(", IDSOURCE");
-    }
-    sb.append(", ")
-    sb.append(geomField)
-    for (int idfreq = 0; idfreq < ldenConfig.propagationProcessPathData.freq_lvl.size(); idfreq++) {
-        sb.append(", HZ");
-        sb.append(ldenConfig.propagationProcessPathData.freq_lvl.get(idfreq));
+    // Building height field name
+    noiseMap.setHeightField("HEIGHT")
+    // Import table with Snow, Forest, Grass, Pasture field polygons. Attribute G is associated with each polygon
+    if (conf.groundTable != "") {
+        noiseMap.setSoilTableName(conf.groundTable as String)
     }
-    sb.append(", LAEQ, LEQ FROM ")
-    sb.append(tableReceiver)
-    if (!ldenConfig.mergeSources) {
-        // idsource can't be null so we can't left join
-        sb.append(" a, ")
-        sb.append(tableResult)
-        sb.append(" b WHERE a.PK = b.IDRECEIVER")
-    } else {
-        sb.append(" a LEFT JOIN ")
-        sb.append(tableResult)
-        sb.append(" b ON a.PK = b.IDRECEIVER")
+    // Point cloud height above sea level POINT(X Y Z)
+    if (conf.demTable != "") {
+        noiseMap.setDemTable(conf.demTable as String)
     }
-    sql.execute(sb.toString())
-    // apply pk
-    logger.info("Add primary key on " + tableName)
-    if (!ldenConfig.mergeSources) {
-        sql.execute("ALTER TABLE " + tableName + " ADD PRIMARY KEY(IDRECEIVER, IDSOURCE)")
-    } else {
-        sql.execute("ALTER TABLE " + tableName + " ADD PRIMARY KEY(IDRECEIVER)")
+    noiseMap.setMaximumPropagationDistance(conf.maxSourceDistance as double)
+    noiseMap.setMaximumReflectionDistance(conf.maxReflectionDistance as double)
+    noiseMap.setWallAbsorption(conf.wallAlpha as double)
+    noiseMap.setThreadCount(conf.threadCount as int)
+    return noiseMap
+}
+
+/**
+ * Write the cell of each receiver in the cell index table, the cells of the cost model grid
+ * @return Estimated cost by cell identifier
+ */
+Map<String, Double> prepareCells(Connection connection, CellCostModel costModel, int gridDim, String receiversTable,
+                                 String receiversPk, String receiversGeom) {
+    Sql sql = new Sql(connection)
+    double[][] cellCosts = costModel.getCellCosts(gridDim)
+    Map<String, Double> cells = new HashMap<>()
+    sql.execute("DROP TABLE IF EXISTS " + CELL_INDEX_TABLE)
+    sql.execute("CREATE TABLE " + CELL_INDEX_TABLE + "(PK BIGINT PRIMARY KEY, CELL VARCHAR)")
+    sql.withBatch(1000, "INSERT INTO " + CELL_INDEX_TABLE + " VALUES (?, ?)") { ps ->
+        sql.eachRow("SELECT " + receiversPk + " PK, ST_X(" + receiversGeom + ") X, ST_Y(" + receiversGeom +
+                ") Y FROM " + receiversTable) { row ->
+            int[] cellIndex = costModel.getCellIndex(row.X as double, row.Y as double, gridDim)
+            String cell = CellCheckpoints.cellId(cellIndex[0], cellIndex[1])
+            cells.put(cell, cellCosts[cellIndex[0]][cellIndex[1]])
+            ps.addBatch(row.PK as Long, cell)
+        }
     }
+    return cells
 }
 
 // main function of the script
@@ -288,103 +321,82 @@ def exec(Connection connection, input) {
     logger.info(String.format("PARAM : The temperature is set to %s ", confTemperature));
     logger.info(String.format("PARAM : The pfav values are %s ", confFavorableOccurrences));
 
-    // -------------------------
-    // Initialize some variables
-    // -------------------------
-
-    // Set of already processed receivers
-    Set<Long> receivers = new HashSet<>()
 
     // --------------------------------------------
     // Initialize NoiseModelling propagation part
     // --------------------------------------------
 
-    PointNoiseMap pointNoiseMap = new PointNoiseMap(building_table_name, sources_table_name, receivers_table_name)
-
-    LDENConfig ldenConfig_propa = new LDENConfig(LDENConfig.INPUT_MODE.INPUT_MODE_LW_DEN)
-
-    ldenConfig_propa.setComputeLDay(!confSkipLday)
-    ldenConfig_propa.setComputeLEvening(!confSkipLevening)
-    ldenConfig_propa.setComputeLNight(!confSkipLnight)
-    ldenConfig_propa.setComputeLDEN(!confSkipLden)
-    ldenConfig_propa.setMergeSources(!confExportSourceId)
-    ldenConfig_propa.setlDayTable("LDAY_ROADS")
-    ldenConfig_propa.setlEveningTable("LEVENING_ROADS")
-    ldenConfig_propa.setlNightTable("LNIGHT_ROADS")
-    ldenConfig_propa.setlDenTable("LDEN_ROADS")
-    ldenConfig_propa.setComputeLAEQOnly(true)
-
-    LDENPointNoiseMapFactory ldenProcessing = new LDENPointNoiseMapFactory(connection, ldenConfig_propa)
-    // Add train directivity
-    // TODO add optional discrete directivity table name
-    ldenProcessing.insertTrainDirectivity()
-    pointNoiseMap.setComputeHorizontalDiffraction(compute_horizontal_diffraction)
-    pointNoiseMap.setComputeVerticalDiffraction(compute_vertical_diffraction)
-    pointNoiseMap.setSoundReflectionOrder(reflexion_order)
-
-    // Set environmental parameters
-    PropagationProcessPathData environmentalData = new PropagationProcessPathData(false)
-
-    environmentalData.setHumidity(confHumidity)
-    environmentalData.setTemperature(confTemperature)
-
     StringTokenizer tk = new StringTokenizer(confFavorableOccurrences, ',')
-    double[] favOccurrences = new double[PropagationProcessPathData.DEFAULT_WIND_ROSE.length]
+    double[] favOccurrences = new double[AttenuationParameters.DEFAULT_WIND_ROSE.length]
     for (int i = 0; i < favOccurrences.length; i++) {
         favOccurrences[i] = Math.max(0, Math.min(1, Double.valueOf(tk.nextToken().trim())))
     }
-    environmentalData.setWindRose(favOccurrences)
-
-    pointNoiseMap.setPropagationProcessPathData(environmentalData)
 
-    // Building height field name
-    pointNoiseMap.setHeightField("HEIGHT")
-    // Import table with Snow, Forest, Grass, Pasture field polygons. Attribute G is associated with each polygon
-    if (ground_table_name != "") {
-        pointNoiseMap.setSoilTableName(ground_table_name)
+    // Parameters of the noise map of each cell
+    Map noiseMapConf = [exportSourceId       : confExportSourceId,
+                        horizontalDiffraction: compute_horizontal_diffraction,
+                        verticalDiffraction  : compute_vertical_diffraction,
+                        reflectionOrder      : reflexion_order,
+                        humidity             : confHumidity,
+                        temperature          : confTemperature,
+                        windRose             : favOccurrences,
+                        groundTable          : ground_table_name,
+                        demTable             : dem_table_name,
+                        maxSourceDistance    : max_src_dist,
+                        maxReflectionDistance: max_ref_dist,
+                        wallAlpha            : wall_alpha,
+                        threadCount          : n_thread]
+
+    // Result table by NoiseModelling period
+    Map<String, String> resultTables = new LinkedHashMap<>()
+    if (!confSkipLday) {
+        resultTables.put("D", "LDAY_ROADS")
     }
-    // Point cloud height above sea level POINT(X Y Z)
-    if (dem_table_name != "") {
-        pointNoiseMap.setDemTable(dem_table_name)
+    if (!confSkipLevening) {
+        resultTables.put("E", "LEVENING_ROADS")
+    }
+    if (!confSkipLnight) {
+        resultTables.put("N", "LNIGHT_ROADS")
+    }
+    if (!confSkipLden) {
+        resultTables.put("DEN", "LDEN_ROADS")
     }
 
-    pointNoiseMap.setMaximumPropagationDistance(max_src_dist)
-    pointNoiseMap.setMaximumReflectionDistance(max_ref_dist)
-    pointNoiseMap.setWallAbsorption(wall_alpha)
-    pointNoiseMap.setThreadCount(n_thread)
-
-
-    // --------------------------------------------
-    // Initialize NoiseModelling emission part
-    // --------------------------------------------
-
-    pointNoiseMap.setComputeRaysOutFactory(ldenProcessing)
-    pointNoiseMap.setPropagationProcessDataFactory(ldenProcessing)
-
-
-    // Do not propagate for low emission or far away sources
-    // Maximum error in dB
-    pointNoiseMap.setMaximumError(0.2d)
-    //pointNoiseMap.setNoiseFloor(-50d);
-    // Init Map
-    pointNoiseMap.initialize(connection, new EmptyProgressVisitor())
-
-    // --------------------------------------------
-    // Run Calculations
-    // --------------------------------------------
+    // Cell size of the lowest estimated duration, dense areas need small cells and sparse areas large cells
+    CellCostModel costModel = CellCostModel.load(connection, receivers_table_name, sources_table_name, max_src_dist)
+    int gridDim = costModel.chooseGridDim(MIN_GRID_DIM, MAX_GRID_DIM, ParallelCellDriver.DEFAULT_CELLS_IN_FLIGHT)
+    logger.info(String.format("Grid of %dx%d cells, %s", gridDim, gridDim,
+            CellCostModel.formatStatistics(CellCostModel.getStatistics(costModel.getCellCosts(gridDim)))))
+    // Estimated cost and duration of each cell
+    String costReportTable = "CELL_COSTS_" + CHECKPOINT_COMPUTATION
+    costModel.writeReport(connection, costReportTable, gridDim, sridReceivers)
+    String receiversPk = JDBCUtilities.getColumnName(connection, receivers_table_name, pkIndexRecv)
+    String receiversGeom = geomFieldsRcv.get(0)
+    Map<String, Double> cells = prepareCells(connection, costModel, gridDim, receivers_table_name, receiversPk,
+            receiversGeom)
 
     // --------------------------------------------
-    // Initialize NoiseModelling emission part
+    // Resume a previous run
     // --------------------------------------------
-    pointNoiseMap.setComputeRaysOutFactory(ldenProcessing)
-    pointNoiseMap.setPropagationProcessDataFactory(ldenProcessing)
 
-
-    // Init Map
-    pointNoiseMap.initialize(connection, new EmptyProgressVisitor())
-
-    pointNoiseMap.setGridDim(100)
-    logger.info("Taille de cellulle : " + pointNoiseMap.getCellWidth().toString())
+    // The cells completed by a previous run with the same inputs and tables are skipped
+    String computationKey = CellCheckpoints.computeKey(connection, "s4_Road_Noise_level",
+            (input as Map).findAll { !(it.key in ["cellsInFlight", "archiveResults"]) } + [gridDim: gridDim],
+            [sources_table_name, receivers_table_name, building_table_name, dem_table_name, ground_table_name,
+             "CONF", "ZONE"])
+    CellCheckpoints.prepare(connection, CHECKPOINT_COMPUTATION, computationKey)
+    Set<String> completedCells = CellCheckpoints.getCompletedCells(connection, CHECKPOINT_COMPUTATION,
+            new HashSet<Long>())
+    resultTables.values().each { resultTable ->
+        // Results of the cells not completed by the previous run
+        sql.execute("DROP TABLE IF EXISTS " + resultTable + BATCH_SUFFIX)
+        if (completedCells.isEmpty()) {
+            sql.execute("DROP TABLE IF EXISTS " + resultTable)
+        }
+    }
+    if (!completedCells.isEmpty()) {
+        logger.info(String.format("Resume the computation, %d cells already computed", completedCells.size()))
+    }
 
     // --------------------------------------------
     // Run Calculations
@@ -400,120 +412,106 @@ def exec(Connection connection, input) {
         progressLogger = new RootProgressVisitor(1, true, 1);
     }
 
-    String profileName = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy_MM_dd.HH'h'mm'm'ss's'", Locale.ROOT))+"."+System.currentTimeMillis();
-    File profileFile
+    File archiveFile
     if("workingDirectory" in input) {
-        profileFile = new File(new File(input["workingDirectory"] as String), "profile_"+profileName+".csv")
-        ldenConfig_propa.setSqlOutputFile(new File(new File(input["workingDirectory"] as String), "Road_Noise_level.sql.gz"))
-        ldenConfig_propa.setSqlOutputFileCompression(true)
+        archiveFile = new File(new File(input["workingDirectory"] as String), "Road_Noise_level.sql.gz")
     } else {
-        profileFile = new File("profile_"+profileName+".csv")
-        ldenConfig_propa.setSqlOutputFile(new File("Road_Noise_level.sql.gz"))
-        ldenConfig_propa.setSqlOutputFileCompression(true)
+        archiveFile = new File("Road_Noise_level.sql.gz")
     }
 
-    ProfilerThread profilerThread = new ProfilerThread(profileFile);
-    profilerThread.addMetric(ldenProcessing);
-    profilerThread.addMetric(new ProgressMetric(progressLogger))
-    profilerThread.addMetric(new JVMMemoryMetric())
-    profilerThread.addMetric(new ReceiverStatsMetric())
-    pointNoiseMap.setProfilerThread(profilerThread);
-    try {
-        ldenProcessing.start()
-        new Thread(profilerThread).start();
-        // Iterate over computation areas
-        int k = 0
-        Map cells = pointNoiseMap.searchPopulatedCells(connection)
-        ProgressVisitor progressVisitor = progressLogger.subProcess(cells.size())
-        new TreeSet<>(cells.keySet()).each { cellIndex ->
-            // Run ray propagation
-            logger.info(String.format("Compute... %.3f %% (%d receivers in this cell)", 100 * k++ / cells.size(), cells.get(cellIndex)))
-            IComputeRaysOut ro = pointNoiseMap.evaluateCell(connection, cellIndex.getLatitudeIndex(), cellIndex.getLongitudeIndex(), progressVisitor, receivers)
-            if (ro instanceof LDENComputeRaysOut) {
-                LDENPropagationProcessData ldenPropagationProcessData = (LDENPropagationProcessData) ro.inputData;
-                logger.info(String.format("This computation area contains %d receivers %d sound sources and %d buildings",
-                        ldenPropagationProcessData.receivers.size(), ldenPropagationProcessData.sourceGeometries.size(),
-                        ldenPropagationProcessData.freeFieldFinder.getBuildingCount()));
-                if (export) {
-                     logger.info(String.format("Export Domain : ") + String.format("Domain_part_%d.kml", k))
-                    exportDomain(ldenPropagationProcessData,pathOutput.toString() + "\\" + String.format("Domain_part_%d.kml", k),sridBuildings)
+    List<String> pendingCells = cells.keySet().findAll { !completedCells.contains(it) }.toList()
+    // Most expensive cells first, the cheap ones fill the end of the computation
+    pendingCells.sort { cell -> -cells.get(cell) }
+    Map<String, Long> cellDurations = new ConcurrentHashMap<>()
+    AtomicInteger evaluatedCells = new AtomicInteger(cells.size() - pendingCells.size())
+    ProgressVisitor progressVisitor = progressLogger.subProcess(pendingCells.size())
+    Map handler = [
+            evaluate: { Connection cellConnection, String cell ->
+                // The receivers and the levels of the cell are in their own tables
+                long cellStart = System.currentTimeMillis()
+                Sql cellSql = new Sql(cellConnection)
+                String cellReceiversTable = CELL_RECEIVERS_PREFIX + cell
+                String cellLevelsTable = CELL_LEVELS_PREFIX + cell
+                cellSql.execute("DROP TABLE IF EXISTS " + cellReceiversTable)
+                cellSql.execute("CREATE TABLE " + cellReceiversTable + " AS SELECT R.* FROM " + receivers_table_name +
+                        " R, " + CELL_INDEX_TABLE + " C WHERE R." + receiversPk + " = C.PK AND C.CELL = '" + cell + "'")
+                cellSql.execute("ALTER TABLE " + cellReceiversTable + " ADD PRIMARY KEY (" + receiversPk + ")")
+                if (dbTypes == DBTypes.POSTGIS) {
+                    cellSql.execute("CREATE INDEX ON " + cellReceiversTable + " USING GIST(" + receiversGeom + ")")
+                } else {
+                    cellSql.execute("CREATE SPATIAL INDEX ON " + cellReceiversTable + "(" + receiversGeom + ")")
+                }
+                cellSql.execute("DROP TABLE IF EXISTS " + cellLevelsTable)
+                int k = evaluatedCells.incrementAndGet()
+                logger.info(String.format("Compute... %.3f %% (cell %s)", 100 * (k - 1) / cells.size(), cell))
+                // Run ray propagation
+                createNoiseMap(building_table_name, sources_table_name, cellReceiversTable, cellLevelsTable,
+                        noiseMapConf).run(new ConnectionWrapper(cellConnection), progressVisitor)
+                cellSql.execute("DROP TABLE IF EXISTS " + cellReceiversTable)
+                cellDurations.put(cell, System.currentTimeMillis() - cellStart)
+            },
+            completed: { String cell ->
+                String cellLevelsTable = CELL_LEVELS_PREFIX + cell
+                if (!progressLogger.isCanceled()) {
+                    // A cell completed after the cancel may be incomplete
+                    Map<String, String> batchTables = new LinkedHashMap<>()
+                    if (JDBCUtilities.tableExists(connection, TableLocation.parse(cellLevelsTable, dbTypes))) {
+                        // Split the levels of the cell by period
+                        String columns = JDBCUtilities.getColumnNames(connection, cellLevelsTable)
+                                .findAll { !it.equalsIgnoreCase("PERIOD") }.join(", ")
+                        resultTables.each { period, resultTable ->
+                            String batchTable = resultTable + BATCH_SUFFIX
+                            sql.execute("DROP TABLE IF EXISTS " + batchTable)
+                            sql.execute("CREATE TABLE " + batchTable + " AS SELECT " + columns + " FROM " +
+                                    cellLevelsTable + " WHERE PERIOD = '" + period + "'")
+                            batchTables.put(batchTable, resultTable)
+                        }
                     }
+                    List<Long> cellReceivers = sql.rows("SELECT PK FROM " + CELL_INDEX_TABLE + " WHERE CELL = ?",
+                            [cell]).collect { it.PK as Long }
+                    // Write the results of the cell, then checkpoint it
+                    CellCheckpoints.commitBatch(connection, CHECKPOINT_COMPUTATION, computationKey,
+                            [(cell): cellReceivers], batchTables)
+                }
+                sql.execute("DROP TABLE IF EXISTS " + cellLevelsTable)
             }
-        }
-    } catch(IllegalArgumentException | IllegalStateException ex) {
-        System.err.println(ex);
-        throw ex;
-    } finally {
-        profilerThread.stop();
-        ldenProcessing.stop()
-    }
-
-    // Associate Geometry column to the table LDEN
-    StringBuilder createdTables = new StringBuilder()
-
-    if (ldenConfig_propa.computeLDay) {
-        createdTables.append(" LDAY_ROADS")
-    }
-    if (ldenConfig_propa.computeLEvening) {
-        createdTables.append(" LEVENING_ROADS")
+    ]
+    ParallelCellDriver driver = new ParallelCellDriver(input["_dataSource"] as DataSource, connection,
+            input["cellsInFlight"] ? input["cellsInFlight"] as Integer : ParallelCellDriver.DEFAULT_CELLS_IN_FLIGHT)
+    logger.info(String.format("%d cells to compute, %d cells in flight", pendingCells.size(), driver.getCellsInFlight()))
+    driver.run(pendingCells, handler as ParallelCellDriver.CellHandler, progressLogger)
+    if (progressLogger.isCanceled()) {
+        throw new IllegalStateException("The computation has been canceled, the completed cells will be skipped" +
+                " by the next run")
     }
-    if (ldenConfig_propa.computeLNight) {
-        createdTables.append(" LNIGHT_ROADS")
+    sql.withBatch(100, "UPDATE " + costReportTable + " SET DURATION = ? WHERE CELL = ?") { ps ->
+        cellDurations.each { cell, duration -> ps.addBatch(duration, cell) }
     }
-    if (ldenConfig_propa.computeLDEN) {
-        createdTables.append(" LDEN_ROADS")
+    // All the cells are in the result tables
+    CellCheckpoints.clear(connection, CHECKPOINT_COMPUTATION)
+    sql.execute("DROP TABLE IF EXISTS " + CELL_INDEX_TABLE)
+    resultTables.values().each { resultTable ->
+        if (!JDBCUtilities.tableExists(connection, TableLocation.parse(resultTable, dbTypes))) {
+            // No cell to compute
+            sql.execute("CREATE TABLE " + resultTable + "(IDRECEIVER BIGINT, THE_GEOM GEOMETRY)")
+        }
     }
 
-    sql.execute(String.format("UPDATE metadata SET road_end = NOW();"))
-
-    logger.info("Table(s) " + createdTables.toString() + " have been created and saved into the Road_Noise_level.sql.gz file.")
-
-
-    // ---------------------------------------------------------
-    // Start the upload into the NM db
-    logger.info('Start uploading the Road_Noise_level.sql.gz file into NoiseModelling.')
+    String createdTables = " " + resultTables.values().join(" ")
 
-    File scriptFile = new File("Road_Noise_level.sql.gz")
-    if("workingDirectory" in input) {
-        scriptFile = new File(new File(input["workingDirectory"] as String), "Road_Noise_level.sql.gz")
-    }
-    if(!scriptFile.exists()) {
-        return scriptFile.absolutePath + " does not exists"
+    if (input["archiveResults"]) {
+        // Optional copy of the results, the tables are replaced when the file is loaded
+        sql.execute("SCRIPT NOSETTINGS DROP TO '" + archiveFile.absolutePath.replace("'", "''") + "' COMPRESSION GZIP TABLE " +
+                resultTables.values().join(", "))
+        logger.info("The result tables have been archived into " + archiveFile.absolutePath)
     }
 
+    sql.execute(String.format("UPDATE metadata SET road_end = NOW();"))
 
-    parseScript(scriptFile, sql, progressLogger, true)
-
-    resultString = "Process done! Table(s) " + createdTables.toString() + " have been uploaded into NoiseModelling."
+    resultString = "Process done! Table(s) " + createdTables + " have been uploaded into NoiseModelling."
 
     // print to command window
     logger.info('Result : ' + resultString)
     // print to WPS Builder
     return resultString
 }
-
-
-@CompileStatic
-static def parseScript(File scriptFile, Sql sql, ProgressVisitor progressLogger, boolean compressed) {
-    long scriptFileSize = Files.size(scriptFile.toPath())
-    int BUFFER_LENGTH = 65536
-    ProgressVisitor subProgress = progressLogger.subProcess((int)(scriptFileSize / BUFFER_LENGTH))
-    Reader reader = null
-    try {
-        FileInputStream s = new FileInputStream(scriptFile)
-        InputStream is = s
-        if(compressed) {
-            is = new GZIPInputStream(s, BUFFER_LENGTH)
-        }
-        reader  = new BufferedReader(new InputStreamReader(is))
-        ScriptReader scriptReader = new ScriptReader(reader)
-        String statement = scriptReader.readStatement()
-        while (statement != null) {
-            sql.execute(statement)
-            subProgress.setStep((int)(s.getChannel().position() / BUFFER_LENGTH))
-            statement = scriptReader.readStatement()
-        }
-    } finally {
-        reader.close()
-    }
-}